@@ -0,0 +1,64 @@
+package com.tomovwgti.android_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.internal.ClientComms;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+/**
+ * Schedules the protocol keep-alive with the AlarmManager, so PINGREQ is
+ * sent even while the device sleeps.
+ *
+ * The alarm starts the service with the keep-alive action, which calls
+ * MqttEngine.keepAlive(). The client schedules the alarms at the interval
+ * the engine learned and only sends a PINGREQ if nothing was sent or
+ * received for a whole interval, otherwise it reschedules for later.
+ */
+public class AlarmPingSender implements MqttPingSender {
+    private final Context mContext;
+    private final String mAction;
+    private final AlarmManager mAlarmManager;
+    private ClientComms mComms;
+
+    /**
+     * @param context service the alarm is delivered to
+     * @param action  action of the intent that calls MqttEngine.keepAlive()
+     */
+    public AlarmPingSender(Context context, String action) {
+        mContext = context;
+        mAction = action;
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    }
+
+    @Override
+    public void init(ClientComms comms) {
+        mComms = comms;
+    }
+
+    @Override
+    public void start() {
+        schedule(mComms.getKeepAlive());
+    }
+
+    @Override
+    public void stop() {
+        mAlarmManager.cancel(pendingIntent());
+    }
+
+    @Override
+    public void schedule(long delayInMilliseconds) {
+        mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + delayInMilliseconds, pendingIntent());
+    }
+
+    private PendingIntent pendingIntent() {
+        Intent i = new Intent();
+        i.setClass(mContext, mContext.getClass());
+        i.setAction(mAction);
+        return PendingIntent.getService(mContext, 0, i, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+}
@@ -0,0 +1,119 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.content.SharedPreferences;
+
+/**
+ * Settings of one additional broker connection.
+ *
+ * Publishes to a topic starting with one of the prefixes go to this broker,
+ * the subscriptions are made on every connect. Saved in the preferences
+ * under keys prefixed with the connection name.
+ */
+public class BrokerConfig {
+
+    private static final String PREF_NAMES = "names";
+    private static final String PREF_URI = ".uri";
+    private static final String PREF_CLIENT_ID = ".clientID";
+    private static final String PREF_USERNAME = ".username";
+    private static final String PREF_PASSWORD = ".password";
+    private static final String PREF_SESSION = ".session";
+    private static final String PREF_PREFIXES = ".prefixes";
+    private static final String PREF_SUBSCRIPTIONS = ".subscriptions";
+
+    final String name;
+    // e.g. tcp://host:1883
+    final String uri;
+    final String clientId;
+    final String username;
+    final String password;
+    final boolean cleanSession;
+    final List<String> prefixes;
+    final List<String> subscriptions;
+
+    /**
+     * @param name          unique name, also names the persistence directory
+     * @param uri           server URI, e.g. tcp://host:1883
+     * @param clientId
+     * @param username      may be null
+     * @param password      may be null
+     * @param cleanSession
+     * @param prefixes      topic prefixes routed to this broker
+     * @param subscriptions topic filters subscribed with QoS 1
+     */
+    public BrokerConfig(String name, String uri, String clientId, String username, String password,
+                        boolean cleanSession, List<String> prefixes, List<String> subscriptions) {
+        this.name = name;
+        this.uri = uri;
+        this.clientId = clientId;
+        this.username = username;
+        this.password = password;
+        this.cleanSession = cleanSession;
+        this.prefixes = Collections.unmodifiableList(new ArrayList<String>(prefixes));
+        this.subscriptions = Collections.unmodifiableList(new ArrayList<String>(subscriptions));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Loads every saved configuration
+     */
+    static List<BrokerConfig> loadAll(SharedPreferences prefs) {
+        List<BrokerConfig> configs = new ArrayList<BrokerConfig>();
+        for (String name : prefs.getStringSet(PREF_NAMES, Collections.<String>emptySet())) {
+            String uri = prefs.getString(name + PREF_URI, null);
+            if (uri == null) {
+                continue;
+            }
+            configs.add(new BrokerConfig(name, uri,
+                    prefs.getString(name + PREF_CLIENT_ID, null),
+                    prefs.getString(name + PREF_USERNAME, null),
+                    prefs.getString(name + PREF_PASSWORD, null),
+                    prefs.getBoolean(name + PREF_SESSION, true),
+                    new ArrayList<String>(prefs.getStringSet(name + PREF_PREFIXES,
+                            Collections.<String>emptySet())),
+                    new ArrayList<String>(prefs.getStringSet(name + PREF_SUBSCRIPTIONS,
+                            Collections.<String>emptySet()))));
+        }
+        return configs;
+    }
+
+    void save(SharedPreferences prefs) {
+        Set<String> names = new HashSet<String>(prefs.getStringSet(PREF_NAMES,
+                Collections.<String>emptySet()));
+        names.add(name);
+        prefs.edit()
+                .putStringSet(PREF_NAMES, names)
+                .putString(name + PREF_URI, uri)
+                .putString(name + PREF_CLIENT_ID, clientId)
+                .putString(name + PREF_USERNAME, username)
+                .putString(name + PREF_PASSWORD, password)
+                .putBoolean(name + PREF_SESSION, cleanSession)
+                .putStringSet(name + PREF_PREFIXES, new HashSet<String>(prefixes))
+                .putStringSet(name + PREF_SUBSCRIPTIONS, new HashSet<String>(subscriptions))
+                .apply();
+    }
+
+    static void remove(SharedPreferences prefs, String name) {
+        Set<String> names = new HashSet<String>(prefs.getStringSet(PREF_NAMES,
+                Collections.<String>emptySet()));
+        names.remove(name);
+        prefs.edit()
+                .putStringSet(PREF_NAMES, names)
+                .remove(name + PREF_URI)
+                .remove(name + PREF_CLIENT_ID)
+                .remove(name + PREF_USERNAME)
+                .remove(name + PREF_PASSWORD)
+                .remove(name + PREF_SESSION)
+                .remove(name + PREF_PREFIXES)
+                .remove(name + PREF_SUBSCRIPTIONS)
+                .apply();
+    }
+}
@@ -0,0 +1,167 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.File;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import android.content.Context;
+import android.os.Handler;
+
+/**
+ * One additional broker connection of the service, backed by an engine of
+ * its own.
+ *
+ * The engine connects, backs off, learns the keep-alive and restores the
+ * subscriptions the way the primary one does, with settings, subscriptions
+ * and a data directory per connection. The connection thread of the
+ * service is shared by all connections. Keep-alive and wakeup alarms start
+ * the service with actions suffixed by the connection name, which the
+ * service hands to keepAlive() and onWakeup(). Publishes are routed to it
+ * by the primary engine, which queues them in its lanes.
+ */
+public class BrokerConnection implements PublishRoute {
+
+    interface Listener {
+        /**
+         * A message arrived, decoded and filtered by the engine of the connection
+         */
+        void onMessage(BrokerConnection connection, String topic, byte[] payload, int qos, boolean retained);
+
+        void onConnectionLost(BrokerConnection connection, Throwable cause);
+    }
+
+    // Preferences file of the engine, suffixed by the connection name
+    private static final String SETTINGS_PREFS = MqttService.TAG + ".connection.";
+    // Data directory of the engine, suffixed by the connection name
+    private static final String DATA_DIR = "connection-";
+
+    private final BrokerConfig mConfig;
+    private final Listener mListener;
+    private final MqttEngine mEngine;
+    private final ServiceScheduler mScheduler;
+
+    /**
+     * @param keepAliveAction action of the keep-alive alarm
+     * @param wakeupAction    prefix of the wakeup actions of the engine
+     */
+    BrokerConnection(Context context, Handler handler, BrokerConfig config, Listener listener,
+                     Connectivity connectivity, String keepAliveAction, String wakeupAction) {
+        mConfig = config;
+        mListener = listener;
+        mEngine = new MqttEngine(Clock.SYSTEM, config.name);
+        mScheduler = new ServiceScheduler(context, handler, wakeupAction);
+
+        // the learned keep-alive stays, the connection settings are the config
+        SettingsStore settings = new PreferencesStore(
+                context.getSharedPreferences(SETTINGS_PREFS + config.name, Context.MODE_PRIVATE));
+        settings.putString(MqttEngine.PREF_SERVER_LIST, config.uri);
+        settings.putString(MqttEngine.PREF_CLIENT_ID, config.clientId);
+        settings.putString(MqttEngine.PREF_USERNAME, config.username);
+        settings.putString(MqttEngine.PREF_PASSWORD, config.password);
+        settings.putBoolean(MqttEngine.PREF_SESSION, config.cleanSession);
+        // messages are cached by the primary engine they are passed to
+        settings.putBoolean(MqttEngine.PREF_CACHE_SNAPSHOT, false);
+        File dataDir = new File(context.getFilesDir(), DATA_DIR + config.name);
+        dataDir.mkdirs();
+        mEngine.attach(new MqttEngine.Environment(mScheduler, connectivity, settings,
+                new MemorySettingsStore(), dataDir, new AlarmPingSender(context, keepAliveAction), null),
+                mEngineListener);
+        for (String filter : config.subscriptions) {
+            mEngine.subscribe(filter, MqttEngine.MQTT_QOS_1);
+        }
+    }
+
+    public BrokerConfig getConfig() {
+        return mConfig;
+    }
+
+    public ConnectionState getState() {
+        return mEngine.getState();
+    }
+
+    public boolean isConnected() {
+        return mEngine.isConnected();
+    }
+
+    public void start() {
+        mEngine.start();
+    }
+
+    /**
+     * Disconnects and cancels any scheduled reconnect
+     */
+    public void stop() {
+        mEngine.stop();
+    }
+
+    /**
+     * Stops and detaches the engine, for a connection that is removed or a
+     * service that is destroyed
+     */
+    public void close() {
+        mEngine.detach();
+    }
+
+    /**
+     * The platform reports the link it is on now, see MqttEngine.onLinkChanged()
+     */
+    public void onLinkChanged(NetworkLink link) {
+        mEngine.onLinkChanged(link);
+    }
+
+    public void keepAlive() {
+        mEngine.keepAlive();
+    }
+
+    /**
+     * @return false if action is no wakeup of this connection
+     */
+    public boolean onWakeup(String action) {
+        return mScheduler.onWakeup(action);
+    }
+
+    /**
+     * Publishes without waiting, completion is reported to listener
+     *
+     * @throws MqttException REASON_CODE_CLIENT_NOT_CONNECTED while not connected
+     */
+    @Override
+    public void publish(String topic, MqttMessage message, Object userContext,
+                        IMqttActionListener listener) throws MqttException {
+        mEngine.publish(topic, message, userContext, listener);
+    }
+
+    public ConnectionStatus getStatus() {
+        return mEngine.getStatus();
+    }
+
+    private final MqttEngine.Listener mEngineListener = new MqttEngine.Listener() {
+        @Override
+        public void onConnect(int status, String message) {
+        }
+
+        @Override
+        public void onDisconnect(int status, String message) {
+        }
+
+        @Override
+        public void onSubscribe(String filter, int status) {
+        }
+
+        @Override
+        public void onConnectionLost(Throwable cause) {
+            mListener.onConnectionLost(BrokerConnection.this, cause);
+        }
+
+        @Override
+        public void onLinkChanged(NetworkLink from, NetworkLink to) {
+        }
+
+        @Override
+        public void onMessage(String topic, byte[] payload, int qos, boolean retained) {
+            mListener.onMessage(BrokerConnection.this, topic, payload, qos, retained);
+        }
+    };
+}
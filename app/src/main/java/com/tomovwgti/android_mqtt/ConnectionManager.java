@@ -0,0 +1,80 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Owns the additional broker connections and routes publishes to them by
+ * topic prefix. The longest matching prefix wins, topics matching none stay
+ * with the primary connection of the service.
+ */
+public class ConnectionManager {
+
+    private static class Route {
+        final String prefix;
+        final BrokerConnection connection;
+
+        Route(String prefix, BrokerConnection connection) {
+            this.prefix = prefix;
+            this.connection = connection;
+        }
+    }
+
+    private final Map<String, BrokerConnection> mConnections =
+            new LinkedHashMap<String, BrokerConnection>();
+    // longest prefix first
+    private final List<Route> mRoutes = new ArrayList<Route>();
+
+    public synchronized void add(BrokerConnection connection) {
+        remove(connection.getConfig().name);
+        mConnections.put(connection.getConfig().name, connection);
+        for (String prefix : connection.getConfig().prefixes) {
+            int i = 0;
+            while (i < mRoutes.size() && mRoutes.get(i).prefix.length() >= prefix.length()) {
+                i++;
+            }
+            mRoutes.add(i, new Route(prefix, connection));
+        }
+    }
+
+    /**
+     * @return the removed connection, which is not stopped, or null
+     */
+    public synchronized BrokerConnection remove(String name) {
+        BrokerConnection connection = mConnections.remove(name);
+        if (connection != null) {
+            for (int i = mRoutes.size() - 1; i >= 0; i--) {
+                if (mRoutes.get(i).connection == connection) {
+                    mRoutes.remove(i);
+                }
+            }
+        }
+        return connection;
+    }
+
+    public synchronized BrokerConnection get(String name) {
+        return mConnections.get(name);
+    }
+
+    /**
+     * @return connection for the topic, null for the primary connection
+     */
+    public synchronized BrokerConnection route(String topic) {
+        for (Route route : mRoutes) {
+            if (topic.startsWith(route.prefix)) {
+                return route.connection;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<BrokerConnection> getAll() {
+        return new ArrayList<BrokerConnection>(mConnections.values());
+    }
+
+    public synchronized boolean isEmpty() {
+        return mConnections.isEmpty();
+    }
+}
@@ -1,41 +1,37 @@
 
 package com.tomovwgti.android_mqtt;
 
-import java.util.Locale;
-
-import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
-import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
-import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
-import org.eclipse.paho.client.mqttv3.MqttTopic;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
-
-import android.app.AlarmManager;
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.util.Log;
 import android.widget.Toast;
 
-public class MqttService extends Service implements MqttCallback {
+/**
+ * Android adapter of the MqttEngine.
+ *
+ * The engine lives as long as the process, so publishes made while the
+ * service is not created are queued and the service is started to send
+ * them. The service attaches the engine to its connection thread, alarms,
+ * preferences and connectivity while it is created, and owns what only
+ * exists on Android: the intents, notifications and the additional
+ * connections.
+ */
+public class MqttService extends Service {
     public static final String TAG = MqttService.class.getSimpleName();
 
     private MqttService self = this;
@@ -44,109 +40,161 @@ public class MqttService extends Service implements MqttCallback {
         void onResult(String action, int status, String message);
     }
 
+    interface messageCallback extends MqttEngine.messageCallback {
+    }
+
     // handler Thread ID
     private static final String MQTT_THREAD_NAME = "MqttService[" + TAG + "]";
     // QOS Level 0 ( Delivery Once no confirmation )
-    public static final int MQTT_QOS_0 = 0;
+    public static final int MQTT_QOS_0 = MqttEngine.MQTT_QOS_0;
     // QOS Level 1 ( Delevery at least Once with confirmation )
-    public static final int MQTT_QOS_1 = 1;
+    public static final int MQTT_QOS_1 = MqttEngine.MQTT_QOS_1;
     // QOS Level 2 ( Delivery only once with confirmation with handshake )
-    public static final int MQTT_QOS_2 = 2;
+    public static final int MQTT_QOS_2 = MqttEngine.MQTT_QOS_2;
     // retained message
-    public static final boolean MQTT_NO_RETAIN = false;
-    // This the application level keep-alive interval, that is used by the
-    // AlarmManager
-    // to keep the connection active, even when the device goes to sleep.
-    private static final long KEEP_ALIVE_INTERVAL = 1000 * 60 * 28;
-
-    // Retry intervals, when the connection is lost.
-    private static final long INITIAL_RETRY_INTERVAL = 1000 * 10;
-    private static final long MAXIMUM_RETRY_INTERVAL = 1000 * 60 * 30;
-
-    // Topic format for KeepAlives
-    private static final String MQTT_KEEP_ALIVE_TOPIC_FORAMT = "/users/%s/keepalive";
-    private static final byte[] MQTT_KEEP_ALIVE_MESSAGE = {
-        0
-    }; // Keep Alive message to send
-
-    // Default KeepAlive QOS
-    private static final int MQTT_KEEP_ALIVE_QOS = MQTT_QOS_0;
-    // Start a clean session ?
-    private static final boolean MQTT_CLEAN_SESSION = true;
-    // URL Format normaly don't change
-    private static final String MQTT_URL_FORMAT = "tcp://%s:%d";
+    public static final boolean MQTT_NO_RETAIN = MqttEngine.MQTT_NO_RETAIN;
+    // Codec id of plain deflate, for setTopicCodec()
+    public static final int CODEC_DEFLATE = MqttEngine.CODEC_DEFLATE;
+
+    // Preferences file of the additional connections
+    private static final String CONNECTIONS_PREFS = TAG + ".connections";
+    // Name of the connection configured by the PREF_* keys
+    public static final String PRIMARY_CONNECTION = MqttEngine.PRIMARY_CONNECTION;
     // Action to start
     public static final String ACTION_START = TAG + ".START";
     // Action to stop
     public static final String ACTION_STOP = TAG + ".STOP";
     // Action to subscribe
-    private static final String ACTION_SUBSCRIBE = TAG + ".SUBSCRIBE";
+    public static final String ACTION_SUBSCRIBE = TAG + ".SUBSCRIBE";
+    // Action to unsubscribe
+    public static final String ACTION_UNSUBSCRIBE = TAG + ".UNSUBSCRIBE";
+    // QoS of ACTION_SUBSCRIBE
+    public static final String EXTRA_QOS = "qos";
     // Action to publish
     private static final String ACTION_PUBLISH = TAG + ".PUBLISH";
     // Action to keep alive used by alarm manager
     private static final String ACTION_KEEPALIVE = TAG + ".KEEPALIVE";
-    // Action to reconnect
-    private static final String ACTION_RECONNECT = TAG + ".RECONNECT";
-    // Is the Client started?
-    private boolean mStarted = false;
+    // Action of the wakeups of the engine, e.g. to reconnect
+    private static final String ACTION_WAKEUP = TAG + ".WAKEUP";
+    // Lane of topics not routed elsewhere, and of control messages
+    public static final String LANE_DEFAULT = MqttEngine.LANE_DEFAULT;
+    public static final String LANE_CONTROL = MqttEngine.LANE_CONTROL;
+    // Preferences file of the subscription registry
+    private static final String SUBSCRIPTIONS_PREFS = TAG + ".subscriptions";
     // Seperate Handler thread for networking
     private Handler mConnHandler;
+    // Runs the engine on mConnHandler, wakeups through the AlarmManager
+    private ServiceScheduler mScheduler;
 
-    // Defaults to FileStore
-    private MqttDefaultFilePersistence mDataStore;
-    // On Fail reverts to MemoryStore
-    private MemoryPersistence mMemStore;
-    // Connection Options
-    private MqttConnectOptions mOpts;
-    // Instance Variable for Keepalive topic
-    private MqttTopic mKeepAliveTopic;
+    // Sends PINGREQ from AlarmManager wakeups
+    private AlarmPingSender mPingSender;
 
-    // Mqtt Client
-    private MqttClient mClient;
-
-    private long mStartTime;
-
-    // Alarm manager to perform repeating tasks
-    private AlarmManager mAlarmManager;
     // To check for connectivity changes
     private ConnectivityManager mConnectivityManager;
+    // Is mConnectivityReceiver registered?
+    private boolean mReceiverRegistered = false;
 
     // Preferences instance
     private SharedPreferences mPrefs;
     // We store in the preferences, whether or not the service has been started
-    public static final String PREF_STARTED = "isStarted";
+    public static final String PREF_STARTED = MqttEngine.PREF_STARTED;
     // We also store the client ID
-    public static final String PREF_CLIENT_ID = "clientID";
+    public static final String PREF_CLIENT_ID = MqttEngine.PREF_CLIENT_ID;
     // We also store the server address
-    public static final String PREF_SERVER_ADDRESS = "server";
+    public static final String PREF_SERVER_ADDRESS = MqttEngine.PREF_SERVER_ADDRESS;
     // We also store the server port
-    public static final String PREF_SERVER_PORT = "port";
+    public static final String PREF_SERVER_PORT = MqttEngine.PREF_SERVER_PORT;
+    // We also store the transport, tcp or ssl
+    public static final String PREF_TRANSPORT = MqttEngine.PREF_TRANSPORT;
+    // Comma separated servers as host:port or URIs, replaces the address
+    // and port if set
+    public static final String PREF_SERVER_LIST = MqttEngine.PREF_SERVER_LIST;
     // We also store the username for server
-    public static final String PREF_USERNAME = "username";
+    public static final String PREF_USERNAME = MqttEngine.PREF_USERNAME;
     // We also store the password for server
-    public static final String PREF_PASSWORD = "password";
+    public static final String PREF_PASSWORD = MqttEngine.PREF_PASSWORD;
     // We also store the topic
-    public static final String PREF_TOPIC = "topic";
+    public static final String PREF_TOPIC = MqttEngine.PREF_TOPIC;
     // We also store the session
-    public static final String PREF_SESSION = "session";
+    public static final String PREF_SESSION = MqttEngine.PREF_SESSION;
     // We also store the publish topic
     public static final String PREF_PUBLISH_TOPIC = "publish";
     // We also store the publish message
     public static final String PREF_PUBLISH_MESSAGE = "message";
 
-    // We store the last retry interval
-    public static final String PREF_RETRY = "retryInterval";
+    // We store whether the last value cache is kept across restarts
+    public static final String PREF_CACHE_SNAPSHOT = MqttEngine.PREF_CACHE_SNAPSHOT;
+
+    // We store the size of the in-flight window
+    public static final String PREF_IN_FLIGHT_WINDOW = MqttEngine.PREF_IN_FLIGHT_WINDOW;
 
-    // Notification id
-    private static final int NOTIF_CONNECTED = 0;
+    // We store the drop policy of the offline queue
+    public static final String PREF_OFFLINE_POLICY = MqttEngine.PREF_OFFLINE_POLICY;
 
-    public final static int STATUS_SUCCESS = 256;
+    // We store the learned keep-alive interval, its ceiling, the last good
+    // one and the pings answered at it, per network
+    public static final String PREF_KEEP_ALIVE_INTERVAL = MqttEngine.PREF_KEEP_ALIVE_INTERVAL;
+    public static final String PREF_KEEP_ALIVE_CEILING = MqttEngine.PREF_KEEP_ALIVE_CEILING;
+    public static final String PREF_KEEP_ALIVE_GOOD = MqttEngine.PREF_KEEP_ALIVE_GOOD;
+    public static final String PREF_KEEP_ALIVE_SUCCESSES = MqttEngine.PREF_KEEP_ALIVE_SUCCESSES;
+
+    // Messages of a topic within this many ms are collapsed into one notification
+    private static final long NOTIFICATION_WINDOW = 1000 * 5;
+    // Notifications posted per window over all topics
+    private static final int NOTIFICATION_MAX_PER_WINDOW = 3;
+    // Collapses notifications of high-rate topics
+    private NotificationAggregator mNotifications;
+
+    public final static int STATUS_SUCCESS = MqttEngine.STATUS_SUCCESS;
     private static resultCallback mCallback;
+    private static messageCallback mMessageCallback;
+
+    // Client engine of this process, queues publishes while no service is created
+    private static final MqttEngine sEngine = new MqttEngine();
+    // Running service instance, null while the service is not created
+    private static MqttService sInstance;
+    // Additional broker connections, publishes are routed by topic prefix
+    private final ConnectionManager mConnections = new ConnectionManager();
+    private SharedPreferences mConnectionPrefs;
 
     public static void setOnResultListener(resultCallback callback) {
         mCallback = callback;
     }
 
+    /**
+     * Receive the raw payload of every message that arrives
+     */
+    public static synchronized void setOnMessageListener(messageCallback callback) {
+        if (mMessageCallback != null) {
+            sEngine.getDispatcher().removeListener("#", mMessageCallback);
+        }
+        mMessageCallback = callback;
+        if (callback != null) {
+            sEngine.getDispatcher().addListener("#", callback);
+        }
+    }
+
+    /**
+     * Receive the messages matching a topic filter
+     *
+     * @param filter topic filter, may contain '+' and '#'
+     * @param callback
+     */
+    public static void addMessageListener(String filter, messageCallback callback) {
+        sEngine.getDispatcher().addListener(filter, callback);
+    }
+
+    public static void removeMessageListener(String filter, messageCallback callback) {
+        sEngine.getDispatcher().removeListener(filter, callback);
+    }
+
+    /**
+     * Executor the message listeners run on, a single thread by default
+     */
+    public static void setDispatchExecutor(Executor executor) {
+        sEngine.getDispatcher().setExecutor(executor);
+    }
+
     public static void action(Context ctx, String action) {
         Intent i = new Intent(ctx, MqttService.class);
         if (action.equals(ACTION_START)) {
@@ -164,12 +212,38 @@ public class MqttService extends Service implements MqttCallback {
      *
      */
     public static void subscribe(Context ctx, String topic) {
+        subscribe(ctx, topic, MQTT_QOS_1);
+    }
+
+    /**
+     * Subscribe topic filter. The subscription is kept until unsubscribed
+     * and restored after every reconnect.
+     *
+     * @param ctx
+     * @param topic topic filter, may contain '+' and '#'
+     * @param qos
+     */
+    public static void subscribe(Context ctx, String topic, int qos) {
         Intent i = new Intent(ctx, MqttService.class);
         i.putExtra(PREF_TOPIC, topic);
+        i.putExtra(EXTRA_QOS, qos);
         i.setAction(ACTION_SUBSCRIBE);
         ctx.startService(i);
     }
 
+    /**
+     * Unsubscribe topic filter
+     *
+     * @param ctx
+     * @param topic
+     */
+    public static void unsubscribe(Context ctx, String topic) {
+        Intent i = new Intent(ctx, MqttService.class);
+        i.putExtra(PREF_TOPIC, topic);
+        i.setAction(ACTION_UNSUBSCRIBE);
+        ctx.startService(i);
+    }
+
     /**
      * Publish message
      *
@@ -178,16 +252,245 @@ public class MqttService extends Service implements MqttCallback {
      * @param message
      */
     public static void publish(Context ctx, String topic, String message) {
-        Intent i = new Intent(ctx, MqttService.class);
-        i.putExtra(PREF_PUBLISH_TOPIC, topic);
-        i.putExtra(PREF_PUBLISH_MESSAGE, message);
-        i.setAction(ACTION_PUBLISH);
-        ctx.startService(i);
+        publish(ctx, topic, message, null);
+    }
+
+    /**
+     * Publish message and report its completion
+     *
+     * The message is queued in process and sent in batches from the
+     * connection thread. callback is called once the broker acknowledged
+     * the message, or with an error reason code if it could not be sent.
+     *
+     * @param ctx
+     * @param topic
+     * @param message
+     * @param callback may be null
+     */
+    public static void publish(Context ctx, String topic, String message,
+                               PublishQueue.deliveryCallback callback) {
+        enqueue(ctx, new PublishQueue.Entry(topic, message.getBytes(MqttEngine.PAYLOAD_CHARSET),
+                MQTT_QOS_1, MQTT_NO_RETAIN, callback));
+    }
+
+    /**
+     * Publish binary message
+     *
+     * The array is sent as is without a copy, it must not be modified until
+     * callback reports the delivery.
+     *
+     * @param ctx
+     * @param topic
+     * @param payload
+     * @param qos
+     * @param retained
+     * @param callback may be null
+     */
+    public static void publish(Context ctx, String topic, byte[] payload, int qos, boolean retained,
+                               PublishQueue.deliveryCallback callback) {
+        enqueue(ctx, new PublishQueue.Entry(topic, payload, qos, retained, callback));
+    }
+
+    /**
+     * Publish binary message, choosing what happens while the publish queue
+     * is congested
+     *
+     * BLOCK waits up to 30 s for the queue to clear and must not be used on
+     * the main thread. FAIL rejects the message. CALLBACK queues it while
+     * there is room, producers learn about congestion through
+     * addBackpressureCallback(). A rejected message is reported to callback
+     * with REASON_CODE_MAX_INFLIGHT.
+     *
+     * @param ctx
+     * @param topic
+     * @param payload
+     * @param qos
+     * @param retained
+     * @param callback may be null
+     * @param mode
+     */
+    public static void publish(Context ctx, String topic, byte[] payload, int qos, boolean retained,
+                               PublishQueue.deliveryCallback callback, FlowControl.Mode mode) {
+        enqueue(ctx, new PublishQueue.Entry(topic, payload, qos, retained, callback), mode);
+    }
+
+    /**
+     * Publish a control message, e.g. a command acknowledgement
+     *
+     * Control messages go through the control lane, which has eight times
+     * the share of the default lane and part of the in-flight window to
+     * itself, so they overtake queued telemetry and are never pushed back.
+     *
+     * @param ctx
+     * @param topic
+     * @param payload
+     * @param qos
+     * @param callback may be null
+     */
+    public static void publishControl(Context ctx, String topic, byte[] payload, int qos,
+                                      PublishQueue.deliveryCallback callback) {
+        PublishQueue.Entry entry = new PublishQueue.Entry(topic, payload, qos, MQTT_NO_RETAIN, callback);
+        entry.lane = sEngine.getLanes().getLane(LANE_CONTROL);
+        enqueue(ctx, entry);
+    }
+
+    /**
+     * Adds an outbound lane, served in proportion to weight against the
+     * default lane of weight 1 and the control lane of weight 8
+     *
+     * @param name
+     * @param weight
+     * @param qos      QoS of every message, -1 to keep the published one
+     * @param retained retain flag of every message, null to keep the published one
+     * @param capacity messages queued at most
+     */
+    public static void addLane(String name, int weight, int qos, Boolean retained, int capacity) {
+        sEngine.getLanes().addLane(new PublishLanes.Lane(name, weight, qos, retained, capacity, false));
+    }
+
+    /**
+     * Sends the messages published on topics matching filter through lane
+     *
+     * @param filter topic filter, may contain '+' and '#'
+     * @param lane   name of the lane, LANE_CONTROL for control traffic
+     */
+    public static void routeLane(String filter, String lane) {
+        sEngine.getLanes().route(filter, lane);
+    }
+
+    public static void unrouteLane(String filter) {
+        sEngine.getLanes().unroute(filter);
+    }
+
+    /**
+     * Tells callback when the publish queue turns congested and clear again
+     */
+    public static void addBackpressureCallback(FlowControl.backpressureCallback callback) {
+        sEngine.getFlowControl().addCallback(callback);
+    }
+
+    public static void removeBackpressureCallback(FlowControl.backpressureCallback callback) {
+        sEngine.getFlowControl().removeCallback(callback);
+    }
+
+    /**
+     * Is the publish queue above its high watermark?
+     */
+    public static boolean isCongested() {
+        return sEngine.getFlowControl().isCongested();
+    }
+
+    /**
+     * Publish binary message
+     *
+     * The remaining bytes of payload are copied once into a pooled array, which
+     * is recycled after the broker acknowledged it. The buffer can be reused as
+     * soon as this returns.
+     *
+     * @param ctx
+     * @param topic
+     * @param payload
+     * @param qos
+     * @param retained
+     * @param callback may be null
+     */
+    public static void publish(Context ctx, String topic, ByteBuffer payload, int qos, boolean retained,
+                               PublishQueue.deliveryCallback callback) {
+        enqueue(ctx, new PublishQueue.Entry(topic, sEngine.getPayloadPool().copyOf(payload), qos,
+                retained, callback, true));
+    }
+
+    private static void enqueue(Context ctx, PublishQueue.Entry entry) {
+        enqueue(ctx, entry, FlowControl.Mode.CALLBACK);
+    }
+
+    private static void enqueue(Context ctx, PublishQueue.Entry entry, FlowControl.Mode mode) {
+        if (!sEngine.enqueue(entry, mode)) {
+            // wake the service up, it drains the queue once created
+            Intent i = new Intent(ctx, MqttService.class);
+            i.setAction(ACTION_PUBLISH);
+            ctx.startService(i);
+        }
+    }
+
+    /**
+     * State of the connection to the broker
+     */
+    public static ConnectionState getConnectionState() {
+        return sEngine.getState();
+    }
+
+    /**
+     * Keep-alive statistics and the learned interval
+     */
+    public static KeepAlivePolicy getKeepAlivePolicy() {
+        return sEngine.getKeepAlivePolicy();
+    }
+
+    /**
+     * Health of the primary connection followed by the additional ones,
+     * empty while the service is not created
+     */
+    public static List<ConnectionStatus> getConnectionStatus() {
+        MqttService service = sInstance;
+        List<ConnectionStatus> status = new ArrayList<ConnectionStatus>();
+        if (service != null) {
+            status.add(sEngine.getStatus());
+            for (BrokerConnection connection : service.mConnections.getAll()) {
+                status.add(connection.getStatus());
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Makes codec available to setTopicCodec() and for decoding, e.g. a
+     * DeflateCodec with a dictionary shared with the other clients
+     */
+    public static void registerCodec(PayloadCodec codec) {
+        sEngine.getCodecs().register(codec);
+    }
+
+    /**
+     * Compresses the payloads published on topics matching filter
+     *
+     * @param filter topic filter, may contain '+' and '#'
+     * @param codec  id of a registered codec, CODEC_DEFLATE or 0 for plain
+     */
+    public static void setTopicCodec(String filter, int codec) {
+        sEngine.getCodecs().setCodec(filter, codec);
+    }
+
+    public static void clearTopicCodec(String filter) {
+        sEngine.getCodecs().clearCodec(filter);
+    }
+
+    /**
+     * Latest message received on topic, null if none is cached
+     */
+    public static LastValueCache.Value getLastValue(String topic) {
+        return sEngine.getLastValues().get(topic);
+    }
+
+    /**
+     * Latest messages of every cached topic matching filter
+     *
+     * @param filter topic filter, may contain '+' and '#'
+     */
+    public static List<LastValueCache.Value> queryLastValues(String filter) {
+        return sEngine.getLastValues().query(filter);
+    }
+
+    /**
+     * Connection and message path metrics of this process
+     */
+    public static MetricsRegistry.Snapshot getMetrics() {
+        return sEngine.getMetrics().snapshot();
     }
 
     /**
      * Send a KeepAlive Message
-     * 
+     *
      * @param ctx context to start the service with
      * @return void
      */
@@ -198,35 +501,44 @@ public class MqttService extends Service implements MqttCallback {
     }
 
     /**
-     * Initalizes the DeviceId and most instance variables Including the
-     * Connection Handler, Datastore, Alarm Manager and ConnectivityManager.
+     * Initalizes the Connection Handler, the keep-alive alarms and the
+     * additional connections, then attaches the engine to them.
      */
     @Override
     public void onCreate() {
         super.onCreate();
 
         Log.i(TAG, "Creating service");
-        mStartTime = System.currentTimeMillis();
 
         HandlerThread thread = new HandlerThread(MQTT_THREAD_NAME);
         thread.start();
 
         mConnHandler = new Handler(thread.getLooper());
+        mScheduler = new ServiceScheduler(this, mConnHandler, ACTION_WAKEUP);
 
-        mDataStore = new MqttDefaultFilePersistence(getCacheDir().getAbsolutePath());
-
-        mOpts = new MqttConnectOptions();
-
-        // Do not set keep alive interval on mOpts we keep track of it with
-        // alarm's
-
-        mAlarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
+        mNotifications = new NotificationAggregator(this, mConnHandler, NOTIFICATION_WINDOW,
+                NOTIFICATION_MAX_PER_WINDOW);
 
         // Get instances of preferences, connectivity manager and notification
         // manager
         mPrefs = getSharedPreferences(TAG, MODE_PRIVATE);
+
+        // The pings go at the interval the engine learned, scheduled with
+        // alarm's
+        mPingSender = new AlarmPingSender(this, ACTION_KEEPALIVE);
         mConnectivityManager = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
 
+        mConnectionPrefs = getSharedPreferences(CONNECTIONS_PREFS, MODE_PRIVATE);
+        for (BrokerConfig config : BrokerConfig.loadAll(mConnectionPrefs)) {
+            mConnections.add(newConnection(config));
+        }
+
+        // files dir, the cache dir may be wiped under storage pressure
+        sEngine.attach(new MqttEngine.Environment(mScheduler, mConnectivity, new PreferencesStore(mPrefs),
+                new PreferencesStore(getSharedPreferences(SUBSCRIPTIONS_PREFS, MODE_PRIVATE)),
+                getFilesDir(), mPingSender, mRouter), mEngineListener);
+        sInstance = this;
+
         /*
          * If our process was reaped by the system for any reason we need to
          * restore our state with merely a call to onCreate. We record the last
@@ -237,7 +549,7 @@ public class MqttService extends Service implements MqttCallback {
 
     /**
      * Service onStartCommand Handles the action passed via the Intent
-     * 
+     *
      * @return START_REDELIVER_INTENT
      */
     @Override
@@ -254,33 +566,35 @@ public class MqttService extends Service implements MqttCallback {
         Log.i(TAG, "Received action of " + action);
 
         if (action == null) {
-            Log.i(TAG, "Starting service with no action\n Probably from a crash");
+            Log.i(TAG, "Starting service with no action\n Probably from a crash or a bound client");
         } else {
             if (action.equals(ACTION_START)) {
                 Log.i(TAG, "Received ACTION_START");
                 start();
             } else if (action.equals(ACTION_STOP)) {
-                String topic = mPrefs.getString(PREF_TOPIC, null);
-                if (topic != null && !topic.equals("")) {
-                    try {
-                        mClient.unsubscribe(topic);
-                        Toast.makeText(this, "Unsubscribe: " + topic, Toast.LENGTH_SHORT).show();
-                    } catch (MqttException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
-                stop();
-                stopSelf();
+                unsubscribeAndStop();
             } else if (action.equals(ACTION_KEEPALIVE)) {
-                keepAlive();
+                sEngine.keepAlive();
             } else if (intent.getAction().equals(ACTION_SUBSCRIBE)) {
-                subscribe(intent.getStringExtra(PREF_TOPIC));
+                sEngine.subscribe(intent.getStringExtra(PREF_TOPIC),
+                        intent.getIntExtra(EXTRA_QOS, MQTT_QOS_1));
+            } else if (action.equals(ACTION_UNSUBSCRIBE)) {
+                sEngine.unsubscribe(intent.getStringExtra(PREF_TOPIC));
             } else if (intent.getAction().equals(ACTION_PUBLISH)) {
-                publish(intent.getStringExtra(PREF_PUBLISH_TOPIC), intent.getStringExtra(PREF_PUBLISH_MESSAGE));
-            } else if (action.equals(ACTION_RECONNECT)) {
-                if (isNetworkAvailable()) {
-                    reconnectIfNecessary();
+                sEngine.flush();
+            } else if (action.startsWith(ACTION_WAKEUP + "/")) {
+                mScheduler.onWakeup(action);
+            } else if (action.startsWith(ACTION_KEEPALIVE + "/")) {
+                BrokerConnection connection =
+                        mConnections.get(action.substring(ACTION_KEEPALIVE.length() + 1));
+                if (connection != null) {
+                    connection.keepAlive();
+                }
+            } else if (action.startsWith(ACTION_WAKEUP + ".")) {
+                for (BrokerConnection connection : mConnections.getAll()) {
+                    if (connection.onWakeup(action)) {
+                        break;
+                    }
                 }
             }
         }
@@ -290,258 +604,66 @@ public class MqttService extends Service implements MqttCallback {
     }
 
     /**
-     * Attempts connect to the Mqtt Broker and listen for Connectivity changes
-     * via ConnectivityManager.CONNECTVITIY_ACTION BroadcastReceiver
+     * Starts the engine and the additional connections and listens for
+     * Connectivity changes via ConnectivityManager.CONNECTVITIY_ACTION
+     * BroadcastReceiver
      */
     private synchronized void start() {
-        // Do nothing, if the service is already running.
-        if (mStarted) {
-            Log.i(TAG, "Attempt to start while already started");
+        // the engine only reconnects if it is already running
+        if (!sEngine.start()) {
             return;
         }
-
-        if (hasScheduledKeepAlives()) {
-            stopKeepAlives();
+        for (BrokerConnection connection : mConnections.getAll()) {
+            connection.start();
         }
 
-        // Establish an MQTT connection
-        connect();
-
         // Register a connectivity listener
-        registerReceiver(mConnectivityReceiver, new IntentFilter(
-                ConnectivityManager.CONNECTIVITY_ACTION));
+        if (!mReceiverRegistered) {
+            registerReceiver(mConnectivityReceiver, new IntentFilter(
+                    ConnectivityManager.CONNECTIVITY_ACTION));
+            mReceiverRegistered = true;
+        }
     }
 
     /**
-     * Attempts to stop the Mqtt client as well as halting all keep alive
-     * messages queued in the alarm manager
+     * Stops the engine and the additional connections, the result is
+     * reported to the resultCallback as ACTION_STOP
      */
     private synchronized void stop() {
-        if (!mStarted) {
-            Log.i(TAG, "Attemtpign to stop connection that isn't running");
+        if (!sEngine.stop()) {
             return;
         }
 
-        if (mClient != null) {
-            mConnHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        mClient.disconnect();
-                    } catch (MqttException ex) {
-                        ex.printStackTrace();
-                    }
-                    mClient = null;
-                    setStarted(false);
-
-                    stopKeepAlives();
-                }
-            });
+        if (mReceiverRegistered) {
+            unregisterReceiver(mConnectivityReceiver);
+            mReceiverRegistered = false;
         }
-        unregisterReceiver(mConnectivityReceiver);
-        // disconnect success
-        if (mCallback != null) {
-            mCallback.onResult(ACTION_STOP, STATUS_SUCCESS, null);
+        for (BrokerConnection connection : mConnections.getAll()) {
+            connection.stop();
         }
     }
 
     /**
-     * Connects to the broker with the appropriate datastore
-     */
-    private synchronized void connect() {
-        Log.i(TAG, "Connecting...");
-
-        // fetch the server, topic from the preferences.
-        final String server = mPrefs.getString(PREF_SERVER_ADDRESS, null);
-        final int port = mPrefs.getInt(PREF_SERVER_PORT, 1883);
-        final String clientid = mPrefs.getString(PREF_CLIENT_ID, null);
-        final String username = mPrefs.getString(PREF_USERNAME, null);
-        final String password = mPrefs.getString(PREF_PASSWORD, null);
-        final String topic = mPrefs.getString(PREF_TOPIC, null);
-        final boolean session = mPrefs.getBoolean(PREF_SESSION, MQTT_CLEAN_SESSION);
-        Log.d(TAG, "server: " + server);
-        Log.d(TAG, "topic: " + topic);
-
-        String url = String.format(Locale.US, MQTT_URL_FORMAT, server, port);
-        Log.i(TAG, "Connecting with URL: " + url);
-        try {
-            if (mDataStore != null) {
-                Log.i(TAG, "Connecting with DataStore");
-                mClient = new MqttClient(url, clientid, mDataStore);
-            } else {
-                Log.i(TAG, "Connecting with MemStore");
-                mClient = new MqttClient(url, clientid, mMemStore);
-            }
-
-            // username, password
-            if (!username.equals("")) {
-                mOpts.setUserName(username);
-            }
-            if (!password.equals("")) {
-                mOpts.setPassword(password.toCharArray());
-            }
-            // clean session
-            mOpts.setCleanSession(session);
-        } catch (MqttException e) {
-            e.printStackTrace();
-        }
-
-        mConnHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    mClient.connect(mOpts);
-
-                    mClient.setCallback(MqttService.this);
-                    // subscribe topic
-                    mClient.subscribe(topic);
-
-                    // Service is now connected
-                    setStarted(true);
-
-                    Log.i(TAG, "Successfully connected and subscribed starting keep alives");
-
-                    // Save start time
-                    mStartTime = System.currentTimeMillis();
-                    // Star the keep-alives
-                    startKeepAlives();
-                    // connect success
-                    if (mCallback != null) {
-                        mCallback.onResult(ACTION_START, STATUS_SUCCESS, null);
-                    }
-                } catch (MqttException e) {
-                    // Schedule a reconnect, if we failed to connect
-                    setStarted(false);
-                    if (mCallback != null) {
-                        mCallback.onResult(ACTION_START, e.getReasonCode(), e.getMessage());
-                    }
-                    if (isNetworkAvailable()) {
-                        scheduleReconnect(mStartTime);
-                    }
-                }
-            }
-        });
-    }
-
-    /**
-     * Schedules keep alives via a PendingIntent in the Alarm Manager
+     * Unsubscribes the topic without waiting for the UNSUBACK, then
+     * disconnects and stops the service
      */
-    private void startKeepAlives() {
-        Intent i = new Intent();
-        i.setClass(this, MqttService.class);
-        i.setAction(ACTION_KEEPALIVE);
-        PendingIntent pi = PendingIntent.getService(this, 0, i, 0);
-        mAlarmManager.setRepeating(AlarmManager.RTC_WAKEUP, System.currentTimeMillis()
-                + KEEP_ALIVE_INTERVAL, KEEP_ALIVE_INTERVAL, pi);
-    }
-
-    /**
-     * Cancels the Pending Intent in the alarm manager
-     */
-    private void stopKeepAlives() {
-        Intent i = new Intent();
-        i.setClass(this, MqttService.class);
-        i.setAction(ACTION_KEEPALIVE);
-        PendingIntent pi = PendingIntent.getService(this, 0, i, 0);
-        mAlarmManager.cancel(pi);
-    }
-
-    /**
-     * Publishes a KeepALive to the topic in the broker
-     */
-    private synchronized void keepAlive() {
-        if (isConnected()) {
-            try {
-                sendKeepAlive();
-            } catch (MqttConnectivityException ex) {
-                ex.printStackTrace();
-                reconnectIfNecessary();
-            } catch (MqttPersistenceException ex) {
-                ex.printStackTrace();
-                stop();
-            } catch (MqttException ex) {
-                ex.printStackTrace();
-                stop();
-            }
+    private void unsubscribeAndStop() {
+        String topic = sEngine.unsubscribeTopic();
+        if (topic != null) {
+            Toast.makeText(this, "Unsubscribe: " + topic, Toast.LENGTH_SHORT).show();
         }
-    }
-
-    /**
-     * subscribe topic
-     * @param topic
-     */
-    private synchronized void subscribe(String topic) {
-        if (mStarted) try {
-            Log.i(TAG, "subscribe: " + topic);
-            mClient.subscribe(topic, MQTT_QOS_1);
-        } catch (MqttException e) {
-            Log.e(TAG, "MqttException: " + (e.getMessage() != null ? e.getMessage() : "NULL"), e);
-        }
-    }
-
-    /**
-     * publish message
-     *
-     * @param topic
-     * @param message
-     */
-    private synchronized void publish(String topic, String message) {
-        if (mStarted) try {
-                mClient.publish(topic, message.getBytes(), MQTT_QOS_1, MQTT_NO_RETAIN);
-        } catch (MqttException e) {
-            Log.e(TAG, "MqttException: " + (e.getMessage() != null ? e.getMessage() : "NULL"), e);
-        }
-    }
-
-    // We schedule a reconnect based on the starttime of the service
-    public void scheduleReconnect(long startTime) {
-
-        // the last keep-alive interval
-        long interval = mPrefs.getLong(PREF_RETRY, INITIAL_RETRY_INTERVAL);
-
-        // Calculate the elapsed time since the start
-        long now = System.currentTimeMillis();
-        long elapsed = now - startTime;
-
-        // Set an appropriate interval based on the elapsed time since start
-        if (elapsed < interval) {
-            interval = Math.min(interval * 4, MAXIMUM_RETRY_INTERVAL);
-        } else {
-            interval = INITIAL_RETRY_INTERVAL;
-        }
-
-        Log.i(TAG, "Rescheduling connection in " + interval + "ms.");
-
-        // Save the new internval
-        mPrefs.edit().putLong(PREF_RETRY, interval).apply();
-
-        // Schedule a reconnect using the alarm manager.
-        Intent i = new Intent();
-        i.setClass(this, MqttService.class);
-        i.setAction(ACTION_RECONNECT);
-        PendingIntent pi = PendingIntent.getService(this, 0, i, 0);
-        AlarmManager alarmMgr = (AlarmManager) getSystemService(ALARM_SERVICE);
-        alarmMgr.set(AlarmManager.RTC_WAKEUP, now + interval, pi);
-    }
-
-    // Remove the scheduled reconnect
-    public void cancelReconnect() {
-        Intent i = new Intent();
-        i.setClass(this, MqttService.class);
-        i.setAction(ACTION_RECONNECT);
-        PendingIntent pi = PendingIntent.getService(this, 0, i, 0);
-        AlarmManager alarmMgr = (AlarmManager) getSystemService(ALARM_SERVICE);
-        alarmMgr.cancel(pi);
+        stop();
+        stopSelf();
     }
 
     // This method does any necessary clean-up need in case the server has been
     // destroyed by the system
     // and then restarted
     private void handleCrashedService() {
-        if (wasStarted()) {
+        if (sEngine.wasStarted()) {
             Log.i(TAG, "Handling crashed service...");
             // stop the keep alives
-            stopKeepAlives();
+            mPingSender.stop();
 
             // Do a clean start
             start();
@@ -550,170 +672,331 @@ public class MqttService extends Service implements MqttCallback {
 
     @Override
     public void onDestroy() {
-        Log.i(TAG, "Service destroyed (started=" + mStarted + ")");
+        Log.i(TAG, "Service destroyed (started=" + sEngine.isStarted() + ")");
 
+        sInstance = null;
         // Stop the services, if it has been started
-        if (mStarted) {
-            stop();
+        stop();
+        for (BrokerConnection connection : mConnections.getAll()) {
+            connection.close();
         }
+        sEngine.detach();
+        // runs the disconnects posted above first, then ends the thread
+        mConnHandler.getLooper().quitSafely();
     }
 
-    // Reads whether or not the service has been started from the preferences
-    private boolean wasStarted() {
-        return mPrefs.getBoolean(PREF_STARTED, false);
-    }
+    /**
+     * Query's the NetworkInfo via ConnectivityManager for the current
+     * connected state
+     */
+    private final Connectivity mConnectivity = new Connectivity() {
+        @Override
+        public boolean isNetworkAvailable() {
+            NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
 
-    // Sets whether or not the services has been started in the preferences.
-    private void setStarted(boolean started) {
-        mPrefs.edit().putBoolean(PREF_STARTED, started).apply();
-        mStarted = started;
-    }
+            return (info != null) && info.isConnected();
+        }
+    };
 
     /**
-     * Checkes the current connectivity and reconnects if it is required.
+     * Publishes on topics routed to an additional connection leave the
+     * lanes of the engine through the window of that connection
      */
-    private synchronized void reconnectIfNecessary() {
-        if (mStarted && mClient == null) {
-            Log.i(TAG, "Reconnecting...");
-            connect();
+    private final MqttEngine.Router mRouter = new MqttEngine.Router() {
+        @Override
+        public PublishRoute route(String topic) {
+            return mConnections.route(topic);
         }
-    }
+    };
 
     /**
-     * Query's the NetworkInfo via ConnectivityManager to return the current
-     * connected state
-     * 
-     * @return boolean true if we are connected false otherwise
+     * Reports the results of the engine to the resultCallback
      */
-    private boolean isNetworkAvailable() {
-        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+    private final MqttEngine.Listener mEngineListener = new MqttEngine.Listener() {
+        @Override
+        public void onConnect(int status, String message) {
+            if (mCallback != null) {
+                mCallback.onResult(ACTION_START, status, message);
+            }
+        }
 
-        return (info != null) && info.isConnected();
-    }
+        @Override
+        public void onDisconnect(int status, String message) {
+            if (mCallback != null) {
+                mCallback.onResult(ACTION_STOP, status, message);
+            }
+        }
 
-    /**
-     * Verifies the client State with our local connected state
-     * 
-     * @return true if its a match we are connected false if we aren't connected
-     */
-    private boolean isConnected() {
-        if (mStarted && mClient != null && !mClient.isConnected()) {
-            Log.i(TAG, "Mismatch between what we think is connected and what is connected");
+        @Override
+        public void onSubscribe(String filter, int status) {
+            if (mCallback != null) {
+                mCallback.onResult(ACTION_SUBSCRIBE, status, filter);
+            }
         }
 
-        return mClient != null && (mStarted && mClient.isConnected());
+        @Override
+        public void onMessage(String topic, byte[] payload, int qos, boolean retained) {
+            // Show a notification
+            showNotification(topic);
+        }
 
-    }
+        @Override
+        public void onConnectionLost(Throwable cause) {
+        }
+
+        @Override
+        public void onLinkChanged(NetworkLink from, NetworkLink to) {
+        }
+    };
 
     /**
-     * Receiver that listens for connectivity chanes via ConnectivityManager
+     * Receiver that listens for connectivity chanes via ConnectivityManager.
+     * The broadcast is about the network that changed, which during a
+     * handover is the one going away, so the active network is reported
+     * instead. The engine debounces the reports.
      */
     private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            // Get network info
-            NetworkInfo info = (NetworkInfo) intent
-                    .getParcelableExtra(ConnectivityManager.EXTRA_NETWORK_INFO);
-
-            // Is there connectivity?
-            boolean hasConnectivity = (info != null && info.isConnected());
-
-            Log.i(TAG, "Connectivity changed: connected=" + hasConnectivity);
-
-            if (hasConnectivity) {
-                reconnectIfNecessary();
-            } else if (mClient != null) {
-                // if there no connectivity, make sure MQTT connection is
-                // destroyed
-                try {
-                    mClient.disconnect();
-                } catch (MqttException e) {
-                    e.printStackTrace();
-                }
-                cancelReconnect();
-                mClient = null;
+            NetworkLink link = getActiveLink();
+            Log.i(TAG, "Connectivity changed: " + link);
+            sEngine.onLinkChanged(link);
+            // every connection settles the change on its own
+            for (BrokerConnection connection : mConnections.getAll()) {
+                connection.onLinkChanged(link);
             }
         }
     };
 
     /**
-     * Sends a Keep Alive message to the specified topic
-     * 
-     * @return MqttDeliveryToken specified token you can choose to wait for
-     *         completion
+     * The active network as a link of the engine
+     */
+    private NetworkLink getActiveLink() {
+        NetworkInfo info = mConnectivityManager.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            return NetworkLink.NONE;
+        }
+        NetworkLink.Type type;
+        switch (info.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+                type = NetworkLink.Type.WIFI;
+                break;
+            case ConnectivityManager.TYPE_MOBILE:
+            case ConnectivityManager.TYPE_WIMAX:
+                type = NetworkLink.Type.CELLULAR;
+                break;
+            default:
+                type = NetworkLink.Type.OTHER;
+                break;
+        }
+        return new NetworkLink(type, mConnectivityManager.isActiveNetworkMetered(), info.getExtraInfo());
+    }
+
+    /**
+     * API of the service for components bound to it. Calls go straight to
+     * the service instead of through startService Intents and
+     * onStartCommand, which only works in this process as the service is
+     * not exported.
      */
-    private synchronized MqttDeliveryToken sendKeepAlive() throws MqttConnectivityException, MqttException {
-        if (!isConnected())
-            throw new MqttConnectivityException();
+    public class LocalBinder extends Binder {
 
-        if (mKeepAliveTopic == null) {
-            mKeepAliveTopic = mClient.getTopic(String.format(Locale.US,
-                    MQTT_KEEP_ALIVE_TOPIC_FORAMT, mPrefs.getString(PREF_CLIENT_ID, "")));
+        /**
+         * Connects with the settings in the preferences. The service is
+         * started as well, so it keeps running once unbound.
+         */
+        public void start() {
+            startService(new Intent(MqttService.this, MqttService.class));
+            MqttService.this.start();
         }
 
-        Log.i(TAG, "Sending Keepalive to " + mPrefs.getString(PREF_SERVER_ADDRESS, ""));
+        public void stop() {
+            unsubscribeAndStop();
+        }
 
-        MqttMessage message = new MqttMessage(MQTT_KEEP_ALIVE_MESSAGE);
-        message.setQos(MQTT_KEEP_ALIVE_QOS);
+        public void subscribe(String topic) {
+            sEngine.subscribe(topic, MQTT_QOS_1);
+        }
 
-        return mKeepAliveTopic.publish(message);
-    }
+        public void subscribe(String topic, int qos) {
+            sEngine.subscribe(topic, qos);
+        }
 
-    /**
-     * Query's the AlarmManager to check if there is a keep alive currently
-     * scheduled
-     * 
-     * @return true if there is currently one scheduled false otherwise
-     */
-    private synchronized boolean hasScheduledKeepAlives() {
-        Intent i = new Intent();
-        i.setClass(this, MqttService.class);
-        i.setAction(ACTION_KEEPALIVE);
-        PendingIntent pi = PendingIntent.getBroadcast(this, 0, i, PendingIntent.FLAG_NO_CREATE);
+        public void unsubscribe(String topic) {
+            sEngine.unsubscribe(topic);
+        }
 
-        return (pi != null);
-    }
+        /**
+         * Reads application sequence numbers from arriving messages, used
+         * to drop duplicates and to reorder. null to use none.
+         */
+        public void setSequenceKey(InboundFilter.SequenceKey sequenceKey) {
+            sEngine.setSequenceKey(sequenceKey);
+        }
 
-    @Override
-    public IBinder onBind(Intent arg0) {
-        return null;
-    }
+        /**
+         * Holds out of order messages of a topic for up to messages messages
+         * and time ms until the gap is filled. 0 messages disables it.
+         */
+        public void setReorderWindow(int messages, long time) {
+            sEngine.setReorderWindow(messages, time);
+        }
 
-    /**
-     * Connectivity Lost from broker
-     */
-    @Override
-    public void connectionLost(Throwable arg0) {
-        stopKeepAlives();
+        /**
+         * Same as MqttService.publish(Context, String, byte[], int, boolean,
+         * PublishQueue.deliveryCallback)
+         */
+        public void publish(String topic, byte[] payload, int qos, boolean retained,
+                            PublishQueue.deliveryCallback callback) {
+            enqueue(MqttService.this, new PublishQueue.Entry(topic, payload, qos, retained, callback));
+        }
 
-        mClient = null;
+        /**
+         * Same as MqttService.publish(Context, String, ByteBuffer, int,
+         * boolean, PublishQueue.deliveryCallback)
+         */
+        public void publish(String topic, ByteBuffer payload, int qos, boolean retained,
+                            PublishQueue.deliveryCallback callback) {
+            MqttService.publish(MqttService.this, topic, payload, qos, retained, callback);
+        }
 
-        if (isNetworkAvailable()) {
-            reconnectIfNecessary();
+        /**
+         * Same as MqttService.publish(Context, String, byte[], int, boolean,
+         * PublishQueue.deliveryCallback, FlowControl.Mode)
+         */
+        public void publish(String topic, byte[] payload, int qos, boolean retained,
+                            PublishQueue.deliveryCallback callback, FlowControl.Mode mode) {
+            enqueue(MqttService.this, new PublishQueue.Entry(topic, payload, qos, retained, callback),
+                    mode);
+        }
+
+        public void publishControl(String topic, byte[] payload, int qos,
+                                   PublishQueue.deliveryCallback callback) {
+            MqttService.publishControl(MqttService.this, topic, payload, qos, callback);
+        }
+
+        public void addLane(String name, int weight, int qos, Boolean retained, int capacity) {
+            MqttService.addLane(name, weight, qos, retained, capacity);
+        }
+
+        public void routeLane(String filter, String lane) {
+            MqttService.routeLane(filter, lane);
+        }
+
+        public void unrouteLane(String filter) {
+            MqttService.unrouteLane(filter);
+        }
+
+        public void addBackpressureCallback(FlowControl.backpressureCallback callback) {
+            MqttService.addBackpressureCallback(callback);
+        }
+
+        public void removeBackpressureCallback(FlowControl.backpressureCallback callback) {
+            MqttService.removeBackpressureCallback(callback);
+        }
+
+        public boolean isCongested() {
+            return MqttService.isCongested();
+        }
+
+        public ConnectionState getConnectionState() {
+            return sEngine.getState();
+        }
+
+        public MetricsRegistry.Snapshot getMetrics() {
+            return MqttService.getMetrics();
+        }
+
+        public LastValueCache.Value getLastValue(String topic) {
+            return MqttService.getLastValue(topic);
+        }
+
+        public List<LastValueCache.Value> queryLastValues(String filter) {
+            return MqttService.queryLastValues(filter);
+        }
+
+        public void setTopicCodec(String filter, int codec) {
+            MqttService.setTopicCodec(filter, codec);
+        }
+
+        public void clearTopicCodec(String filter) {
+            MqttService.clearTopicCodec(filter);
+        }
+
+        /**
+         * Collects the messages matching filter into a ring buffer, to be
+         * drained in batches by the caller
+         *
+         * @param filter   topic filter, may contain '+' and '#'
+         * @param capacity size of the ring in bytes
+         */
+        public MessageRing openMessageRing(String filter, int capacity) {
+            MessageRing ring = new MessageRing(capacity);
+            sEngine.getDispatcher().addListener(filter, ring);
+            return ring;
+        }
+
+        public void closeMessageRing(String filter, MessageRing ring) {
+            sEngine.getDispatcher().removeListener(filter, ring);
+        }
+
+        /**
+         * Adds or replaces an additional broker connection. It is saved and
+         * connects whenever the service is started.
+         */
+        public void addConnection(BrokerConfig config) {
+            if (config.name.equals(PRIMARY_CONNECTION)) {
+                throw new IllegalArgumentException(PRIMARY_CONNECTION + " is the primary connection");
+            }
+            removeConnection(config.name);
+            config.save(mConnectionPrefs);
+            BrokerConnection connection = newConnection(config);
+            mConnections.add(connection);
+            if (sEngine.isStarted()) {
+                connection.onLinkChanged(getActiveLink());
+                connection.start();
+            }
+        }
+
+        public void removeConnection(String name) {
+            BrokerConnection connection = mConnections.remove(name);
+            if (connection != null) {
+                connection.close();
+            }
+            BrokerConfig.remove(mConnectionPrefs, name);
+        }
+
+        public List<ConnectionStatus> getConnectionStatus() {
+            return MqttService.getConnectionStatus();
         }
     }
 
     /**
-     * Received Message from broker
+     * Additional connection on an engine of its own, sharing the connection
+     * thread
      */
-    @Override
-    public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
-        Log.i(TAG,
-                "  Topic:\t" + "  Message:\t" + new String(mqttMessage.getPayload()) + "  QoS:\t" + mqttMessage.getQos());
-        // Show a notification
-        showNotification(s);
+    private BrokerConnection newConnection(BrokerConfig config) {
+        return new BrokerConnection(this, mConnHandler, config, mConnectionListener, mConnectivity,
+                ACTION_KEEPALIVE + "/" + config.name, ACTION_WAKEUP + "." + config.name);
     }
 
-    @Override
-    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+    private final BrokerConnection.Listener mConnectionListener = new BrokerConnection.Listener() {
+        @Override
+        public void onMessage(BrokerConnection connection, String topic, byte[] payload, int qos,
+                              boolean retained) {
+            sEngine.deliver(topic, payload, qos, retained);
+        }
 
-    }
+        @Override
+        public void onConnectionLost(BrokerConnection connection, Throwable cause) {
+            sEngine.onRouteLost(connection, cause);
+        }
+    };
 
-    /**
-     * MqttConnectivityException Exception class
-     */
-    private class MqttConnectivityException extends Exception {
-        private static final long serialVersionUID = -7385866796799469420L;
+    private final LocalBinder mBinder = new LocalBinder();
+
+    @Override
+    public IBinder onBind(Intent arg0) {
+        return mBinder;
     }
 
     /**
@@ -722,38 +1005,6 @@ public class MqttService extends Service implements MqttCallback {
      * @param notifyString
      */
     private void showNotification(String notifyString) {
-        // Intent の作成
-        Intent intent = new Intent(this, MyActivity.class);
-        PendingIntent contentIntent = PendingIntent.getActivity(this, 0, intent,
-                PendingIntent.FLAG_UPDATE_CURRENT);
-
-        // LargeIcon の Bitmap を生成
-        Bitmap largeIcon = BitmapFactory.decodeResource(getResources(), R.drawable.ic_launcher);
-
-        // NotificationBuilderを作成
-        Notification.Builder builder = new Notification.Builder(getApplicationContext());
-        builder.setContentIntent(contentIntent);
-        // ステータスバーに表示されるテキスト
-        builder.setTicker("お知らせ！");
-        // アイコン
-        builder.setSmallIcon(R.drawable.ic_launcher);
-        // Notificationを開いたときに表示されるタイトル
-        builder.setContentTitle("MQTT Message");
-        // Notificationを開いたときに表示されるサブタイトル
-        builder.setContentText(notifyString);
-        // Notificationを開いたときに表示されるアイコン
-        builder.setLargeIcon(largeIcon);
-        // 通知するタイミング
-        builder.setWhen(System.currentTimeMillis());
-        // 通知時の音・バイブ・ライト
-        builder.setDefaults(Notification.DEFAULT_SOUND | Notification.DEFAULT_VIBRATE
-                | Notification.DEFAULT_LIGHTS);
-        // タップするとキャンセル(消える)
-        builder.setAutoCancel(true);
-
-        // NotificationManagerを取得
-        NotificationManager manager = (NotificationManager) getSystemService(Service.NOTIFICATION_SERVICE);
-        // Notificationを作成して通知
-        manager.notify(NOTIF_CONNECTED, builder.build());
-    }
-}
\ No newline at end of file
+        mNotifications.onMessage(notifyString, notifyString);
+    }
+}
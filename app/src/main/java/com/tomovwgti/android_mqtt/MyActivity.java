@@ -1,13 +1,18 @@
 package com.tomovwgti.android_mqtt;
 
 import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
 import android.os.Looper;
 import android.view.View;
 import android.widget.Button;
 import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.EditText;
 import android.widget.Toast;
 
@@ -24,8 +29,23 @@ public class MyActivity extends Activity implements MqttService.resultCallback {
     private EditText password;
     private EditText topic;
     private CheckBox session;
+    private CheckBox tls;
     private Button connectBtn;
     private Button disconnectBtn;
+    // null until the service is bound
+    private MqttService.LocalBinder mService;
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            mService = (MqttService.LocalBinder) binder;
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -39,7 +59,20 @@ public class MyActivity extends Activity implements MqttService.resultCallback {
         password = (EditText)findViewById(R.id.password);
         topic = (EditText) findViewById(R.id.topic);
         session = (CheckBox)findViewById(R.id.session);
-        session.setChecked(true);
+        session.setChecked(false);
+        tls = (CheckBox) findViewById(R.id.tls);
+        tls.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                // follow the scheme unless the user typed a port of their own
+                String from = String.valueOf(SocketTransport.defaultPort(isChecked
+                        ? SocketTransport.SCHEME_TCP : SocketTransport.SCHEME_TLS));
+                if (port.getText().toString().equals(from)) {
+                    port.setText(String.valueOf(SocketTransport.defaultPort(isChecked
+                            ? SocketTransport.SCHEME_TLS : SocketTransport.SCHEME_TCP)));
+                }
+            }
+        });
 
         connectBtn = (Button) findViewById(R.id.connect);
         disconnectBtn = (Button) findViewById(R.id.disconnect);
@@ -63,17 +96,28 @@ public class MyActivity extends Activity implements MqttService.resultCallback {
                 editor.putString(MqttService.PREF_PASSWORD, password.getText().toString());
                 editor.putString(MqttService.PREF_TOPIC, topic.getText().toString());
                 editor.putBoolean(MqttService.PREF_SESSION, session.isChecked());
+                editor.putString(MqttService.PREF_TRANSPORT, tls.isChecked()
+                        ? SocketTransport.SCHEME_TLS : SocketTransport.SCHEME_TCP);
                 editor.apply();
 
-                MqttService.action(self.getApplicationContext(), MqttService.ACTION_START);
-                MqttService.subscribe(self.getApplicationContext(), topic.getText().toString());
+                if (mService != null) {
+                    mService.start();
+                    mService.subscribe(topic.getText().toString());
+                } else {
+                    MqttService.action(self.getApplicationContext(), MqttService.ACTION_START);
+                    MqttService.subscribe(self.getApplicationContext(), topic.getText().toString());
+                }
             }
         });
 
         disconnectBtn.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                MqttService.action(self.getApplicationContext(), MqttService.ACTION_STOP);
+                if (mService != null) {
+                    mService.stop();
+                } else {
+                    MqttService.action(self.getApplicationContext(), MqttService.ACTION_STOP);
+                }
             }
         });
     }
@@ -83,6 +127,9 @@ public class MyActivity extends Activity implements MqttService.resultCallback {
         super.onResume();
 
         MqttService.setOnResultListener(self);
+        // without BIND_AUTO_CREATE, or every resume creates a service that
+        // the pause destroys again. Connects once ACTION_START creates it.
+        bindService(new Intent(self, MqttService.class), mConnection, 0);
 
         SharedPreferences p = getSharedPreferences(MqttService.TAG, MODE_PRIVATE);
         boolean started = p.getBoolean(MqttService.PREF_STARTED, false);
@@ -93,6 +140,7 @@ public class MyActivity extends Activity implements MqttService.resultCallback {
         username.setText(p.getString(MqttService.PREF_USERNAME, ""));
         password.setText(p.getString(MqttService.PREF_PASSWORD, ""));
         topic.setText(p.getString(MqttService.PREF_TOPIC, ""));
+        tls.setChecked(SocketTransport.SCHEME_TLS.equals(p.getString(MqttService.PREF_TRANSPORT, null)));
 
         ((Button) findViewById(R.id.connect)).setEnabled(!started);
         ((Button) findViewById(R.id.disconnect)).setEnabled(started);
@@ -101,6 +149,13 @@ public class MyActivity extends Activity implements MqttService.resultCallback {
         }
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        unbindService(mConnection);
+        mService = null;
+    }
+
     @Override
     public void onResult(String action, int status, String message) {
         if (action.equals(MqttService.ACTION_START)) {
@@ -138,6 +193,7 @@ public class MyActivity extends Activity implements MqttService.resultCallback {
         password.setEnabled(false);
         topic.setEnabled(false);
         session.setEnabled(false);
+        tls.setEnabled(false);
         connectBtn.setEnabled(false);
         disconnectBtn.setEnabled(true);
     }
@@ -150,6 +206,7 @@ public class MyActivity extends Activity implements MqttService.resultCallback {
         password.setEnabled(true);
         topic.setEnabled(true);
         session.setEnabled(true);
+        tls.setEnabled(true);
         connectBtn.setEnabled(true);
         disconnectBtn.setEnabled(false);
     }
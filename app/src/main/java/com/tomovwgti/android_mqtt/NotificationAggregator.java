@@ -0,0 +1,212 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Collapses bursts of messages into one notification per topic.
+ *
+ * The first message of a topic is shown at once. Messages arriving within
+ * the window after it are counted and shown as a single summary when the
+ * window ends. On top of that at most maxPerWindow notifications are posted
+ * per window over all topics, the rest wait for the next window.
+ */
+public class NotificationAggregator {
+
+    // Notification id, topics are told apart by the tag
+    private static final int NOTIF_MESSAGE = 0;
+    // Topics whose state is kept
+    private static final int MAX_TOPICS = 64;
+
+    private static class TopicState {
+        Notification.Builder builder;
+        // messages not shown yet
+        int pending = 0;
+        // total messages since the notification was last cleared
+        int total = 0;
+        String lastText;
+        long lastShown = 0;
+        boolean flushScheduled = false;
+    }
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final long mWindow;
+    private final int mMaxPerWindow;
+
+    private final NotificationManager mManager;
+    private final Map<String, TopicState> mTopics = new HashMap<String, TopicState>();
+
+    // Decoded once and shared by every notification
+    private Bitmap mLargeIcon;
+    private PendingIntent mContentIntent;
+
+    // Global rate cap
+    private long mWindowStart = 0;
+    private int mPostedInWindow = 0;
+
+    /**
+     * @param context
+     * @param handler     thread the summaries are posted from
+     * @param window      ms during which further messages of a topic are collapsed
+     * @param maxPerWindow notifications posted per window over all topics
+     */
+    public NotificationAggregator(Context context, Handler handler, long window, int maxPerWindow) {
+        mContext = context;
+        mHandler = handler;
+        mWindow = window;
+        mMaxPerWindow = maxPerWindow;
+        mManager = (NotificationManager) context.getSystemService(Service.NOTIFICATION_SERVICE);
+    }
+
+    /**
+     * Records a message for topic, showing it now or folding it into the
+     * next summary
+     *
+     * @param topic
+     * @param text
+     */
+    public synchronized void onMessage(final String topic, String text) {
+        TopicState state = mTopics.get(topic);
+        if (state == null) {
+            if (mTopics.size() >= MAX_TOPICS) {
+                mTopics.clear();
+            }
+            state = new TopicState();
+            mTopics.put(topic, state);
+        }
+        state.pending++;
+        state.total++;
+        state.lastText = text;
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - state.lastShown >= mWindow && acquire(now)) {
+            show(topic, state, now);
+        } else if (!state.flushScheduled) {
+            state.flushScheduled = true;
+            long delay = Math.max(mWindow - (now - state.lastShown), 0);
+            if (delay == 0) {
+                // rate cap reached, wait for the next window
+                delay = mWindow - (now - mWindowStart);
+            }
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    flush(topic);
+                }
+            }, Math.max(delay, 1));
+        }
+    }
+
+    /**
+     * Drops the state of every topic and removes their notifications
+     */
+    public synchronized void clear() {
+        for (String topic : mTopics.keySet()) {
+            mManager.cancel(topic, NOTIF_MESSAGE);
+        }
+        mTopics.clear();
+    }
+
+    private synchronized void flush(final String topic) {
+        TopicState state = mTopics.get(topic);
+        if (state == null) {
+            return;
+        }
+        state.flushScheduled = false;
+        if (state.pending == 0) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (acquire(now)) {
+            show(topic, state, now);
+        } else {
+            state.flushScheduled = true;
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    flush(topic);
+                }
+            }, Math.max(mWindow - (now - mWindowStart), 1));
+        }
+    }
+
+    /**
+     * Takes one notification from the global budget
+     */
+    private boolean acquire(long now) {
+        if (now - mWindowStart >= mWindow) {
+            mWindowStart = now;
+            mPostedInWindow = 0;
+        }
+        if (mPostedInWindow >= mMaxPerWindow) {
+            return false;
+        }
+        mPostedInWindow++;
+        return true;
+    }
+
+    private void show(String topic, TopicState state, long now) {
+        boolean alert = state.builder == null;
+        if (state.builder == null) {
+            state.builder = createBuilder(topic);
+        }
+        Notification.Builder builder = state.builder;
+        // Notificationを開いたときに表示されるサブタイトル
+        builder.setContentText(state.lastText);
+        // まとめた件数
+        builder.setNumber(state.total);
+        // 通知するタイミング
+        builder.setWhen(System.currentTimeMillis());
+        // 音・バイブ・ライトは最初の通知だけ
+        builder.setDefaults(alert ? Notification.DEFAULT_SOUND | Notification.DEFAULT_VIBRATE
+                | Notification.DEFAULT_LIGHTS : 0);
+
+        mManager.notify(topic, NOTIF_MESSAGE, builder.build());
+        state.pending = 0;
+        state.lastShown = now;
+    }
+
+    private Notification.Builder createBuilder(String topic) {
+        if (mContentIntent == null) {
+            // Intent の作成
+            Intent intent = new Intent(mContext, MyActivity.class);
+            mContentIntent = PendingIntent.getActivity(mContext, 0, intent,
+                    PendingIntent.FLAG_UPDATE_CURRENT);
+        }
+        if (mLargeIcon == null) {
+            // LargeIcon の Bitmap を生成
+            mLargeIcon = BitmapFactory.decodeResource(mContext.getResources(), R.drawable.ic_launcher);
+        }
+
+        // NotificationBuilderを作成
+        Notification.Builder builder = new Notification.Builder(mContext);
+        builder.setContentIntent(mContentIntent);
+        // ステータスバーに表示されるテキスト
+        builder.setTicker("お知らせ！");
+        // アイコン
+        builder.setSmallIcon(R.drawable.ic_launcher);
+        // Notificationを開いたときに表示されるタイトル
+        builder.setContentTitle("MQTT Message");
+        // トピック
+        builder.setSubText(topic);
+        // Notificationを開いたときに表示されるアイコン
+        builder.setLargeIcon(mLargeIcon);
+        // 続けて届いたときは鳴らさない
+        builder.setOnlyAlertOnce(true);
+        // タップするとキャンセル(消える)
+        builder.setAutoCancel(true);
+        return builder;
+    }
+}
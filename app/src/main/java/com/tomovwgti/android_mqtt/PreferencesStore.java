@@ -0,0 +1,57 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.Map;
+
+import android.content.SharedPreferences;
+
+/**
+ * Settings of the engine in shared preferences, written with apply()
+ */
+public class PreferencesStore implements SettingsStore {
+
+    private final SharedPreferences mPrefs;
+
+    public PreferencesStore(SharedPreferences prefs) {
+        mPrefs = prefs;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        return mPrefs.getAll();
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return mPrefs.getInt(key, defValue);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return mPrefs.getString(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return mPrefs.getBoolean(key, defValue);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+        mPrefs.edit().putInt(key, value).apply();
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        mPrefs.edit().putString(key, value).apply();
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+        mPrefs.edit().putBoolean(key, value).apply();
+    }
+
+    @Override
+    public void remove(String key) {
+        mPrefs.edit().remove(key).apply();
+    }
+}
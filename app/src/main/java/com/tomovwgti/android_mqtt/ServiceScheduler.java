@@ -0,0 +1,110 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Scheduler of the engine on the connection thread of the service.
+ *
+ * Wakeups are AlarmManager alarms that start the service with the wakeup
+ * action suffixed by a number per task, which the service hands to
+ * onWakeup(). A wakeup of a service instance that was destroyed meanwhile
+ * finds no task and is ignored, the new instance restarts the engine
+ * instead.
+ */
+public class ServiceScheduler implements Scheduler {
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final String mAction;
+    private final AlarmManager mAlarmManager;
+    // action of every task that ever had a wakeup, and back
+    private final Map<Runnable, String> mActions = new HashMap<Runnable, String>();
+    private final Map<String, Runnable> mTasks = new HashMap<String, Runnable>();
+
+    /**
+     * @param context service the alarms are delivered to
+     * @param handler handler of the connection thread
+     * @param action  prefix of the wakeup actions
+     */
+    public ServiceScheduler(Context context, Handler handler, String action) {
+        mContext = context;
+        mHandler = handler;
+        mAction = action;
+        mAlarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+    }
+
+    @Override
+    public void post(Runnable task) {
+        mHandler.post(task);
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delay) {
+        mHandler.postDelayed(task, delay);
+    }
+
+    @Override
+    public void remove(Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+
+    @Override
+    public void postWakeup(Runnable task, long delay) {
+        // the alarm of the same intent is replaced
+        mAlarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + delay, pendingIntent(actionOf(task)));
+    }
+
+    @Override
+    public void removeWakeup(Runnable task) {
+        String action;
+        synchronized (this) {
+            action = mActions.get(task);
+        }
+        if (action != null) {
+            mAlarmManager.cancel(pendingIntent(action));
+        }
+    }
+
+    /**
+     * Runs the task of a wakeup action on the connection thread
+     *
+     * @return false if action belongs to no task of this scheduler
+     */
+    public boolean onWakeup(String action) {
+        Runnable task;
+        synchronized (this) {
+            task = mTasks.get(action);
+        }
+        if (task == null) {
+            return false;
+        }
+        mHandler.post(task);
+        return true;
+    }
+
+    private synchronized String actionOf(Runnable task) {
+        String action = mActions.get(task);
+        if (action == null) {
+            action = mAction + "/" + mActions.size();
+            mActions.put(task, action);
+            mTasks.put(action, task);
+        }
+        return action;
+    }
+
+    private PendingIntent pendingIntent(String action) {
+        Intent i = new Intent();
+        i.setClass(mContext, mContext.getClass());
+        i.setAction(action);
+        return PendingIntent.getService(mContext, 0, i, 0);
+    }
+}
@@ -0,0 +1,61 @@
+package com.tomovwgti.android_mqtt;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bytes allocated by all threads of the JVM, from the per thread counters
+ * of HotSpot.
+ *
+ * HotSpot only reports live threads, so the meter remembers the count of
+ * every thread id it saw and keeps adding it after the thread ended. The
+ * total never goes down. The bytes a thread allocates after the last
+ * reading before it ends are missed, as is a thread that starts and ends
+ * between two readings, so reconnects that replace threads make the rate
+ * a lower bound.
+ */
+public class AllocationMeter {
+
+    private final com.sun.management.ThreadMXBean mThreads;
+    // bytes of every thread id at its last reading, ended threads included
+    private final Map<Long, Long> mLastBytes = new HashMap<Long, Long>();
+    private long mTotal = 0;
+
+    public AllocationMeter() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+            mThreads = (com.sun.management.ThreadMXBean) threads;
+            mThreads.setThreadAllocatedMemoryEnabled(true);
+        } else {
+            mThreads = null;
+        }
+    }
+
+    public boolean isSupported() {
+        return mThreads != null;
+    }
+
+    /**
+     * @return bytes allocated so far by the threads seen, -1 if the JVM
+     * does not count them
+     */
+    public synchronized long allocatedBytes() {
+        if (mThreads == null) {
+            return -1;
+        }
+        long[] ids = mThreads.getAllThreadIds();
+        long[] bytes = mThreads.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; i++) {
+            // -1 for threads that ended meanwhile, which keep their last count
+            if (bytes[i] <= 0) {
+                continue;
+            }
+            Long last = mLastBytes.put(ids[i], bytes[i]);
+            mTotal += bytes[i] - (last != null ? last : 0);
+        }
+        return mTotal;
+    }
+}
@@ -0,0 +1,417 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the scenarios of the LoadGenerator over a matrix of parameters and
+ * writes the results as JSON.
+ *
+ * Every list option runs each of its values, e.g.
+ *
+ *   --scenarios publish --clients 1,8 --fanout 1 --payload 64,4096 --qos 0,1
+ *
+ * runs eight publish benchmarks. Without a rate the publishers saturate
+ * the link and the latency is mostly time spent queued, a rate below the
+ * throughput measures the path itself. The results go to benchmark-<time>.json
+ * and latest.json in the output directory. Given a baseline, a file of an
+ * earlier run, runs whose throughput fell or whose p99 latency rose by
+ * more than the tolerance are reported and the exit status is 1.
+ */
+public class Benchmark {
+
+    private static final String USAGE = "Options, lists are comma separated:\n"
+            + "  --scenarios publish,reconnect,keepalive,replay,handshake,linkup,\n"
+            + "              storm,match,store,failover,dedup,lanes  (publish,reconnect)\n"
+            + "  --clients N,..         publishers, or clients of the other scenarios (1,4)\n"
+            + "  --fanout N,..          subscribers of every message (1,4)\n"
+            + "  --payload BYTES,..     (64,1024)\n"
+            + "  --qos 0|1|2,..         (0,1)\n"
+            + "  --rate N,..            messages per second of each publisher, 0 for no limit (0)\n"
+            + "  --codec none|deflate,..  (none)\n"
+            + "  --messages N           per publisher, or put through each store (10000)\n"
+            + "  --filters N,..         subscribed per client by reconnect (0,1000)\n"
+            + "  --rounds N             connection drops of reconnect, handshake, linkup and failover (20)\n"
+            + "  --session clean|persistent,..  session of reconnect (clean,persistent)\n"
+            + "  --transport tcp|tls,.. of handshake, tls through a local TLS terminator (tcp,tls)\n"
+            + "  --resume on|off,..     TLS session resumption of handshake (on,off)\n"
+            + "  --reuse none|cache|standby,..  what linkup keeps across connects (none,cache,standby)\n"
+            + "  --dns-delay MS         of every lookup of linkup (50)\n"
+            + "  --blackhole off|on,..  unreachable first address of linkup, not run with none (off,on)\n"
+            + "  --duration SECONDS     of keepalive (900)\n"
+            + "  --connect-delay MS     delay of every CONNACK (0)\n"
+            + "  --broker-delays MS,..  CONNACK delay of each broker of failover, in list order (200,20,80)\n"
+            + "  --traces PATH          trace, or directory of *.trace files, of replay (traces)\n"
+            + "  --handover-drop PERCENT,..  handovers of replay that drop the socket (0,50)\n"
+            + "  --fleet N,..           virtual clients of storm (10000)\n"
+            + "  --outage SECONDS,..    the broker of storm is down (60,600)\n"
+            + "  --capacity N,..        CONNECTs per second the broker of storm accepts (500)\n"
+            + "  --backoff jitter|exponential,..  of the clients of storm (jitter,exponential)\n"
+            + "  --match-filters N,..   subscribed filters of match (1000,10000)\n"
+            + "  --matcher trie|scan,.. how match finds the filters of a topic (trie,scan)\n"
+            + "  --store segment|file,..  of store, against --qos and --payload (segment,file)\n"
+            + "  --dedup off|payload|sequence|reorder,..  mode of the filter of dedup\n"
+            + "                         (off,payload,sequence,reorder)\n"
+            + "  --dedup-rate N,..      messages per second dedup runs at (10000)\n"
+            + "  --control lane|default,..  lane of the control messages of lanes (lane,default)\n"
+            + "  --control-rate N,..    control messages per second of lanes, against --payload\n"
+            + "                         and --qos of the bulk messages (50)\n"
+            + "  --uplink BYTES         per second the broker of lanes reads from each client (262144)\n"
+            + "  --out DIR              (build/benchmark)\n"
+            + "  --baseline FILE        results of an earlier run to compare with\n"
+            + "  --tolerance PERCENT    change allowed against the baseline (10)\n"
+            + "  --verbose              log the engines at INFO\n";
+
+    // one result of a results file, and its values
+    private static final Pattern RESULT =
+            Pattern.compile("\\{\"name\":\"([^\"]+)\"[^{]*\\{[^}]*\\},\"values\":\\{([^}]*)\\}\\}");
+    private static final Pattern VALUE = Pattern.compile("\"([a-z0-9_]+)\":(-?[0-9.]+)");
+
+    private final Map<String, String> mOptions = new HashMap<String, String>();
+
+    public static void main(String[] args) throws Exception {
+        Benchmark benchmark = new Benchmark();
+        if (!benchmark.parse(args)) {
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+        System.exit(benchmark.run());
+    }
+
+    private Benchmark() {
+        mOptions.put("scenarios", "publish,reconnect");
+        mOptions.put("clients", "1,4");
+        mOptions.put("fanout", "1,4");
+        mOptions.put("payload", "64,1024");
+        mOptions.put("qos", "0,1");
+        mOptions.put("rate", "0");
+        mOptions.put("codec", "none");
+        mOptions.put("messages", "10000");
+        mOptions.put("filters", "0,1000");
+        mOptions.put("rounds", "20");
+        mOptions.put("session", "clean,persistent");
+        mOptions.put("transport", "tcp,tls");
+        mOptions.put("resume", "on,off");
+        mOptions.put("reuse", "none,cache,standby");
+        mOptions.put("dns-delay", "50");
+        mOptions.put("blackhole", "off,on");
+        mOptions.put("duration", "900");
+        mOptions.put("connect-delay", "0");
+        mOptions.put("broker-delays", "200,20,80");
+        mOptions.put("traces", "traces");
+        mOptions.put("handover-drop", "0,50");
+        mOptions.put("fleet", "10000");
+        mOptions.put("outage", "60,600");
+        mOptions.put("capacity", "500");
+        mOptions.put("backoff", "jitter,exponential");
+        mOptions.put("match-filters", "1000,10000");
+        mOptions.put("matcher", "trie,scan");
+        mOptions.put("store", "segment,file");
+        mOptions.put("dedup", "off,payload,sequence,reorder");
+        mOptions.put("dedup-rate", "10000");
+        mOptions.put("control", "lane,default");
+        mOptions.put("control-rate", "50");
+        mOptions.put("uplink", "262144");
+        mOptions.put("out", "build/benchmark");
+        mOptions.put("tolerance", "10");
+    }
+
+    private boolean parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                return false;
+            }
+            String name = args[i].substring(2);
+            if (name.equals("verbose")) {
+                mOptions.put(name, "true");
+            } else if (mOptions.containsKey(name) || name.equals("baseline")) {
+                if (++i == args.length) {
+                    return false;
+                }
+                mOptions.put(name, args[i]);
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int run() throws Exception {
+        Logger.getLogger("").setLevel(mOptions.containsKey("verbose") ? Level.INFO : Level.WARNING);
+        File out = new File(mOptions.get("out"));
+        File data = new File(out, "data");
+        if (!data.mkdirs() && !data.isDirectory()) {
+            throw new IOException("Cannot create " + data);
+        }
+        LoadGenerator generator = new LoadGenerator(data, getLong("connect-delay"));
+        List<BenchmarkResult> results = new ArrayList<BenchmarkResult>();
+
+        List<String> scenarios = getList("scenarios");
+        if (scenarios.contains("publish")) {
+            for (int clients : getInts("clients")) {
+                for (int fanout : getInts("fanout")) {
+                    for (int payload : getInts("payload")) {
+                        for (int qos : getInts("qos")) {
+                            for (int rate : getInts("rate")) {
+                                for (String codec : getList("codec")) {
+                                    results.add(report(generator.publish(clients, Math.max(1, fanout),
+                                            payload, qos, getInts("messages")[0], rate,
+                                            codec.equals("deflate"))));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        if (scenarios.contains("lanes")) {
+            for (int payload : getInts("payload")) {
+                for (int qos : getInts("qos")) {
+                    for (int rate : getInts("control-rate")) {
+                        for (String control : getList("control")) {
+                            results.add(report(generator.lanes(control.equals("lane"), payload, qos, rate,
+                                    getLong("uplink"))));
+                        }
+                    }
+                }
+            }
+        }
+        if (scenarios.contains("reconnect")) {
+            for (int clients : getInts("clients")) {
+                for (int filters : getInts("filters")) {
+                    for (String session : getList("session")) {
+                        results.add(report(generator.reconnect(clients, filters, getInts("rounds")[0],
+                                session.equals("persistent"))));
+                    }
+                }
+            }
+        }
+        if (scenarios.contains("handshake")) {
+            for (int clients : getInts("clients")) {
+                for (String transport : getList("transport")) {
+                    if (!transport.equals("tls")) {
+                        results.add(report(generator.handshake(clients, getInts("rounds")[0], false, false)));
+                        continue;
+                    }
+                    for (String resume : getList("resume")) {
+                        results.add(report(generator.handshake(clients, getInts("rounds")[0], true,
+                                resume.equals("on"))));
+                    }
+                }
+            }
+        }
+        if (scenarios.contains("linkup")) {
+            for (int clients : getInts("clients")) {
+                for (String blackhole : getList("blackhole")) {
+                    for (String reuse : getList("reuse")) {
+                        if (blackhole.equals("on") && reuse.equals("none")) {
+                            // every connect would wait out the connect timeout
+                            continue;
+                        }
+                        results.add(report(generator.linkUp(clients, getInts("rounds")[0], reuse,
+                                getLong("dns-delay"), blackhole.equals("on"))));
+                    }
+                }
+            }
+        }
+        if (scenarios.contains("failover")) {
+            int[] delays = getInts("broker-delays");
+            long[] brokers = new long[delays.length];
+            for (int i = 0; i < delays.length; i++) {
+                brokers[i] = delays[i];
+            }
+            for (int clients : getInts("clients")) {
+                results.add(report(generator.failover(clients, getInts("rounds")[0], brokers)));
+            }
+        }
+        if (scenarios.contains("keepalive")) {
+            for (int clients : getInts("clients")) {
+                results.add(report(generator.keepAlive(clients, getLong("duration") * 1000)));
+            }
+        }
+        if (scenarios.contains("replay")) {
+            List<BenchmarkResult> replays = new ArrayList<BenchmarkResult>();
+            ConnectivityReplay.replayAll(new File(mOptions.get("traces")), getInts("handover-drop"),
+                    replays);
+            for (BenchmarkResult replay : replays) {
+                results.add(report(replay));
+            }
+        }
+        if (scenarios.contains("storm")) {
+            for (int fleet : getInts("fleet")) {
+                for (int outage : getInts("outage")) {
+                    for (int capacity : getInts("capacity")) {
+                        for (String backoff : getList("backoff")) {
+                            results.add(report(ReconnectStorm.simulate(fleet, outage * 1000L, capacity,
+                                    backoff.equals("jitter"))));
+                        }
+                    }
+                }
+            }
+        }
+        if (scenarios.contains("match")) {
+            for (int filters : getInts("match-filters")) {
+                for (String matcher : getList("matcher")) {
+                    results.add(report(FilterMatching.measure(filters, matcher.equals("trie"))));
+                }
+            }
+        }
+        if (scenarios.contains("store")) {
+            for (int qos : getInts("qos")) {
+                if (qos == 0) {
+                    // not stored
+                    continue;
+                }
+                for (int payload : getInts("payload")) {
+                    for (String store : getList("store")) {
+                        results.add(report(StoreComparison.compare(data, store.equals("segment"), qos,
+                                payload, getInts("messages")[0])));
+                    }
+                }
+            }
+        }
+        if (scenarios.contains("dedup")) {
+            for (int rate : getInts("dedup-rate")) {
+                for (String mode : getList("dedup")) {
+                    results.add(report(DedupCost.measure(mode, rate)));
+                }
+            }
+        }
+
+        String json = toJson(results);
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        write(new File(out, "benchmark-" + time + ".json"), json);
+        write(new File(out, "latest.json"), json);
+        System.out.println("Results written to " + new File(out, "benchmark-" + time + ".json"));
+
+        String baseline = mOptions.get("baseline");
+        if (baseline == null) {
+            return 0;
+        }
+        return compare(results, read(new File(baseline)), getLong("tolerance")) ? 0 : 1;
+    }
+
+    private static BenchmarkResult report(BenchmarkResult result) {
+        System.out.println(result);
+        return result;
+    }
+
+    private static String toJson(List<BenchmarkResult> results) {
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("{\"time\":").append(System.currentTimeMillis());
+        sb.append(",\"java\":\"").append(System.getProperty("java.version")).append('"');
+        sb.append(",\"os\":\"").append(System.getProperty("os.name")).append(' ')
+                .append(System.getProperty("os.arch")).append('"');
+        sb.append(",\"cpus\":").append(Runtime.getRuntime().availableProcessors());
+        sb.append(",\"results\":[");
+        for (int i = 0; i < results.size(); i++) {
+            if (i > 0) {
+                sb.append(",\n");
+            }
+            sb.append(results.get(i).toJson());
+        }
+        sb.append("]}\n");
+        return sb.toString();
+    }
+
+    /**
+     * Prints the runs that got worse than in baseline
+     *
+     * @return true if none did
+     */
+    private static boolean compare(List<BenchmarkResult> results, String baseline, long tolerance) {
+        Map<String, Map<String, Double>> previous = new HashMap<String, Map<String, Double>>();
+        Matcher result = RESULT.matcher(baseline);
+        while (result.find()) {
+            Map<String, Double> values = new HashMap<String, Double>();
+            Matcher value = VALUE.matcher(result.group(2));
+            while (value.find()) {
+                values.put(value.group(1), Double.parseDouble(value.group(2)));
+            }
+            previous.put(result.group(1), values);
+        }
+        boolean passed = true;
+        double factor = tolerance / 100.0;
+        for (BenchmarkResult current : results) {
+            Map<String, Double> values = previous.get(current.getName());
+            if (values == null) {
+                continue;
+            }
+            Double before = values.get(BenchmarkResult.THROUGHPUT);
+            Number now = current.values.get(BenchmarkResult.THROUGHPUT);
+            if (before != null && now != null && now.doubleValue() < before * (1 - factor)) {
+                System.out.println(String.format(Locale.US, "REGRESSION %s throughput %.1f -> %.1f",
+                        current.getName(), before, now.doubleValue()));
+                passed = false;
+            }
+            before = values.get(BenchmarkResult.P99);
+            now = current.values.get(BenchmarkResult.P99);
+            if (before != null && now != null && now.doubleValue() > before * (1 + factor)) {
+                System.out.println(String.format(Locale.US, "REGRESSION %s p99 %.0fus -> %dus",
+                        current.getName(), before, now.longValue()));
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    private List<String> getList(String name) {
+        return Arrays.asList(mOptions.get(name).split(","));
+    }
+
+    private int[] getInts(String name) {
+        List<String> list = getList(name);
+        int[] values = new int[list.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Integer.parseInt(list.get(i).trim());
+        }
+        return values;
+    }
+
+    private long getLong(String name) {
+        return Long.parseLong(mOptions.get(name).trim());
+    }
+
+    private static void write(File file, String text) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes(MqttEngine.PAYLOAD_CHARSET));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return new String(data, 0, read, MqttEngine.PAYLOAD_CHARSET);
+        } finally {
+            in.close();
+        }
+    }
+}
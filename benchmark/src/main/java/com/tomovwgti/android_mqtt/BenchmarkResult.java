@@ -0,0 +1,117 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parameters and measured values of one benchmark run.
+ *
+ * Latencies are in microseconds, rates per second. A run is identified by
+ * its name, built from the scenario and its parameters, so runs of two
+ * builds with the same parameters can be compared.
+ */
+public class BenchmarkResult {
+
+    // throughput of the scenario in messages or operations per second
+    public static final String THROUGHPUT = "throughput";
+    public static final String P50 = "p50";
+    public static final String P99 = "p99";
+    public static final String P999 = "p999";
+    public static final String MAX = "max";
+    // bytes allocated per second of the run, -1 if the JVM does not count them
+    public static final String ALLOCATION_RATE = "alloc_rate";
+
+    public final String scenario;
+    public final Map<String, Object> params = new LinkedHashMap<String, Object>();
+    public final Map<String, Number> values = new LinkedHashMap<String, Number>();
+
+    public BenchmarkResult(String scenario) {
+        this.scenario = scenario;
+    }
+
+    public BenchmarkResult param(String name, Object value) {
+        params.put(name, value);
+        return this;
+    }
+
+    public BenchmarkResult value(String name, Number value) {
+        values.put(name, value);
+        return this;
+    }
+
+    /**
+     * Puts the latency percentiles of histogram
+     */
+    public BenchmarkResult latency(LatencyHistogram histogram) {
+        value("count", histogram.getCount());
+        value(P50, histogram.getValueAt(0.5));
+        value(P99, histogram.getValueAt(0.99));
+        value(P999, histogram.getValueAt(0.999));
+        value(MAX, histogram.getMax());
+        return this;
+    }
+
+    /**
+     * e.g. publish/clients=4/fanout=1/payload=256/qos=1
+     */
+    public String getName() {
+        StringBuilder sb = new StringBuilder(scenario);
+        for (Map.Entry<String, Object> e : params.entrySet()) {
+            sb.append('/').append(e.getKey()).append('=').append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"name\":\"").append(getName()).append('"');
+        sb.append(",\"scenario\":\"").append(scenario).append('"');
+        sb.append(",\"params\":{");
+        boolean first = true;
+        for (Map.Entry<String, Object> e : params.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":");
+            if (e.getValue() instanceof Number || e.getValue() instanceof Boolean) {
+                sb.append(e.getValue());
+            } else {
+                sb.append('"').append(e.getValue()).append('"');
+            }
+        }
+        sb.append("},\"values\":{");
+        first = true;
+        for (Map.Entry<String, Number> e : values.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(e.getKey()).append("\":");
+            Number value = e.getValue();
+            if (value instanceof Double || value instanceof Float) {
+                sb.append(String.format(Locale.US, "%.1f", value.doubleValue()));
+            } else {
+                sb.append(value.longValue());
+            }
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getName());
+        for (Map.Entry<String, Number> e : values.entrySet()) {
+            sb.append("  ").append(e.getKey()).append('=');
+            Number value = e.getValue();
+            if (value instanceof Double || value instanceof Float) {
+                sb.append(String.format(Locale.US, "%.1f", value.doubleValue()));
+            } else {
+                sb.append(value.longValue());
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,673 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Just enough of an MQTT 3.1/3.1.1 broker on localhost to drive the engine.
+ *
+ * Handles CONNECT, SUBSCRIBE, UNSUBSCRIBE, PUBLISH of every QoS with its
+ * acknowledgements, retained messages, PINGREQ and DISCONNECT. A session
+ * that is not clean keeps its subscriptions while its client is away and
+ * queues the QoS 1 and 2 messages for it, which go out right after the
+ * next CONNACK. Nothing is authenticated. Each connection has a reader
+ * thread, which also writes the messages it fans out to the subscribers.
+ * The CONNACK can be delayed, every connection dropped at once and new
+ * ones refused, to drive the failover and reconnect paths. Reading from
+ * the clients can be slowed down to the rate of a mobile uplink.
+ */
+public class BrokerStandIn {
+    private static final Logger LOG = Logger.getLogger(BrokerStandIn.class.getSimpleName());
+
+    // Packet types
+    private static final int CONNECT = 1;
+    private static final int CONNACK = 2;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int PUBREC = 5;
+    private static final int PUBREL = 6;
+    private static final int PUBCOMP = 7;
+    private static final int SUBSCRIBE = 8;
+    private static final int SUBACK = 9;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int UNSUBACK = 11;
+    private static final int PINGREQ = 12;
+    private static final int PINGRESP = 13;
+    private static final int DISCONNECT = 14;
+
+    // Largest packet accepted, anything bigger closes the connection
+    private static final int MAX_PACKET_LENGTH = 16 * 1024 * 1024;
+    // Messages queued per session while its client is away, the oldest are dropped
+    private static final int MAX_QUEUED = 10000;
+    // Protocol level of MQTT 3.1.1, older CONNACKs have no session present flag
+    private static final int PROTOCOL_LEVEL_3_1_1 = 4;
+    // CONNACK return code refusing a connect while the broker is not available
+    private static final int SERVER_UNAVAILABLE = 3;
+
+    /**
+     * A filter of a session and the QoS granted to it
+     */
+    private static class Subscription {
+        final Session session;
+        final int qos;
+
+        Subscription(Session session, int qos) {
+            this.session = session;
+            this.qos = qos;
+        }
+    }
+
+    /**
+     * A message queued for a client that is away
+     */
+    private static class Message {
+        final String topic;
+        final byte[] payload;
+        final int qos;
+
+        Message(String topic, byte[] payload, int qos) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+        }
+    }
+
+    private final ServerSocket mServer;
+    private final Thread mAcceptor;
+    private volatile boolean mRunning = true;
+    private volatile long mConnectDelay = 0;
+    private volatile boolean mAvailable = true;
+    // bytes per second read from each connection, 0 for no limit
+    private volatile long mIngressRate = 0;
+
+    // Every filter of every session, the retained message per topic, the
+    // sessions by client ID and the open connections, guarded by mLock
+    private final Object mLock = new Object();
+    private final TopicMatcher<Subscription> mSubscriptions = new TopicMatcher<Subscription>();
+    private final Map<String, byte[]> mRetained = new HashMap<String, byte[]>();
+    private final Map<String, Session> mSessions = new HashMap<String, Session>();
+    private final List<Connection> mConnections = new ArrayList<Connection>();
+
+    private final AtomicLong mConnects = new AtomicLong();
+    private final AtomicLong mSessionsResumed = new AtomicLong();
+    private final AtomicLong mFiltersSubscribed = new AtomicLong();
+    private final AtomicLong mPublishesIn = new AtomicLong();
+    private final AtomicLong mPublishesOut = new AtomicLong();
+    private final AtomicLong mPings = new AtomicLong();
+
+    /**
+     * Listens on a free port of the loopback interface
+     */
+    public BrokerStandIn() throws IOException {
+        mServer = new ServerSocket();
+        mServer.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        mAcceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "broker:" + getPort());
+        mAcceptor.setDaemon(true);
+        mAcceptor.start();
+    }
+
+    public int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    /**
+     * host:port as the engine takes it in PREF_SERVER_LIST
+     */
+    public String getAddress() {
+        return "127.0.0.1:" + getPort();
+    }
+
+    /**
+     * Answers every following CONNECT only after delay ms
+     */
+    public void setConnectDelay(long delay) {
+        mConnectDelay = delay;
+    }
+
+    /**
+     * While not available the broker drops its connections and refuses
+     * every CONNECT after the connect delay, with "server unavailable"
+     */
+    public void setAvailable(boolean available) {
+        mAvailable = available;
+        if (!available) {
+            dropConnections();
+        }
+    }
+
+    /**
+     * Reads from every connection at most bytesPerSecond, 0 for as fast as
+     * the clients write. The packets wait in the socket buffers meanwhile.
+     */
+    public void setIngressRate(long bytesPerSecond) {
+        mIngressRate = bytesPerSecond;
+    }
+
+    public long getConnects() {
+        return mConnects.get();
+    }
+
+    public long getPublishesIn() {
+        return mPublishesIn.get();
+    }
+
+    public long getPublishesOut() {
+        return mPublishesOut.get();
+    }
+
+    public long getPings() {
+        return mPings.get();
+    }
+
+    /**
+     * CONNECTs that found the session of their client
+     */
+    public long getSessionsResumed() {
+        return mSessionsResumed.get();
+    }
+
+    /**
+     * Filters of every SUBSCRIBE received
+     */
+    public long getFiltersSubscribed() {
+        return mFiltersSubscribed.get();
+    }
+
+    /**
+     * Sessions of connected clients and persistent ones of clients away
+     */
+    public int getSessionCount() {
+        synchronized (mLock) {
+            return mSessions.size();
+        }
+    }
+
+    /**
+     * Closes every connection without a DISCONNECT, like a broker restart
+     * that keeps the persistent sessions
+     */
+    public void dropConnections() {
+        List<Connection> connections;
+        synchronized (mLock) {
+            connections = new ArrayList<Connection>(mConnections);
+        }
+        for (Connection connection : connections) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Passes a message on to the subscribers as if a client published it
+     */
+    public void publish(String topic, byte[] payload, int qos) {
+        route(topic, payload, qos, false);
+    }
+
+    public void close() {
+        mRunning = false;
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Close failed", e);
+        }
+        dropConnections();
+    }
+
+    private void accept() {
+        while (mRunning) {
+            final Socket socket;
+            final Connection connection;
+            try {
+                socket = mServer.accept();
+                socket.setTcpNoDelay(true);
+                connection = new Connection(socket);
+            } catch (IOException e) {
+                if (!mRunning || mServer.isClosed()) {
+                    return;
+                }
+                LOG.log(Level.WARNING, "Accept failed", e);
+                continue;
+            }
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    connection.run();
+                }
+            }, "broker:" + getPort() + "/" + socket.getPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Passes a message on to every subscriber, and keeps it if retained
+     */
+    private void route(String topic, byte[] payload, int qos, boolean retained) {
+        List<Subscription> matches = new ArrayList<Subscription>();
+        synchronized (mLock) {
+            if (retained) {
+                if (payload.length == 0) {
+                    mRetained.remove(topic);
+                } else {
+                    mRetained.put(topic, payload);
+                }
+            }
+            mSubscriptions.match(topic, matches);
+        }
+        for (Subscription subscription : matches) {
+            subscription.session.deliver(topic, payload, Math.min(qos, subscription.qos), false);
+        }
+    }
+
+    /**
+     * The filters of a client, and its messages while it is away if the
+     * session is not clean
+     */
+    private class Session {
+        final boolean clean;
+        // filters of this session and their subscriptions, the connection of
+        // the client, null while it is away, and the messages queued
+        // meanwhile, guarded by mLock
+        final Map<String, Subscription> filters = new HashMap<String, Subscription>();
+        Connection connection;
+        final List<Message> queued = new ArrayList<Message>();
+
+        Session(boolean clean) {
+            this.clean = clean;
+        }
+
+        void deliver(String topic, byte[] payload, int qos, boolean retained) {
+            Connection to;
+            synchronized (mLock) {
+                to = connection;
+                if (to == null) {
+                    if (!clean && qos > MqttEngine.MQTT_QOS_0) {
+                        if (queued.size() == MAX_QUEUED) {
+                            queued.remove(0);
+                        }
+                        queued.add(new Message(topic, payload, qos));
+                    }
+                    return;
+                }
+            }
+            to.deliver(topic, payload, qos, retained);
+        }
+
+        /**
+         * Drops every filter, under mLock
+         */
+        void discard() {
+            for (Map.Entry<String, Subscription> e : filters.entrySet()) {
+                mSubscriptions.remove(e.getKey(), e.getValue());
+            }
+            filters.clear();
+            queued.clear();
+        }
+    }
+
+    /**
+     * A connection of a client
+     */
+    private class Connection {
+        private final Socket mSocket;
+        private final OutputStream mOut;
+        // session taken over by the CONNECT
+        private Session mSession;
+        private int mNextId = 0;
+        private boolean mConnected = false;
+        // System.nanoTime() the next packet may be read at, with an ingress rate
+        private long mReadDue = 0;
+
+        Connection(Socket socket) throws IOException {
+            mSocket = socket;
+            mOut = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+                while (true) {
+                    int header = in.read();
+                    if (header < 0) {
+                        break;
+                    }
+                    byte[] body = new byte[readLength(in)];
+                    in.readFully(body);
+                    pace(body.length);
+                    if (!handle(header >> 4, header & 0x0f, body)) {
+                        break;
+                    }
+                }
+            } catch (EOFException e) {
+                // closed in the middle of a packet
+            } catch (SocketException e) {
+                // closed by dropConnections() or by the client
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Connection failed", e);
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Waits until a packet of length bytes fits the ingress rate
+         */
+        private void pace(int length) throws InterruptedIOException {
+            long rate = mIngressRate;
+            if (rate <= 0) {
+                return;
+            }
+            long now = System.nanoTime();
+            // the fixed header counted as two bytes
+            mReadDue = Math.max(mReadDue, now) + (length + 2) * 1000000000L / rate;
+            long wait = mReadDue - now;
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        /**
+         * @return false to close the connection
+         */
+        private boolean handle(int type, int flags, byte[] body) throws IOException {
+            if (!mConnected && type != CONNECT) {
+                return false;
+            }
+            switch (type) {
+                case CONNECT:
+                    return onConnect(body);
+                case PUBLISH:
+                    onPublish(flags, body);
+                    return true;
+                case PUBREC:
+                    // second step of an outgoing QoS 2 message
+                    write(PUBREL, 0x02, body);
+                    return true;
+                case PUBREL:
+                    write(PUBCOMP, 0, body);
+                    return true;
+                case PUBACK:
+                case PUBCOMP:
+                    return true;
+                case SUBSCRIBE:
+                    onSubscribe(body);
+                    return true;
+                case UNSUBSCRIBE:
+                    onUnsubscribe(body);
+                    return true;
+                case PINGREQ:
+                    mPings.incrementAndGet();
+                    write(PINGRESP, 0, new byte[0]);
+                    return true;
+                case DISCONNECT:
+                    return false;
+                default:
+                    LOG.warning("Unexpected packet type " + type);
+                    return false;
+            }
+        }
+
+        private boolean onConnect(byte[] body) throws IOException {
+            if (mConnected) {
+                return false;
+            }
+            // protocol name, level, flags, keep alive and the client ID
+            int offset = 2 + readShort(body, 0);
+            int level = body[offset] & 0xff;
+            boolean clean = (body[offset + 1] & 0x02) != 0;
+            offset += 4;
+            String clientId =
+                    new String(body, offset + 2, readShort(body, offset), MqttEngine.PAYLOAD_CHARSET);
+            long delay = mConnectDelay;
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            if (!mAvailable) {
+                write(CONNACK, 0, new byte[]{0, SERVER_UNAVAILABLE});
+                return false;
+            }
+            mConnected = true;
+            Connection previous = null;
+            boolean present;
+            List<Message> queued;
+            synchronized (mLock) {
+                Session session = mSessions.get(clientId);
+                if (session != null) {
+                    previous = session.connection;
+                    session.connection = null;
+                }
+                present = session != null && !clean && !session.clean;
+                if (!present) {
+                    if (session != null) {
+                        session.discard();
+                    }
+                    session = new Session(clean);
+                    mSessions.put(clientId, session);
+                }
+                session.connection = this;
+                mSession = session;
+                mConnections.add(this);
+                queued = new ArrayList<Message>(session.queued);
+                session.queued.clear();
+            }
+            if (previous != null) {
+                // the client is back before its old connection timed out
+                previous.close();
+            }
+            mConnects.incrementAndGet();
+            if (present) {
+                mSessionsResumed.incrementAndGet();
+            }
+            write(CONNACK, 0, new byte[]{(byte) (present && level >= PROTOCOL_LEVEL_3_1_1 ? 1 : 0), 0});
+            for (Message message : queued) {
+                deliver(message.topic, message.payload, message.qos, false);
+            }
+            return true;
+        }
+
+        private void onPublish(int flags, byte[] body) throws IOException {
+            int qos = (flags >> 1) & 0x03;
+            boolean retained = (flags & 0x01) != 0;
+            int topicLength = readShort(body, 0);
+            String topic = new String(body, 2, topicLength, MqttEngine.PAYLOAD_CHARSET);
+            int offset = 2 + topicLength;
+            if (qos > 0) {
+                byte[] id = {body[offset], body[offset + 1]};
+                offset += 2;
+                write(qos == 1 ? PUBACK : PUBREC, 0, id);
+            }
+            byte[] payload = new byte[body.length - offset];
+            System.arraycopy(body, offset, payload, 0, payload.length);
+            mPublishesIn.incrementAndGet();
+            route(topic, payload, qos, retained);
+        }
+
+        private void onSubscribe(byte[] body) throws IOException {
+            List<String> filters = new ArrayList<String>();
+            List<Integer> granted = new ArrayList<Integer>();
+            int offset = 2;
+            while (offset < body.length) {
+                int length = readShort(body, offset);
+                String filter = new String(body, offset + 2, length, MqttEngine.PAYLOAD_CHARSET);
+                offset += 2 + length;
+                filters.add(filter);
+                granted.add(Math.min(body[offset++] & 0x03, MqttEngine.MQTT_QOS_2));
+            }
+            mFiltersSubscribed.addAndGet(filters.size());
+            Map<String, byte[]> retained = new HashMap<String, byte[]>();
+            synchronized (mLock) {
+                for (int i = 0; i < filters.size(); i++) {
+                    String filter = filters.get(i);
+                    Subscription old = mSession.filters.remove(filter);
+                    if (old != null) {
+                        mSubscriptions.remove(filter, old);
+                    }
+                    Subscription subscription = new Subscription(mSession, granted.get(i));
+                    mSession.filters.put(filter, subscription);
+                    mSubscriptions.add(filter, subscription);
+                }
+                if (!mRetained.isEmpty()) {
+                    TopicMatcher<String> matcher = new TopicMatcher<String>();
+                    for (String filter : filters) {
+                        matcher.add(filter, filter);
+                    }
+                    List<String> matches = new ArrayList<String>();
+                    for (Map.Entry<String, byte[]> e : mRetained.entrySet()) {
+                        matches.clear();
+                        matcher.match(e.getKey(), matches);
+                        if (!matches.isEmpty()) {
+                            retained.put(e.getKey(), e.getValue());
+                        }
+                    }
+                }
+            }
+            byte[] suback = new byte[2 + granted.size()];
+            suback[0] = body[0];
+            suback[1] = body[1];
+            for (int i = 0; i < granted.size(); i++) {
+                suback[2 + i] = (byte) (int) granted.get(i);
+            }
+            write(SUBACK, 0, suback);
+            for (Map.Entry<String, byte[]> e : retained.entrySet()) {
+                deliver(e.getKey(), e.getValue(), MqttEngine.MQTT_QOS_0, true);
+            }
+        }
+
+        private void onUnsubscribe(byte[] body) throws IOException {
+            int offset = 2;
+            synchronized (mLock) {
+                while (offset < body.length) {
+                    int length = readShort(body, offset);
+                    String filter = new String(body, offset + 2, length, MqttEngine.PAYLOAD_CHARSET);
+                    offset += 2 + length;
+                    Subscription old = mSession.filters.remove(filter);
+                    if (old != null) {
+                        mSubscriptions.remove(filter, old);
+                    }
+                }
+            }
+            write(UNSUBACK, 0, new byte[]{body[0], body[1]});
+        }
+
+        /**
+         * Sends a PUBLISH to this client, the acknowledgements are taken but
+         * nothing is redelivered
+         */
+        void deliver(String topic, byte[] payload, int qos, boolean retained) {
+            byte[] name = topic.getBytes(MqttEngine.PAYLOAD_CHARSET);
+            int header = 2 + name.length + (qos > 0 ? 2 : 0);
+            byte[] body = new byte[header + payload.length];
+            body[0] = (byte) (name.length >> 8);
+            body[1] = (byte) name.length;
+            System.arraycopy(name, 0, body, 2, name.length);
+            if (qos > 0) {
+                int id;
+                synchronized (this) {
+                    // 1 to 65535
+                    mNextId = mNextId % 0xffff + 1;
+                    id = mNextId;
+                }
+                body[2 + name.length] = (byte) (id >> 8);
+                body[3 + name.length] = (byte) id;
+            }
+            System.arraycopy(payload, 0, body, header, payload.length);
+            try {
+                write(PUBLISH, (qos << 1) | (retained ? 1 : 0), body);
+                mPublishesOut.incrementAndGet();
+            } catch (IOException e) {
+                // the reader thread of the connection notices and closes it
+                LOG.fine("Delivery to a closed connection dropped");
+            }
+        }
+
+        private void write(int type, int flags, byte[] body) throws IOException {
+            synchronized (mOut) {
+                mOut.write((type << 4) | flags);
+                int length = body.length;
+                do {
+                    int digit = length % 128;
+                    length /= 128;
+                    mOut.write(length > 0 ? digit | 0x80 : digit);
+                } while (length > 0);
+                mOut.write(body);
+                mOut.flush();
+            }
+        }
+
+        void close() {
+            synchronized (mLock) {
+                mConnections.remove(this);
+                Session session = mSession;
+                if (session != null && session.connection == this) {
+                    session.connection = null;
+                    if (session.clean) {
+                        session.discard();
+                        mSessions.values().remove(session);
+                    }
+                }
+            }
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Close failed", e);
+            }
+        }
+    }
+
+    private static int readLength(InputStream in) throws IOException {
+        int length = 0;
+        int multiplier = 1;
+        for (int i = 0; i < 4; i++) {
+            int digit = in.read();
+            if (digit < 0) {
+                throw new EOFException();
+            }
+            length += (digit & 0x7f) * multiplier;
+            if ((digit & 0x80) == 0) {
+                if (length > MAX_PACKET_LENGTH) {
+                    throw new IOException("Packet too long: " + length);
+                }
+                return length;
+            }
+            multiplier *= 128;
+        }
+        throw new IOException("Malformed remaining length");
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+}
@@ -0,0 +1,173 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays a recorded connectivity trace through a TransportPolicy with the
+ * debounce times and profiles of the engine, in virtual time.
+ *
+ * The policy is compared with reacting to every report at once, as the
+ * service did before: every report without a link, and every change from
+ * one link to another, dropped the connection, and the next link
+ * reconnected it. The price of the policy is the time a recovery waits for
+ * its debounce.
+ *
+ * Not every handover leaves the socket alive. A share of them, picked at
+ * random with a fixed seed, drops it, and the engine tears the connection
+ * down and reconnects once its liveness probe fails.
+ */
+public class ConnectivityReplay {
+
+    // seed of the handovers that drop the socket, the same every run
+    private static final long DROP_SEED = 1;
+
+    // the debounce times and profiles of MqttEngine
+    private final TransportPolicy mPolicy = new TransportPolicy();
+    // percent of the handovers that drop the socket
+    private final int mHandoverDrop;
+    private final Random mRandom = new Random(DROP_SEED);
+
+    // counts of the policy
+    private long mTeardowns = 0;
+    private long mReconnects = 0;
+    private long mProfileSwitches = 0;
+    private long mRecoveryDelay = 0;
+    private long mHandoverDrops = 0;
+    // time of the report that brought the link back, -1 if none is pending
+    private long mUpSince = -1;
+    // was the first link settled?
+    private boolean mStarted = false;
+
+    // counts of reacting at once
+    private boolean mNaiveConnected = false;
+    private long mNaiveTeardowns = 0;
+    private long mNaiveReconnects = 0;
+
+    private ConnectivityReplay(int handoverDrop) {
+        mHandoverDrop = handoverDrop;
+    }
+
+    /**
+     * Replays every *.trace file of path, or path itself if it is a file,
+     * once per share of handovers that drop the socket
+     *
+     * @param handoverDrops percents of the handovers that drop the socket
+     */
+    public static void replayAll(File path, int[] handoverDrops, List<BenchmarkResult> results)
+            throws IOException {
+        File[] files = path.isDirectory() ? path.listFiles() : new File[]{path};
+        if (files == null) {
+            throw new IOException("Cannot list " + path);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isFile() && (file == path || file.getName().endsWith(".trace"))) {
+                for (int handoverDrop : handoverDrops) {
+                    results.add(replay(file, handoverDrop));
+                }
+            }
+        }
+    }
+
+    public static BenchmarkResult replay(File file, int handoverDrop) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), MqttEngine.PAYLOAD_CHARSET);
+        List<ConnectivityTrace.Event> events;
+        try {
+            events = ConnectivityTrace.read(reader);
+        } finally {
+            reader.close();
+        }
+        ConnectivityReplay replay = new ConnectivityReplay(handoverDrop);
+        replay.run(events);
+        TransportPolicy policy = replay.mPolicy;
+        return new BenchmarkResult("replay")
+                .param("trace", file.getName())
+                .param("handover_drop", handoverDrop)
+                .value("events", (long) events.size())
+                .value("teardowns", replay.mTeardowns)
+                .value("teardowns_naive", replay.mNaiveTeardowns)
+                .value("reconnects", replay.mReconnects)
+                .value("reconnects_naive", replay.mNaiveReconnects)
+                .value("flaps", policy.getFlaps())
+                .value("handovers", policy.getHandovers())
+                .value("handover_drops", replay.mHandoverDrops)
+                .value("profile_switches", replay.mProfileSwitches)
+                .value("recovery_delay_ms", replay.mRecoveryDelay);
+    }
+
+    private void run(List<ConnectivityTrace.Event> events) {
+        long now = 0;
+        NetworkLink previous = null;
+        for (ConnectivityTrace.Event event : events) {
+            settleUntil(event.time);
+            now = event.time;
+            if (mPolicy.onLinkChanged(event.link, now) >= 0 && event.link.isUp()
+                    && !mPolicy.getLink().isUp()) {
+                mUpSince = now;
+            }
+            naive(previous, event.link);
+            previous = event.link;
+        }
+        settleUntil(Long.MAX_VALUE);
+    }
+
+    /**
+     * Settles what is due up to time
+     */
+    private void settleUntil(long time) {
+        while (mPolicy.getDue() <= time) {
+            long due = mPolicy.getDue();
+            TransportPolicy.Transition transition = mPolicy.onTimer(due);
+            if (transition == null) {
+                // nothing is pending
+                return;
+            }
+            if (!mStarted) {
+                // the first link connects, it does not reconnect
+                mStarted = true;
+                mUpSince = -1;
+                continue;
+            }
+            if (transition.isLoss()) {
+                mTeardowns++;
+            } else if (transition.isRecovery()) {
+                mReconnects++;
+                if (mUpSince >= 0) {
+                    mRecoveryDelay += due - mUpSince;
+                    mUpSince = -1;
+                }
+            } else if (transition.isHandover() && mRandom.nextInt(100) < mHandoverDrop) {
+                // the probe after the handover found the socket dead
+                mHandoverDrops++;
+                mTeardowns++;
+                mReconnects++;
+            }
+            if (transition.from.isUp() && transition.to.isUp()
+                    && mPolicy.profileOf(transition.from) != mPolicy.profileOf(transition.to)) {
+                mProfileSwitches++;
+            }
+        }
+    }
+
+    private void naive(NetworkLink previous, NetworkLink link) {
+        boolean changed = previous != null && previous.isUp() && !link.equals(previous);
+        if (mNaiveConnected && changed) {
+            // the broadcast of the network going away dropped the connection
+            mNaiveTeardowns++;
+            mNaiveConnected = false;
+        }
+        if (!mNaiveConnected && link.isUp()) {
+            if (previous != null) {
+                mNaiveReconnects++;
+            }
+            mNaiveConnected = true;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * CPU and allocation per message of the InboundFilter of the engine, for
+ * a stream of QoS 1 messages arriving at a given rate.
+ *
+ * The messages go to TOPICS topics in turn, each payload starting with the
+ * sequence number of its topic. Every DUPLICATE_EVERY messages the last
+ * message comes again with the DUP flag, and in every SWAP_EVERY rounds
+ * over the topics two messages of each topic arrive swapped. The clock of
+ * the filter advances by the interval of the rate with every message, so
+ * the fingerprints expire as they would at that rate.
+ *
+ * Modes: "off" passes the messages to the sink without the filter,
+ * "payload" fingerprints topic and payload, "sequence" the sequence
+ * number, and "reorder" also puts the swapped messages back in order.
+ * The CPU share at the rate is the time per message times the rate.
+ */
+public class DedupCost {
+
+    private static final int TOPICS = 100;
+    private static final int PAYLOAD_LENGTH = 64;
+    private static final int DUPLICATE_EVERY = 100;
+    private static final int SWAP_EVERY = 10;
+    // messages held per topic when reordering
+    private static final int REORDER_MESSAGES = 16;
+    private static final long REORDER_TIME = 1000;
+    // payloads reused in turn, more than the filter can hold
+    private static final int PAYLOADS = 4096;
+    // messages between two looks at the clock
+    private static final int BATCH = 256;
+
+    /**
+     * The stream of messages, fed to the filter or straight to the sink
+     */
+    private static class Stream implements Microbenchmark.Operation {
+        final InboundFilter filter;
+        final InboundFilter.Sink sink;
+        final int rate;
+        final String[] topics = new String[TOPICS];
+        final long[] sequences = new long[TOPICS];
+        final byte[][] payloads = new byte[PAYLOADS][PAYLOAD_LENGTH];
+        long messages = 0;
+        byte[] previous;
+
+        Stream(InboundFilter filter, InboundFilter.Sink sink, int rate) {
+            this.filter = filter;
+            this.sink = sink;
+            this.rate = rate;
+            for (int t = 0; t < TOPICS; t++) {
+                topics[t] = "fleet/" + t + "/telemetry";
+            }
+        }
+
+        @Override
+        public long run(int count) {
+            for (int i = 0; i < count; i++) {
+                int t = (int) (messages % TOPICS);
+                long now = messages * 1000 / rate;
+                if (messages % DUPLICATE_EVERY == 0 && previous != null) {
+                    // the message before this one, again
+                    offer(topics[(t + TOPICS - 1) % TOPICS], previous, true, now);
+                }
+                long sequence = sequences[t]++;
+                long round = messages / TOPICS % SWAP_EVERY;
+                if (round == 2 || round == 3) {
+                    // the round matches the sequence, 2 and 3 arrive as 3 and 2
+                    sequence ^= 1;
+                }
+                byte[] payload = payloads[(int) (messages % PAYLOADS)];
+                for (int b = 0; b < 8; b++) {
+                    payload[b] = (byte) (sequence >>> (56 - 8 * b));
+                }
+                offer(topics[t], payload, false, now);
+                previous = payload;
+                messages++;
+            }
+            return messages;
+        }
+
+        private void offer(String topic, byte[] payload, boolean duplicate, long now) {
+            if (filter != null) {
+                filter.onMessage(topic, payload, MqttEngine.MQTT_QOS_1, false, duplicate, now);
+            } else {
+                sink.deliver(topic, payload, MqttEngine.MQTT_QOS_1, false);
+            }
+        }
+    }
+
+    private DedupCost() {
+    }
+
+    /**
+     * @param mode off, payload, sequence or reorder
+     * @param rate messages per second
+     */
+    public static BenchmarkResult measure(String mode, int rate) {
+        final long[] delivered = new long[1];
+        InboundFilter.Sink sink = new InboundFilter.Sink() {
+            @Override
+            public void deliver(String topic, byte[] payload, int qos, boolean retained) {
+                delivered[0] += payload.length;
+            }
+        };
+        InboundFilter filter = null;
+        if (!mode.equals("off")) {
+            filter = new InboundFilter(MqttEngine.DEDUP_CAPACITY, MqttEngine.DEDUP_WINDOW, sink);
+        }
+        if (mode.equals("sequence") || mode.equals("reorder")) {
+            filter.setSequenceKey(new InboundFilter.SequenceKey() {
+                @Override
+                public long sequence(String topic, byte[] payload) {
+                    long sequence = 0;
+                    for (int b = 0; b < 8; b++) {
+                        sequence = sequence << 8 | payload[b] & 0xff;
+                    }
+                    return sequence;
+                }
+            });
+        }
+        if (mode.equals("reorder")) {
+            filter.setReorderWindow(REORDER_MESSAGES, REORDER_TIME);
+        }
+
+        BenchmarkResult result = new BenchmarkResult("dedup")
+                .param("mode", mode)
+                .param("rate", rate);
+        Microbenchmark.measure(result, new Stream(filter, sink, rate), BATCH);
+        double nanos = result.values.get(Microbenchmark.NS_PER_OP).doubleValue();
+        return result.value("cpu_pct_at_rate", nanos * rate / 1e7);
+    }
+}
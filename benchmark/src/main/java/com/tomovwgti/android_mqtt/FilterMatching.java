@@ -0,0 +1,124 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Cost of finding the filters that match a topic, with the TopicMatcher
+ * trie and with a scan of every filter as MqttService did.
+ *
+ * The filters look like those of a fleet: most name one sensor of a
+ * device, some take every device of a site with '+', and some everything
+ * of a device with '#'. The topics are readings of random sensors, so
+ * some match a few filters and many match none.
+ */
+public class FilterMatching {
+
+    // seed of the filters and topics, the same every run
+    private static final long SEED = 1;
+    private static final int SITES = 100;
+    private static final int DEVICES = 100;
+    private static final int SENSORS = 10;
+    // topics matched in turn, a power of two
+    private static final int TOPICS = 1024;
+    // operations between two looks at the clock
+    private static final int BATCH = 256;
+
+    private FilterMatching() {
+    }
+
+    /**
+     * @param filters subscribed filters
+     * @param trie    TopicMatcher, or a scan of every filter
+     */
+    public static BenchmarkResult measure(int filters, boolean trie) {
+        Random random = new Random(SEED);
+        List<String> subscribed = filters(filters, random);
+        final String[] topics = new String[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            topics[i] = "fleet/" + random.nextInt(SITES) + "/" + random.nextInt(DEVICES)
+                    + "/telemetry/" + random.nextInt(SENSORS);
+        }
+
+        BenchmarkResult result = new BenchmarkResult("match")
+                .param("filters", filters)
+                .param("matcher", trie ? "trie" : "scan");
+        Microbenchmark.Operation operation;
+        if (trie) {
+            final TopicMatcher<String> matcher = new TopicMatcher<String>();
+            for (String filter : subscribed) {
+                matcher.add(filter, filter);
+            }
+            final List<String> out = new ArrayList<String>();
+            operation = new Microbenchmark.Operation() {
+                private int mNext = 0;
+
+                @Override
+                public long run(int count) {
+                    long matched = 0;
+                    for (int i = 0; i < count; i++) {
+                        out.clear();
+                        matcher.match(topics[mNext++ & (TOPICS - 1)], out);
+                        matched += out.size();
+                    }
+                    return matched;
+                }
+            };
+        } else {
+            final String[][] levels = new String[subscribed.size()][];
+            for (int i = 0; i < levels.length; i++) {
+                levels[i] = TopicMatcher.split(subscribed.get(i));
+            }
+            operation = new Microbenchmark.Operation() {
+                private int mNext = 0;
+
+                @Override
+                public long run(int count) {
+                    long matched = 0;
+                    for (int i = 0; i < count; i++) {
+                        String[] topic = TopicMatcher.split(topics[mNext++ & (TOPICS - 1)]);
+                        for (String[] filter : levels) {
+                            if (matches(filter, topic)) {
+                                matched++;
+                            }
+                        }
+                    }
+                    return matched;
+                }
+            };
+        }
+        return Microbenchmark.measure(result, operation, trie ? BATCH : 1);
+    }
+
+    private static List<String> filters(int count, Random random) {
+        Set<String> filters = new LinkedHashSet<String>();
+        while (filters.size() < count) {
+            int site = random.nextInt(SITES);
+            int device = random.nextInt(DEVICES);
+            int kind = random.nextInt(100);
+            if (kind < 60) {
+                filters.add("fleet/" + site + "/" + device + "/telemetry/" + random.nextInt(SENSORS));
+            } else if (kind < 85) {
+                filters.add("fleet/" + site + "/+/telemetry/" + random.nextInt(SENSORS));
+            } else {
+                filters.add("fleet/" + site + "/" + device + "/#");
+            }
+        }
+        return new ArrayList<String>(filters);
+    }
+
+    private static boolean matches(String[] filter, String[] topic) {
+        for (int i = 0; i < filter.length; i++) {
+            if (filter[i].equals("#")) {
+                return true;
+            }
+            if (i == topic.length || !filter[i].equals("+") && !filter[i].equals(topic[i])) {
+                return false;
+            }
+        }
+        return filter.length == topic.length;
+    }
+}
@@ -0,0 +1,1096 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Drives engines against a BrokerStandIn on localhost.
+ *
+ * Every client is a full MqttEngine on its own ExecutorScheduler with
+ * settings in memory and its stores in a directory of its own, so the
+ * whole path from enqueue() through the lanes, the flow control, the
+ * client and the broker to the inbound filter and the dispatcher of the
+ * subscribers is measured.
+ */
+public class LoadGenerator {
+
+    // ms to wait for connects and SUBACKs, and for the next message once
+    // the publishers are done
+    private static final long TIMEOUT = 1000 * 30;
+    private static final String TOPIC_PREFIX = "bench/";
+    // topic of the control messages of lanes, and of its bulk messages
+    private static final String CONTROL_TOPIC = TOPIC_PREFIX + "control";
+    private static final String BULK_TOPIC = TOPIC_PREFIX + "bulk";
+    // control messages of lanes, and the payload of each
+    private static final int CONTROL_MESSAGES = 200;
+    private static final int CONTROL_PAYLOAD = 32;
+    // text the payloads are filled with after their timestamp, compressible
+    // like the JSON the app usually sends
+    private static final byte[] FILLER = ("{\"sensor\":\"temperature\",\"unit\":\"celsius\","
+            + "\"value\":21.5,\"battery\":87,\"status\":\"ok\"}").getBytes(MqttEngine.PAYLOAD_CHARSET);
+    // Publishes each publisher makes before measuring
+    private static final int WARMUP_MESSAGES = 1000;
+    // Reconnects each client of handshake makes before measuring
+    private static final int WARMUP_ROUNDS = 20;
+    // ms between the messages the broker sends every client during reconnect
+    private static final long TICK_INTERVAL = 10;
+    // ms from the link coming back until linkUp reconnects, like the
+    // recovery debounce of the engine
+    private static final long LINK_SETTLE = 500;
+    // ms a broker that failed is avoided by the engine, its SERVER_COOLDOWN
+    private static final long SERVER_COOLDOWN = 1000 * 30;
+
+    private final File mDataDir;
+    private final long mConnectDelay;
+    private final AllocationMeter mAllocation = new AllocationMeter();
+    private int mClientCount = 0;
+
+    /**
+     * @param dataDir      parent of the stores of the clients
+     * @param connectDelay ms the broker delays every CONNACK
+     */
+    public LoadGenerator(File dataDir, long connectDelay) {
+        mDataDir = dataDir;
+        mConnectDelay = connectDelay;
+    }
+
+    /**
+     * Publishers send messages each to a topic of their own as fast as the
+     * flow control admits them, every subscriber receives all of them.
+     * Latency is from enqueue() to the listener of a subscriber.
+     *
+     * @param clients  publishers
+     * @param fanout   subscribers of every message, at least 1
+     * @param payload  bytes per message, at least 8 for the timestamp
+     * @param qos      of the publishes and the subscriptions
+     * @param messages per publisher
+     * @param rate     messages per second of each publisher, 0 for as many
+     *                 as the flow control admits. Paced messages are stamped
+     *                 with the time they were due, so a stalled publisher
+     *                 shows up in the latency.
+     * @param deflate  compress the payloads with the deflate codec
+     */
+    public BenchmarkResult publish(int clients, int fanout, int payload, int qos, int messages,
+                                   int rate, boolean deflate)
+            throws IOException, InterruptedException, TimeoutException {
+        BenchmarkResult result = new BenchmarkResult("publish")
+                .param("clients", clients)
+                .param("fanout", fanout)
+                .param("payload", payload)
+                .param("qos", qos)
+                .param("rate", rate)
+                .param("codec", deflate ? "deflate" : "none");
+        BrokerStandIn broker = new BrokerStandIn();
+        broker.setConnectDelay(mConnectDelay);
+        List<Client> all = new ArrayList<Client>();
+        try {
+            final LatencyHistogram latency = new LatencyHistogram();
+            final AtomicLong received = new AtomicLong();
+            List<Client> subscribers = new ArrayList<Client>();
+            for (int i = 0; i < fanout; i++) {
+                Client subscriber = new Client(broker, false, true);
+                subscriber.latency = latency;
+                subscriber.received = received;
+                all.add(subscriber);
+                subscribers.add(subscriber);
+            }
+            List<Client> publishers = new ArrayList<Client>();
+            for (int i = 0; i < clients; i++) {
+                Client publisher = new Client(broker, false, true);
+                if (deflate) {
+                    publisher.engine.getCodecs().setCodec(TOPIC_PREFIX + "#", MqttEngine.CODEC_DEFLATE);
+                }
+                all.add(publisher);
+                publishers.add(publisher);
+            }
+            for (Client client : all) {
+                client.start();
+            }
+            for (Client client : all) {
+                client.await(1, 0);
+            }
+            for (Client subscriber : subscribers) {
+                subscriber.engine.subscribe(TOPIC_PREFIX + "+", qos);
+            }
+            for (Client subscriber : subscribers) {
+                subscriber.await(1, 1);
+            }
+
+            long expected = (long) WARMUP_MESSAGES * clients * fanout;
+            publishRound(publishers, WARMUP_MESSAGES, payload, qos, rate);
+            awaitReceived(received, expected);
+            latency.reset();
+            received.set(0);
+
+            long allocated = mAllocation.allocatedBytes();
+            long start = System.nanoTime();
+            List<Client.Publisher> round = publishRound(publishers, messages, payload, qos, rate);
+            expected = (long) messages * clients * fanout;
+            long end = awaitReceived(received, expected);
+            double seconds = (end - start) / 1e9;
+            long allocatedAfter = mAllocation.allocatedBytes();
+
+            long failed = 0;
+            for (Client.Publisher publisher : round) {
+                failed += publisher.failed.get();
+            }
+            result.value("messages", (long) messages * clients)
+                    .value("delivered", received.get())
+                    .value("failed", failed)
+                    .value(BenchmarkResult.THROUGHPUT, received.get() / seconds)
+                    .value("publish_rate", (double) messages * clients / seconds)
+                    .latency(latency);
+            allocation(result, allocated, allocatedAfter, seconds, received.get());
+            result.value("broker_in", broker.getPublishesIn())
+                    .value("broker_out", broker.getPublishesOut());
+            return result;
+        } finally {
+            close(all);
+            broker.close();
+        }
+    }
+
+    /**
+     * A publisher saturates its uplink with bulk messages while it sends
+     * CONTROL_MESSAGES control messages at controlRate per second. The
+     * broker reads from its clients at the uplink rate, well below what the
+     * subscriber takes, so the messages queue on the publisher. With lanes
+     * the control topic is routed to the control lane of the engine,
+     * otherwise it queues behind the bulk messages in the default lane.
+     * Latency is of the control messages, from when each was due to the
+     * subscriber, the bulk messages are reported as bulk_*.
+     *
+     * @param lanes  route the control topic to the control lane
+     * @param uplink bytes per second the broker reads from each client
+     */
+    public BenchmarkResult lanes(boolean lanes, int payload, int qos, int controlRate, long uplink)
+            throws IOException, InterruptedException, TimeoutException {
+        BenchmarkResult result = new BenchmarkResult("lanes")
+                .param("control", lanes ? "lane" : "default")
+                .param("payload", payload)
+                .param("qos", qos)
+                .param("control_rate", controlRate)
+                .param("uplink", uplink);
+        BrokerStandIn broker = new BrokerStandIn();
+        broker.setConnectDelay(mConnectDelay);
+        List<Client> all = new ArrayList<Client>();
+        try {
+            Client subscriber = new Client(broker, false, true);
+            subscriber.latency = new LatencyHistogram();
+            subscriber.received = new AtomicLong();
+            subscriber.controlLatency = new LatencyHistogram();
+            subscriber.controlReceived = new AtomicLong();
+            Client publisher = new Client(broker, false, true);
+            if (lanes) {
+                publisher.engine.getLanes().route(CONTROL_TOPIC, MqttEngine.LANE_CONTROL);
+            }
+            all.add(subscriber);
+            all.add(publisher);
+            for (Client client : all) {
+                client.start();
+            }
+            for (Client client : all) {
+                client.await(1, 0);
+            }
+            subscriber.engine.subscribe(TOPIC_PREFIX + "+", qos);
+            subscriber.await(1, 1);
+
+            List<Client> publishers = new ArrayList<Client>();
+            publishers.add(publisher);
+            publishRound(publishers, WARMUP_MESSAGES, payload, qos, 0);
+            awaitReceived(subscriber.received, WARMUP_MESSAGES);
+            subscriber.latency.reset();
+            subscriber.received.set(0);
+            broker.setIngressRate(uplink);
+
+            Client.Publisher bulk = publisher.new Publisher(BULK_TOPIC, Integer.MAX_VALUE, payload, qos, 0);
+            Client.Publisher control = publisher.new Publisher(CONTROL_TOPIC, CONTROL_MESSAGES,
+                    CONTROL_PAYLOAD, qos, controlRate);
+            Thread bulkThread = new Thread(bulk, "bulk");
+            Thread controlThread = new Thread(control, "control");
+            long start = System.nanoTime();
+            bulkThread.start();
+            controlThread.start();
+            controlThread.join();
+            awaitReceived(subscriber.controlReceived, CONTROL_MESSAGES);
+            long end = System.nanoTime();
+            long bulkReceived = subscriber.received.get();
+            bulk.stopped = true;
+            bulkThread.join();
+            double seconds = (end - start) / 1e9;
+
+            LatencyHistogram bulkLatency = subscriber.latency;
+            result.value("delivered", subscriber.controlReceived.get())
+                    .value("failed", control.failed.get())
+                    .latency(subscriber.controlLatency)
+                    .value(BenchmarkResult.THROUGHPUT, bulkReceived / seconds)
+                    .value("bulk_p50", bulkLatency.getValueAt(0.5))
+                    .value("bulk_p99", bulkLatency.getValueAt(0.99));
+            return result;
+        } finally {
+            close(all);
+            broker.close();
+        }
+    }
+
+    /**
+     * The broker drops every connection rounds times, the clients reconnect
+     * at once and restore their subscriptions. Latency is from the drop until
+     * a client has its CONNACK and, with filters, the SUBACK of every filter
+     * it had to subscribe again. With filters, the broker also sends every
+     * client a QoS 1 message each TICK_INTERVAL ms, and the time from the
+     * drop to the first of them after the reconnect is measured as well.
+     * A clean session misses the messages sent while it was away.
+     *
+     * @param filters    subscribed per client before the first drop
+     * @param persistent connect without a clean session, so a reconnect
+     *                   resumes it instead of subscribing again
+     */
+    public BenchmarkResult reconnect(int clients, int filters, int rounds, boolean persistent)
+            throws IOException, InterruptedException, TimeoutException {
+        BenchmarkResult result = new BenchmarkResult("reconnect")
+                .param("clients", clients)
+                .param("filters", filters)
+                .param("session", persistent ? "persistent" : "clean");
+        final BrokerStandIn broker = new BrokerStandIn();
+        broker.setConnectDelay(mConnectDelay);
+        List<Client> all = new ArrayList<Client>();
+        final AtomicLong ticksReceived = new AtomicLong();
+        Ticker ticker = null;
+        try {
+            for (int i = 0; i < clients; i++) {
+                Client client = new Client(broker, false, !persistent);
+                client.received = ticksReceived;
+                all.add(client);
+            }
+            for (Client client : all) {
+                client.start();
+            }
+            for (int i = 0; i < clients; i++) {
+                Client client = all.get(i);
+                client.await(1, 0);
+                for (int f = 0; f < filters; f++) {
+                    client.engine.subscribe(TOPIC_PREFIX + i + "/" + f + "/+", MqttEngine.MQTT_QOS_1);
+                }
+            }
+            for (Client client : all) {
+                client.await(1, filters);
+            }
+            if (filters > 0) {
+                ticker = new Ticker(broker, clients);
+                ticker.start();
+            }
+
+            LatencyHistogram recovery = new LatencyHistogram();
+            LatencyHistogram firstMessage = new LatencyHistogram();
+            long subscribed = broker.getFiltersSubscribed();
+            long received = ticksReceived.get();
+            long sent = ticker != null ? ticker.sent.get() : 0;
+            long allocated = mAllocation.allocatedBytes();
+            long start = System.nanoTime();
+            for (int r = 1; r <= rounds; r++) {
+                for (Client client : all) {
+                    client.awaitMessageAfter(filters > 0 ? 1 + r : 0);
+                }
+                long dropped = System.nanoTime();
+                broker.dropConnections();
+                for (Client client : all) {
+                    long done = client.await(1 + r, persistent ? filters : filters * (1 + r));
+                    recovery.record((done - dropped) / 1000);
+                }
+                for (Client client : all) {
+                    if (filters > 0) {
+                        firstMessage.record((client.awaitMessage() - dropped) / 1000);
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long allocatedAfter = mAllocation.allocatedBytes();
+            result.value(BenchmarkResult.THROUGHPUT, (double) rounds * clients / seconds)
+                    .latency(recovery);
+            if (filters > 0) {
+                ticker.stop();
+                result.value("first_message_p50", firstMessage.getValueAt(0.5))
+                        .value("first_message_p99", firstMessage.getValueAt(0.99))
+                        .value("ticks_sent", ticker.sent.get() - sent)
+                        .value("ticks_received", ticksReceived.get() - received);
+            }
+            allocation(result, allocated, allocatedAfter, seconds, (long) rounds * clients);
+            result.value("broker_connects", broker.getConnects())
+                    .value("broker_resumed", broker.getSessionsResumed())
+                    .value("broker_subscribes", broker.getFiltersSubscribed() - subscribed);
+            return result;
+        } finally {
+            if (ticker != null) {
+                ticker.stop();
+            }
+            close(all);
+            broker.close();
+        }
+    }
+
+    /**
+     * Clients reconnect rounds times after the broker dropped them, over
+     * plain TCP or through a TlsTerminator. Recovery is from the drop to
+     * the CONNACK, and the engines time each phase of their connects.
+     *
+     * @param tls    connect through TLS
+     * @param resume let the engines resume their TLS sessions, otherwise
+     *               their session cache is emptied before every drop
+     */
+    public BenchmarkResult handshake(int clients, int rounds, boolean tls, boolean resume)
+            throws IOException, GeneralSecurityException, InterruptedException, TimeoutException {
+        BenchmarkResult result = new BenchmarkResult("handshake")
+                .param("clients", clients)
+                .param("transport", tls ? "tls" : "tcp")
+                .param("resume", tls && resume);
+        BrokerStandIn broker = new BrokerStandIn();
+        broker.setConnectDelay(mConnectDelay);
+        TlsTerminator terminator = null;
+        List<Client> all = new ArrayList<Client>();
+        try {
+            String server = broker.getAddress();
+            if (tls) {
+                terminator = new TlsTerminator(broker, mDataDir);
+                server = terminator.getUri();
+            }
+            // a context per engine, as every engine keeps its own sessions
+            List<SSLContext> contexts = new ArrayList<SSLContext>();
+            for (int i = 0; i < clients; i++) {
+                SSLContext context = tls ? terminator.getClientContext() : null;
+                contexts.add(context);
+                all.add(new Client(server, context, false, true));
+            }
+            for (Client client : all) {
+                client.start();
+            }
+            for (Client client : all) {
+                client.await(1, 0);
+            }
+            for (int r = 1; r <= WARMUP_ROUNDS; r++) {
+                if (tls && !resume) {
+                    for (SSLContext context : contexts) {
+                        TlsTerminator.forgetSessions(context);
+                    }
+                }
+                broker.dropConnections();
+                for (Client client : all) {
+                    client.await(1 + r, 0);
+                }
+            }
+            String[] phases = {"connect.dns", "connect.tcp", "connect.tls", "connect.connack"};
+            for (Client client : all) {
+                for (String phase : phases) {
+                    client.engine.getMetrics().histogram(phase).reset();
+                }
+                client.engine.getMetrics().counter("tls.handshakes").set(0);
+                client.engine.getMetrics().counter("tls.resumed").set(0);
+            }
+
+            LatencyHistogram recovery = new LatencyHistogram();
+            long serverResumed = terminator != null ? terminator.getResumed() : 0;
+            long allocated = mAllocation.allocatedBytes();
+            long start = System.nanoTime();
+            for (int r = 1; r <= rounds; r++) {
+                if (tls && !resume) {
+                    for (SSLContext context : contexts) {
+                        TlsTerminator.forgetSessions(context);
+                    }
+                }
+                long dropped = System.nanoTime();
+                broker.dropConnections();
+                for (Client client : all) {
+                    recovery.record((client.await(1 + WARMUP_ROUNDS + r, 0) - dropped) / 1000);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long allocatedAfter = mAllocation.allocatedBytes();
+            result.value(BenchmarkResult.THROUGHPUT, (double) rounds * clients / seconds)
+                    .latency(recovery);
+            for (String phase : phases) {
+                // mean over the connects of every engine
+                long count = 0;
+                double sum = 0;
+                for (Client client : all) {
+                    LatencyHistogram histogram = client.engine.getMetrics().histogram(phase);
+                    count += histogram.getCount();
+                    sum += histogram.getMean() * histogram.getCount();
+                }
+                result.value(phase.substring(phase.indexOf('.') + 1) + "_mean", count > 0 ? sum / count : 0);
+            }
+            long handshakes = 0;
+            long resumed = 0;
+            for (Client client : all) {
+                handshakes += client.engine.getMetrics().counter("tls.handshakes").get();
+                resumed += client.engine.getMetrics().counter("tls.resumed").get();
+            }
+            result.value("tls_handshakes", handshakes)
+                    .value("tls_resumed", resumed);
+            if (terminator != null) {
+                result.value("server_resumed", terminator.getResumed() - serverResumed);
+            }
+            allocation(result, allocated, allocatedAfter, seconds, (long) rounds * clients);
+            return result;
+        } finally {
+            close(all);
+            if (terminator != null) {
+                terminator.close();
+            }
+            broker.close();
+        }
+    }
+
+    /**
+     * Clients lose their link and get it back LINK_SETTLE ms later, and
+     * reconnect to the broker by a host name the LocalResolver answers
+     * after dnsDelay ms. Latency is from onNetworkAvailable() to the CONNACK.
+     *
+     * @param reuse     what the engines keep from one connect for the next:
+     *                  "none" looks up on every connect and tries the
+     *                  addresses one after the other, "cache" keeps the
+     *                  addresses and races them, "standby" also opens a
+     *                  connection as soon as the link is back
+     * @param blackhole the host resolves to an unreachable address first
+     */
+    public BenchmarkResult linkUp(int clients, int rounds, String reuse, long dnsDelay, boolean blackhole)
+            throws IOException, InterruptedException, TimeoutException {
+        BenchmarkResult result = new BenchmarkResult("linkup")
+                .param("clients", clients)
+                .param("reuse", reuse)
+                .param("dns_delay", dnsDelay)
+                .param("blackhole", blackhole);
+        boolean cache = !reuse.equals("none");
+        boolean standby = reuse.equals("standby");
+        BrokerStandIn broker = new BrokerStandIn();
+        broker.setConnectDelay(mConnectDelay);
+        LocalResolver resolver = new LocalResolver(dnsDelay, broker.getPort(), blackhole);
+        List<Client> all = new ArrayList<Client>();
+        try {
+            for (int i = 0; i < clients; i++) {
+                Client client = new Client(LocalResolver.uri(broker), null, false, true);
+                client.engine.setHostLookup(resolver, cache ? 1000 * 60 * 5 : 0, 0);
+                if (!cache) {
+                    client.engine.setConnectAttemptDelay(Long.MAX_VALUE);
+                }
+                all.add(client);
+            }
+            for (Client client : all) {
+                client.start();
+            }
+            for (Client client : all) {
+                client.await(1, 0);
+            }
+            for (int r = 1; r <= WARMUP_ROUNDS; r++) {
+                linkUpRound(all, 1 + r, standby, null);
+            }
+            String[] phases = {"connect.time", "connect.dns", "connect.tcp", "connect.connack"};
+            String[] counters = {"connect.fallbacks", "connect.standby_used"};
+            for (Client client : all) {
+                for (String phase : phases) {
+                    client.engine.getMetrics().histogram(phase).reset();
+                }
+                for (String counter : counters) {
+                    client.engine.getMetrics().counter(counter).set(0);
+                }
+            }
+
+            LatencyHistogram recovery = new LatencyHistogram();
+            long lookups = resolver.getLookups();
+            long allocated = mAllocation.allocatedBytes();
+            long start = System.nanoTime();
+            for (int r = 1; r <= rounds; r++) {
+                linkUpRound(all, 1 + WARMUP_ROUNDS + r, standby, recovery);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long allocatedAfter = mAllocation.allocatedBytes();
+            result.value(BenchmarkResult.THROUGHPUT, (double) rounds * clients / seconds)
+                    .latency(recovery);
+            for (String phase : phases) {
+                // mean over the connects of every engine
+                long count = 0;
+                double sum = 0;
+                for (Client client : all) {
+                    LatencyHistogram histogram = client.engine.getMetrics().histogram(phase);
+                    count += histogram.getCount();
+                    sum += histogram.getMean() * histogram.getCount();
+                }
+                result.value(phase.substring(phase.indexOf('.') + 1) + "_mean", count > 0 ? sum / count : 0);
+            }
+            for (String counter : counters) {
+                long sum = 0;
+                for (Client client : all) {
+                    sum += client.engine.getMetrics().counter(counter).get();
+                }
+                result.value(counter.substring(counter.indexOf('.') + 1), sum);
+            }
+            result.value("lookups", resolver.getLookups() - lookups);
+            allocation(result, allocated, allocatedAfter, seconds, (long) rounds * clients);
+            return result;
+        } finally {
+            close(all);
+            resolver.close();
+            broker.close();
+        }
+    }
+
+    /**
+     * Takes the link of every client down and back up
+     *
+     * @param connects CONNACKs each client has in total after it
+     * @param recovery gets the time from the link back to the CONNACK, null if not measured
+     */
+    private static void linkUpRound(List<Client> clients, int connects, boolean standby,
+                                    LatencyHistogram recovery) throws InterruptedException, TimeoutException {
+        for (Client client : clients) {
+            client.engine.onNetworkLost();
+        }
+        if (standby) {
+            // as on the first report of the link, before it settled
+            for (Client client : clients) {
+                client.engine.prewarm();
+            }
+        }
+        Thread.sleep(LINK_SETTLE);
+        long available = System.nanoTime();
+        for (Client client : clients) {
+            client.engine.onNetworkAvailable();
+        }
+        for (Client client : clients) {
+            long connected = client.await(connects, 0);
+            if (recovery != null) {
+                recovery.record((connected - available) / 1000);
+            }
+        }
+    }
+
+    /**
+     * Idle clients keep their connections alive for duration ms with the
+     * keep-alive of the engine. A fresh engine starts at an interval of four
+     * minutes and learns longer ones, so a run should last a few of them.
+     */
+    public BenchmarkResult keepAlive(int clients, long duration)
+            throws IOException, InterruptedException, TimeoutException {
+        BenchmarkResult result = new BenchmarkResult("keepalive")
+                .param("clients", clients)
+                .param("duration", duration / 1000);
+        BrokerStandIn broker = new BrokerStandIn();
+        broker.setConnectDelay(mConnectDelay);
+        List<Client> all = new ArrayList<Client>();
+        try {
+            for (int i = 0; i < clients; i++) {
+                all.add(new Client(broker, true, true));
+            }
+            for (Client client : all) {
+                client.start();
+            }
+            for (Client client : all) {
+                client.await(1, 0);
+            }
+            long allocated = mAllocation.allocatedBytes();
+            Thread.sleep(duration);
+            long allocatedAfter = mAllocation.allocatedBytes();
+            double seconds = duration / 1000.0;
+            long wakeups = 0;
+            long interval = 0;
+            for (Client client : all) {
+                wakeups += client.engine.getMetrics().counter("keepalive.wakeups").get();
+                interval += client.engine.getKeepAlivePolicy().getInterval();
+            }
+            result.value("pings", broker.getPings())
+                    .value("wakeups", wakeups)
+                    .value("interval", interval / clients)
+                    .value("reconnects", broker.getConnects() - clients)
+                    .value(BenchmarkResult.THROUGHPUT, broker.getPings() / seconds);
+            allocation(result, allocated, allocatedAfter, seconds, 0);
+            return result;
+        } finally {
+            close(all);
+            broker.close();
+        }
+    }
+
+    /**
+     * Clients get a list of brokers that delay their CONNACKs by delays ms,
+     * the slowest usually first, and connect to the first. In every round
+     * the broker most of them are connected to stops taking connects, and
+     * latency is from then until each of its clients has a CONNACK from
+     * another broker. It takes connects again once they all have.
+     *
+     * A pick counts as the fastest if no broker that was up and not cooling
+     * down after a failure of the last SERVER_COOLDOWN ms has a shorter
+     * delay. Rounds in which every other broker was cooling down are not
+     * counted. No round should have to back off.
+     *
+     * @param delays ms each broker of the list delays its CONNACKs
+     */
+    public BenchmarkResult failover(int clients, int rounds, long[] delays)
+            throws IOException, InterruptedException, TimeoutException {
+        StringBuilder name = new StringBuilder();
+        for (long delay : delays) {
+            name.append(name.length() > 0 ? "-" : "").append(delay);
+        }
+        BenchmarkResult result = new BenchmarkResult("failover")
+                .param("clients", clients)
+                .param("delays", name.toString());
+        BrokerStandIn[] brokers = new BrokerStandIn[delays.length];
+        List<Client> all = new ArrayList<Client>();
+        try {
+            StringBuilder servers = new StringBuilder();
+            for (int b = 0; b < brokers.length; b++) {
+                brokers[b] = new BrokerStandIn();
+                brokers[b].setConnectDelay(delays[b]);
+                servers.append(b > 0 ? "," : "").append(brokers[b].getAddress());
+            }
+            for (int i = 0; i < clients; i++) {
+                all.add(new Client(servers.toString(), null, false, true));
+            }
+            for (Client client : all) {
+                client.start();
+            }
+            for (Client client : all) {
+                client.await(1, 0);
+            }
+
+            LatencyHistogram failover = new LatencyHistogram();
+            int[] connects = new int[clients];
+            Arrays.fill(connects, 1);
+            long[] picks = new long[brokers.length];
+            // System.nanoTime() each broker last stopped taking connects
+            long[] downAt = new long[brokers.length];
+            Arrays.fill(downAt, Long.MIN_VALUE / 2);
+            long fastest = 0;
+            long counted = 0;
+            long backoffs = 0;
+            for (Client client : all) {
+                backoffs -= client.engine.getMetrics().counter("reconnect.scheduled").get();
+            }
+            long start = System.nanoTime();
+            for (int r = 1; r <= rounds; r++) {
+                int[] serving = new int[clients];
+                int[] load = new int[brokers.length];
+                for (int i = 0; i < clients; i++) {
+                    serving[i] = brokerOf(all.get(i), brokers);
+                    load[serving[i]]++;
+                }
+                int down = 0;
+                for (int b = 1; b < brokers.length; b++) {
+                    if (load[b] > load[down]) {
+                        down = b;
+                    }
+                }
+                long stopped = System.nanoTime();
+                downAt[down] = stopped;
+                brokers[down].setAvailable(false);
+                // the delay of the fastest broker a client could have picked
+                long best = Long.MAX_VALUE;
+                for (int b = 0; b < brokers.length; b++) {
+                    if (stopped - downAt[b] >= SERVER_COOLDOWN * 1000000) {
+                        best = Math.min(best, delays[b]);
+                    }
+                }
+                for (int i = 0; i < clients; i++) {
+                    if (serving[i] != down) {
+                        continue;
+                    }
+                    long connected = all.get(i).await(++connects[i], 0);
+                    failover.record((connected - stopped) / 1000);
+                    int picked = brokerOf(all.get(i), brokers);
+                    picks[picked]++;
+                    if (best != Long.MAX_VALUE) {
+                        counted++;
+                        if (delays[picked] <= best) {
+                            fastest++;
+                        }
+                    }
+                }
+                brokers[down].setAvailable(true);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            for (Client client : all) {
+                backoffs += client.engine.getMetrics().counter("reconnect.scheduled").get();
+            }
+            result.value(BenchmarkResult.THROUGHPUT, failover.getCount() / seconds)
+                    .latency(failover)
+                    .value("fastest_picks", fastest)
+                    .value("counted_picks", counted)
+                    .value("backoffs", backoffs);
+            for (int b = 0; b < brokers.length; b++) {
+                result.value("picks_" + b, picks[b]);
+            }
+            return result;
+        } finally {
+            close(all);
+            for (BrokerStandIn broker : brokers) {
+                if (broker != null) {
+                    broker.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return index of the broker client is connected to
+     */
+    private static int brokerOf(Client client, BrokerStandIn[] brokers) {
+        String uri = client.engine.getStatus().uri;
+        for (int b = 0; b < brokers.length; b++) {
+            if (uri != null && uri.endsWith(brokers[b].getAddress())) {
+                return b;
+            }
+        }
+        throw new IllegalStateException(client.dir.getName() + " is connected to " + uri);
+    }
+
+    /**
+     * Has the broker send a QoS 1 message to the first filter of every
+     * client of reconnect() each TICK_INTERVAL ms
+     */
+    private static class Ticker implements Runnable {
+        final BrokerStandIn broker;
+        final int clients;
+        final AtomicLong sent = new AtomicLong();
+        private final Thread mThread;
+        private volatile boolean mRunning = true;
+
+        Ticker(BrokerStandIn broker, int clients) {
+            this.broker = broker;
+            this.clients = clients;
+            mThread = new Thread(this, "ticker");
+            mThread.setDaemon(true);
+        }
+
+        void start() {
+            mThread.start();
+        }
+
+        void stop() throws InterruptedException {
+            mRunning = false;
+            mThread.join();
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                for (int i = 0; i < clients; i++) {
+                    byte[] data = new byte[8];
+                    writeLong(data, System.nanoTime());
+                    broker.publish(TOPIC_PREFIX + i + "/0/tick", data, MqttEngine.MQTT_QOS_1);
+                    sent.incrementAndGet();
+                }
+                LockSupport.parkNanos(TICK_INTERVAL * 1000000);
+            }
+        }
+    }
+
+    private List<Client.Publisher> publishRound(List<Client> publishers, int messages, int payload,
+                                                int qos, int rate) throws InterruptedException {
+        List<Client.Publisher> round = new ArrayList<Client.Publisher>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < publishers.size(); i++) {
+            Client.Publisher publisher = publishers.get(i).new Publisher(TOPIC_PREFIX + i, messages,
+                    payload, qos, rate);
+            Thread thread = new Thread(publisher, "publisher-" + i);
+            round.add(publisher);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return round;
+    }
+
+    /**
+     * Waits until expected messages arrived, or none arrived for TIMEOUT ms
+     *
+     * @return System.nanoTime() after the last message
+     */
+    private static long awaitReceived(AtomicLong received, long expected) throws InterruptedException {
+        long last = received.get();
+        long progress = System.nanoTime();
+        while (true) {
+            long count = received.get();
+            long now = System.nanoTime();
+            if (count >= expected) {
+                return now;
+            }
+            if (count != last) {
+                last = count;
+                progress = now;
+            } else if (now - progress > TIMEOUT * 1000000) {
+                // lost messages are reported as delivered < messages * fanout
+                return progress;
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    private void allocation(BenchmarkResult result, long before, long after, double seconds,
+                            long operations) {
+        if (before < 0 || after < 0) {
+            result.value(BenchmarkResult.ALLOCATION_RATE, -1);
+            return;
+        }
+        result.value(BenchmarkResult.ALLOCATION_RATE, (after - before) / seconds);
+        if (operations > 0) {
+            result.value("alloc_per_op", (after - before) / operations);
+        }
+    }
+
+    private static void close(List<Client> clients) {
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    /**
+     * An engine with its platform
+     */
+    private class Client implements MqttEngine.Listener {
+        final MqttEngine engine = new MqttEngine();
+        final ExecutorScheduler scheduler;
+        final File dir;
+        // set on subscribers
+        LatencyHistogram latency;
+        AtomicLong received;
+        // set on subscribers of lanes, count the messages of CONTROL_TOPIC
+        // instead of latency and received
+        LatencyHistogram controlLatency;
+        AtomicLong controlReceived;
+
+        private int mConnects = 0;
+        private int mSubscribed = 0;
+        // System.nanoTime() of the last CONNACK or SUBACK
+        private long mLastEvent;
+        // CONNACKs after which the next message is timed, 0 if none is awaited,
+        // and System.nanoTime() of that message
+        private volatile int mMessageAfter = 0;
+        private long mMessageAt;
+
+        Client(BrokerStandIn broker, boolean keepAlive, boolean cleanSession) {
+            this(broker.getAddress(), null, keepAlive, cleanSession);
+        }
+
+        /**
+         * @param server  as PREF_SERVER_LIST takes it
+         * @param context TLS context of ssl:// servers, null for the default
+         */
+        Client(String server, SSLContext context, boolean keepAlive, boolean cleanSession) {
+            String id = "bench-" + mClientCount++;
+            scheduler = new ExecutorScheduler(id);
+            dir = new File(mDataDir, id);
+            dir.mkdirs();
+            MemorySettingsStore settings = new MemorySettingsStore();
+            settings.putString(MqttEngine.PREF_SERVER_LIST, server);
+            settings.putString(MqttEngine.PREF_CLIENT_ID, id);
+            settings.putBoolean(MqttEngine.PREF_CACHE_SNAPSHOT, false);
+            settings.putBoolean(MqttEngine.PREF_SESSION, cleanSession);
+            engine.attach(new MqttEngine.Environment(scheduler, Connectivity.ALWAYS, settings,
+                    new MemorySettingsStore(), dir,
+                    keepAlive ? new SchedulerPingSender(engine, scheduler) : null, null), this);
+            if (context != null) {
+                engine.setSslContext(context);
+            }
+        }
+
+        void start() {
+            engine.start();
+        }
+
+        /**
+         * Waits for connects CONNACKs and subscribed SUBACKs in total
+         *
+         * @return System.nanoTime() of the last of them
+         */
+        synchronized long await(int connects, int subscribed) throws InterruptedException, TimeoutException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (mConnects < connects || mSubscribed < subscribed) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new TimeoutException(dir.getName() + ": " + mConnects + "/" + connects
+                            + " connects, " + mSubscribed + "/" + subscribed + " subscribed");
+                }
+                wait(wait);
+            }
+            return mLastEvent;
+        }
+
+        /**
+         * Times the first message that arrives once there were connects
+         * CONNACKs in total, see awaitMessage()
+         */
+        synchronized void awaitMessageAfter(int connects) {
+            mMessageAt = 0;
+            mMessageAfter = connects;
+        }
+
+        /**
+         * @return System.nanoTime() of the message awaitMessageAfter() asked for
+         */
+        synchronized long awaitMessage() throws InterruptedException, TimeoutException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (mMessageAt == 0) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    throw new TimeoutException(dir.getName() + ": no message after " + mMessageAfter
+                            + " connects");
+                }
+                wait(wait);
+            }
+            mMessageAfter = 0;
+            return mMessageAt;
+        }
+
+        void close() {
+            engine.detach();
+            scheduler.shutdown();
+            try {
+                // a drain may still be parking messages in the stores
+                scheduler.awaitTermination(TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            delete(dir);
+        }
+
+        @Override
+        public synchronized void onConnect(int status, String message) {
+            if (status == MqttEngine.STATUS_SUCCESS) {
+                mConnects++;
+                mLastEvent = System.nanoTime();
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onDisconnect(int status, String message) {
+        }
+
+        @Override
+        public synchronized void onSubscribe(String filter, int status) {
+            if (status == MqttEngine.STATUS_SUCCESS) {
+                mSubscribed++;
+                mLastEvent = System.nanoTime();
+                notifyAll();
+            }
+        }
+
+        @Override
+        public void onConnectionLost(Throwable cause) {
+        }
+
+        @Override
+        public void onLinkChanged(NetworkLink from, NetworkLink to) {
+        }
+
+        @Override
+        public void onMessage(String topic, byte[] payload, int qos, boolean retained) {
+            if (mMessageAfter > 0) {
+                synchronized (this) {
+                    if (mMessageAfter > 0 && mMessageAt == 0 && mConnects >= mMessageAfter) {
+                        mMessageAt = System.nanoTime();
+                        notifyAll();
+                    }
+                }
+            }
+            if (received != null && payload.length >= 8) {
+                long micros = (System.nanoTime() - readLong(payload)) / 1000;
+                if (controlLatency != null && topic.equals(CONTROL_TOPIC)) {
+                    controlLatency.record(micros);
+                    controlReceived.incrementAndGet();
+                    return;
+                }
+                if (latency != null) {
+                    latency.record(micros);
+                }
+                received.incrementAndGet();
+            }
+        }
+
+        /**
+         * Sends messages to topic, blocking while the flow control pushes back
+         */
+        class Publisher implements Runnable {
+            final String topic;
+            final int messages;
+            final int payload;
+            final int qos;
+            final int rate;
+            final AtomicLong failed = new AtomicLong();
+            // ends the run before messages were sent
+            volatile boolean stopped = false;
+
+            Publisher(String topic, int messages, int payload, int qos, int rate) {
+                this.topic = topic;
+                this.messages = messages;
+                this.payload = payload;
+                this.qos = qos;
+                this.rate = rate;
+            }
+
+            @Override
+            public void run() {
+                PublishQueue.deliveryCallback callback = new PublishQueue.deliveryCallback() {
+                    @Override
+                    public void onDelivered(String topic, int status, String message) {
+                        if (status != MqttEngine.STATUS_SUCCESS) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                };
+                long start = System.nanoTime();
+                for (int i = 0; i < messages && !stopped; i++) {
+                    byte[] data = new byte[Math.max(8, payload)];
+                    for (int j = 8; j < data.length; j++) {
+                        data[j] = FILLER[j % FILLER.length];
+                    }
+                    long due = System.nanoTime();
+                    if (rate > 0) {
+                        due = start + i * 1000000000L / rate;
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    writeLong(data, due);
+                    engine.enqueue(new PublishQueue.Entry(topic, data, qos, MqttEngine.MQTT_NO_RETAIN,
+                            callback), FlowControl.Mode.BLOCK);
+                }
+            }
+        }
+    }
+
+    private static void writeLong(byte[] data, long value) {
+        for (int i = 7; i >= 0; i--) {
+            data[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] data) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,107 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves HOST to the loopback address of a BrokerStandIn after a delay,
+ * like the DNS of a mobile network does to the production broker.
+ *
+ * With a blackhole the answer starts with 127.0.0.2, on which connects to
+ * the port of the broker are never answered, like those to the address of
+ * a family the network does not route. A listener there with a full
+ * backlog makes the kernel drop the SYNs.
+ */
+public class LocalResolver implements HostResolver.Lookup {
+
+    public static final String HOST = "broker.test";
+    // ms a connect to the blackhole waits before it is taken as filled
+    private static final int FILL_TIMEOUT = 200;
+
+    private final long mDelay;
+    private final InetAddress[] mAddresses;
+    private final ServerSocket mBlackhole;
+    private final List<Socket> mFillers = new ArrayList<Socket>();
+    private final AtomicLong mLookups = new AtomicLong();
+
+    /**
+     * @param delay     ms every lookup takes
+     * @param port      of the broker
+     * @param blackhole answer an unreachable address first
+     */
+    public LocalResolver(long delay, int port, boolean blackhole) throws IOException {
+        mDelay = delay;
+        InetAddress broker = InetAddress.getByName("127.0.0.1");
+        if (!blackhole) {
+            mAddresses = new InetAddress[]{broker};
+            mBlackhole = null;
+            return;
+        }
+        InetAddress unreachable = InetAddress.getByName("127.0.0.2");
+        mAddresses = new InetAddress[]{unreachable, broker};
+        mBlackhole = new ServerSocket();
+        mBlackhole.bind(new InetSocketAddress(unreachable, port), 1);
+        // never accepted, so the backlog fills up
+        while (true) {
+            Socket filler = new Socket();
+            try {
+                filler.connect(new InetSocketAddress(unreachable, port), FILL_TIMEOUT);
+            } catch (SocketTimeoutException e) {
+                filler.close();
+                break;
+            }
+            mFillers.add(filler);
+        }
+    }
+
+    /**
+     * URI of the broker by HOST, as the engine takes it in PREF_SERVER_LIST
+     */
+    public static String uri(BrokerStandIn broker) {
+        return SocketTransport.SCHEME_TCP + "://" + HOST + ":" + broker.getPort();
+    }
+
+    public long getLookups() {
+        return mLookups.get();
+    }
+
+    @Override
+    public InetAddress[] lookup(String host) throws UnknownHostException {
+        if (!host.equals(HOST)) {
+            throw new UnknownHostException(host);
+        }
+        mLookups.incrementAndGet();
+        try {
+            Thread.sleep(mDelay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException("Interrupted while looking up " + host);
+        }
+        return mAddresses.clone();
+    }
+
+    public void close() {
+        for (Socket filler : mFillers) {
+            try {
+                filler.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        if (mBlackhole != null) {
+            try {
+                mBlackhole.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
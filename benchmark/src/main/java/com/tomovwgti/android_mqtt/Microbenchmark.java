@@ -0,0 +1,84 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * Times a small operation on the calling thread, for the costs the load
+ * scenarios cannot isolate.
+ *
+ * JMH cannot be fetched by the offline build, so this does the part of it
+ * that matters here: the operation runs for WARMUP ms before anything is
+ * measured, then for ITERATIONS of ITERATION_TIME ms each. Every iteration
+ * gives one cost per operation, and the spread of those is reported along
+ * with the throughput and the bytes allocated per operation. What the
+ * operation returns is summed into a field, so the JIT cannot drop it.
+ */
+public class Microbenchmark {
+
+    /**
+     * The operation to time
+     */
+    public interface Operation {
+        /**
+         * Runs the operation count times
+         *
+         * @return anything derived from the results
+         */
+        long run(int count);
+    }
+
+    // mean ns of one operation
+    public static final String NS_PER_OP = "ns_per_op";
+    // ns of one operation in the slowest iterations
+    public static final String NS_PER_OP_P99 = "ns_per_op_p99";
+    public static final String BYTES_PER_OP = "bytes_per_op";
+
+    // ms the operation runs before it is measured
+    private static final long WARMUP = 2000;
+    private static final int ITERATIONS = 20;
+    // ms of one measured iteration
+    private static final long ITERATION_TIME = 200;
+
+    // results of the operations, so they are not optimized away
+    private static long sSink = 0;
+
+    private Microbenchmark() {
+    }
+
+    /**
+     * Measures operation into result
+     *
+     * @param batch operations between two looks at the clock
+     */
+    public static BenchmarkResult measure(BenchmarkResult result, Operation operation, int batch) {
+        AllocationMeter meter = new AllocationMeter();
+        long end = System.nanoTime() + WARMUP * 1000000;
+        while (System.nanoTime() < end) {
+            sSink += operation.run(batch);
+        }
+
+        LatencyHistogram costs = new LatencyHistogram();
+        long operations = 0;
+        long elapsed = 0;
+        long allocated = meter.allocatedBytes();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long count = 0;
+            long start = System.nanoTime();
+            long now = start;
+            end = start + ITERATION_TIME * 1000000;
+            while (now < end) {
+                sSink += operation.run(batch);
+                count += batch;
+                now = System.nanoTime();
+            }
+            costs.record((now - start) / count);
+            operations += count;
+            elapsed += now - start;
+        }
+        allocated = meter.isSupported() ? meter.allocatedBytes() - allocated : -1;
+
+        return result
+                .value(BenchmarkResult.THROUGHPUT, operations * 1e9 / elapsed)
+                .value(NS_PER_OP, (double) elapsed / operations)
+                .value(NS_PER_OP_P99, costs.getValueAt(0.99))
+                .value(BYTES_PER_OP, allocated < 0 ? -1.0 : (double) allocated / operations);
+    }
+}
@@ -0,0 +1,160 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Simulates a fleet of clients losing their broker at the same moment, in
+ * virtual time, and measures the reconnect storm that follows.
+ *
+ * Every client is connected when the broker goes away, and backs off with
+ * the retry intervals of MqttEngine. While the broker is down every attempt
+ * is refused. Once it is back it accepts up to its capacity of CONNECTs
+ * per second and refuses the rest, which back off again. The attempts of a
+ * second, accepted or not, are the load the broker sees.
+ *
+ * The backoff is either the decorrelated jitter of ReconnectBackoff, or the
+ * intervals the service used before it: four times the last one, the same
+ * for every client.
+ */
+public class ReconnectStorm {
+
+    // seed of the jitter, the same every run
+    private static final long JITTER_SEED = 1;
+    // ms of the buckets the attempts are counted in
+    private static final long SECOND = 1000;
+
+    /**
+     * Retry intervals of the service before ReconnectBackoff, without
+     * jitter
+     */
+    private static class Exponential {
+        private long mInterval = 0;
+
+        long next() {
+            mInterval = mInterval == 0 ? MqttEngine.INITIAL_RETRY_INTERVAL
+                    : Math.min(mInterval * 4, MqttEngine.MAXIMUM_RETRY_INTERVAL);
+            return mInterval;
+        }
+    }
+
+    // next attempt of a client
+    private static class Attempt implements Comparable<Attempt> {
+        final int client;
+        final long time;
+
+        Attempt(int client, long time) {
+            this.client = client;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(Attempt another) {
+            return time < another.time ? -1 : time > another.time ? 1 : client - another.client;
+        }
+    }
+
+    private final long mOutage;
+    private final int mCapacity;
+    private final boolean mJitter;
+    private final ReconnectBackoff[] mBackoffs;
+    private final Exponential[] mExponentials;
+    private final PriorityQueue<Attempt> mAttempts = new PriorityQueue<Attempt>();
+    // ms from the broker coming back to the connect of each client, in us
+    private final LatencyHistogram mRecovery = new LatencyHistogram();
+
+    private long mTotal = 0;
+    private long mRefused = 0;
+    private long mPeak = 0;
+    private long mPeakAfterOutage = 0;
+    private long mLastConnect = 0;
+    // the second being counted, and its attempts and accepted connects
+    private long mSecond = -1;
+    private long mSecondAttempts = 0;
+    private long mSecondAccepted = 0;
+
+    private ReconnectStorm(int fleet, long outage, int capacity, boolean jitter) {
+        mOutage = outage;
+        mCapacity = capacity;
+        mJitter = jitter;
+        mBackoffs = new ReconnectBackoff[jitter ? fleet : 0];
+        mExponentials = new Exponential[jitter ? 0 : fleet];
+        Random random = new Random(JITTER_SEED);
+        for (int i = 0; i < fleet; i++) {
+            if (jitter) {
+                mBackoffs[i] = new ReconnectBackoff(MqttEngine.INITIAL_RETRY_INTERVAL,
+                        MqttEngine.MAXIMUM_RETRY_INTERVAL, random);
+            } else {
+                mExponentials[i] = new Exponential();
+            }
+        }
+    }
+
+    /**
+     * @param fleet    clients connected to the broker
+     * @param outage   ms the broker is down
+     * @param capacity CONNECTs the broker accepts per second
+     * @param jitter   ReconnectBackoff, or the intervals without jitter
+     */
+    public static BenchmarkResult simulate(int fleet, long outage, int capacity, boolean jitter) {
+        ReconnectStorm storm = new ReconnectStorm(fleet, outage, capacity, jitter);
+        long start = System.nanoTime();
+        storm.run(fleet);
+        long elapsed = System.nanoTime() - start;
+        return new BenchmarkResult("storm")
+                .param("fleet", fleet)
+                .param("outage", outage / 1000)
+                .param("capacity", capacity)
+                .param("backoff", jitter ? "jitter" : "exponential")
+                .latency(storm.mRecovery)
+                .value("attempts", storm.mTotal)
+                .value("refused", storm.mRefused)
+                .value("peak_attempts_per_s", storm.mPeak)
+                .value("peak_after_outage_per_s", storm.mPeakAfterOutage)
+                .value("recovered_ms", storm.mLastConnect - outage)
+                .value("sim_ms", elapsed / 1000000);
+    }
+
+    private void run(int fleet) {
+        // the broker went away, every client backs off from here
+        for (int i = 0; i < fleet; i++) {
+            mAttempts.add(new Attempt(i, next(i)));
+        }
+        Attempt attempt;
+        while ((attempt = mAttempts.poll()) != null) {
+            count(attempt.time);
+            mTotal++;
+            mSecondAttempts++;
+            if (attempt.time < mOutage || mSecondAccepted >= mCapacity) {
+                mRefused++;
+                mAttempts.add(new Attempt(attempt.client, attempt.time + next(attempt.client)));
+                continue;
+            }
+            mSecondAccepted++;
+            mRecovery.record((attempt.time - mOutage) * 1000);
+            mLastConnect = attempt.time;
+        }
+        count(Long.MAX_VALUE);
+    }
+
+    private long next(int client) {
+        return mJitter ? mBackoffs[client].next() : mExponentials[client].next();
+    }
+
+    /**
+     * Closes the second before time, if time is past it
+     */
+    private void count(long time) {
+        long second = time / SECOND;
+        if (second == mSecond) {
+            return;
+        }
+        mPeak = Math.max(mPeak, mSecondAttempts);
+        if (mSecond * SECOND >= mOutage) {
+            mPeakAfterOutage = Math.max(mPeakAfterOutage, mSecondAttempts);
+        }
+        mSecond = second;
+        mSecondAttempts = 0;
+        mSecondAccepted = 0;
+    }
+}
@@ -0,0 +1,48 @@
+package com.tomovwgti.android_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.internal.ClientComms;
+
+/**
+ * Keep-alive of the engine on its own scheduler, the way AlarmPingSender
+ * does it with alarms, so the benchmark drives keepAlive() and the
+ * learning of the interval.
+ */
+public class SchedulerPingSender implements MqttPingSender {
+
+    private final MqttEngine mEngine;
+    private final Scheduler mScheduler;
+    private ClientComms mComms;
+
+    private final Runnable mWakeup = new Runnable() {
+        @Override
+        public void run() {
+            mEngine.keepAlive();
+        }
+    };
+
+    public SchedulerPingSender(MqttEngine engine, Scheduler scheduler) {
+        mEngine = engine;
+        mScheduler = scheduler;
+    }
+
+    @Override
+    public void init(ClientComms comms) {
+        mComms = comms;
+    }
+
+    @Override
+    public void start() {
+        schedule(mComms.getKeepAlive());
+    }
+
+    @Override
+    public void stop() {
+        mScheduler.removeWakeup(mWakeup);
+    }
+
+    @Override
+    public void schedule(long delayInMilliseconds) {
+        mScheduler.postWakeup(mWakeup, delayInMilliseconds);
+    }
+}
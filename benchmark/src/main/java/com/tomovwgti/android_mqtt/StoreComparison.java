@@ -0,0 +1,140 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.File;
+import java.util.Enumeration;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubRec;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPubRel;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttPublish;
+import org.eclipse.paho.client.mqttv3.internal.wire.MqttWireMessage;
+import org.eclipse.paho.client.mqttv3.persist.MqttDefaultFilePersistence;
+
+/**
+ * Puts a stream of QoS 1 or 2 publishes through SegmentLogPersistence and
+ * through the MqttDefaultFilePersistence the service used before, the way
+ * the client stores them, then measures how long a new client takes to
+ * recover what was left.
+ *
+ * Like the client, every publish is stored as it is sent, a QoS 2 publish
+ * gets its PUBREL stored next to it when the PUBREC comes, and both are
+ * removed with the PUBCOMP. The broker acks the oldest publish once the
+ * in-flight window of the engine is full. At the end the last window is
+ * left unacked. The store is closed and a new one opened on the same
+ * directory, which reads back every key as the client does on connect.
+ * Closing only releases the files, so the recovery reads what a crash
+ * would have left. The segment log replays its whole log to rebuild the
+ * index, so its recovery grows with the log rather than with the keys.
+ */
+public class StoreComparison {
+
+    private static final String CLIENT_ID = "bench-store";
+    private static final String SERVER_URI = "tcp://localhost:1883";
+    private static final String TOPIC = "bench/store";
+    // keys of the client for publishes and PUBRELs it sent
+    private static final String SENT_PREFIX = "s-";
+    private static final String CONFIRM_PREFIX = "sc-";
+    // ids of the client wrap at 65535
+    private static final int MAX_MESSAGE_ID = 65535;
+
+    private StoreComparison() {
+    }
+
+    /**
+     * @param dir      parent of the directory of the store, which is
+     *                 deleted afterwards
+     * @param segment  SegmentLogPersistence, or the file store
+     * @param messages publishes to store
+     */
+    public static BenchmarkResult compare(File dir, boolean segment, int qos, int payload, int messages)
+            throws MqttException {
+        File base = new File(dir, "store-" + (segment ? "segment" : "file"));
+        delete(base);
+        int window = Publisher.MAX_IN_FLIGHT;
+        byte[] data = new byte[payload];
+        // the publishes in flight, by their index modulo the window
+        MqttPublish[] inFlight = new MqttPublish[window];
+
+        MqttClientPersistence store = open(base, segment);
+        LatencyHistogram latency = new LatencyHistogram();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            if (i >= window) {
+                ack(store, inFlight[i % window], qos);
+            }
+            long sent = System.nanoTime();
+            MqttMessage message = new MqttMessage(data);
+            message.setQos(qos);
+            MqttPublish publish = new MqttPublish(TOPIC, message);
+            publish.setMessageId(id(i));
+            store.put(SENT_PREFIX + id(i), publish);
+            inFlight[i % window] = publish;
+            latency.record((System.nanoTime() - sent) / 1000);
+        }
+        long elapsed = System.nanoTime() - start;
+        store.close();
+
+        long recoverStart = System.nanoTime();
+        store = open(base, segment);
+        int recovered = 0;
+        Enumeration keys = store.keys();
+        while (keys.hasMoreElements()) {
+            MqttWireMessage.createWireMessage(store.get((String) keys.nextElement()));
+            recovered++;
+        }
+        long recovery = System.nanoTime() - recoverStart;
+        store.close();
+        delete(base);
+
+        return new BenchmarkResult("store")
+                .param("store", segment ? "segment" : "file")
+                .param("qos", qos)
+                .param("payload", payload)
+                .param("messages", messages)
+                .value(BenchmarkResult.THROUGHPUT, messages * 1e9 / elapsed)
+                .latency(latency)
+                .value("recovered", recovered)
+                .value("recovery_us", recovery / 1000);
+    }
+
+    private static MqttClientPersistence open(File base, boolean segment) throws MqttException {
+        MqttClientPersistence store = segment
+                ? new SegmentLogPersistence(base, MqttEngine.MQTT_STORE_SEGMENT_SIZE,
+                MqttEngine.MQTT_STORE_FLUSH_INTERVAL)
+                : new MqttDefaultFilePersistence(base.getPath());
+        store.open(CLIENT_ID, SERVER_URI);
+        return store;
+    }
+
+    /**
+     * Completes the flow of publish as the broker's acks would
+     */
+    private static void ack(MqttClientPersistence store, MqttPublish publish, int qos) throws MqttException {
+        int id = publish.getMessageId();
+        if (qos == 2) {
+            // PUBREC
+            store.put(CONFIRM_PREFIX + id, new MqttPubRel(new MqttPubRec(publish)));
+        }
+        // PUBACK or PUBCOMP
+        store.remove(SENT_PREFIX + id);
+        if (qos == 2) {
+            store.remove(CONFIRM_PREFIX + id);
+        }
+    }
+
+    private static int id(int message) {
+        return message % MAX_MESSAGE_ID + 1;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
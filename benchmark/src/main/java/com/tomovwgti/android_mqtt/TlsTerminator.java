@@ -0,0 +1,276 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Terminates TLS on localhost in front of a BrokerStandIn, like the load
+ * balancer in front of the production broker.
+ *
+ * The certificate is a self-signed one for 127.0.0.1, made by the keytool
+ * of the running JDK on first use and kept in the given directory.
+ * getClientContext() trusts it. Every TLS connection gets a plain one to
+ * the broker and two threads copy between them, so a connection the broker
+ * drops is dropped on the TLS side as well.
+ */
+public class TlsTerminator {
+    private static final Logger LOG = Logger.getLogger(TlsTerminator.class.getSimpleName());
+
+    private static final String KEY_STORE_FILE = "standin.p12";
+    private static final String KEY_ALIAS = "standin";
+    private static final char[] PASSWORD = "standin".toCharArray();
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final BrokerStandIn mBroker;
+    private final KeyStore mKeyStore;
+    private final SSLServerSocket mServer;
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+    private volatile boolean mRunning = true;
+
+    private final AtomicLong mHandshakes = new AtomicLong();
+    private final AtomicLong mResumed = new AtomicLong();
+
+    /**
+     * Listens on a free port of the loopback interface
+     *
+     * @param dir directory of the key store
+     */
+    public TlsTerminator(BrokerStandIn broker, File dir) throws IOException, GeneralSecurityException {
+        mBroker = broker;
+        mKeyStore = loadKeyStore(dir);
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(mKeyStore, PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), null, null);
+        mServer = (SSLServerSocket) context.getServerSocketFactory().createServerSocket();
+        mServer.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "tls:" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return mServer.getLocalPort();
+    }
+
+    /**
+     * URI as the engine takes it in PREF_SERVER_LIST
+     */
+    public String getUri() {
+        return SocketTransport.SCHEME_TLS + "://127.0.0.1:" + getPort();
+    }
+
+    /**
+     * New context that trusts the certificate, with a session cache of its own
+     */
+    public SSLContext getClientContext() throws GeneralSecurityException, IOException {
+        KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+        trusted.load(null, null);
+        trusted.setCertificateEntry(KEY_ALIAS, mKeyStore.getCertificate(KEY_ALIAS));
+        TrustManagerFactory trust =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trusted);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * Makes the clients of context do a full handshake on their next connect
+     */
+    public static void forgetSessions(SSLContext context) {
+        SSLSessionContext sessions = context.getClientSessionContext();
+        for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements(); ) {
+            SSLSession session = sessions.getSession(ids.nextElement());
+            if (session != null) {
+                session.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Handshakes completed
+     */
+    public long getHandshakes() {
+        return mHandshakes.get();
+    }
+
+    /**
+     * Handshakes that resumed a session
+     */
+    public long getResumed() {
+        return mResumed.get();
+    }
+
+    public void close() {
+        mRunning = false;
+        try {
+            mServer.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Close failed", e);
+        }
+        List<Socket> sockets;
+        synchronized (mSockets) {
+            sockets = new ArrayList<Socket>(mSockets);
+        }
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    private static KeyStore loadKeyStore(File dir) throws IOException, GeneralSecurityException {
+        File file = new File(dir, KEY_STORE_FILE);
+        if (!file.exists()) {
+            createKeyStore(file);
+        }
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = new FileInputStream(file);
+        try {
+            keyStore.load(in, PASSWORD);
+        } finally {
+            in.close();
+        }
+        return keyStore;
+    }
+
+    private static void createKeyStore(File file) throws IOException {
+        String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+        String password = new String(PASSWORD);
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", KEY_ALIAS,
+                "-keyalg", "EC", "-keysize", "256", "-validity", "3650",
+                "-dname", "CN=localhost", "-ext", "san=ip:127.0.0.1,dns:localhost",
+                "-storetype", "PKCS12", "-keystore", file.getPath(),
+                "-storepass", password, "-keypass", password)
+                .redirectErrorStream(true)
+                .start();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        InputStream in = process.getInputStream();
+        byte[] buffer = new byte[1024];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            output.write(buffer, 0, n);
+        }
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed: " + output.toString("UTF-8"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating " + file);
+        }
+    }
+
+    private void accept() {
+        while (mRunning) {
+            final SSLSocket socket;
+            final Socket upstream;
+            try {
+                socket = (SSLSocket) mServer.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!mRunning || mServer.isClosed()) {
+                    return;
+                }
+                LOG.log(Level.WARNING, "Accept failed", e);
+                continue;
+            }
+            final long acceptedAt = System.currentTimeMillis();
+            socket.addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    mHandshakes.incrementAndGet();
+                    if (event.getSession().getCreationTime() < acceptedAt) {
+                        mResumed.incrementAndGet();
+                    }
+                }
+            });
+            try {
+                upstream = new Socket();
+                upstream.setTcpNoDelay(true);
+                upstream.connect(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                        mBroker.getPort()));
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Broker unreachable", e);
+                closeQuietly(socket);
+                continue;
+            }
+            synchronized (mSockets) {
+                mSockets.add(socket);
+                mSockets.add(upstream);
+            }
+            pump(socket, upstream, "tls:" + getPort() + "/" + socket.getPort() + ">");
+            pump(upstream, socket, "tls:" + getPort() + "/" + socket.getPort() + "<");
+        }
+    }
+
+    /**
+     * Copies from one socket to the other on a thread of its own, and
+     * closes both at the end of either
+     */
+    private void pump(final Socket from, final Socket to, String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, n);
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // closed by the other side, or by the other pump
+                } finally {
+                    closeQuietly(from);
+                    closeQuietly(to);
+                    synchronized (mSockets) {
+                        mSockets.remove(from);
+                        mSockets.remove(to);
+                    }
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * Time source of the engine, replaced by a manual clock when a test needs
+ * to step through back offs and windows without waiting for them.
+ */
+public interface Clock {
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * Wall clock in ms, for timestamps that outlive the process
+     */
+    long currentTimeMillis();
+
+    /**
+     * Monotonic time in ns, for durations
+     */
+    long nanoTime();
+}
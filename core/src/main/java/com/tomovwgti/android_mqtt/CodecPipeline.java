@@ -0,0 +1,194 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes outgoing payloads with the codec selected for their topic and
+ * decodes arriving ones.
+ *
+ * An encoded payload is framed as the marker byte 0xff, the codec id and
+ * the decoded length as a varint. A UTF-8 text never starts with 0xff, so
+ * plain and encoded messages can share a topic and receivers that do not
+ * decode still see plain messages unchanged. A plain payload that does
+ * start with the marker is framed with codec id 0, which stores it as is.
+ * Payloads that do not get smaller are sent plain.
+ */
+public class CodecPipeline {
+
+    static final int MARKER = 0xff;
+    // codec id of a payload stored as is
+    static final int IDENTITY = 0;
+    // longest decoded payload accepted, a small frame could claim any size
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    private static class Rule {
+        final String filter;
+        final PayloadCodec codec;
+
+        Rule(String filter, PayloadCodec codec) {
+            this.filter = filter;
+            this.codec = codec;
+        }
+    }
+
+    private final PayloadCodec[] mCodecs = new PayloadCodec[256];
+    private final TopicMatcher<Rule> mRules = new TopicMatcher<Rule>();
+    private final Map<String, Rule> mRulesByFilter = new HashMap<String, Rule>();
+    // payloads shorter than this are never encoded
+    private volatile int mMinLength;
+
+    /**
+     * @param minLength shortest payload worth encoding
+     */
+    public CodecPipeline(int minLength) {
+        mMinLength = minLength;
+    }
+
+    /**
+     * @param minLength shortest payload worth encoding from now on
+     */
+    public void setMinLength(int minLength) {
+        mMinLength = minLength;
+    }
+
+    /**
+     * Makes codec available for decoding and for setCodec(), replacing one
+     * of the same id
+     */
+    public synchronized void register(PayloadCodec codec) {
+        mCodecs[codec.getId()] = codec;
+    }
+
+    /**
+     * Encodes the payloads of topics matching filter with the codec of id.
+     * The most specific filter wins if several match.
+     *
+     * @param id registered codec id, 0 to send plain
+     */
+    public synchronized void setCodec(String filter, int id) {
+        PayloadCodec codec = null;
+        if (id != IDENTITY) {
+            codec = mCodecs[id];
+            if (codec == null) {
+                throw new IllegalArgumentException("No codec " + id);
+            }
+        }
+        clearCodec(filter);
+        Rule rule = new Rule(filter, codec);
+        mRules.add(filter, rule);
+        mRulesByFilter.put(filter, rule);
+    }
+
+    public synchronized void clearCodec(String filter) {
+        Rule rule = mRulesByFilter.remove(filter);
+        if (rule != null) {
+            mRules.remove(filter, rule);
+        }
+    }
+
+    /**
+     * @return payload as it goes on the wire, payload itself if it is sent
+     * plain
+     */
+    public byte[] encode(String topic, byte[] payload) {
+        PayloadCodec codec = payload.length >= mMinLength ? select(topic) : null;
+        if (codec != null) {
+            byte[] encoded = codec.encode(payload);
+            if (headerLength(payload.length) + encoded.length < payload.length) {
+                return frame(codec.getId(), payload.length, encoded);
+            }
+        }
+        if (payload.length > 0 && (payload[0] & 0xff) == MARKER) {
+            return frame(IDENTITY, payload.length, payload);
+        }
+        return payload;
+    }
+
+    /**
+     * @return payload as it was published, data itself if it is plain
+     * @throws IOException if the frame is damaged or its codec unknown
+     */
+    public byte[] decode(byte[] data) throws IOException {
+        if (data.length == 0 || (data[0] & 0xff) != MARKER) {
+            return data;
+        }
+        if (data.length < 3) {
+            throw new IOException("Truncated frame");
+        }
+        int id = data[1] & 0xff;
+        int length = 0;
+        int pos = 2;
+        for (int shift = 0; ; shift += 7) {
+            if (pos == data.length || shift > 28) {
+                throw new IOException("Bad frame length");
+            }
+            int b = data[pos++];
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Frame length " + length + " out of range");
+        }
+        int count = data.length - pos;
+        if (id == IDENTITY) {
+            if (count != length) {
+                throw new IOException("Expected " + length + " bytes, got " + count);
+            }
+            byte[] payload = new byte[length];
+            System.arraycopy(data, pos, payload, 0, length);
+            return payload;
+        }
+        PayloadCodec codec;
+        synchronized (this) {
+            codec = mCodecs[id];
+        }
+        if (codec == null) {
+            throw new IOException("Unknown codec " + id);
+        }
+        return codec.decode(data, pos, count, length);
+    }
+
+    private synchronized PayloadCodec select(String topic) {
+        if (mRules.isEmpty()) {
+            return null;
+        }
+        List<Rule> rules = new ArrayList<Rule>(2);
+        mRules.match(topic, rules);
+        Rule best = null;
+        for (Rule rule : rules) {
+            if (best == null || TopicMatcher.moreSpecific(rule.filter, best.filter)) {
+                best = rule;
+            }
+        }
+        return best != null ? best.codec : null;
+    }
+
+    private static int headerLength(int length) {
+        int n = 3;
+        while ((length >>>= 7) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    private static byte[] frame(int id, int length, byte[] body) {
+        byte[] frame = new byte[headerLength(length) + body.length];
+        frame[0] = (byte) MARKER;
+        frame[1] = (byte) id;
+        int pos = 2;
+        int v = length;
+        while ((v & ~0x7f) != 0) {
+            frame[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        frame[pos++] = (byte) v;
+        System.arraycopy(body, 0, frame, pos, body.length);
+        return frame;
+    }
+}
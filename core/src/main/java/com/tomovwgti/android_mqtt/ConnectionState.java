@@ -0,0 +1,14 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * State of the connection to the broker
+ */
+public enum ConnectionState {
+    // no connection and no attempt scheduled
+    DISCONNECTED,
+    // a connect is in flight, further attempts are ignored
+    CONNECTING,
+    CONNECTED,
+    // waiting for the next attempt after a failure
+    BACKING_OFF
+}
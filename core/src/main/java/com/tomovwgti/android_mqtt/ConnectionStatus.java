@@ -0,0 +1,36 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * Health of one broker connection at one moment
+ */
+public class ConnectionStatus {
+    public final String name;
+    public final String uri;
+    public final ConnectionState state;
+    // System.currentTimeMillis() of the last successful connect, 0 if never
+    public final long connectedSince;
+    public final long connects;
+    public final long failures;
+    // reason code of the last failure, 0 if none
+    public final int lastError;
+    // keep-alive interval in seconds
+    public final int keepAlive;
+
+    ConnectionStatus(String name, String uri, ConnectionState state, long connectedSince,
+                     long connects, long failures, int lastError, int keepAlive) {
+        this.name = name;
+        this.uri = uri;
+        this.state = state;
+        this.connectedSince = connectedSince;
+        this.connects = connects;
+        this.failures = failures;
+        this.lastError = lastError;
+        this.keepAlive = keepAlive;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + uri + " " + state + " connects=" + connects + " failures=" + failures
+                + " lastError=" + lastError + " keepAlive=" + keepAlive + "s";
+    }
+}
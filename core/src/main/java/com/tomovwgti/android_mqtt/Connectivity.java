@@ -0,0 +1,17 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * Network state as the platform sees it. Changes are reported to the
+ * engine through onNetworkAvailable() and onNetworkLost().
+ */
+public interface Connectivity {
+
+    Connectivity ALWAYS = new Connectivity() {
+        @Override
+        public boolean isNetworkAvailable() {
+            return true;
+        }
+    };
+
+    boolean isNetworkAvailable();
+}
@@ -0,0 +1,109 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Recorded link changes, one per line as
+ *
+ *   <ms> <type> [metered] ["name"]
+ *
+ * e.g. 1414141414141 wifi "home". Lines starting with '#' are comments.
+ * The engine appends every reported link to a trace file of its data
+ * directory, the benchmark replays such files through a TransportPolicy.
+ */
+public class ConnectivityTrace {
+
+    /**
+     * A link reported at time ms
+     */
+    public static class Event {
+        public final long time;
+        public final NetworkLink link;
+
+        public Event(long time, NetworkLink link) {
+            this.time = time;
+            this.link = link;
+        }
+    }
+
+    private final File mFile;
+    private final long mMaxLength;
+
+    /**
+     * @param file      trace appended to
+     * @param maxLength bytes at which file is moved to file.old and started anew
+     */
+    public ConnectivityTrace(File file, long maxLength) {
+        mFile = file;
+        mMaxLength = maxLength;
+    }
+
+    public synchronized void append(long time, NetworkLink link) throws IOException {
+        if (mFile.length() > mMaxLength) {
+            File old = new File(mFile.getPath() + ".old");
+            if (old.exists() && !old.delete()) {
+                throw new IOException("Could not delete " + old);
+            }
+            if (!mFile.renameTo(old)) {
+                throw new IOException("Could not move " + mFile + " to " + old);
+            }
+        }
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            out.write((time + " " + link + "\n").getBytes(MqttEngine.PAYLOAD_CHARSET));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @throws IOException on a malformed line as well
+     */
+    public static List<Event> read(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        List<Event> events = new ArrayList<Event>();
+        int number = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                events.add(parse(line));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Line " + number + ": " + e.getMessage());
+            }
+        }
+        return events;
+    }
+
+    static Event parse(String line) {
+        String name = null;
+        int quote = line.indexOf('"');
+        if (quote >= 0) {
+            int end = line.lastIndexOf('"');
+            if (end <= quote) {
+                throw new IllegalArgumentException("Unterminated name: " + line);
+            }
+            name = line.substring(quote + 1, end);
+            line = line.substring(0, quote).trim();
+        }
+        String[] fields = line.split("\\s+");
+        if (fields.length < 2 || fields.length > 3
+                || (fields.length == 3 && !fields[2].equals("metered"))) {
+            throw new IllegalArgumentException("Expected <ms> <type> [metered] [\"name\"]: " + line);
+        }
+        long time = Long.parseLong(fields[0]);
+        NetworkLink.Type type = NetworkLink.Type.valueOf(fields[1].toUpperCase(Locale.US));
+        return new Event(time, new NetworkLink(type, fields.length == 3, name));
+    }
+}
@@ -0,0 +1,96 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate, optionally primed with a shared dictionary.
+ *
+ * Short JSON messages barely compress on their own, but a dictionary of the
+ * keys and values they usually contain lets even the first bytes refer
+ * back to it. Both sides must use the same dictionary under the same id.
+ * The deflater and inflater are kept and reset between messages, creating
+ * them costs more than compressing a small payload.
+ */
+public class DeflateCodec implements PayloadCodec {
+
+    private final int mId;
+    private final byte[] mDictionary;
+    private final Deflater mDeflater;
+    private final Inflater mInflater = new Inflater(true);
+    private final byte[] mChunk = new byte[4096];
+    private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+
+    /**
+     * @param id         id in the frame header
+     * @param level      Deflater compression level
+     * @param dictionary preset dictionary, null for none
+     */
+    public DeflateCodec(int id, int level, byte[] dictionary) {
+        if (id < 1 || id > 255) {
+            throw new IllegalArgumentException("id must be 1 to 255");
+        }
+        mId = id;
+        mDictionary = dictionary;
+        mDeflater = new Deflater(level, true);
+    }
+
+    @Override
+    public int getId() {
+        return mId;
+    }
+
+    @Override
+    public synchronized byte[] encode(byte[] payload) {
+        mDeflater.reset();
+        if (mDictionary != null) {
+            mDeflater.setDictionary(mDictionary);
+        }
+        mDeflater.setInput(payload);
+        mDeflater.finish();
+        mOut.reset();
+        while (!mDeflater.finished()) {
+            int n = mDeflater.deflate(mChunk);
+            mOut.write(mChunk, 0, n);
+        }
+        return mOut.toByteArray();
+    }
+
+    @Override
+    public synchronized byte[] decode(byte[] data, int offset, int count, int length)
+            throws IOException {
+        mInflater.reset();
+        if (mDictionary != null) {
+            mInflater.setDictionary(mDictionary);
+        }
+        mInflater.setInput(data, offset, count);
+        byte[] payload = new byte[length];
+        int n = 0;
+        try {
+            while (n < length) {
+                int read = mInflater.inflate(payload, n, length - n);
+                if (read == 0 && (mInflater.finished() || mInflater.needsInput())) {
+                    break;
+                }
+                n += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate data", e);
+        }
+        if (n != length) {
+            throw new IOException("Expected " + length + " bytes, inflated " + n);
+        }
+        return payload;
+    }
+
+    /**
+     * Frees the native memory of the deflater and inflater
+     */
+    public synchronized void close() {
+        mDeflater.end();
+        mInflater.end();
+    }
+}
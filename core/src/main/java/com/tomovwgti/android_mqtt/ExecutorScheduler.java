@@ -0,0 +1,124 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler on a single daemon thread, for running the engine on a plain
+ * JVM. Wakeups are delayed tasks, nothing sleeps here.
+ */
+public class ExecutorScheduler implements Scheduler {
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    // pending runs of every task, to remove them
+    private final Map<Runnable, List<ScheduledFuture<?>>> mPending =
+            new HashMap<Runnable, List<ScheduledFuture<?>>>();
+    private final Map<Runnable, ScheduledFuture<?>> mWakeups = new HashMap<Runnable, ScheduledFuture<?>>();
+
+    /**
+     * @param name name of the thread
+     */
+    public ExecutorScheduler(final String name) {
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    @Override
+    public void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public synchronized void postDelayed(final Runnable task, long delay) {
+        final List<ScheduledFuture<?>> pending = pendingOf(task);
+        final ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+        // the task cannot finish before it is added, done() takes the same lock
+        self[0] = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                done(task, pending, self[0]);
+                task.run();
+            }
+        }, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        pending.add(self[0]);
+    }
+
+    @Override
+    public synchronized void remove(Runnable task) {
+        List<ScheduledFuture<?>> pending = mPending.remove(task);
+        if (pending == null) {
+            return;
+        }
+        for (ScheduledFuture<?> future : pending) {
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public synchronized void postWakeup(final Runnable task, long delay) {
+        removeWakeup(task);
+        mWakeups.put(task, mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ExecutorScheduler.this) {
+                    mWakeups.remove(task);
+                }
+                task.run();
+            }
+        }, Math.max(0, delay), TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public synchronized void removeWakeup(Runnable task) {
+        ScheduledFuture<?> future = mWakeups.remove(task);
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Cancels everything pending and ends the thread
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Waits up to timeout ms for the task running at shutdown() to end
+     *
+     * @return false if it still runs
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private List<ScheduledFuture<?>> pendingOf(Runnable task) {
+        List<ScheduledFuture<?>> pending = mPending.get(task);
+        if (pending == null) {
+            pending = new ArrayList<ScheduledFuture<?>>(1);
+            mPending.put(task, pending);
+        }
+        return pending;
+    }
+
+    private synchronized void done(Runnable task, List<ScheduledFuture<?>> pending,
+                                   ScheduledFuture<?> future) {
+        pending.remove(future);
+        if (pending.isEmpty() && mPending.get(task) == pending) {
+            mPending.remove(task);
+        }
+    }
+}
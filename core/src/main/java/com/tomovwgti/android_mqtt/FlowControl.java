@@ -0,0 +1,164 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Outbound flow control of the publish queue.
+ *
+ * The in-flight window caps the publishes sent but not yet acknowledged,
+ * part of it is reserved for control messages so they never wait behind a
+ * window full of telemetry. The pending count is what waits in the queue.
+ * It turns congested when the count reaches the high watermark, and clear
+ * again only once it fell to the low watermark, so producers are not
+ * toggled on every message.
+ */
+public class FlowControl {
+
+    /**
+     * What a producer wants to happen while the queue is congested
+     */
+    public enum Mode {
+        // wait until the queue is clear again, never on the main thread
+        BLOCK,
+        // reject the message at once
+        FAIL,
+        // accept it as long as there is room, see backpressureCallback
+        CALLBACK
+    }
+
+    public interface backpressureCallback {
+        /**
+         * Called on the thread that crossed a watermark
+         *
+         * @param congested true at the high watermark, false back at the low one
+         */
+        void onBackpressure(boolean congested);
+    }
+
+    private final int mHighWatermark;
+    private final int mLowWatermark;
+    private final int mControlReserve;
+    private int mWindow;
+    private int mInFlight = 0;
+    private int mPending = 0;
+    private boolean mCongested = false;
+    private final List<backpressureCallback> mCallbacks =
+            new CopyOnWriteArrayList<backpressureCallback>();
+
+    /**
+     * @param window         publishes in flight at most
+     * @param controlReserve part of the window only control messages use
+     * @param highWatermark  pending publishes at which the queue is congested
+     * @param lowWatermark   pending publishes at which it is clear again
+     */
+    public FlowControl(int window, int controlReserve, int highWatermark, int lowWatermark) {
+        if (lowWatermark >= highWatermark) {
+            throw new IllegalArgumentException("low watermark must be below the high one");
+        }
+        mWindow = window;
+        mControlReserve = controlReserve;
+        mHighWatermark = highWatermark;
+        mLowWatermark = lowWatermark;
+    }
+
+    public synchronized void setWindow(int window) {
+        mWindow = window;
+    }
+
+    public synchronized int getWindow() {
+        return mWindow;
+    }
+
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    public synchronized boolean isCongested() {
+        return mCongested;
+    }
+
+    public void addCallback(backpressureCallback callback) {
+        mCallbacks.add(callback);
+    }
+
+    public void removeCallback(backpressureCallback callback) {
+        mCallbacks.remove(callback);
+    }
+
+    /**
+     * Decides whether a producer may queue a message
+     *
+     * @param timeout ms to wait at most in BLOCK mode
+     * @return false if the message must be rejected
+     */
+    public synchronized boolean admit(Mode mode, long timeout) throws InterruptedException {
+        if (!mCongested || mode == Mode.CALLBACK) {
+            return true;
+        }
+        if (mode == Mode.FAIL) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        while (mCongested) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            wait(left);
+        }
+        return true;
+    }
+
+    /**
+     * A message was added to the queue
+     */
+    public void onQueued() {
+        synchronized (this) {
+            mPending++;
+            if (mCongested || mPending < mHighWatermark) {
+                return;
+            }
+            mCongested = true;
+        }
+        notifyCallbacks(true);
+    }
+
+    /**
+     * count messages left the queue, to be sent or parked offline
+     */
+    public void onDequeued(int count) {
+        synchronized (this) {
+            mPending = Math.max(0, mPending - count);
+            if (!mCongested || mPending > mLowWatermark) {
+                return;
+            }
+            mCongested = false;
+            notifyAll();
+        }
+        notifyCallbacks(false);
+    }
+
+    /**
+     * Takes up to wanted slots of the in-flight window
+     *
+     * @param control may the reserved slots be used?
+     * @return slots taken, to be released one by one as publishes complete
+     */
+    public synchronized int acquire(int wanted, boolean control) {
+        int limit = control ? mWindow : mWindow - mControlReserve;
+        int granted = Math.max(0, Math.min(wanted, limit - mInFlight));
+        mInFlight += granted;
+        return granted;
+    }
+
+    public synchronized void release(int count) {
+        mInFlight = Math.max(0, mInFlight - count);
+    }
+
+    private void notifyCallbacks(boolean congested) {
+        for (backpressureCallback callback : mCallbacks) {
+            callback.onBackpressure(congested);
+        }
+    }
+}
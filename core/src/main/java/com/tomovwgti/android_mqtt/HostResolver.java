@@ -0,0 +1,174 @@
+package com.tomovwgti.android_mqtt;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches the addresses of the broker hosts, so a reconnect does not wait
+ * for a lookup.
+ *
+ * An answer is kept for a fixed time to live, the platform does not tell
+ * the one of the record. A lookup that fails serves the expired answer for
+ * a while longer, as a flaky link loses DNS queries more often than the
+ * broker moves. The connect moves the address that answered first to the
+ * front, so the next connect tries it first.
+ */
+public class HostResolver {
+
+    /**
+     * Looks a host up, e.g. through the resolver of the platform
+     */
+    public interface Lookup {
+        /**
+         * @return at least one address
+         */
+        InetAddress[] lookup(String host) throws UnknownHostException;
+    }
+
+    public static final Lookup SYSTEM = new Lookup() {
+        @Override
+        public InetAddress[] lookup(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    private static class Entry {
+        final InetAddress[] addresses;
+        // Clock.nanoTime() / 1000000 the answer was looked up at
+        final long time;
+
+        Entry(InetAddress[] addresses, long time) {
+            this.addresses = addresses;
+            this.time = time;
+        }
+    }
+
+    private final Clock mClock;
+    private final Map<String, Entry> mCache = new HashMap<String, Entry>();
+    private Lookup mLookup;
+    // ms an answer is used for, 0 to look up every time
+    private long mTtl;
+    // ms an expired answer is used for if the lookup fails
+    private long mMaxStale;
+
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mStaleHits = 0;
+
+    /**
+     * @param ttl      ms an answer is used for, 0 to look up every time
+     * @param maxStale ms after the ttl an answer is used for if the lookup fails
+     */
+    public HostResolver(Clock clock, Lookup lookup, long ttl, long maxStale) {
+        mClock = clock;
+        mLookup = lookup;
+        mTtl = ttl;
+        mMaxStale = maxStale;
+    }
+
+    /**
+     * Looks up with lookup from now on, and drops the answers of the old one
+     */
+    public synchronized void setLookup(Lookup lookup, long ttl, long maxStale) {
+        mLookup = lookup;
+        mTtl = ttl;
+        mMaxStale = maxStale;
+        mCache.clear();
+    }
+
+    /**
+     * @return the addresses of host, the preferred one first
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = mClock.nanoTime() / 1000000;
+        Entry entry;
+        Lookup lookup;
+        synchronized (this) {
+            entry = mCache.get(host);
+            if (entry != null && now - entry.time < mTtl) {
+                mHits++;
+                return entry.addresses.clone();
+            }
+            mMisses++;
+            lookup = mLookup;
+        }
+        InetAddress[] addresses;
+        try {
+            addresses = lookup.lookup(host);
+        } catch (UnknownHostException e) {
+            synchronized (this) {
+                if (entry != null && now - entry.time < mTtl + mMaxStale) {
+                    mStaleHits++;
+                    return entry.addresses.clone();
+                }
+            }
+            throw e;
+        }
+        synchronized (this) {
+            if (mTtl > 0 && lookup == mLookup) {
+                mCache.put(host, new Entry(addresses.clone(), now));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Moves address to the front of the cached answer for host
+     */
+    public synchronized void prefer(String host, InetAddress address) {
+        Entry entry = mCache.get(host);
+        if (entry == null || entry.addresses[0].equals(address)) {
+            return;
+        }
+        InetAddress[] addresses = new InetAddress[entry.addresses.length];
+        addresses[0] = address;
+        int i = 1;
+        for (InetAddress other : entry.addresses) {
+            if (!other.equals(address)) {
+                if (i == addresses.length) {
+                    // not part of the answer
+                    return;
+                }
+                addresses[i++] = other;
+            }
+        }
+        mCache.put(host, new Entry(addresses, entry.time));
+    }
+
+    /**
+     * Makes the answer for host due for a new lookup, e.g. after none of its
+     * addresses answered. It is still served if that lookup fails.
+     */
+    public synchronized void expire(String host) {
+        Entry entry = mCache.get(host);
+        long expired = mClock.nanoTime() / 1000000 - mTtl;
+        if (entry != null && entry.time > expired) {
+            mCache.put(host, new Entry(entry.addresses, expired));
+        }
+    }
+
+    /**
+     * Forgets every answer, e.g. on another network whose DNS may answer
+     * differently
+     */
+    public synchronized void clear() {
+        mCache.clear();
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    /**
+     * Expired answers used because the lookup failed
+     */
+    public synchronized long getStaleHits() {
+        return mStaleHits;
+    }
+}
@@ -0,0 +1,276 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Drops redelivered QoS 1 messages and optionally puts per-topic sequences
+ * back in order before they are passed on.
+ *
+ * Every QoS 1 message leaves a 64 bit fingerprint in a LongWindowSet. The
+ * fingerprint is the topic and the sequence number if a SequenceKey is
+ * set and finds one, otherwise the topic and the payload. A message with a
+ * sequence number is dropped whenever its fingerprint was seen. Without
+ * one, only a message with the DUP flag is dropped, so repeated payloads
+ * sent on purpose pass.
+ *
+ * Reordering holds messages that arrive ahead of the next expected
+ * sequence number, up to a number of messages or a time, after which the
+ * gap is skipped.
+ *
+ * A publisher that restarts its sequence would otherwise have its new
+ * messages dropped as duplicates of the old ones. A sequence number far
+ * behind the highest one seen, or back at 0, without the DUP flag starts a
+ * new epoch of the topic, which is part of the fingerprint.
+ *
+ * The sink is called outside the lock of the filter, one message at a
+ * time and in order.
+ */
+public class InboundFilter {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // sequence numbers this far behind the highest one mean a restart
+    private static final long RESTART_GAP = 1024;
+
+    interface SequenceKey {
+        /**
+         * @return sequence number of the message, -1 if it has none
+         */
+        long sequence(String topic, byte[] payload);
+    }
+
+    interface Sink {
+        void deliver(String topic, byte[] payload, int qos, boolean retained);
+    }
+
+    private static class Held {
+        final String topic;
+        final byte[] payload;
+        final int qos;
+        final boolean retained;
+        final long time;
+
+        Held(String topic, byte[] payload, int qos, boolean retained, long time) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.time = time;
+        }
+    }
+
+    private static class Sequence {
+        // next sequence number to pass on, -1 until the first message
+        long next = -1;
+        // highest sequence number seen in this epoch, -1 until the first
+        long highest = -1;
+        long epoch = 0;
+        final TreeMap<Long, Held> held = new TreeMap<Long, Held>();
+    }
+
+    private final LongWindowSet mSeen;
+    private final Sink mSink;
+    // held while passing messages on, so they reach the sink in order
+    private final Object mDeliverLock = new Object();
+    private SequenceKey mSequenceKey;
+    // 0 disables reordering
+    private int mReorderMessages = 0;
+    private long mReorderTime = 0;
+    // per topic with sequence numbers
+    private final Map<String, Sequence> mSequences = new HashMap<String, Sequence>();
+
+    /**
+     * @param capacity fingerprints remembered
+     * @param window   ms a fingerprint is remembered
+     * @param sink     receives the messages passed on
+     */
+    public InboundFilter(int capacity, long window, Sink sink) {
+        mSeen = new LongWindowSet(capacity, window);
+        mSink = sink;
+    }
+
+    public synchronized void setSequenceKey(SequenceKey sequenceKey) {
+        mSequenceKey = sequenceKey;
+    }
+
+    /**
+     * Holds out of order messages of a topic until the gap is filled, at
+     * most messages of them for at most time ms. 0 messages disables it.
+     */
+    public void setReorderWindow(int messages, long time) {
+        List<Held> out = new ArrayList<Held>();
+        synchronized (mDeliverLock) {
+            synchronized (this) {
+                mReorderMessages = messages;
+                mReorderTime = time;
+                if (messages == 0) {
+                    for (Sequence s : mSequences.values()) {
+                        while (!s.held.isEmpty()) {
+                            skipGap(s, out);
+                        }
+                        s.next = -1;
+                    }
+                }
+            }
+            deliver(out);
+        }
+    }
+
+    public synchronized boolean isReordering() {
+        return mReorderMessages > 0;
+    }
+
+    /**
+     * @param now current time in ms
+     * @return false if the message was dropped as a duplicate
+     */
+    public boolean onMessage(String topic, byte[] payload, int qos, boolean retained,
+                             boolean duplicate, long now) {
+        List<Held> out = new ArrayList<Held>(1);
+        synchronized (mDeliverLock) {
+            boolean fresh;
+            synchronized (this) {
+                fresh = filter(topic, payload, qos, retained, duplicate, now, out);
+            }
+            deliver(out);
+            return fresh;
+        }
+    }
+
+    private boolean filter(String topic, byte[] payload, int qos, boolean retained, boolean duplicate,
+                           long now, List<Held> out) {
+        long sequence = mSequenceKey != null ? mSequenceKey.sequence(topic, payload) : -1;
+        Sequence s = null;
+        if (sequence >= 0) {
+            s = mSequences.get(topic);
+            if (s == null) {
+                s = new Sequence();
+                mSequences.put(topic, s);
+            }
+            if (!duplicate && sequence < s.highest
+                    && (sequence == 0 || s.highest - sequence > RESTART_GAP)) {
+                restart(s, out);
+            }
+        }
+        if (qos == MqttEngine.MQTT_QOS_1) {
+            long fingerprint = s != null ? mix(mix(hash(topic), s.epoch), sequence)
+                    : hash(topic, payload);
+            boolean fresh = mSeen.add(fingerprint, now);
+            if (!fresh && (s != null || duplicate)) {
+                return false;
+            }
+        }
+        if (s != null) {
+            s.highest = Math.max(s.highest, sequence);
+        }
+
+        Held message = new Held(topic, payload, qos, retained, now);
+        if (mReorderMessages == 0 || s == null || retained) {
+            out.add(message);
+            return true;
+        }
+        if (s.next < 0 || sequence == s.next) {
+            out.add(message);
+            s.next = sequence + 1;
+            release(s, out);
+        } else if (sequence < s.next) {
+            // late after its gap was skipped, still better than lost
+            out.add(message);
+        } else {
+            s.held.put(sequence, message);
+            if (s.held.size() > mReorderMessages) {
+                skipGap(s, out);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skips the gaps of messages held longer than the reorder time
+     */
+    public void flush(long now) {
+        List<Held> out = new ArrayList<Held>();
+        synchronized (mDeliverLock) {
+            synchronized (this) {
+                for (Sequence s : mSequences.values()) {
+                    while (!s.held.isEmpty() && now - oldest(s) >= mReorderTime) {
+                        skipGap(s, out);
+                    }
+                }
+            }
+            deliver(out);
+        }
+    }
+
+    /**
+     * The publisher started its sequence over: what it held goes out in
+     * order and the new messages get fingerprints of their own
+     */
+    private void restart(Sequence s, List<Held> out) {
+        while (!s.held.isEmpty()) {
+            skipGap(s, out);
+        }
+        s.next = -1;
+        s.highest = -1;
+        s.epoch++;
+    }
+
+    private void skipGap(Sequence s, List<Held> out) {
+        s.next = s.held.firstKey();
+        release(s, out);
+    }
+
+    private void release(Sequence s, List<Held> out) {
+        Iterator<Map.Entry<Long, Held>> it = s.held.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Held> e = it.next();
+            if (e.getKey() != s.next) {
+                break;
+            }
+            out.add(e.getValue());
+            it.remove();
+            s.next++;
+        }
+    }
+
+    private void deliver(List<Held> out) {
+        for (Held held : out) {
+            mSink.deliver(held.topic, held.payload, held.qos, held.retained);
+        }
+    }
+
+    private static long oldest(Sequence s) {
+        long oldest = Long.MAX_VALUE;
+        for (Held held : s.held.values()) {
+            oldest = Math.min(oldest, held.time);
+        }
+        return oldest;
+    }
+
+    private static long hash(String topic) {
+        long h = FNV_OFFSET;
+        for (int i = 0; i < topic.length(); i++) {
+            h = (h ^ topic.charAt(i)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long hash(String topic, byte[] payload) {
+        long h = hash(topic);
+        h = (h ^ 0xff) * FNV_PRIME;
+        for (byte b : payload) {
+            h = (h ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    private static long mix(long h, long sequence) {
+        h ^= sequence * 0x9E3779B97F4A7C15L;
+        return (h ^ (h >>> 31)) * FNV_PRIME;
+    }
+}
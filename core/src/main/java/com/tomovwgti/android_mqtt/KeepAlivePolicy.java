@@ -0,0 +1,183 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * Learns the longest keep-alive interval the network path tolerates.
+ *
+ * CONNECT carries the longest interval, so the broker keeps the connection
+ * whatever the search tries, and the client pings at the learned one. After
+ * SUCCESSES_TO_GROW answered pings the interval grows by GROW_FACTOR and
+ * takes effect on the next ping. A connection lost while the network is up
+ * is taken as an idle timeout somewhere on the path: the interval becomes
+ * the ceiling and the search falls back to the last interval that worked,
+ * then closes in on the ceiling by halving the gap. After CEILING_RESET
+ * answered pings at a stable interval the ceiling is lifted to probe again.
+ *
+ * Also counts wakeups and pings. Radio-on time is estimated from the pings
+ * sent, assuming every ping keeps the radio up for RADIO_TAIL ms.
+ */
+public class KeepAlivePolicy {
+
+    private static final int SUCCESSES_TO_GROW = 3;
+    private static final float GROW_FACTOR = 1.5f;
+    // Stop closing in on the ceiling once the gap is this small, in seconds
+    private static final int MIN_STEP = 30;
+    private static final int CEILING_RESET = 50;
+    // ms the radio stays up after a ping, a typical cellular tail
+    private static final long RADIO_TAIL = 1000 * 10;
+
+    private final int mMin;
+    private final int mMax;
+
+    // seconds
+    private int mInterval;
+    private int mCeiling;
+    private int mLastGood;
+    // pings answered at mInterval
+    private int mSuccesses = 0;
+
+    private long mWakeups = 0;
+    private long mPings = 0;
+    private long mSkipped = 0;
+    private long mFailures = 0;
+
+    /**
+     * @param min     shortest interval in seconds
+     * @param max     longest interval in seconds
+     * @param initial interval to start from in seconds
+     */
+    public KeepAlivePolicy(int min, int max, int initial) {
+        mMin = min;
+        mMax = max;
+        mCeiling = max;
+        mInterval = clamp(initial);
+        mLastGood = mMin;
+    }
+
+    /**
+     * Restores learned values saved from a previous run, or of another
+     * network
+     */
+    public synchronized void restore(int interval, int ceiling, int lastGood, int successes) {
+        mInterval = clamp(interval);
+        mCeiling = Math.max(mMin, Math.min(ceiling, mMax));
+        mLastGood = clamp(lastGood);
+        mSuccesses = Math.max(0, successes);
+    }
+
+    /**
+     * Interval to send in CONNECT, the longest the search may reach
+     *
+     * @return keep-alive interval in seconds
+     */
+    public int getConnectInterval() {
+        return mMax;
+    }
+
+    /**
+     * An alarm fired
+     *
+     * @param pingSent false if recent traffic made the ping unnecessary
+     */
+    public synchronized void onWakeup(boolean pingSent) {
+        mWakeups++;
+        if (pingSent) {
+            mPings++;
+        } else {
+            mSkipped++;
+        }
+    }
+
+    /**
+     * A PINGREQ sent at the current interval was answered
+     *
+     * @return true if the interval changed, the next ping is due after the
+     * new one
+     */
+    public synchronized boolean onPingSuccess() {
+        mSuccesses++;
+        mLastGood = Math.max(mLastGood, mInterval);
+        if (mSuccesses >= SUCCESSES_TO_GROW && mInterval < mCeiling) {
+            int next = (int) (mInterval * GROW_FACTOR);
+            if (mCeiling < mMax) {
+                // a failure was seen, halve the gap instead
+                next = Math.min(next, mInterval + (mCeiling - mInterval) / 2);
+            }
+            if (next - mInterval >= MIN_STEP) {
+                mInterval = Math.min(next, mCeiling);
+                mSuccesses = 0;
+                return true;
+            }
+        }
+        if (mSuccesses >= CEILING_RESET && mCeiling < mMax) {
+            mCeiling = mMax;
+            mSuccesses = 0;
+        }
+        return false;
+    }
+
+    /**
+     * The connection broke while the network was available
+     */
+    public synchronized void onConnectionLost() {
+        mFailures++;
+        if (mInterval > mLastGood) {
+            mCeiling = mInterval;
+            mInterval = mLastGood;
+        } else {
+            // even the last good interval failed, start lower
+            mCeiling = mInterval;
+            mInterval = clamp(mInterval / 2);
+            mLastGood = mInterval;
+        }
+        mSuccesses = 0;
+    }
+
+    public synchronized int getInterval() {
+        return mInterval;
+    }
+
+    public synchronized int getCeiling() {
+        return mCeiling;
+    }
+
+    public synchronized int getLastGood() {
+        return mLastGood;
+    }
+
+    /**
+     * Pings answered at the current interval
+     */
+    public synchronized int getSuccesses() {
+        return mSuccesses;
+    }
+
+    public synchronized long getWakeups() {
+        return mWakeups;
+    }
+
+    public synchronized long getPings() {
+        return mPings;
+    }
+
+    /**
+     * Wakeups that found recent traffic and sent no ping
+     */
+    public synchronized long getSkipped() {
+        return mSkipped;
+    }
+
+    public synchronized long getFailures() {
+        return mFailures;
+    }
+
+    /**
+     * Estimated ms the radio was kept up by pings
+     */
+    public synchronized long getRadioOnMillis() {
+        return mPings * RADIO_TAIL;
+    }
+
+    private int clamp(int interval) {
+        return Math.max(mMin, Math.min(interval, mMax));
+    }
+}
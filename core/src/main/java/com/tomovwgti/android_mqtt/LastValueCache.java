@@ -0,0 +1,274 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Latest message per topic, so a screen can show the current state without
+ * waiting for the next publish.
+ *
+ * Bounded by the number of topics and the payload bytes held, the least
+ * recently used topics go first. An empty retained message clears its
+ * topic, as it does at the broker. The cache can be written to and read
+ * back from a memory-mapped snapshot file to survive the process.
+ */
+public class LastValueCache {
+
+    private static final Charset TOPIC_CHARSET = Charset.forName("UTF-8");
+    private static final int SNAPSHOT_MAGIC = 0x4c564331;
+
+    /**
+     * One cached message
+     */
+    public static class Value {
+        final String topic;
+        final byte[] payload;
+        final int qos;
+        final boolean retained;
+        // System.currentTimeMillis() it arrived
+        final long time;
+
+        Value(String topic, byte[] payload, int qos, boolean retained, long time) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.time = time;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        /**
+         * Read-only view of the payload
+         */
+        public ByteBuffer getPayload() {
+            return ByteBuffer.wrap(payload).asReadOnlyBuffer();
+        }
+
+        public int getQos() {
+            return qos;
+        }
+
+        public boolean isRetained() {
+            return retained;
+        }
+
+        public long getTime() {
+            return time;
+        }
+    }
+
+    private final int mMaxTopics;
+    private final long mMaxBytes;
+    // access ordered, least recently used first
+    private final LinkedHashMap<String, Value> mValues =
+            new LinkedHashMap<String, Value>(16, 0.75f, true);
+    private long mBytes = 0;
+    // changes made, and how many of them the last snapshot holds
+    private long mChanges = 0;
+    private long mSaved = 0;
+
+    /**
+     * @param maxTopics most topics kept
+     * @param maxBytes  most payload bytes kept
+     */
+    public LastValueCache(int maxTopics, long maxBytes) {
+        mMaxTopics = maxTopics;
+        mMaxBytes = maxBytes;
+    }
+
+    public synchronized void put(String topic, byte[] payload, int qos, boolean retained, long time) {
+        store(topic, payload, qos, retained, time);
+        mChanges++;
+    }
+
+    private void store(String topic, byte[] payload, int qos, boolean retained, long time) {
+        Value old;
+        if (retained && payload.length == 0) {
+            old = mValues.remove(topic);
+        } else {
+            old = mValues.put(topic, new Value(topic, payload, qos, retained, time));
+            mBytes += payload.length;
+        }
+        if (old != null) {
+            mBytes -= old.payload.length;
+        }
+        evict();
+    }
+
+    /**
+     * @return the latest message of topic, null if none is cached
+     */
+    public synchronized Value get(String topic) {
+        return mValues.get(topic);
+    }
+
+    /**
+     * Latest messages of every cached topic matching filter, most recently
+     * used last
+     *
+     * @param filter topic filter, may contain '+' and '#'
+     */
+    public synchronized List<Value> query(String filter) {
+        List<Value> values = new ArrayList<Value>();
+        if (!TopicMatcher.isWildcard(filter)) {
+            Value value = mValues.get(filter);
+            if (value != null) {
+                values.add(value);
+            }
+            return values;
+        }
+        String[] levels = TopicMatcher.split(filter);
+        // iterating does not change the access order
+        for (Value value : mValues.values()) {
+            if (SubscriptionRegistry.covers(levels, TopicMatcher.split(value.topic))) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+
+    public synchronized int size() {
+        return mValues.size();
+    }
+
+    public synchronized void clear() {
+        mValues.clear();
+        mBytes = 0;
+        mChanges++;
+    }
+
+    /**
+     * Writes every value to file through a memory mapping, replacing the
+     * last snapshot only once the new one is complete. Does nothing if the
+     * cache did not change since the last snapshot was written.
+     */
+    public void saveSnapshot(File file) throws IOException {
+        List<Value> values;
+        long changes;
+        synchronized (this) {
+            if (mChanges == mSaved) {
+                return;
+            }
+            values = new ArrayList<Value>(mValues.values());
+            changes = mChanges;
+        }
+        List<byte[]> topics = new ArrayList<byte[]>(values.size());
+        long size = 4 + 4;
+        for (Value value : values) {
+            byte[] topic = value.topic.getBytes(TOPIC_CHARSET);
+            topics.add(topic);
+            size += 4 + topic.length + 1 + 1 + 8 + 4 + value.payload.length;
+        }
+        size += 8;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            raf.setLength(size);
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            map.putInt(SNAPSHOT_MAGIC);
+            map.putInt(values.size());
+            for (int i = 0; i < values.size(); i++) {
+                Value value = values.get(i);
+                map.putInt(topics.get(i).length);
+                map.put(topics.get(i));
+                map.put((byte) value.qos);
+                map.put((byte) (value.retained ? 1 : 0));
+                map.putLong(value.time);
+                map.putInt(value.payload.length);
+                map.put(value.payload);
+            }
+            ByteBuffer body = map.duplicate();
+            body.flip();
+            map.putLong(crc(body));
+            map.force();
+        } finally {
+            raf.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        synchronized (this) {
+            // changes made while writing still need a snapshot
+            mSaved = Math.max(mSaved, changes);
+        }
+    }
+
+    /**
+     * Adds the values of a snapshot, keeping newer cached ones. Loading
+     * does not count as a change, the file holds what it added.
+     *
+     * @return false if there is no snapshot or it is damaged
+     */
+    public boolean loadSnapshot(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long size = raf.length();
+            if (size < 4 + 4 + 8) {
+                return false;
+            }
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer body = map.duplicate();
+            body.limit((int) size - 8);
+            if (map.getInt() != SNAPSHOT_MAGIC || map.getLong((int) size - 8) != crc(body)) {
+                return false;
+            }
+            int count = map.getInt();
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    byte[] topic = new byte[map.getInt()];
+                    map.get(topic);
+                    int qos = map.get();
+                    boolean retained = map.get() != 0;
+                    long time = map.getLong();
+                    byte[] payload = new byte[map.getInt()];
+                    map.get(payload);
+                    String t = new String(topic, TOPIC_CHARSET);
+                    Value cached = mValues.get(t);
+                    if (cached == null || cached.time < time) {
+                        store(t, payload, qos, retained, time);
+                    }
+                }
+            }
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static long crc(ByteBuffer buffer) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        while (buffer.hasRemaining()) {
+            int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Value>> it = mValues.entrySet().iterator();
+        while ((mValues.size() > mMaxTopics || mBytes > mMaxBytes) && it.hasNext()) {
+            mBytes -= it.next().getValue().payload.length;
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * Set of long keys that forgets a key after a time window, or once it is
+ * the oldest of more than capacity keys.
+ *
+ * Open addressing with linear probing over plain long arrays, so adding
+ * and looking up never box or allocate. The keys are also kept in
+ * insertion order in a ring, which is how the oldest ones are found.
+ * Not thread safe.
+ */
+public class LongWindowSet {
+
+    // marks a free slot, the key 0 is stored in mHasZero instead
+    private static final long FREE = 0;
+
+    private final int mCapacity;
+    private final long mWindow;
+    private final long[] mTable;
+    private final int mMask;
+    private boolean mHasZero = false;
+
+    // keys and their time in insertion order
+    private final long[] mRingKeys;
+    private final long[] mRingTimes;
+    private int mRingHead = 0;
+    private int mSize = 0;
+
+    /**
+     * @param capacity most keys remembered
+     * @param window   ms a key is remembered
+     */
+    public LongWindowSet(int capacity, long window) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mCapacity = capacity;
+        mWindow = window;
+        // at most half full
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        mTable = new long[tableSize];
+        mMask = tableSize - 1;
+        mRingKeys = new long[capacity];
+        mRingTimes = new long[capacity];
+    }
+
+    /**
+     * Adds key unless it is remembered already
+     *
+     * @param now current time in ms
+     * @return false if key was seen within the window
+     */
+    public boolean add(long key, long now) {
+        expire(now);
+        if (contains(key)) {
+            return false;
+        }
+        if (mSize == mCapacity) {
+            removeOldest();
+        }
+        insert(key);
+        int tail = (mRingHead + mSize) % mCapacity;
+        mRingKeys[tail] = key;
+        mRingTimes[tail] = now;
+        mSize++;
+        return true;
+    }
+
+    public boolean contains(long key) {
+        if (key == FREE) {
+            return mHasZero;
+        }
+        for (int i = slot(key); mTable[i] != FREE; i = (i + 1) & mMask) {
+            if (mTable[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Forgets the keys older than the window
+     */
+    public void expire(long now) {
+        while (mSize > 0 && now - mRingTimes[mRingHead] > mWindow) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        delete(mRingKeys[mRingHead]);
+        mRingHead = (mRingHead + 1) % mCapacity;
+        mSize--;
+    }
+
+    private void insert(long key) {
+        if (key == FREE) {
+            mHasZero = true;
+            return;
+        }
+        int i = slot(key);
+        while (mTable[i] != FREE) {
+            i = (i + 1) & mMask;
+        }
+        mTable[i] = key;
+    }
+
+    /**
+     * Removes key and shifts back the keys probed past it, so lookups
+     * still find them without tombstones
+     */
+    private void delete(long key) {
+        if (key == FREE) {
+            mHasZero = false;
+            return;
+        }
+        int i = slot(key);
+        while (mTable[i] != key) {
+            if (mTable[i] == FREE) {
+                return;
+            }
+            i = (i + 1) & mMask;
+        }
+        int free = i;
+        for (int j = (free + 1) & mMask; mTable[j] != FREE; j = (j + 1) & mMask) {
+            int home = slot(mTable[j]);
+            // move the key back unless its home lies cyclically in (free, j]
+            boolean stays = free <= j ? (free < home && home <= j) : (free < home || home <= j);
+            if (!stays) {
+                mTable[free] = mTable[j];
+                free = j;
+            }
+        }
+        mTable[free] = FREE;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mMask;
+    }
+}
@@ -0,0 +1,55 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settings kept in memory only, for tests and benchmarks on a plain JVM
+ */
+public class MemorySettingsStore implements SettingsStore {
+
+    private final Map<String, Object> mValues = new HashMap<String, Object>();
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<String, Object>(mValues);
+    }
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        Object value = mValues.get(key);
+        return value instanceof Integer ? (Integer) value : defValue;
+    }
+
+    @Override
+    public synchronized String getString(String key, String defValue) {
+        Object value = mValues.get(key);
+        return value instanceof String ? (String) value : defValue;
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        Object value = mValues.get(key);
+        return value instanceof Boolean ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public synchronized void putInt(String key, int value) {
+        mValues.put(key, value);
+    }
+
+    @Override
+    public synchronized void putString(String key, String value) {
+        mValues.put(key, value);
+    }
+
+    @Override
+    public synchronized void putBoolean(String key, boolean value) {
+        mValues.put(key, value);
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        mValues.remove(key);
+    }
+}
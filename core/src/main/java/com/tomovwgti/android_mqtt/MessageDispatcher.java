@@ -0,0 +1,85 @@
+package com.tomovwgti.android_mqtt;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routes arriving messages to the listeners registered for matching topic
+ * filters.
+ *
+ * Listeners run on the dispatch executor, never on the Paho callback
+ * thread. The default executor is a single thread, which keeps the arrival
+ * order for every listener.
+ */
+public class MessageDispatcher {
+    private static final Logger LOG = Logger.getLogger(MessageDispatcher.class.getSimpleName());
+
+    private final TopicMatcher<MqttEngine.messageCallback> mMatcher =
+            new TopicMatcher<MqttEngine.messageCallback>();
+    private Executor mExecutor;
+
+    public MessageDispatcher() {
+        this(Executors.newSingleThreadExecutor());
+    }
+
+    public MessageDispatcher(Executor executor) {
+        mExecutor = executor;
+    }
+
+    public synchronized void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Registers callback for every message matching filter
+     *
+     * @param filter topic filter, may contain '+' and '#'
+     * @param callback
+     */
+    public synchronized void addListener(String filter, MqttEngine.messageCallback callback) {
+        mMatcher.add(filter, callback);
+    }
+
+    public synchronized boolean removeListener(String filter, MqttEngine.messageCallback callback) {
+        return mMatcher.remove(filter, callback);
+    }
+
+    /**
+     * Hands the message to every matching listener
+     *
+     * @return number of listeners the message was dispatched to
+     */
+    public int dispatch(final String topic, byte[] payload, final int qos, final boolean retained) {
+        List<MqttEngine.messageCallback> targets = new ArrayList<MqttEngine.messageCallback>();
+        Executor executor;
+        synchronized (this) {
+            if (mMatcher.isEmpty()) {
+                return 0;
+            }
+            mMatcher.match(topic, targets);
+            executor = mExecutor;
+        }
+
+        final ByteBuffer view = ByteBuffer.wrap(payload).asReadOnlyBuffer();
+        for (final MqttEngine.messageCallback callback : targets) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        // each listener gets its own position and limit
+                        callback.onMessage(topic, view.duplicate(), qos, retained);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOG.log(Level.WARNING, "Dispatch rejected for " + topic, e);
+            }
+        }
+        return targets.size();
+    }
+}
@@ -0,0 +1,159 @@
+package com.tomovwgti.android_mqtt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ring buffer of received messages in one direct ByteBuffer.
+ *
+ * Lets a high-rate consumer take messages in batches from shared memory
+ * instead of a callback per message. The producer side is registered as a
+ * message listener, the consumer drains from its own thread. Records are
+ * written in place, no objects are allocated per message except the topic
+ * string on the consumer side. A message that does not fit is dropped and
+ * counted.
+ *
+ * Record layout: int length, int topic length, byte qos, byte retained,
+ * topic bytes, payload bytes. A record never wraps, the rest of the buffer
+ * is skipped instead.
+ */
+public class MessageRing implements MqttEngine.messageCallback {
+
+    private static final Charset TOPIC_CHARSET = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 1;
+    // length marking the rest of the buffer as unused
+    private static final int PADDING = -1;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+    // bytes written and read since creation, the positions are these modulo capacity
+    private volatile long mTail = 0;
+    private volatile long mHead = 0;
+    private final AtomicLong mDropped = new AtomicLong();
+    // called when a message is added to an empty ring
+    private volatile Runnable mOnAvailable;
+
+    public MessageRing(int capacity) {
+        if (capacity < HEADER_SIZE) {
+            throw new IllegalArgumentException("capacity too small");
+        }
+        mCapacity = capacity;
+        mBuffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * @param onAvailable run on the producer thread when the ring stops being
+     *                    empty, may be null
+     */
+    public void setOnAvailable(Runnable onAvailable) {
+        mOnAvailable = onAvailable;
+    }
+
+    @Override
+    public void onMessage(String topic, ByteBuffer payload, int qos, boolean retained) {
+        offer(topic, payload, qos, retained);
+    }
+
+    /**
+     * Copies a message into the ring
+     *
+     * @return false if it did not fit and was dropped
+     */
+    public synchronized boolean offer(String topic, ByteBuffer payload, int qos, boolean retained) {
+        byte[] topicBytes = topic.getBytes(TOPIC_CHARSET);
+        int length = HEADER_SIZE + topicBytes.length + payload.remaining();
+        long tail = mTail;
+        int pos = (int) (tail % mCapacity);
+        int toEnd = mCapacity - pos;
+        int padding = toEnd < length ? toEnd : 0;
+        boolean wasEmpty = tail == mHead;
+        if (length > mCapacity || tail + padding + length - mHead > mCapacity) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+
+        ByteBuffer b = mBuffer.duplicate();
+        if (padding > 0) {
+            if (padding >= 4) {
+                b.putInt(pos, PADDING);
+            }
+            pos = 0;
+        }
+        b.position(pos);
+        b.putInt(length);
+        b.putInt(topicBytes.length);
+        b.put((byte) qos);
+        b.put((byte) (retained ? 1 : 0));
+        b.put(topicBytes);
+        b.put(payload.duplicate());
+        // the volatile write publishes the record to the consumer
+        mTail = tail + padding + length;
+
+        Runnable onAvailable = mOnAvailable;
+        if (wasEmpty && onAvailable != null) {
+            onAvailable.run();
+        }
+        return true;
+    }
+
+    /**
+     * Passes up to max messages, oldest first, to callback. The payload is a
+     * read-only view into the ring, valid only until onMessage returns.
+     * Only one thread may drain at a time.
+     *
+     * @return number of messages passed
+     */
+    public int drain(MqttEngine.messageCallback callback, int max) {
+        long head = mHead;
+        long tail = mTail;
+        int n = 0;
+        while (n < max && head < tail) {
+            int pos = (int) (head % mCapacity);
+            int toEnd = mCapacity - pos;
+            if (toEnd < 4 || mBuffer.getInt(pos) == PADDING) {
+                head += toEnd;
+                mHead = head;
+                continue;
+            }
+            int length = mBuffer.getInt(pos);
+            int topicLength = mBuffer.getInt(pos + 4);
+            int qos = mBuffer.get(pos + 8);
+            boolean retained = mBuffer.get(pos + 9) != 0;
+            byte[] topicBytes = new byte[topicLength];
+            ByteBuffer b = mBuffer.duplicate();
+            b.position(pos + HEADER_SIZE);
+            b.get(topicBytes);
+            b.limit(pos + length);
+            callback.onMessage(new String(topicBytes, TOPIC_CHARSET), b.slice().asReadOnlyBuffer(),
+                    qos, retained);
+            head += length;
+            // frees the space once the callback is done with the view
+            mHead = head;
+            n++;
+        }
+        return n;
+    }
+
+    public boolean isEmpty() {
+        return mHead == mTail;
+    }
+
+    /**
+     * Bytes in use, including skipped space at the end of the buffer
+     */
+    public int used() {
+        return (int) (mTail - mHead);
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Messages dropped because the ring was full
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,98 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes snapshots of a MetricsRegistry to a file in the data directory,
+ * every EXPORT_INTERVAL ms while started and once more as it stops, so
+ * the host can pick them up without binding to the engine.
+ */
+class MetricsExporter {
+    private static final Logger LOG = Logger.getLogger(MetricsExporter.class.getSimpleName());
+
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    // File the snapshot is written to
+    private static final String METRICS_FILE = "metrics.json";
+    // ms between the snapshots
+    private static final long EXPORT_INTERVAL = 1000 * 60;
+
+    private final MetricsRegistry mMetrics;
+    // Set while started
+    private Scheduler mScheduler;
+    private File mDataDir;
+
+    MetricsExporter(MetricsRegistry metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Exports to dataDir every EXPORT_INTERVAL ms from now on
+     */
+    synchronized void start(Scheduler scheduler, File dataDir) {
+        mScheduler = scheduler;
+        mDataDir = dataDir;
+        mScheduler.postDelayed(mExportRunnable, EXPORT_INTERVAL);
+    }
+
+    /**
+     * Exports a last time and stops the periodic ones
+     */
+    void stop() {
+        Scheduler scheduler;
+        synchronized (this) {
+            scheduler = mScheduler;
+            mScheduler = null;
+        }
+        if (scheduler != null) {
+            scheduler.remove(mExportRunnable);
+            export();
+        }
+    }
+
+    private final Runnable mExportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Scheduler scheduler;
+            synchronized (MetricsExporter.this) {
+                scheduler = mScheduler;
+            }
+            if (scheduler != null) {
+                export();
+                scheduler.postDelayed(this, EXPORT_INTERVAL);
+            }
+        }
+    };
+
+    /**
+     * Dumps a snapshot of the metrics to METRICS_FILE, replacing the last one
+     */
+    void export() {
+        File file = new File(mDataDir, METRICS_FILE);
+        File tmp = new File(mDataDir, METRICS_FILE + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(mMetrics.snapshot().toJson().getBytes(CHARSET));
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                LOG.warning("Could not replace " + file);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Metrics export failed", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters, gauges and latency histograms.
+ *
+ * Metrics are created on first use and kept for the life of the process.
+ * Updating one is a map lookup and an atomic add, so callers usually keep
+ * the returned AtomicLong or LatencyHistogram in a field. A Snapshot is
+ * a consistent enough copy to read in process or to export.
+ */
+public class MetricsRegistry {
+
+    // version of the binary export
+    private static final int BINARY_VERSION = 1;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    public interface Gauge {
+        long value();
+    }
+
+    private final ConcurrentHashMap<String, AtomicLong> mCounters =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, Gauge> mGauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentHashMap<String, LatencyHistogram> mHistograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    public AtomicLong counter(String name) {
+        AtomicLong counter = mCounters.get(name);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Registers a gauge read at snapshot time, replacing one of the same name
+     */
+    public void gauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(System.currentTimeMillis());
+        for (Map.Entry<String, AtomicLong> e : mCounters.entrySet()) {
+            snapshot.counters.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> e : mGauges.entrySet()) {
+            snapshot.gauges.put(e.getKey(), e.getValue().value());
+        }
+        for (Map.Entry<String, LatencyHistogram> e : mHistograms.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            long[] values = new long[QUANTILES.length];
+            for (int i = 0; i < QUANTILES.length; i++) {
+                values[i] = h.getValueAt(QUANTILES[i]);
+            }
+            snapshot.histograms.put(e.getKey(),
+                    new HistogramSnapshot(h.getCount(), h.getMean(), h.getMax(), values));
+        }
+        return snapshot;
+    }
+
+    public static class HistogramSnapshot {
+        public final long count;
+        public final double mean;
+        public final long max;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long p999;
+
+        HistogramSnapshot(long count, double mean, long max, long[] quantiles) {
+            this.count = count;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = quantiles[0];
+            this.p90 = quantiles[1];
+            this.p99 = quantiles[2];
+            this.p999 = quantiles[3];
+        }
+    }
+
+    /**
+     * Values of all metrics at one moment, sorted by name
+     */
+    public static class Snapshot {
+        // System.currentTimeMillis() of the snapshot
+        public final long time;
+        public final Map<String, Long> counters = new TreeMap<String, Long>();
+        public final Map<String, Long> gauges = new TreeMap<String, Long>();
+        public final Map<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>();
+
+        Snapshot(long time) {
+            this.time = time;
+        }
+
+        /**
+         * Compact JSON without whitespace
+         */
+        public String toJson() {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("{\"time\":").append(time);
+            sb.append(",\"counters\":");
+            appendValues(sb, counters);
+            sb.append(",\"gauges\":");
+            appendValues(sb, gauges);
+            sb.append(",\"histograms\":{");
+            boolean first = true;
+            for (Map.Entry<String, HistogramSnapshot> e : histograms.entrySet()) {
+                HistogramSnapshot h = e.getValue();
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendName(sb, e.getKey());
+                sb.append(":{\"count\":").append(h.count)
+                        .append(",\"mean\":").append(String.format(Locale.US, "%.1f", h.mean))
+                        .append(",\"p50\":").append(h.p50)
+                        .append(",\"p90\":").append(h.p90)
+                        .append(",\"p99\":").append(h.p99)
+                        .append(",\"p999\":").append(h.p999)
+                        .append(",\"max\":").append(h.max)
+                        .append('}');
+            }
+            sb.append("}}");
+            return sb.toString();
+        }
+
+        /**
+         * Binary form: version, time, then each section as a count followed
+         * by name and values, all big endian as written by DataOutputStream
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeByte(BINARY_VERSION);
+            data.writeLong(time);
+            writeValues(data, counters);
+            writeValues(data, gauges);
+            data.writeInt(histograms.size());
+            for (Map.Entry<String, HistogramSnapshot> e : histograms.entrySet()) {
+                HistogramSnapshot h = e.getValue();
+                data.writeUTF(e.getKey());
+                data.writeLong(h.count);
+                data.writeDouble(h.mean);
+                data.writeLong(h.p50);
+                data.writeLong(h.p90);
+                data.writeLong(h.p99);
+                data.writeLong(h.p999);
+                data.writeLong(h.max);
+            }
+            data.flush();
+        }
+
+        private static void appendValues(StringBuilder sb, Map<String, Long> values) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Long> e : values.entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendName(sb, e.getKey());
+                sb.append(':').append(e.getValue());
+            }
+            sb.append('}');
+        }
+
+        private static void appendName(StringBuilder sb, String name) {
+            sb.append('"');
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+
+        private static void writeValues(DataOutputStream data, Map<String, Long> values) throws IOException {
+            data.writeInt(values.size());
+            for (Map.Entry<String, Long> e : values.entrySet()) {
+                data.writeUTF(e.getKey());
+                data.writeLong(e.getValue());
+            }
+        }
+    }
+}
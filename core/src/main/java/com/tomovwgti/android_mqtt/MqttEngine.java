@@ -0,0 +1,1984 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import javax.net.ssl.SSLContext;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * The client engine, free of Android so it runs on any JVM.
+ *
+ * Owns the primary connection with server failover, reconnect back off
+ * and keep-alive learning, the subscription registry, the publish path
+ * (see Publisher) and the inbound path from decoding to dispatch. The
+ * queues, caches and metrics live as long as the engine. The platform, a
+ * scheduler, connectivity, settings and a data directory, is attached
+ * while the host runs: the Android service between onCreate and
+ * onDestroy, a test or benchmark for as long as it likes. Publishes made
+ * while detached are queued, enqueue() tells the host to attach.
+ */
+public class MqttEngine implements MqttCallback, PublishRoute {
+    private static final Logger LOG = Logger.getLogger(MqttEngine.class.getSimpleName());
+
+    public interface messageCallback {
+        /**
+         * @param payload read-only view of the received bytes
+         */
+        void onMessage(String topic, ByteBuffer payload, int qos, boolean retained);
+    }
+
+    /**
+     * Results and events for the host, called on the engine and client threads
+     */
+    public interface Listener {
+        /**
+         * @param status STATUS_SUCCESS or the reason code of the failed connect
+         */
+        void onConnect(int status, String message);
+
+        void onDisconnect(int status, String message);
+
+        void onSubscribe(String filter, int status);
+
+        /**
+         * The connection broke, the engine reconnects if started
+         */
+        void onConnectionLost(Throwable cause);
+
+        /**
+         * A change of link settled, after the engine acted on it
+         */
+        void onLinkChanged(NetworkLink from, NetworkLink to);
+
+        /**
+         * A message passed the inbound filter and was dispatched
+         */
+        void onMessage(String topic, byte[] payload, int qos, boolean retained);
+    }
+
+    /**
+     * Routes topics to connections other than the primary one
+     */
+    public interface Router {
+        /**
+         * @return connection topic is published on, null for the primary one
+         */
+        PublishRoute route(String topic);
+    }
+
+    /**
+     * What the platform provides while the engine is attached to it
+     */
+    public static class Environment {
+        final Scheduler scheduler;
+        final Connectivity connectivity;
+        final SettingsStore settings;
+        final SettingsStore subscriptions;
+        final File dataDir;
+        final MqttPingSender pingSender;
+        final Router router;
+
+        /**
+         * @param scheduler     thread the engine runs on
+         * @param connectivity
+         * @param settings      connection settings under the PREF_* keys and learned state
+         * @param subscriptions store of the subscription registry only
+         * @param dataDir       directory of the stores, the metrics and the last value snapshot
+         * @param pingSender    keep-alive of the primary connection, null for the timer of the client
+         * @param router        additional connections, null for none
+         */
+        public Environment(Scheduler scheduler, Connectivity connectivity, SettingsStore settings,
+                           SettingsStore subscriptions, File dataDir, MqttPingSender pingSender,
+                           Router router) {
+            this.scheduler = scheduler;
+            this.connectivity = connectivity;
+            this.settings = settings;
+            this.subscriptions = subscriptions;
+            this.dataDir = dataDir;
+            this.pingSender = pingSender;
+            this.router = router;
+        }
+    }
+
+    // QOS Level 0 ( Delivery Once no confirmation )
+    public static final int MQTT_QOS_0 = 0;
+    // QOS Level 1 ( Delevery at least Once with confirmation )
+    public static final int MQTT_QOS_1 = 1;
+    // QOS Level 2 ( Delivery only once with confirmation with handshake )
+    public static final int MQTT_QOS_2 = 2;
+    // retained message
+    public static final boolean MQTT_NO_RETAIN = false;
+    // Status of a successful operation
+    public final static int STATUS_SUCCESS = 256;
+    // Bounds and start of the learned keep-alive interval in seconds
+    static final int KEEP_ALIVE_MIN = 60;
+    static final int KEEP_ALIVE_MAX = 60 * 28;
+    static final int KEEP_ALIVE_INITIAL = 60 * 4;
+
+    // Retry intervals, when the connection is lost.
+    static final long INITIAL_RETRY_INTERVAL = 1000 * 10;
+    static final long MAXIMUM_RETRY_INTERVAL = 1000 * 60 * 30;
+
+    // Charset of String payloads
+    public static final Charset PAYLOAD_CHARSET = Charset.forName("UTF-8");
+    // Payloads shorter than this are sent plain
+    static final int CODEC_MIN_LENGTH = 64;
+    // ... and on unmetered links, where bytes are cheaper than CPU
+    static final int CODEC_MIN_LENGTH_UNMETERED = 256;
+    // Codec id of plain deflate, for setTopicCodec()
+    public static final int CODEC_DEFLATE = 1;
+
+    // Start a clean session ? A persistent one keeps the subscriptions and
+    // the QoS 1 and 2 flows across reconnects
+    private static final boolean MQTT_CLEAN_SESSION = false;
+    // File of the filters the persistent session holds
+    private static final String SESSION_FILE = "mqtt-session";
+    // Directory of the outbound message store
+    static final String MQTT_STORE_DIR = "mqtt";
+    // Bytes mapped per segment of the outbound message store
+    static final int MQTT_STORE_SEGMENT_SIZE = 1024 * 1024;
+    // How often the outbound message store is synced to flash
+    static final long MQTT_STORE_FLUSH_INTERVAL = 200;
+    // Name of the connection configured by the PREF_* keys
+    public static final String PRIMARY_CONNECTION = "default";
+    // A failed server is skipped for this long, doubling per failure
+    private static final long SERVER_COOLDOWN = 1000 * 30;
+    private static final long SERVER_MAX_COOLDOWN = 1000 * 60 * 10;
+    // How often the servers are probed while connected, to fail back
+    private static final long SERVER_PROBE_INTERVAL = 1000 * 60 * 5;
+    // ms a probe waits for the TCP connect
+    private static final int SERVER_PROBE_TIMEOUT = 1000 * 3;
+    // ms the addresses of a server are used for, and used for longer while
+    // the lookup fails
+    private static final long DNS_CACHE_TTL = 1000 * 60 * 5;
+    private static final long DNS_MAX_STALE = 1000 * 60 * 60;
+    // URL Format normaly don't change, the scheme is the transport
+    private static final String MQTT_URL_FORMAT = "%s://%s:%d";
+    // Transport of servers given without a scheme
+    private static final String MQTT_TRANSPORT = SocketTransport.SCHEME_TCP;
+    // Maximum number of messages sent per drain of the publish queue
+    static final int PUBLISH_BATCH_SIZE = 64;
+    // How long a partial batch may wait before the publish queue is drained
+    static final long PUBLISH_WINDOW = 20;
+    // Lane of topics not routed elsewhere, and of control messages
+    public static final String LANE_DEFAULT = "default";
+    public static final String LANE_CONTROL = "control";
+    // QoS 1 message fingerprints kept to drop redeliveries
+    static final int DEDUP_CAPACITY = 4096;
+    // How long a fingerprint is kept, in ms
+    static final long DEDUP_WINDOW = 1000 * 60;
+    // Topics and payload bytes kept in the last value cache
+    private static final int CACHE_MAX_TOPICS = 1000;
+    private static final long CACHE_MAX_BYTES = 1024 * 1024;
+    // Snapshot file of the last value cache
+    private static final String CACHE_SNAPSHOT_FILE = "mqtt-last-values";
+    // How often the last value cache is written, if it changed
+    private static final long CACHE_SNAPSHOT_INTERVAL = 1000 * 10;
+    // Filters per SUBSCRIBE and UNSUBSCRIBE packet
+    private static final int SUBSCRIBE_BATCH_SIZE = 256;
+    // How long subscription changes are collected before they are sent
+    private static final long SUBSCRIBE_WINDOW = 20;
+    // File every reported link is appended to, and its size before it rolls over
+    private static final String LINK_TRACE_FILE = "connectivity.trace";
+    private static final long LINK_TRACE_MAX_LENGTH = 64 * 1024;
+    // ms the broker has to answer the PINGREQ sent after a handover before
+    // the connection is dropped
+    private static final long LIVENESS_TIMEOUT = 1000 * 5;
+    // ms a connection that is dropped waits for its DISCONNECT to be sent.
+    // Nothing acks it on a lost network, and 0 would wait for the ack.
+    private static final long DISCONNECT_TIMEOUT = 10;
+
+    // We store whether or not the engine has been started
+    public static final String PREF_STARTED = "isStarted";
+    // We also store the client ID
+    public static final String PREF_CLIENT_ID = "clientID";
+    // We also store the server address
+    public static final String PREF_SERVER_ADDRESS = "server";
+    // We also store the server port
+    public static final String PREF_SERVER_PORT = "port";
+    // We also store the transport, tcp or ssl, of servers given without a scheme
+    public static final String PREF_TRANSPORT = "transport";
+    // Comma separated servers as host:port or URIs, replaces the address
+    // and port if set
+    public static final String PREF_SERVER_LIST = "servers";
+    // We also store the username for server
+    public static final String PREF_USERNAME = "username";
+    // We also store the password for server
+    public static final String PREF_PASSWORD = "password";
+    // We also store the topic
+    public static final String PREF_TOPIC = "topic";
+    // We also store the session
+    public static final String PREF_SESSION = "session";
+    // We store whether the last value cache is kept across restarts
+    public static final String PREF_CACHE_SNAPSHOT = "cacheSnapshot";
+    // We store the size of the in-flight window
+    public static final String PREF_IN_FLIGHT_WINDOW = "inFlightWindow";
+    // We store the drop policy of the offline queue
+    public static final String PREF_OFFLINE_POLICY = "offlinePolicy";
+    // We store the learned keep-alive interval, its ceiling, the last good
+    // one and the pings answered at it, per network under the key followed
+    // by '@' and the link
+    public static final String PREF_KEEP_ALIVE_INTERVAL = "keepAliveInterval";
+    public static final String PREF_KEEP_ALIVE_CEILING = "keepAliveCeiling";
+    public static final String PREF_KEEP_ALIVE_GOOD = "keepAliveGood";
+    public static final String PREF_KEEP_ALIVE_SUCCESSES = "keepAliveSuccesses";
+
+    private final Clock mClock;
+    // Name of the connection in its status, PRIMARY_CONNECTION by default
+    private final String mName;
+
+    // Is the Client started? Stays true while reconnecting until stopped
+    private boolean mStarted = false;
+    // State of the connection, changed under the engine lock
+    private ConnectionState mState = ConnectionState.DISCONNECTED;
+    // Delays between reconnect attempts
+    private final ReconnectBackoff mBackoff =
+            new ReconnectBackoff(INITIAL_RETRY_INTERVAL, MAXIMUM_RETRY_INTERVAL, new Random());
+
+    // Platform, set while attached
+    private volatile boolean mAttached = false;
+    private Scheduler mScheduler;
+    private Connectivity mConnectivity;
+    private SettingsStore mPrefs;
+    private File mDataDir;
+    private MqttPingSender mPingSender;
+    private Router mRouter;
+    private Listener mListener;
+
+    // Defaults to FileStore
+    private SegmentLogPersistence mDataStore;
+    // On Fail reverts to MemoryStore
+    private final MemoryPersistence mMemStore = new MemoryPersistence();
+    // Connection Options
+    private final MqttConnectOptions mOpts = new MqttConnectOptions();
+    // Learns the keep-alive interval
+    private final KeepAlivePolicy mKeepAlivePolicy =
+            new KeepAlivePolicy(KEEP_ALIVE_MIN, KEEP_ALIVE_MAX, KEEP_ALIVE_INITIAL);
+    // Network the learned keep-alive belongs to, NONE until one settled
+    private NetworkLink mKeepAliveLink = NetworkLink.NONE;
+
+    // Mqtt Client, all operations return at once and complete through tokens
+    private TransportClient mClient;
+
+    private long mStartTime;
+
+    // Servers of the primary connection, built on start
+    private ServerSelector mServers;
+    // Server of the current or last connect
+    private ServerSelector.Server mServer;
+    // Failed connects since the last back off
+    private int mFailovers = 0;
+    // Is the first acknowledgement after connecting still to come?
+    private boolean mAwaitingFirstAck = false;
+    // Is the first message after connecting still to come, and
+    // System.nanoTime() the connect started at
+    private volatile boolean mAwaitingFirstMessage = false;
+    private long mConnectStartedAt;
+    // Probes the servers off the engine thread
+    private final ExecutorService mProbeExecutor;
+    // Opens the connections, keeps the host addresses and the TLS sessions
+    // across reconnects and the standby connection
+    private final SocketTransport mSockets;
+
+    // Compresses payloads per topic and decodes arriving ones
+    private final CodecPipeline mCodecs = new CodecPipeline(CODEC_MIN_LENGTH);
+    // Latest message per topic
+    private final LastValueCache mLastValues = new LastValueCache(CACHE_MAX_TOPICS, CACHE_MAX_BYTES);
+    // Routes arriving messages to listeners by topic filter
+    private final MessageDispatcher mDispatcher = new MessageDispatcher();
+    private final Random mRandom = new Random();
+    // Debounces link changes and picks the publishing profile
+    private final TransportPolicy mTransport = new TransportPolicy();
+    // Reported links, null if not attached
+    private ConnectivityTrace mLinkTrace;
+    // Drops redelivered messages and reorders sequences before dispatch
+    private final InboundFilter mInbound;
+    // ms between checks of the held sequences
+    private long mReorderInterval;
+    // Every filter subscribed, restored after each connect
+    private SubscriptionRegistry mSubscriptions;
+    // Filters the broker holds in the persistent session
+    private SessionState mSession;
+    // Subscription changes waiting to be sent, guarded by the engine lock
+    private final Map<String, Integer> mPendingSubscribe = new LinkedHashMap<String, Integer>();
+    private final Set<String> mPendingUnsubscribe = new LinkedHashSet<String>();
+    private boolean mSubscribeScheduled = false;
+    // Health of the primary connection
+    private long mConnects = 0;
+    private long mConnectFailures = 0;
+    private int mLastError = 0;
+
+    // Connection and message path metrics, latencies are in microseconds
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final AtomicLong mMessagesIn = mMetrics.counter("message.in");
+    private final AtomicLong mBytesIn = mMetrics.counter("message.in.bytes");
+    private final AtomicLong mConnectAttempts = mMetrics.counter("connect.attempts");
+    private final AtomicLong mConnectFailuresCount = mMetrics.counter("connect.failures");
+    private final AtomicLong mConnectionLost = mMetrics.counter("connection.lost");
+    private final AtomicLong mLivenessProbes = mMetrics.counter("connection.liveness_probes");
+    private final AtomicLong mLivenessFailures = mMetrics.counter("connection.liveness_failures");
+    private final AtomicLong mReconnects = mMetrics.counter("reconnect.scheduled");
+    private final AtomicLong mKeepAliveWakeups = mMetrics.counter("keepalive.wakeups");
+    private final AtomicLong mDuplicates = mMetrics.counter("message.duplicate");
+    private final AtomicLong mDecodeFailures = mMetrics.counter("message.decode_failed");
+    // Connects that found the persistent session and the filters they did
+    // not subscribe again, see Publisher for the publishes they resumed
+    private final AtomicLong mSessionsResumed = mMetrics.counter("session.resumed");
+    private final AtomicLong mFiltersKept = mMetrics.counter("session.filters_kept");
+    private final LatencyHistogram mConnectTime = mMetrics.histogram("connect.time");
+    // socket ready until the CONNACK arrived
+    private final LatencyHistogram mConnackTime = mMetrics.histogram("connect.connack");
+    // connect started until the first message arrived
+    private final LatencyHistogram mFirstMessageTime = mMetrics.histogram("connect.first_message");
+    // Dumps the metrics to the data directory while attached
+    private final MetricsExporter mExporter = new MetricsExporter(mMetrics);
+    // Lanes, windows and offline queue of the publishes
+    private final Publisher mPublisher;
+
+    public MqttEngine() {
+        this(Clock.SYSTEM);
+    }
+
+    public MqttEngine(Clock clock) {
+        this(clock, PRIMARY_CONNECTION);
+    }
+
+    /**
+     * @param name of the connection in its status, e.g. of an engine that is
+     *             an additional connection of another one
+     */
+    public MqttEngine(Clock clock, String name) {
+        mClock = clock;
+        mName = name;
+        mCodecs.register(new DeflateCodec(CODEC_DEFLATE, Deflater.DEFAULT_COMPRESSION, null));
+        mPublisher = new Publisher(mPrimary, mCodecs, mMetrics);
+        mInbound = new InboundFilter(DEDUP_CAPACITY, DEDUP_WINDOW, new InboundFilter.Sink() {
+            @Override
+            public void deliver(String topic, byte[] payload, int qos, boolean retained) {
+                MqttEngine.this.deliver(topic, payload, qos, retained);
+            }
+        });
+        mSockets = new SocketTransport(mClock, mMetrics,
+                new HostResolver(mClock, HostResolver.SYSTEM, DNS_CACHE_TTL, DNS_MAX_STALE));
+        mProbeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, MqttEngine.class.getSimpleName() + ".probe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        registerGauges();
+    }
+
+    /**
+     * Takes the platform, restores the learned state from its settings and
+     * reopens the stores. Does not connect, see start() and wasStarted().
+     */
+    public void attach(Environment env, Listener listener) {
+        synchronized (this) {
+            if (mAttached) {
+                throw new IllegalStateException("Already attached");
+            }
+            mScheduler = env.scheduler;
+            mConnectivity = env.connectivity;
+            mPrefs = env.settings;
+            mDataDir = env.dataDir;
+            mPingSender = env.pingSender;
+            mRouter = env.router;
+            mListener = listener;
+            mStartTime = mClock.currentTimeMillis();
+
+            restoreKeepAlive();
+            if (mDataStore == null) {
+                mDataStore = new SegmentLogPersistence(new File(mDataDir, MQTT_STORE_DIR),
+                        MQTT_STORE_SEGMENT_SIZE, MQTT_STORE_FLUSH_INTERVAL);
+            }
+            mSubscriptions = new SubscriptionRegistry(env.subscriptions);
+            mSession = new SessionState(new File(mDataDir, SESSION_FILE));
+            try {
+                mSession.load();
+            } catch (IOException e) {
+                // the next connect subscribes every filter
+                LOG.log(Level.WARNING, "Session state unreadable", e);
+            }
+            mLinkTrace = new ConnectivityTrace(new File(mDataDir, LINK_TRACE_FILE), LINK_TRACE_MAX_LENGTH);
+            mPublisher.attach(mScheduler, mRouter, mDataDir, offlinePolicy(),
+                    mPrefs.getInt(PREF_IN_FLIGHT_WINDOW, Publisher.MAX_IN_FLIGHT));
+            mAttached = true;
+        }
+        mExporter.start(mScheduler, mDataDir);
+        if (mPrefs.getBoolean(PREF_CACHE_SNAPSHOT, true)) {
+            mScheduler.post(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mLastValues.loadSnapshot(new File(mDataDir, CACHE_SNAPSHOT_FILE));
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "Last value snapshot unreadable", e);
+                    }
+                }
+            });
+            mScheduler.postDelayed(mCacheSnapshotRunnable, CACHE_SNAPSHOT_INTERVAL);
+        }
+    }
+
+    /**
+     * Stops if started and writes the metrics and the last value snapshot.
+     * Publishes made from now on are only queued.
+     */
+    public void detach() {
+        synchronized (this) {
+            if (!mAttached) {
+                return;
+            }
+            mAttached = false;
+        }
+        LOG.info("Detaching (started=" + mStarted + ")");
+        mScheduler.remove(mLinkRunnable);
+        mExporter.stop();
+        mScheduler.remove(mCacheSnapshotRunnable);
+        if (mPrefs.getBoolean(PREF_CACHE_SNAPSHOT, true)) {
+            saveCacheSnapshot();
+        }
+        stop();
+    }
+
+    public boolean isAttached() {
+        return mAttached;
+    }
+
+    /**
+     * Was the engine left started, e.g. by a process the system killed?
+     */
+    public boolean wasStarted() {
+        return mPrefs.getBoolean(PREF_STARTED, false);
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    public synchronized ConnectionState getState() {
+        return mState;
+    }
+
+    public Clock getClock() {
+        return mClock;
+    }
+
+    public KeepAlivePolicy getKeepAlivePolicy() {
+        return mKeepAlivePolicy;
+    }
+
+    public PublishLanes getLanes() {
+        return mPublisher.getLanes();
+    }
+
+    public FlowControl getFlowControl() {
+        return mPublisher.getFlowControl();
+    }
+
+    public PayloadPool getPayloadPool() {
+        return mPublisher.getPayloadPool();
+    }
+
+    public CodecPipeline getCodecs() {
+        return mCodecs;
+    }
+
+    public LastValueCache getLastValues() {
+        return mLastValues;
+    }
+
+    public MessageDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Connects with the settings under the PREF_* keys, and keeps
+     * reconnecting until stopped
+     *
+     * @return false if it was started already, it only reconnects then
+     */
+    public synchronized boolean start() {
+        // Do nothing, if the engine is already running.
+        if (mStarted) {
+            LOG.info("Attempt to start while already started");
+            // but do not wait for the back off
+            reconnectIfNecessary();
+            return false;
+        }
+
+        stopKeepAlives();
+        setStarted(true);
+        mBackoff.reset();
+        mServers = new ServerSelector(serverUris(), SERVER_COOLDOWN, SERVER_MAX_COOLDOWN);
+        mFailovers = 0;
+        // Establish an MQTT connection
+        connect();
+        return true;
+    }
+
+    /**
+     * Disconnects and cancels any scheduled reconnect
+     *
+     * @return false if it was not started
+     */
+    public synchronized boolean stop() {
+        if (!mStarted) {
+            LOG.info("Attemtpign to stop connection that isn't running");
+            return false;
+        }
+
+        cancelReconnect();
+        mScheduler.remove(mProbeTrigger);
+
+        if (mClient == null) {
+            setStarted(false);
+            setState(ConnectionState.DISCONNECTED);
+            stopKeepAlives();
+            mPublisher.abandon();
+            // nothing to disconnect
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onDisconnect(STATUS_SUCCESS, null);
+            }
+            return true;
+        }
+
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                final MqttAsyncClient client;
+                synchronized (MqttEngine.this) {
+                    client = mClient;
+                    mClient = null;
+                    setStarted(false);
+                    setState(ConnectionState.DISCONNECTED);
+                }
+                if (client == null) {
+                    mPublisher.abandon();
+                    return;
+                }
+
+                stopKeepAlives();
+
+                final Listener listener = mListener;
+                try {
+                    // in-flight publishes may still complete while it quiesces
+                    client.disconnect(null, new IMqttActionListener() {
+                        @Override
+                        public void onSuccess(IMqttToken token) {
+                            mPublisher.abandon();
+                            // disconnect success
+                            if (listener != null) {
+                                listener.onDisconnect(STATUS_SUCCESS, null);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(IMqttToken token, Throwable e) {
+                            LOG.log(Level.SEVERE, "Disconnect failed", e);
+                            mPublisher.abandon();
+                            if (listener != null) {
+                                listener.onDisconnect(reasonCode(e), e.getMessage());
+                            }
+                        }
+                    });
+                } catch (MqttException ex) {
+                    LOG.log(Level.WARNING, "Disconnect failed", ex);
+                    mPublisher.abandon();
+                    if (listener != null) {
+                        listener.onDisconnect(ex.getReasonCode(), ex.getMessage());
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Unsubscribes the topic of the settings without waiting for the
+     * UNSUBACK, a stop() right after quiesces it
+     *
+     * @return the topic if an UNSUBSCRIBE was sent, else null
+     */
+    public String unsubscribeTopic() {
+        String topic = mPrefs.getString(PREF_TOPIC, null);
+        if (topic == null || topic.equals("")) {
+            return null;
+        }
+        // the topic of the settings is added again on the next start
+        mSubscriptions.remove(topic);
+        MqttAsyncClient client = mClient;
+        if (client == null) {
+            return null;
+        }
+        try {
+            client.unsubscribe(topic);
+            return topic;
+        } catch (MqttException e) {
+            LOG.log(Level.WARNING, "Unsubscribe of " + topic + " failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Connects to the broker with the appropriate datastore. Only one connect
+     * is in flight at a time, calls while connecting or connected are ignored.
+     */
+    private synchronized void connect() {
+        if (mState == ConnectionState.CONNECTING || mState == ConnectionState.CONNECTED) {
+            LOG.info("Connect ignored in state " + mState);
+            return;
+        }
+        setState(ConnectionState.CONNECTING);
+        // this attempt replaces any scheduled one
+        cancelReconnect();
+        LOG.info("Connecting...");
+
+        // fetch the server, topic from the settings.
+        if (mServers == null) {
+            mServers = new ServerSelector(serverUris(), SERVER_COOLDOWN, SERVER_MAX_COOLDOWN);
+        }
+        final ServerSelector.Server server = mServers.select(mClock.currentTimeMillis());
+        mServer = server;
+        final String clientid = clientId();
+        final String username = mPrefs.getString(PREF_USERNAME, null);
+        final String password = mPrefs.getString(PREF_PASSWORD, null);
+        final String topic = mPrefs.getString(PREF_TOPIC, null);
+        final boolean cleanSession = mPrefs.getBoolean(PREF_SESSION, MQTT_CLEAN_SESSION);
+        LOG.fine("server: " + server);
+        LOG.fine("topic: " + topic);
+
+        String url = server.uri;
+        LOG.info("Connecting with URL: " + url);
+        try {
+            if (!SocketTransport.supports(url)) {
+                // ws:// and wss:// need Paho 1.2
+                connectFailed(MqttException.REASON_CODE_SOCKET_FACTORY_MISMATCH,
+                        "Unsupported transport: " + url);
+                return;
+            }
+            try {
+                LOG.info("Connecting with DataStore");
+                mClient = newClient(url, clientid, true);
+            } catch (MqttPersistenceException e) {
+                LOG.log(Level.WARNING, "DataStore unavailable, connecting with MemStore", e);
+                mClient = newClient(url, clientid, false);
+            }
+            mClient.setCallback(this);
+
+            // username, password
+            if (username != null && !username.equals("")) {
+                mOpts.setUserName(username);
+            }
+            if (password != null && !password.equals("")) {
+                mOpts.setPassword(password.toCharArray());
+            }
+            // clean session
+            mOpts.setCleanSession(cleanSession);
+            // keep alive, the pings go at the learned interval once connected
+            mOpts.setKeepAliveInterval(mKeepAlivePolicy.getConnectInterval());
+            LOG.info("Keep alive interval: " + mOpts.getKeepAliveInterval() + "s, pinging every "
+                    + mKeepAlivePolicy.getInterval() + "s");
+        } catch (MqttException e) {
+            LOG.log(Level.WARNING, "Connect to " + url + " failed", e);
+            connectFailed(e.getReasonCode(), e.getMessage());
+            return;
+        }
+
+        final TransportClient client = mClient;
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                mConnectAttempts.incrementAndGet();
+                final long connectStart = mClock.nanoTime();
+                try {
+                    client.connect(mOpts, null, new IMqttActionListener() {
+                        @Override
+                        public void onSuccess(IMqttToken token) {
+                            long now = mClock.nanoTime();
+                            long elapsed = now - connectStart;
+                            mConnectTime.record(elapsed / 1000);
+                            if (mSockets.getReadyAt() > connectStart) {
+                                mConnackTime.record((now - mSockets.getReadyAt()) / 1000);
+                            }
+                            // MQTT 3.1 brokers never report a session
+                            boolean resumed = !cleanSession && token.getSessionPresent();
+                            synchronized (MqttEngine.this) {
+                                if (mState != ConnectionState.CONNECTING || mClient != client) {
+                                    // stopped meanwhile
+                                    disconnectQuietly(client);
+                                    return;
+                                }
+                                // Engine is now connected
+                                setState(ConnectionState.CONNECTED);
+                                mBackoff.reset();
+                                mConnects++;
+                                mFailovers = 0;
+                                mServers.onConnected(server, elapsed / 1000000);
+                                mAwaitingFirstAck = true;
+                                mConnectStartedAt = connectStart;
+                                mAwaitingFirstMessage = true;
+                            }
+                            LOG.info("Connected to " + server + (resumed ? ", session resumed" : ""));
+                            if (resumed) {
+                                mSessionsResumed.incrementAndGet();
+                            }
+                            mScheduler.remove(mProbeTrigger);
+                            mScheduler.postDelayed(mProbeTrigger, SERVER_PROBE_INTERVAL);
+
+                            // subscribe topic and restore the rest, publishes
+                            // may overlap with the SUBACKs
+                            if (topic != null && !topic.equals("")) {
+                                mSubscriptions.add(topic, MQTT_QOS_1);
+                            }
+                            resubscribe(resumed, server.uri, clientid);
+
+                            // The client starts the keep alives through mPingSender
+                            client.setPingInterval(mKeepAlivePolicy.getInterval() * 1000L);
+                            LOG.info("Successfully connected");
+
+                            // Save start time
+                            mStartTime = mClock.currentTimeMillis();
+                            // Send what the last connection left unacknowledged
+                            // and whatever was queued while disconnected
+                            mPublisher.onConnected(client);
+                            // connect success
+                            Listener listener = mListener;
+                            if (listener != null) {
+                                listener.onConnect(STATUS_SUCCESS, null);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(IMqttToken token, Throwable e) {
+                            connectFailed(reasonCode(e), e.getMessage());
+                        }
+                    });
+                } catch (MqttException e) {
+                    connectFailed(e.getReasonCode(), e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Client ID of the settings, or one generated once and saved, as the
+     * broker finds a persistent session by it
+     */
+    private String clientId() {
+        String clientid = mPrefs.getString(PREF_CLIENT_ID, null);
+        if (clientid == null || clientid.equals("")) {
+            // 20 characters, MQTT 3.1 brokers take 23 at most
+            clientid = String.format(Locale.US, "android-%012x", mRandom.nextLong() & 0xffffffffffffL);
+            mPrefs.putString(PREF_CLIENT_ID, clientid);
+            LOG.info("Generated client ID " + clientid);
+        }
+        return clientid;
+    }
+
+    /**
+     * Client on the file store, or on the memory store if it is unavailable,
+     * with the ping sender of the platform if it has one, connecting through
+     * mSockets. The engine tests connect stub clients instead.
+     */
+    TransportClient newClient(String url, String clientid, boolean fileStore) throws MqttException {
+        return new TransportClient(url, clientid, fileStore ? mDataStore : mMemStore, mPingSender,
+                mSockets);
+    }
+
+    private static void disconnectQuietly(MqttAsyncClient client) {
+        if (!client.isConnected()) {
+            // the client completes its connect again when it shuts down
+            return;
+        }
+        try {
+            client.disconnect();
+        } catch (MqttException e) {
+            LOG.log(Level.WARNING, "Disconnect failed", e);
+        }
+    }
+
+    /**
+     * Schedule a reconnect, if we failed to connect
+     */
+    private void connectFailed(int reason, String message) {
+        synchronized (this) {
+            if (mState != ConnectionState.CONNECTING) {
+                return;
+            }
+            mConnectFailuresCount.incrementAndGet();
+            mConnectFailures++;
+            mLastError = reason;
+            mClient = null;
+            boolean networkAvailable = isNetworkAvailable();
+            if (networkAvailable && mServer != null) {
+                mServers.onFailure(mServer, mClock.currentTimeMillis());
+            }
+            if (mStarted && networkAvailable && ++mFailovers < mServers.size()) {
+                // fail over to the next server without backing off, the
+                // failure is only reported once every server failed
+                LOG.info("Failing over from " + mServer);
+                setState(ConnectionState.DISCONNECTED);
+                mScheduler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        reconnectIfNecessary();
+                    }
+                });
+                return;
+            } else if (mStarted && networkAvailable) {
+                // every server failed once, back off before the next round
+                mFailovers = 0;
+                scheduleReconnect();
+            } else {
+                // onNetworkAvailable() reconnects once the network is back
+                setState(ConnectionState.DISCONNECTED);
+            }
+        }
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onConnect(reason, message);
+        }
+    }
+
+    /**
+     * Reason code of a failed token, or REASON_CODE_UNEXPECTED_ERROR
+     */
+    static int reasonCode(Throwable e) {
+        if (e instanceof MqttException) {
+            return ((MqttException) e).getReasonCode();
+        }
+        return MqttException.REASON_CODE_UNEXPECTED_ERROR;
+    }
+
+    /**
+     * Cancels the keep-alive the ping sender has scheduled
+     */
+    private void stopKeepAlives() {
+        if (mPingSender != null) {
+            mPingSender.stop();
+        }
+    }
+
+    /**
+     * Called on a keep-alive wakeup of the platform. Sends a PINGREQ if
+     * there was no traffic for the learned interval, reconnects if not
+     * connected.
+     */
+    public void keepAlive() {
+        final TransportClient client;
+        synchronized (this) {
+            mKeepAliveWakeups.incrementAndGet();
+            if (!isConnected()) {
+                reconnectIfNecessary();
+                return;
+            }
+            client = mClient;
+        }
+        MqttToken token = client.checkForActivity();
+        mKeepAlivePolicy.onWakeup(token != null);
+        if (token != null) {
+            onComplete(token, new IMqttActionListener() {
+                @Override
+                public void onSuccess(IMqttToken asyncActionToken) {
+                    pingAnswered(client);
+                }
+
+                @Override
+                public void onFailure(IMqttToken asyncActionToken, Throwable e) {
+                    // the connection is lost and the engine reconnects
+                }
+            });
+        }
+    }
+
+    /**
+     * Counts a PINGREQ sent at the learned interval that was answered, the
+     * pings of client go at the new interval if it grew
+     */
+    private void pingAnswered(TransportClient client) {
+        if (mKeepAlivePolicy.onPingSuccess()) {
+            LOG.info("Keep alive interval grown to " + mKeepAlivePolicy.getInterval() + "s");
+            client.setPingInterval(mKeepAlivePolicy.getInterval() * 1000L);
+        }
+        saveKeepAlive();
+    }
+
+    /**
+     * Calls listener once token completes, also if it completed before the
+     * listener was set, e.g. a PINGREQ the client sent and got the answer to
+     * before the token was handed out. listener is called once.
+     */
+    static void onComplete(MqttToken token, final IMqttActionListener listener) {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        IMqttActionListener once = new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                if (done.compareAndSet(false, true)) {
+                    listener.onSuccess(asyncActionToken);
+                }
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable e) {
+                if (done.compareAndSet(false, true)) {
+                    listener.onFailure(asyncActionToken, e);
+                }
+            }
+        };
+        token.setActionCallback(once);
+        if (token.isComplete()) {
+            if (token.getException() == null) {
+                once.onSuccess(token);
+            } else {
+                once.onFailure(token, token.getException());
+            }
+        }
+    }
+
+    /**
+     * Saves the learned keep-alive under the keys of its network
+     */
+    private synchronized void saveKeepAlive() {
+        mPrefs.putInt(keepAliveKey(PREF_KEEP_ALIVE_INTERVAL), mKeepAlivePolicy.getInterval());
+        mPrefs.putInt(keepAliveKey(PREF_KEEP_ALIVE_CEILING), mKeepAlivePolicy.getCeiling());
+        mPrefs.putInt(keepAliveKey(PREF_KEEP_ALIVE_GOOD), mKeepAlivePolicy.getLastGood());
+        mPrefs.putInt(keepAliveKey(PREF_KEEP_ALIVE_SUCCESSES), mKeepAlivePolicy.getSuccesses());
+    }
+
+    /**
+     * Restores the keep-alive learned on the network of mKeepAliveLink, a
+     * network not seen before starts over
+     */
+    private synchronized void restoreKeepAlive() {
+        mKeepAlivePolicy.restore(mPrefs.getInt(keepAliveKey(PREF_KEEP_ALIVE_INTERVAL), KEEP_ALIVE_INITIAL),
+                mPrefs.getInt(keepAliveKey(PREF_KEEP_ALIVE_CEILING), KEEP_ALIVE_MAX),
+                mPrefs.getInt(keepAliveKey(PREF_KEEP_ALIVE_GOOD), KEEP_ALIVE_MIN),
+                mPrefs.getInt(keepAliveKey(PREF_KEEP_ALIVE_SUCCESSES), 0));
+    }
+
+    /**
+     * The keep-alive is learned per network, the pings of a connection that
+     * survived the change go at the interval of the new one
+     */
+    private void switchKeepAlive(NetworkLink link) {
+        TransportClient client;
+        synchronized (this) {
+            if (link.equals(mKeepAliveLink)) {
+                return;
+            }
+            saveKeepAlive();
+            mKeepAliveLink = link;
+            restoreKeepAlive();
+            LOG.info("Keep alive interval on " + link + ": " + mKeepAlivePolicy.getInterval() + "s");
+            client = isConnected() ? mClient : null;
+        }
+        if (client != null) {
+            client.setPingInterval(mKeepAlivePolicy.getInterval() * 1000L);
+        }
+    }
+
+    /**
+     * Key of the learned keep-alive on the network of mKeepAliveLink, pref
+     * itself until a network settled
+     */
+    private String keepAliveKey(String pref) {
+        return mKeepAliveLink.isUp() ? pref + "@" + mKeepAliveLink : pref;
+    }
+
+    /**
+     * Adds topic to the subscription registry. The SUBSCRIBE is sent with
+     * other changes made within SUBSCRIBE_WINDOW ms, or after the next
+     * connect.
+     *
+     * @param topic topic filter, may contain '+' and '#'
+     * @param qos
+     */
+    public void subscribe(String topic, int qos) {
+        if (topic == null || topic.equals("")) {
+            return;
+        }
+        LOG.info("subscribe: " + topic);
+        queueSubscriptions(mSubscriptions.add(topic, qos));
+    }
+
+    public void unsubscribe(String topic) {
+        if (topic == null || topic.equals("")) {
+            return;
+        }
+        LOG.info("unsubscribe: " + topic);
+        queueSubscriptions(mSubscriptions.remove(topic));
+    }
+
+    private synchronized void queueSubscriptions(SubscriptionRegistry.Change change) {
+        if (change.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, Integer> e : change.subscribe.entrySet()) {
+            mPendingUnsubscribe.remove(e.getKey());
+            mPendingSubscribe.put(e.getKey(), e.getValue());
+        }
+        for (String filter : change.unsubscribe) {
+            mPendingSubscribe.remove(filter);
+            mPendingUnsubscribe.add(filter);
+        }
+        if (!mSubscribeScheduled) {
+            mSubscribeScheduled = true;
+            mScheduler.postDelayed(mSubscribeRunnable, SUBSCRIBE_WINDOW);
+        }
+    }
+
+    private final Runnable mSubscribeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, Integer> subscribe;
+            List<String> unsubscribe;
+            synchronized (MqttEngine.this) {
+                mSubscribeScheduled = false;
+                subscribe = new LinkedHashMap<String, Integer>(mPendingSubscribe);
+                unsubscribe = new ArrayList<String>(mPendingUnsubscribe);
+                mPendingSubscribe.clear();
+                mPendingUnsubscribe.clear();
+                if (!isConnected()) {
+                    // the registry is restored as a whole on connect
+                    return;
+                }
+            }
+            sendUnsubscribe(unsubscribe);
+            sendSubscribe(subscribe);
+        }
+    };
+
+    /**
+     * Subscribes every filter of the registry after a connect, the batches
+     * are sent without waiting so it takes a single round trip. A resumed
+     * session only gets the filters that changed since it last held them,
+     * if the state kept is that of the same server and client ID.
+     */
+    private void resubscribe(boolean resumed, String server, String clientId) {
+        synchronized (this) {
+            mPendingSubscribe.clear();
+            mPendingUnsubscribe.clear();
+        }
+        Map<String, Integer> filters = mSubscriptions.getEffective();
+        if (!resumed || !mSession.isOf(server, clientId)) {
+            if (resumed) {
+                LOG.info("Session state is not that of " + clientId + " on " + server);
+            }
+            mSession.reset(server, clientId);
+            saveSession();
+            LOG.info("Restoring " + filters.size() + " subscriptions");
+            sendSubscribe(filters);
+            return;
+        }
+        SubscriptionRegistry.Change change = mSession.diff(filters);
+        mFiltersKept.addAndGet(filters.size() - change.subscribe.size());
+        LOG.info("Session holds " + (filters.size() - change.subscribe.size()) + " of " + filters.size()
+                + " subscriptions, restoring " + change.subscribe.size() + ", dropping "
+                + change.unsubscribe.size());
+        sendUnsubscribe(change.unsubscribe);
+        sendSubscribe(change.subscribe);
+    }
+
+    private void saveSession() {
+        try {
+            mSession.save();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Session state not saved", e);
+        }
+    }
+
+    /**
+     * Sends SUBSCRIBE packets of up to SUBSCRIBE_BATCH_SIZE filters without
+     * waiting for the SUBACKs. The result of every filter is reported to the
+     * listener.
+     */
+    private void sendSubscribe(Map<String, Integer> filters) {
+        MqttAsyncClient client = mClient;
+        if (client == null || filters.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<String, Integer>> entries =
+                new ArrayList<Map.Entry<String, Integer>>(filters.entrySet());
+        for (int start = 0; start < entries.size(); start += SUBSCRIBE_BATCH_SIZE) {
+            int n = Math.min(SUBSCRIBE_BATCH_SIZE, entries.size() - start);
+            final String[] topics = new String[n];
+            final int[] qos = new int[n];
+            for (int i = 0; i < n; i++) {
+                topics[i] = entries.get(start + i).getKey();
+                qos[i] = entries.get(start + i).getValue();
+            }
+            try {
+                client.subscribe(topics, qos, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        firstAck();
+                        int[] granted = token.getGrantedQos();
+                        Listener listener = mListener;
+                        List<String> held = new ArrayList<String>(topics.length);
+                        int[] heldQos = new int[topics.length];
+                        for (int i = 0; i < topics.length; i++) {
+                            boolean failed = granted != null && i < granted.length
+                                    && granted[i] == MqttException.REASON_CODE_SUBSCRIBE_FAILED;
+                            if (failed) {
+                                LOG.severe("subscribe refused: " + topics[i]);
+                            } else {
+                                heldQos[held.size()] = qos[i];
+                                held.add(topics[i]);
+                            }
+                            if (listener != null) {
+                                listener.onSubscribe(topics[i],
+                                        failed ? MqttException.REASON_CODE_SUBSCRIBE_FAILED : STATUS_SUCCESS);
+                            }
+                        }
+                        mSession.add(held.toArray(new String[held.size()]), heldQos);
+                        saveSession();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable e) {
+                        LOG.log(Level.SEVERE, "subscribe failed: " + topics.length + " filters", e);
+                        Listener listener = mListener;
+                        if (listener != null) {
+                            for (String topic : topics) {
+                                listener.onSubscribe(topic, reasonCode(e));
+                            }
+                        }
+                    }
+                });
+            } catch (MqttException e) {
+                LOG.log(Level.SEVERE,
+                        "MqttException: " + (e.getMessage() != null ? e.getMessage() : "NULL"), e);
+                Listener listener = mListener;
+                if (listener != null) {
+                    for (String topic : topics) {
+                        listener.onSubscribe(topic, e.getReasonCode());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends UNSUBSCRIBE packets of up to SUBSCRIBE_BATCH_SIZE filters
+     * without waiting for the UNSUBACKs
+     */
+    private void sendUnsubscribe(List<String> filters) {
+        MqttAsyncClient client = mClient;
+        if (client == null) {
+            return;
+        }
+        for (int start = 0; start < filters.size(); start += SUBSCRIBE_BATCH_SIZE) {
+            List<String> batch =
+                    filters.subList(start, Math.min(filters.size(), start + SUBSCRIBE_BATCH_SIZE));
+            final String[] topics = batch.toArray(new String[batch.size()]);
+            try {
+                client.unsubscribe(topics, null, new IMqttActionListener() {
+                    @Override
+                    public void onSuccess(IMqttToken token) {
+                        mSession.remove(topics);
+                        saveSession();
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken token, Throwable e) {
+                        // still held, a resumed session drops them again
+                        LOG.log(Level.WARNING, "unsubscribe failed: " + topics.length + " filters", e);
+                    }
+                });
+            } catch (MqttException e) {
+                LOG.log(Level.SEVERE,
+                        "MqttException: " + (e.getMessage() != null ? e.getMessage() : "NULL"), e);
+            }
+        }
+    }
+
+    /**
+     * Queues a publish. Failures are reported to the callback of the entry.
+     * Whether its topic is routed to an additional connection is decided
+     * as it leaves the queue, so a publish made while detached is never
+     * sent on the wrong connection.
+     *
+     * @return false if the message is queued but no platform is attached
+     * to send it
+     */
+    public boolean enqueue(PublishQueue.Entry entry, FlowControl.Mode mode) {
+        if (!mPublisher.offer(entry, mode)) {
+            // reported to the callback of the entry
+            return true;
+        }
+        if (!mAttached) {
+            // the queue is drained once a platform is attached
+            return false;
+        }
+        mPublisher.scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Drop policy of the offline queue from the settings
+     */
+    private OfflineQueue.DropPolicy offlinePolicy() {
+        try {
+            return OfflineQueue.DropPolicy.valueOf(mPrefs.getString(PREF_OFFLINE_POLICY,
+                    OfflineQueue.DropPolicy.DROP_OLDEST.name()));
+        } catch (IllegalArgumentException e) {
+            return OfflineQueue.DropPolicy.DROP_OLDEST;
+        }
+    }
+
+    /**
+     * Sends what was queued while detached
+     */
+    public void flush() {
+        mPublisher.scheduleDrain();
+    }
+
+    /**
+     * The primary connection as the publish path sees it
+     */
+    private final Publisher.Connection mPrimary = new Publisher.Connection() {
+        @Override
+        public boolean isConnected() {
+            return MqttEngine.this.isConnected();
+        }
+
+        @Override
+        public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext,
+                                          IMqttActionListener listener) throws MqttException {
+            MqttAsyncClient client = mClient;
+            if (client == null) {
+                throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+            }
+            return client.publish(topic, message, userContext, listener);
+        }
+
+        @Override
+        public boolean isCleanSession() {
+            return mOpts.isCleanSession();
+        }
+
+        @Override
+        public void onAck() {
+            firstAck();
+        }
+    };
+
+    /**
+     * Records the time from connecting to the first SUBACK or PUBACK
+     */
+    private void firstAck() {
+        synchronized (this) {
+            if (!mAwaitingFirstAck || mServer == null) {
+                return;
+            }
+            mAwaitingFirstAck = false;
+        }
+        mServers.onFirstAck(mServer, mClock.currentTimeMillis() - mStartTime);
+    }
+
+    /**
+     * Server URIs from PREF_SERVER_LIST, or the single server from
+     * PREF_SERVER_ADDRESS and PREF_SERVER_PORT, over PREF_TRANSPORT unless
+     * they name a scheme
+     */
+    private List<String> serverUris() {
+        List<String> uris = new ArrayList<String>();
+        String transport = mPrefs.getString(PREF_TRANSPORT, MQTT_TRANSPORT);
+        String list = mPrefs.getString(PREF_SERVER_LIST, null);
+        if (list != null) {
+            for (String server : list.split(",")) {
+                server = server.trim();
+                if (server.equals("")) {
+                    continue;
+                }
+                uris.add(server.contains("://") ? server : transport + "://" + server);
+            }
+        }
+        if (uris.isEmpty()) {
+            uris.add(String.format(Locale.US, MQTT_URL_FORMAT, transport,
+                    mPrefs.getString(PREF_SERVER_ADDRESS, null),
+                    mPrefs.getInt(PREF_SERVER_PORT, SocketTransport.defaultPort(transport))));
+        }
+        return uris;
+    }
+
+    /**
+     * Hands the probe to the probe thread, a probe blocks for up to
+     * SERVER_PROBE_TIMEOUT per server
+     */
+    private final Runnable mProbeTrigger = new Runnable() {
+        @Override
+        public void run() {
+            mProbeExecutor.execute(mProbeRunnable);
+        }
+    };
+
+    /**
+     * Measures the TCP connect time of every server, then fails back if one
+     * is clearly faster than the current one. Runs on the probe thread.
+     */
+    private final Runnable mProbeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ServerSelector servers = mServers;
+            if (!isConnected() || servers == null || servers.size() < 2) {
+                return;
+            }
+            for (ServerSelector.Server server : servers.getServers()) {
+                servers.onProbe(server, probe(server), mClock.currentTimeMillis());
+            }
+            ServerSelector.Server better = servers.better(mServer, mClock.currentTimeMillis());
+            if (better != null) {
+                LOG.info("Failing back from " + mServer + " to " + better);
+                switchServer();
+            }
+            mScheduler.postDelayed(mProbeTrigger, SERVER_PROBE_INTERVAL);
+        }
+    };
+
+    /**
+     * @return ms the TCP connect took, -1 if it failed
+     */
+    private static long probe(ServerSelector.Server server) {
+        Socket socket = new Socket();
+        long start = System.nanoTime();
+        try {
+            socket.connect(new InetSocketAddress(server.host, server.port), SERVER_PROBE_TIMEOUT);
+            return (System.nanoTime() - start) / 1000000;
+        } catch (IOException e) {
+            LOG.info("Probe of " + server.uri + " failed: " + e.getMessage());
+            return -1;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Disconnects and connects again, to the server the selector now
+     * prefers. Stays CONNECTING meanwhile so no other connect overlaps the
+     * disconnect, which closes the store.
+     */
+    private synchronized void switchServer() {
+        if (mState != ConnectionState.CONNECTED || mClient == null) {
+            return;
+        }
+        final MqttAsyncClient client = mClient;
+        mClient = null;
+        setState(ConnectionState.CONNECTING);
+        stopKeepAlives();
+        IMqttActionListener reconnect = new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken token) {
+                reconnect();
+            }
+
+            @Override
+            public void onFailure(IMqttToken token, Throwable e) {
+                LOG.log(Level.WARNING, "Disconnect failed", e);
+                reconnect();
+            }
+
+            private void reconnect() {
+                synchronized (MqttEngine.this) {
+                    if (mState == ConnectionState.CONNECTING && mClient == null) {
+                        setState(ConnectionState.DISCONNECTED);
+                        reconnectIfNecessary();
+                    }
+                }
+            }
+        };
+        try {
+            client.disconnect(null, reconnect);
+        } catch (MqttException e) {
+            reconnect.onFailure(null, e);
+        }
+    }
+
+    /**
+     * Sends message on the connection of this engine right away, as the
+     * additional connection of another engine. That engine queues the
+     * publishes in its lanes and windows them, see Router.
+     *
+     * @throws MqttException REASON_CODE_CLIENT_NOT_CONNECTED while not connected
+     */
+    @Override
+    public void publish(String topic, MqttMessage message, Object userContext,
+                        IMqttActionListener listener) throws MqttException {
+        MqttAsyncClient client;
+        synchronized (this) {
+            client = mState == ConnectionState.CONNECTED ? mClient : null;
+        }
+        if (client == null) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        }
+        client.publish(topic, message, userContext, listener);
+    }
+
+    /**
+     * Reports every unacknowledged publish sent on route as failed, after
+     * that connection was lost
+     */
+    public void onRouteLost(PublishRoute route, Throwable cause) {
+        mPublisher.failInFlight(route, MqttException.REASON_CODE_CONNECTION_LOST,
+                cause != null ? cause.getMessage() : null);
+    }
+
+    // We schedule a reconnect after a jittered back off
+    private synchronized void scheduleReconnect() {
+        long interval = mBackoff.next();
+
+        LOG.info("Rescheduling connection in " + interval + "ms (attempt "
+                + mBackoff.getAttempts() + ").");
+        mReconnects.incrementAndGet();
+        setState(ConnectionState.BACKING_OFF);
+        mScheduler.postWakeup(mReconnectRunnable, interval);
+    }
+
+    // Remove the scheduled reconnect
+    private void cancelReconnect() {
+        mScheduler.removeWakeup(mReconnectRunnable);
+    }
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (isNetworkAvailable()) {
+                reconnectIfNecessary();
+            }
+        }
+    };
+
+    // Sets whether or not the engine has been started in the settings.
+    private void setStarted(boolean started) {
+        mPrefs.putBoolean(PREF_STARTED, started);
+        mStarted = started;
+    }
+
+    private synchronized void setState(ConnectionState state) {
+        if (mState != state) {
+            LOG.info("Connection state " + mState + " -> " + state);
+            mState = state;
+        }
+    }
+
+    /**
+     * Checkes the current connectivity and reconnects if it is required.
+     */
+    public synchronized void reconnectIfNecessary() {
+        if (mStarted && (mState == ConnectionState.DISCONNECTED || mState == ConnectionState.BACKING_OFF)) {
+            LOG.info("Reconnecting...");
+            connect();
+        }
+    }
+
+    private boolean isNetworkAvailable() {
+        return mConnectivity.isNetworkAvailable();
+    }
+
+    /**
+     * The platform reports the link it is on now, on every change it sees.
+     * The engine acts on it once it settled, see TransportPolicy.
+     */
+    public void onLinkChanged(final NetworkLink link) {
+        final long now = mClock.nanoTime() / 1000000;
+        final long wallTime = mClock.currentTimeMillis();
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                ConnectivityTrace trace = mLinkTrace;
+                if (trace != null) {
+                    try {
+                        trace.append(wallTime, link);
+                    } catch (IOException e) {
+                        LOG.log(Level.WARNING, "Link trace failed", e);
+                    }
+                }
+                long delay = mTransport.onLinkChanged(link, now);
+                LOG.info("Link " + link + (delay < 0 ? ", unchanged" : ", settles in " + delay + "ms"));
+                mScheduler.remove(mLinkRunnable);
+                if (delay >= 0) {
+                    mScheduler.postDelayed(mLinkRunnable, delay);
+                    // a standby belongs to the link it was opened on, the
+                    // one of this link is ready once it settled
+                    mSockets.closeStandby();
+                    if (link.isUp()) {
+                        prewarm();
+                    }
+                }
+            }
+        });
+    }
+
+    private final Runnable mLinkRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long now = mClock.nanoTime() / 1000000;
+            TransportPolicy.Transition transition = mTransport.onTimer(now);
+            if (transition == null) {
+                long delay = mTransport.getDelay(now);
+                if (delay >= 0) {
+                    mScheduler.postDelayed(this, delay);
+                }
+                return;
+            }
+            LOG.info("Link settled: " + transition);
+            if (transition.to.isUp()) {
+                applyProfile(mTransport.profileOf(transition.to));
+                switchKeepAlive(transition.to);
+            }
+            if (transition.isLoss()) {
+                onNetworkLost();
+            } else if (transition.isRecovery()) {
+                onNetworkAvailable();
+            } else if (transition.isHandover()) {
+                // the DNS of the new network may answer differently
+                mSockets.getResolver().clear();
+                // the socket may still look connected on the network that
+                // went away, a round trip tells before the keep alive would
+                if (isConnected()) {
+                    probeLiveness();
+                } else {
+                    reconnectIfNecessary();
+                }
+            }
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onLinkChanged(transition.from, transition.to);
+            }
+        }
+    };
+
+    /**
+     * Sends a PINGREQ and drops the connection if the broker does not
+     * answer it within LIVENESS_TIMEOUT
+     */
+    private void probeLiveness() {
+        final TransportClient client;
+        synchronized (this) {
+            client = mClient;
+        }
+        if (client == null) {
+            return;
+        }
+        MqttToken token = client.ping();
+        if (token == null) {
+            // a keep-alive PINGREQ is unanswered, the client drops the
+            // connection if the next probe finds it still unanswered
+            LOG.info("Keep alive ping outstanding, probing again in " + LIVENESS_TIMEOUT + " ms");
+            mScheduler.postDelayed(mLivenessRetry, LIVENESS_TIMEOUT);
+            return;
+        }
+        mLivenessProbes.incrementAndGet();
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                connectionDead(client, "no PINGRESP within " + LIVENESS_TIMEOUT + " ms");
+            }
+        };
+        mScheduler.postDelayed(timeout, LIVENESS_TIMEOUT);
+        onComplete(token, new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken token) {
+                mScheduler.remove(timeout);
+            }
+
+            @Override
+            public void onFailure(IMqttToken token, Throwable e) {
+                mScheduler.remove(timeout);
+                connectionDead(client, e.getMessage());
+            }
+        });
+    }
+
+    private final Runnable mLivenessRetry = new Runnable() {
+        @Override
+        public void run() {
+            if (isConnected()) {
+                probeLiveness();
+            }
+        }
+    };
+
+    /**
+     * The connection of client did not survive a handover. Unlike a
+     * connection lost to an idle timeout it leaves the keep alive as is.
+     */
+    private void connectionDead(MqttAsyncClient client, String why) {
+        synchronized (this) {
+            if (mClient != client) {
+                // already lost or replaced
+                return;
+            }
+            mLastError = MqttException.REASON_CODE_CONNECTION_LOST;
+            mClient = null;
+            // until the client closed the store, see onNetworkLost()
+            setState(ConnectionState.CONNECTING);
+        }
+        LOG.info("Connection did not survive the handover: " + why);
+        mLivenessFailures.incrementAndGet();
+        mConnectionLost.incrementAndGet();
+        stopKeepAlives();
+        client.setCallback(null);
+        try {
+            // without quiescing, the broker would not answer
+            client.disconnectForcibly(0, DISCONNECT_TIMEOUT);
+        } catch (MqttException e) {
+            LOG.log(Level.FINE, "Could not close the dead connection", e);
+        }
+        synchronized (this) {
+            if (mState == ConnectionState.CONNECTING && mClient == null) {
+                setState(ConnectionState.DISCONNECTED);
+            }
+        }
+        mPublisher.failInFlight(null, MqttException.REASON_CODE_CONNECTION_LOST, why);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onConnectionLost(new MqttException(MqttException.REASON_CODE_CONNECTION_LOST));
+        }
+        reconnectIfNecessary();
+    }
+
+    private void applyProfile(TransportPolicy.Profile profile) {
+        LOG.info("Publishing profile " + profile);
+        mPublisher.applyProfile(profile);
+        mCodecs.setMinLength(profile.compressMinLength);
+    }
+
+    public TransportPolicy getTransportPolicy() {
+        return mTransport;
+    }
+
+    /**
+     * The platform got a network, reconnects without waiting for the back off
+     */
+    public void onNetworkAvailable() {
+        reconnectIfNecessary();
+    }
+
+    /**
+     * The platform lost its network, drops the connection so it is not
+     * mistaken for a live one. Stays CONNECTING until the client closed,
+     * so the next connect does not open the store it still holds.
+     */
+    public void onNetworkLost() {
+        final TransportClient client;
+        synchronized (this) {
+            client = mClient;
+            mClient = null;
+            mSockets.closeStandby();
+            cancelReconnect();
+            setState(client != null ? ConnectionState.CONNECTING : ConnectionState.DISCONNECTED);
+        }
+        if (client == null) {
+            return;
+        }
+        stopKeepAlives();
+        // the socket closing under it is no loss to report
+        client.setCallback(null);
+        try {
+            // closes the store before it returns
+            client.disconnectForcibly(0, DISCONNECT_TIMEOUT);
+        } catch (MqttException e) {
+            LOG.log(Level.WARNING, "Disconnect failed", e);
+        }
+        synchronized (this) {
+            if (mState == ConnectionState.CONNECTING && mClient == null) {
+                setState(ConnectionState.DISCONNECTED);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to the server the next connect goes to ahead of
+     * it, e.g. while a link that came back is settling. The connect then
+     * only sends CONNECT. Ignored unless started and disconnected.
+     */
+    public synchronized void prewarm() {
+        if (!mStarted || (mState != ConnectionState.DISCONNECTED && mState != ConnectionState.BACKING_OFF)) {
+            return;
+        }
+        if (mServers == null) {
+            mServers = new ServerSelector(serverUris(), SERVER_COOLDOWN, SERVER_MAX_COOLDOWN);
+        }
+        String url = mServers.select(mClock.currentTimeMillis()).uri;
+        if (SocketTransport.supports(url)) {
+            LOG.info("Opening standby connection to " + url);
+            mSockets.prewarm(url, mOpts.getConnectionTimeout() * 1000);
+        }
+    }
+
+    /**
+     * Verifies the client State with our local connected state
+     *
+     * @return true if its a match we are connected false if we aren't connected
+     */
+    public synchronized boolean isConnected() {
+        if (mStarted && mClient != null && !mClient.isConnected()) {
+            LOG.info("Mismatch between what we think is connected and what is connected");
+        }
+
+        return mClient != null && (mStarted && mClient.isConnected());
+    }
+
+    /**
+     * TLS context of ssl:// servers, e.g. one trusting a private CA, the
+     * platform default if none is set. Takes effect on the next connect.
+     */
+    public void setSslContext(SSLContext context) {
+        mSockets.setContext(context);
+    }
+
+    /**
+     * Looks the servers up with lookup from now on, e.g. a resolver of the
+     * app, keeping the addresses for ttl ms and for maxStale ms more while
+     * the lookup fails. A ttl of 0 looks up on every connect.
+     */
+    public void setHostLookup(HostResolver.Lookup lookup, long ttl, long maxStale) {
+        mSockets.getResolver().setLookup(lookup, ttl, maxStale);
+    }
+
+    /**
+     * ms an address of a server may take before the next one is tried
+     * alongside, SocketTransport.ATTEMPT_DELAY by default
+     */
+    public void setConnectAttemptDelay(long delay) {
+        mSockets.setAttemptDelay(delay);
+    }
+
+    /**
+     * Reads application sequence numbers from arriving messages, used to
+     * drop duplicates and to reorder. null to use none.
+     */
+    public void setSequenceKey(InboundFilter.SequenceKey sequenceKey) {
+        mInbound.setSequenceKey(sequenceKey);
+    }
+
+    /**
+     * Holds out of order messages of a topic for up to messages messages and
+     * time ms until the gap is filled. 0 messages disables it.
+     */
+    public void setReorderWindow(int messages, long time) {
+        mScheduler.remove(mReorderRunnable);
+        mInbound.setReorderWindow(messages, time);
+        if (messages > 0) {
+            mReorderInterval = Math.max(time / 2, 1);
+            mScheduler.postDelayed(mReorderRunnable, mReorderInterval);
+        }
+    }
+
+    /**
+     * Passes on the sequences held for reordering once their gap timed out
+     */
+    private final Runnable mReorderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mInbound.flush(mClock.currentTimeMillis());
+            if (mInbound.isReordering()) {
+                mScheduler.postDelayed(this, mReorderInterval);
+            }
+        }
+    };
+
+    /**
+     * Health of the primary connection
+     */
+    public synchronized ConnectionStatus getStatus() {
+        String url = mServer != null ? mServer.uri : serverUris().get(0);
+        return new ConnectionStatus(mName, url, mState,
+                mState == ConnectionState.CONNECTED ? mStartTime : 0, mConnects, mConnectFailures,
+                mLastError, mKeepAlivePolicy.getInterval());
+    }
+
+    /**
+     * Connectivity Lost from broker
+     */
+    @Override
+    public void connectionLost(Throwable arg0) {
+        mConnectionLost.incrementAndGet();
+        stopKeepAlives();
+
+        synchronized (this) {
+            mConnectFailures++;
+            mLastError = MqttException.REASON_CODE_CONNECTION_LOST;
+            mClient = null;
+            setState(ConnectionState.DISCONNECTED);
+        }
+        mPublisher.failInFlight(null, MqttException.REASON_CODE_CONNECTION_LOST,
+                arg0 != null ? arg0.getMessage() : null);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onConnectionLost(arg0);
+        }
+
+        if (isNetworkAvailable()) {
+            // the path dropped an idle connection, shorten the keep alive
+            mKeepAlivePolicy.onConnectionLost();
+            saveKeepAlive();
+            reconnectIfNecessary();
+        }
+    }
+
+    /**
+     * Received Message from broker, on any connection
+     */
+    @Override
+    public void messageArrived(String s, MqttMessage mqttMessage) throws Exception {
+        byte[] payload = mqttMessage.getPayload();
+        mMessagesIn.incrementAndGet();
+        mBytesIn.addAndGet(payload.length);
+        if (mAwaitingFirstMessage) {
+            mAwaitingFirstMessage = false;
+            mFirstMessageTime.record((mClock.nanoTime() - mConnectStartedAt) / 1000);
+        }
+        LOG.fine("  Topic:\t" + s + "  Length:\t" + payload.length + "  QoS:\t" + mqttMessage.getQos());
+        try {
+            payload = mCodecs.decode(payload);
+        } catch (IOException e) {
+            // most likely a binary payload of a client without codecs
+            mDecodeFailures.incrementAndGet();
+            LOG.log(Level.WARNING, "Could not decode message on " + s + ", passing it on as is", e);
+        }
+        if (!mInbound.onMessage(s, payload, mqttMessage.getQos(), mqttMessage.isRetained(),
+                mqttMessage.isDuplicate(), mClock.currentTimeMillis())) {
+            mDuplicates.incrementAndGet();
+        }
+    }
+
+    /**
+     * Passes a decoded and filtered message on to the last value cache, the
+     * listeners and the Listener, e.g. one that arrived on an engine that is
+     * an additional connection of this one
+     */
+    public void deliver(String topic, byte[] payload, int qos, boolean retained) {
+        mLastValues.put(topic, payload, qos, retained, mClock.currentTimeMillis());
+        mDispatcher.dispatch(topic, payload, qos, retained);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onMessage(topic, payload, qos, retained);
+        }
+    }
+
+    @Override
+    public void deliveryComplete(IMqttDeliveryToken iMqttDeliveryToken) {
+        mPublisher.onDeliveryComplete(iMqttDeliveryToken);
+    }
+
+    private void registerGauges() {
+        mMetrics.gauge("connection.state", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return getState().ordinal();
+            }
+        });
+        mMetrics.gauge("link.type", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mTransport.getLink().type.ordinal();
+            }
+        });
+        mMetrics.gauge("link.flaps", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mTransport.getFlaps();
+            }
+        });
+        mMetrics.gauge("link.handovers", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mTransport.getHandovers();
+            }
+        });
+        mMetrics.gauge("dns.hits", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mSockets.getResolver().getHits();
+            }
+        });
+        mMetrics.gauge("dns.misses", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mSockets.getResolver().getMisses();
+            }
+        });
+        mMetrics.gauge("dns.stale_hits", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mSockets.getResolver().getStaleHits();
+            }
+        });
+        mMetrics.gauge("keepalive.interval", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mKeepAlivePolicy.getInterval();
+            }
+        });
+        mMetrics.gauge("keepalive.pings", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mKeepAlivePolicy.getPings();
+            }
+        });
+    }
+
+    private final Runnable mCacheSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveCacheSnapshot();
+            mScheduler.postDelayed(this, CACHE_SNAPSHOT_INTERVAL);
+        }
+    };
+
+    private void saveCacheSnapshot() {
+        try {
+            mLastValues.saveSnapshot(new File(mDataDir, CACHE_SNAPSHOT_FILE));
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Last value snapshot failed", e);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.Locale;
+
+/**
+ * The network the device is on, as the platform reports it.
+ *
+ * Two links are the same network if type, metered state and name match,
+ * e.g. a move to another Wi-Fi access point is a change of link even
+ * though the type stays the same.
+ */
+public class NetworkLink {
+
+    public enum Type {
+        NONE,
+        WIFI,
+        CELLULAR,
+        // ethernet, bluetooth tethering and the like
+        OTHER
+    }
+
+    public static final NetworkLink NONE = new NetworkLink(Type.NONE, false, null);
+
+    public final Type type;
+    // is traffic charged or capped?
+    public final boolean metered;
+    // SSID, APN or whatever else names the network, may be null
+    public final String name;
+
+    public NetworkLink(Type type, boolean metered, String name) {
+        this.type = type;
+        this.metered = metered;
+        this.name = name;
+    }
+
+    public boolean isUp() {
+        return type != Type.NONE;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof NetworkLink)) {
+            return false;
+        }
+        NetworkLink other = (NetworkLink) o;
+        return type == other.type && metered == other.metered
+                && (name == null ? other.name == null : name.equals(other.name));
+    }
+
+    @Override
+    public int hashCode() {
+        return (type.hashCode() * 31 + (metered ? 1 : 0)) * 31 + (name != null ? name.hashCode() : 0);
+    }
+
+    /**
+     * e.g. "cellular metered" or "wifi \"home\"", the form of trace files
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(type.name().toLowerCase(Locale.US));
+        if (metered) {
+            sb.append(" metered");
+        }
+        if (name != null) {
+            sb.append(" \"").append(name).append('"');
+        }
+        return sb.toString();
+    }
+}
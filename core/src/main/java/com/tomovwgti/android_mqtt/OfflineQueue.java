@@ -0,0 +1,241 @@
+package com.tomovwgti.android_mqtt;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+/**
+ * Bounded queue of publishes made while the client is disconnected.
+ *
+ * Every message is written to a MqttClientPersistence as well, so the
+ * queue survives the process being killed, along with the name of the lane
+ * it was queued in. Once the queue is full the drop policy decides which
+ * message goes.
+ */
+public class OfflineQueue {
+    private static final Logger LOG = Logger.getLogger(OfflineQueue.class.getSimpleName());
+
+    private static final Charset TOPIC_CHARSET = Charset.forName("UTF-8");
+    private static final String KEY_PREFIX = "o-";
+    // flags of the header
+    private static final int FLAG_RETAINED = 1;
+    private static final int FLAG_LANE = 2;
+
+    public enum DropPolicy {
+        // drop the oldest queued message to make room
+        DROP_OLDEST,
+        // reject the new message
+        DROP_NEWEST,
+        // keep only the latest message per topic, then drop the oldest
+        LATEST_PER_TOPIC
+    }
+
+    private final MqttClientPersistence mStore;
+    private final int mCapacity;
+    private final DropPolicy mPolicy;
+    // lanes the loaded messages are given back as they leave, may be null
+    private final PublishLanes mLanes;
+
+    // queued messages by sequence number, oldest first
+    private final TreeMap<Long, PublishQueue.Entry> mEntries = new TreeMap<Long, PublishQueue.Entry>();
+    // sequence number of the latest message per topic, LATEST_PER_TOPIC only
+    private final Map<String, Long> mLatest = new HashMap<String, Long>();
+    // lane name of the messages loaded from the store, by sequence number.
+    // It is looked up as they leave, lanes may be added after the open.
+    private final Map<Long, String> mLaneNames = new HashMap<Long, String>();
+    private long mNextSeq = 0;
+
+    public OfflineQueue(MqttClientPersistence store, int capacity, DropPolicy policy) {
+        this(store, capacity, policy, null);
+    }
+
+    /**
+     * @param lanes lanes messages loaded from the store are given back, by
+     *              name, as they are drained, null to leave them without
+     */
+    public OfflineQueue(MqttClientPersistence store, int capacity, DropPolicy policy, PublishLanes lanes) {
+        mStore = store;
+        mCapacity = capacity;
+        mPolicy = policy;
+        mLanes = lanes;
+    }
+
+    /**
+     * Opens the store and loads the messages left from a previous run
+     */
+    public synchronized void open(String name) throws MqttPersistenceException {
+        mStore.open(name, name);
+        Enumeration<?> keys = mStore.keys();
+        while (keys.hasMoreElements()) {
+            String key = (String) keys.nextElement();
+            if (!key.startsWith(KEY_PREFIX)) {
+                continue;
+            }
+            long seq;
+            try {
+                seq = Long.parseLong(key.substring(KEY_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                mStore.remove(key);
+                continue;
+            }
+            MqttPersistable data = mStore.get(key);
+            PublishQueue.Entry entry = decode(data);
+            mEntries.put(seq, entry);
+            String lane = laneName(data);
+            if (lane != null) {
+                mLaneNames.put(seq, lane);
+            }
+            mNextSeq = Math.max(mNextSeq, seq + 1);
+        }
+        if (mPolicy == DropPolicy.LATEST_PER_TOPIC) {
+            for (Map.Entry<Long, PublishQueue.Entry> e : mEntries.entrySet()) {
+                mLatest.put(e.getValue().topic, e.getKey());
+            }
+        }
+        LOG.info("Loaded " + mEntries.size() + " offline messages");
+    }
+
+    public synchronized void close() throws MqttPersistenceException {
+        mStore.close();
+        mEntries.clear();
+        mLatest.clear();
+        mLaneNames.clear();
+    }
+
+    /**
+     * Queues entry, dropping a message if the queue is full
+     *
+     * @return the dropped message, which may be entry itself, or null
+     */
+    public synchronized PublishQueue.Entry add(PublishQueue.Entry entry) throws MqttPersistenceException {
+        PublishQueue.Entry dropped = null;
+        if (mPolicy == DropPolicy.LATEST_PER_TOPIC) {
+            Long previous = mLatest.get(entry.topic);
+            if (previous != null) {
+                dropped = remove(previous);
+            }
+        }
+        if (dropped == null && mEntries.size() >= mCapacity) {
+            if (mPolicy == DropPolicy.DROP_NEWEST) {
+                return entry;
+            }
+            dropped = remove(mEntries.firstKey());
+        }
+
+        long seq = mNextSeq++;
+        mStore.put(KEY_PREFIX + seq, encode(entry));
+        mEntries.put(seq, entry);
+        if (mPolicy == DropPolicy.LATEST_PER_TOPIC) {
+            mLatest.put(entry.topic, seq);
+        }
+        return dropped;
+    }
+
+    /**
+     * Moves up to max messages, oldest first, into out and deletes them from
+     * the store
+     *
+     * @return number of messages moved
+     */
+    public synchronized int drainTo(List<PublishQueue.Entry> out, int max) throws MqttPersistenceException {
+        int n = 0;
+        while (n < max && !mEntries.isEmpty()) {
+            long seq = mEntries.firstKey();
+            String lane = mLaneNames.get(seq);
+            PublishQueue.Entry entry = remove(seq);
+            if (lane != null && mLanes != null) {
+                // null if the lane is gone
+                entry.lane = mLanes.getLane(lane);
+            }
+            out.add(entry);
+            n++;
+        }
+        return n;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    private PublishQueue.Entry remove(long seq) throws MqttPersistenceException {
+        PublishQueue.Entry entry = mEntries.remove(seq);
+        if (entry != null) {
+            mStore.remove(KEY_PREFIX + seq);
+            mLaneNames.remove(seq);
+            Long latest = mLatest.get(entry.topic);
+            if (latest != null && latest == seq) {
+                mLatest.remove(entry.topic);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Header holds qos, flags, the lane name if there is a lane, and the
+     * topic, the payload is stored as is. Headers written before lanes were
+     * stored have flags 0 or 1.
+     */
+    private static MqttPersistable encode(PublishQueue.Entry entry) {
+        byte[] topic = entry.topic.getBytes(TOPIC_CHARSET);
+        byte[] lane = entry.lane != null ? entry.lane.name.getBytes(TOPIC_CHARSET) : null;
+        if (lane != null && lane.length > 0xff) {
+            // too long to store, the message leaves without a lane
+            lane = null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(2 + (lane != null ? 1 + lane.length : 0) + topic.length);
+        header.put((byte) entry.qos);
+        header.put((byte) ((entry.retained ? FLAG_RETAINED : 0) | (lane != null ? FLAG_LANE : 0)));
+        if (lane != null) {
+            header.put((byte) lane.length);
+            header.put(lane);
+        }
+        header.put(topic);
+        return new MqttPersistentData(null, header.array(), 0, header.capacity(),
+                entry.payload, 0, entry.payload.length);
+    }
+
+    private static PublishQueue.Entry decode(MqttPersistable data) throws MqttPersistenceException {
+        ByteBuffer header = header(data);
+        int qos = header.get();
+        int flags = header.get();
+        if ((flags & FLAG_LANE) != 0) {
+            int length = header.get() & 0xff;
+            header.position(header.position() + length);
+        }
+        String topic = new String(header.array(), header.position(), header.remaining(), TOPIC_CHARSET);
+        byte[] payload = new byte[data.getPayloadLength()];
+        System.arraycopy(data.getPayloadBytes(), data.getPayloadOffset(), payload, 0, payload.length);
+        return new PublishQueue.Entry(topic, payload, qos, (flags & FLAG_RETAINED) != 0, null);
+    }
+
+    /**
+     * @return name of the lane of a stored message, null if it had none
+     */
+    private static String laneName(MqttPersistable data) throws MqttPersistenceException {
+        ByteBuffer header = header(data);
+        if ((header.get(header.position() + 1) & FLAG_LANE) == 0) {
+            return null;
+        }
+        header.position(header.position() + 2);
+        int length = header.get() & 0xff;
+        return new String(header.array(), header.position(), length, TOPIC_CHARSET);
+    }
+
+    private static ByteBuffer header(MqttPersistable data) throws MqttPersistenceException {
+        return ByteBuffer.wrap(data.getHeaderBytes(), data.getHeaderOffset(), data.getHeaderLength());
+    }
+}
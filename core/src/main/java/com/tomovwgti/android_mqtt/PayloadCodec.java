@@ -0,0 +1,24 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.IOException;
+
+/**
+ * Compresses payloads for the wire.
+ *
+ * The id is written into the frame of every encoded payload, so a receiver
+ * needs a codec of the same id, and the same dictionary if it uses one.
+ */
+public interface PayloadCodec {
+
+    /**
+     * @return id in the frame header, 1 to 255
+     */
+    int getId();
+
+    byte[] encode(byte[] payload);
+
+    /**
+     * @param length length of the decoded payload, taken from the frame
+     */
+    byte[] decode(byte[] data, int offset, int count, int length) throws IOException;
+}
@@ -0,0 +1,68 @@
+package com.tomovwgti.android_mqtt;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of payload arrays for the publish path.
+ *
+ * MqttMessage takes a whole array as payload, so arrays are pooled by
+ * exact length. Telemetry payloads tend to have a handful of sizes, which
+ * keeps the hit rate high without copying into oversized buffers.
+ */
+public class PayloadPool {
+
+    // Arrays larger than this are never pooled
+    private final int mMaxLength;
+    // Free arrays kept per length
+    private final int mMaxPerLength;
+
+    private final Map<Integer, ArrayDeque<byte[]>> mFree = new HashMap<Integer, ArrayDeque<byte[]>>();
+
+    public PayloadPool(int maxLength, int maxPerLength) {
+        mMaxLength = maxLength;
+        mMaxPerLength = maxPerLength;
+    }
+
+    /**
+     * Returns an array of exactly length bytes, recycled if possible
+     */
+    public synchronized byte[] acquire(int length) {
+        if (length <= mMaxLength) {
+            ArrayDeque<byte[]> free = mFree.get(length);
+            if (free != null && !free.isEmpty()) {
+                return free.pollFirst();
+            }
+        }
+        return new byte[length];
+    }
+
+    /**
+     * Copies the remaining bytes of buffer into a pooled array. The position
+     * of buffer is left unchanged.
+     */
+    public byte[] copyOf(ByteBuffer buffer) {
+        byte[] array = acquire(buffer.remaining());
+        buffer.duplicate().get(array);
+        return array;
+    }
+
+    /**
+     * Hands an array back once nothing references it anymore
+     */
+    public synchronized void release(byte[] array) {
+        if (array.length > mMaxLength) {
+            return;
+        }
+        ArrayDeque<byte[]> free = mFree.get(array.length);
+        if (free == null) {
+            free = new ArrayDeque<byte[]>();
+            mFree.put(array.length, free);
+        }
+        if (free.size() < mMaxPerLength) {
+            free.addFirst(array);
+        }
+    }
+}
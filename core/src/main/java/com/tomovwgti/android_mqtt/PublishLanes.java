@@ -0,0 +1,262 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outbound lanes, each a queue of its own, served by weighted fair queuing.
+ *
+ * Topics are routed to lanes by filter, the most specific filter wins and
+ * topics no filter matches go to the default lane. A lane may override
+ * the QoS and retain flag of its messages. Every lane has a virtual pass
+ * that advances by the bytes sent divided by its weight, and the lane
+ * with the lowest pass is served next, so lanes share the link in
+ * proportion to their weights however many messages each has queued. A
+ * lane that was idle starts at the current virtual time instead of
+ * claiming the share it did not use.
+ */
+public class PublishLanes {
+
+    // pass units per byte at weight 1
+    private static final long PASS_SCALE = 1 << 16;
+    // counted for the fixed header and the topic length of a PUBLISH
+    private static final int PUBLISH_OVERHEAD = 4;
+
+    public static class Lane {
+        final String name;
+        final int weight;
+        // QoS and retain flag imposed on the messages, -1 and null keep theirs
+        final int qos;
+        final Boolean retained;
+        // may use the part of the in-flight window reserved for control
+        final boolean priority;
+        final PublishQueue queue;
+        long pass = 0;
+
+        /**
+         * @param name     lane name
+         * @param weight   share of the link relative to the other lanes
+         * @param qos      QoS of every message, -1 to keep the published one
+         * @param retained retain flag of every message, null to keep the published one
+         * @param capacity messages queued at most
+         * @param priority true for control traffic
+         */
+        public Lane(String name, int weight, int qos, Boolean retained, int capacity, boolean priority) {
+            if (weight <= 0) {
+                throw new IllegalArgumentException("weight must be positive");
+            }
+            this.name = name;
+            this.weight = weight;
+            this.qos = qos;
+            this.retained = retained;
+            this.priority = priority;
+            this.queue = new PublishQueue(capacity);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int size() {
+            return queue.size();
+        }
+    }
+
+    private static class Route {
+        final String filter;
+        final Lane lane;
+
+        Route(String filter, Lane lane) {
+            this.filter = filter;
+            this.lane = lane;
+        }
+    }
+
+    private final Map<String, Lane> mLanes = new HashMap<String, Lane>();
+    private final List<Lane> mOrder = new ArrayList<Lane>();
+    private final Lane mDefault;
+    private final TopicMatcher<Route> mRoutes = new TopicMatcher<Route>();
+    private final Map<String, Route> mRoutesByFilter = new HashMap<String, Route>();
+    // pass of the last message served
+    private long mVirtual = 0;
+    // messages queued in lanes without priority
+    private int mBulk = 0;
+
+    /**
+     * @param defaultLane lane of topics no filter matches
+     */
+    public PublishLanes(Lane defaultLane) {
+        mDefault = defaultLane;
+        addLane(defaultLane);
+    }
+
+    public synchronized void addLane(Lane lane) {
+        if (mLanes.containsKey(lane.name)) {
+            throw new IllegalArgumentException("Lane " + lane.name + " exists");
+        }
+        mLanes.put(lane.name, lane);
+        mOrder.add(lane);
+    }
+
+    public synchronized Lane getLane(String name) {
+        return mLanes.get(name);
+    }
+
+    public synchronized List<Lane> getLanes() {
+        return new ArrayList<Lane>(mOrder);
+    }
+
+    /**
+     * Sends the topics matching filter through the lane of name
+     */
+    public synchronized void route(String filter, String name) {
+        Lane lane = mLanes.get(name);
+        if (lane == null) {
+            throw new IllegalArgumentException("No lane " + name);
+        }
+        unroute(filter);
+        Route route = new Route(filter, lane);
+        mRoutes.add(filter, route);
+        mRoutesByFilter.put(filter, route);
+    }
+
+    public synchronized void unroute(String filter) {
+        Route route = mRoutesByFilter.remove(filter);
+        if (route != null) {
+            mRoutes.remove(filter, route);
+        }
+    }
+
+    /**
+     * Lane of topic
+     */
+    public synchronized Lane select(String topic) {
+        if (mRoutes.isEmpty()) {
+            return mDefault;
+        }
+        List<Route> routes = new ArrayList<Route>(2);
+        mRoutes.match(topic, routes);
+        Route best = null;
+        for (Route route : routes) {
+            if (best == null || TopicMatcher.moreSpecific(route.filter, best.filter)) {
+                best = route;
+            }
+        }
+        return best != null ? best.lane : mDefault;
+    }
+
+    /**
+     * Queues entry in lane, or in the lane its topic is routed to if lane is
+     * null, applying the overrides of the lane
+     *
+     * @return false if the lane is full
+     */
+    public synchronized boolean offer(PublishQueue.Entry entry, Lane lane) {
+        if (lane == null) {
+            lane = select(entry.topic);
+        }
+        if (lane.queue.size() == 0) {
+            // an idle lane does not get back the share it left unused
+            lane.pass = Math.max(lane.pass, mVirtual);
+        }
+        if (!lane.queue.offer(entry)) {
+            return false;
+        }
+        entry.lane = lane;
+        if (lane.qos >= 0) {
+            entry.qos = lane.qos;
+        }
+        if (lane.retained != null) {
+            entry.retained = lane.retained;
+        }
+        if (!lane.priority) {
+            mBulk++;
+        }
+        return true;
+    }
+
+    /**
+     * Moves entries into out in fair order
+     *
+     * @param slots         entries of any lane
+     * @param reservedSlots further entries of priority lanes only
+     * @return entries moved from lanes without priority
+     */
+    public synchronized int drainTo(List<PublishQueue.Entry> out, int slots, int reservedSlots) {
+        List<PublishQueue.Entry> one = new ArrayList<PublishQueue.Entry>(1);
+        int bulk = 0;
+        while (slots > 0 || reservedSlots > 0) {
+            Lane next = null;
+            for (Lane lane : mOrder) {
+                if (lane.queue.size() == 0 || (slots == 0 && !lane.priority)) {
+                    continue;
+                }
+                if (next == null || lane.pass < next.pass) {
+                    next = lane;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            one.clear();
+            next.queue.drainTo(one, 1);
+            PublishQueue.Entry entry = one.get(0);
+            mVirtual = next.pass;
+            next.pass += cost(entry) * PASS_SCALE / next.weight;
+            out.add(entry);
+            if (slots > 0) {
+                slots--;
+            } else {
+                reservedSlots--;
+            }
+            if (!next.priority) {
+                bulk++;
+                mBulk--;
+            }
+        }
+        return bulk;
+    }
+
+    /**
+     * Moves every entry of the lanes without priority into out, lane by
+     * lane, leaving the priority lanes as they are
+     *
+     * @return entries moved, all of them from lanes without priority
+     */
+    public synchronized int drainBulk(List<PublishQueue.Entry> out) {
+        for (Lane lane : mOrder) {
+            if (!lane.priority) {
+                lane.queue.drainTo(out, Integer.MAX_VALUE);
+            }
+        }
+        int bulk = mBulk;
+        mBulk = 0;
+        return bulk;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Lane lane : mOrder) {
+            size += lane.queue.size();
+        }
+        return size;
+    }
+
+    /**
+     * Is a message of a priority lane waiting?
+     */
+    public synchronized boolean hasPriority() {
+        for (Lane lane : mOrder) {
+            if (lane.priority && lane.queue.size() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long cost(PublishQueue.Entry entry) {
+        return entry.payload.length + entry.topic.length() + PUBLISH_OVERHEAD;
+    }
+}
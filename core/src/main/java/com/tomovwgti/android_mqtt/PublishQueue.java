@@ -0,0 +1,105 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.List;
+
+/**
+ * Bounded ring buffer of outgoing messages.
+ *
+ * Producers on any thread offer messages, the service drains them in
+ * batches on its connection handler thread.
+ */
+public class PublishQueue {
+
+    interface deliveryCallback {
+        void onDelivered(String topic, int status, String message);
+    }
+
+    /**
+     * A single queued publish
+     */
+    public static class Entry {
+        final String topic;
+        final byte[] payload;
+        // may be overridden by the lane the entry is queued in
+        int qos;
+        boolean retained;
+        final deliveryCallback callback;
+        // payload is owned by the PayloadPool and goes back once delivered
+        final boolean pooled;
+        // System.nanoTime() when the message was queued and last sent
+        final long queuedAt;
+        long sentAt;
+        // additional connection it was sent on, null for the primary one
+        PublishRoute connection;
+        // id the client gave a QoS 1 or 2 publish, 0 until it took it
+        int messageId;
+        // lane it is queued in, null if it came from the offline queue
+        PublishLanes.Lane lane;
+
+        Entry(String topic, byte[] payload, int qos, boolean retained, deliveryCallback callback) {
+            this(topic, payload, qos, retained, callback, false);
+        }
+
+        Entry(String topic, byte[] payload, int qos, boolean retained, deliveryCallback callback,
+              boolean pooled) {
+            this.topic = topic;
+            this.payload = payload;
+            this.qos = qos;
+            this.retained = retained;
+            this.callback = callback;
+            this.pooled = pooled;
+            this.queuedAt = System.nanoTime();
+        }
+    }
+
+    private final Entry[] mRing;
+    // index of the oldest entry
+    private int mHead = 0;
+    // number of queued entries
+    private int mSize = 0;
+
+    public PublishQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mRing = new Entry[capacity];
+    }
+
+    /**
+     * Add a message at the tail of the queue
+     *
+     * @return false if the queue is full
+     */
+    public synchronized boolean offer(Entry entry) {
+        if (mSize == mRing.length) {
+            return false;
+        }
+        mRing[(mHead + mSize) % mRing.length] = entry;
+        mSize++;
+        return true;
+    }
+
+    /**
+     * Move up to max entries, oldest first, into the given list
+     *
+     * @return number of entries moved
+     */
+    public synchronized int drainTo(List<Entry> out, int max) {
+        int n = Math.min(max, mSize);
+        for (int i = 0; i < n; i++) {
+            out.add(mRing[mHead]);
+            mRing[mHead] = null;
+            mHead = (mHead + 1) % mRing.length;
+        }
+        mSize -= n;
+        return n;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mRing.length;
+    }
+}
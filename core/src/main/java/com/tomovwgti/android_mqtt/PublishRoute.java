@@ -0,0 +1,17 @@
+package com.tomovwgti.android_mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * A connection other than the primary one that publishes can be routed to
+ */
+public interface PublishRoute {
+
+    /**
+     * @throws MqttException if the connection is down
+     */
+    void publish(String topic, MqttMessage message, Object userContext, IMqttActionListener listener)
+            throws MqttException;
+}
@@ -0,0 +1,839 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+
+/**
+ * The publish path of an engine, from the lanes to the PUBACK.
+ *
+ * Queues publishes in the lanes, sends them through the in-flight window
+ * of the primary connection or the queue of the additional connection
+ * their topic is routed to, parks them in the offline queue while the
+ * primary connection is down and drains it after the next connect. Tracks
+ * what is in flight, so a lost connection fails it and a resumed session
+ * completes it. Runs on the thread of the scheduler it is attached to.
+ */
+class Publisher {
+    private static final Logger LOG = Logger.getLogger(Publisher.class.getSimpleName());
+
+    /**
+     * The primary connection, as the engine owning it sees it
+     */
+    interface Connection {
+        boolean isConnected();
+
+        /**
+         * @return token of the publish, numbered as the client took it
+         * @throws MqttException if it is down
+         */
+        IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext,
+                                   IMqttActionListener listener) throws MqttException;
+
+        /**
+         * Does the next connect drop the session, and what the client kept
+         * in its store with it?
+         */
+        boolean isCleanSession();
+
+        /**
+         * A PUBACK arrived on it
+         */
+        void onAck();
+    }
+
+    // Largest payload recycled by the payload pool
+    private static final int PAYLOAD_POOL_MAX_LENGTH = 16 * 1024;
+    // Free arrays kept per payload length
+    private static final int PAYLOAD_POOL_PER_LENGTH = 64;
+    // Directory of the offline queue
+    private static final String OFFLINE_STORE_DIR = "mqtt-offline";
+    // Name the offline queue is opened with
+    private static final String OFFLINE_STORE_NAME = "MqttService";
+    // Messages kept while disconnected
+    private static final int OFFLINE_QUEUE_CAPACITY = 10000;
+    // Messages sent per step when draining the offline queue
+    private static final int OFFLINE_DRAIN_BATCH = 20;
+    // ms between steps when draining the offline queue
+    private static final long OFFLINE_DRAIN_INTERVAL = 100;
+    // Draining starts after a random delay up to this many ms
+    private static final long OFFLINE_DRAIN_MAX_DELAY = 1000 * 2;
+    // Capacity of the in-process publish queue
+    private static final int PUBLISH_QUEUE_CAPACITY = 4096;
+    // Publishes in flight at most, the async client fails any beyond its limit of 10
+    static final int MAX_IN_FLIGHT = 10;
+    // Part of the in-flight window only control messages use
+    private static final int CONTROL_RESERVE = 2;
+    // Capacity of the queue of control messages
+    private static final int CONTROL_QUEUE_CAPACITY = 256;
+    // Share of the link of the control lane against 1 of the default lane
+    private static final int CONTROL_LANE_WEIGHT = 8;
+    // Queued publishes at which producers are pushed back, and released again
+    private static final int PUBLISH_HIGH_WATERMARK = PUBLISH_QUEUE_CAPACITY * 3 / 4;
+    private static final int PUBLISH_LOW_WATERMARK = PUBLISH_QUEUE_CAPACITY / 4;
+    // How long a blocking publish waits for the queue to clear
+    private static final long PUBLISH_BLOCK_TIMEOUT = 1000 * 30;
+
+    /**
+     * Publishes routed to an additional connection, waiting for a slot of
+     * its in-flight window. Every connection has a window of its own, the
+     * lanes and the watermarks are those of the engine.
+     */
+    private static class RouteQueue {
+        final PublishRoute route;
+        final FlowControl flow = new FlowControl(MAX_IN_FLIGHT, CONTROL_RESERVE,
+                PUBLISH_HIGH_WATERMARK, PUBLISH_LOW_WATERMARK);
+        // messages of priority lanes go first and may use the reserve
+        final PublishQueue priority = new PublishQueue(CONTROL_QUEUE_CAPACITY);
+        final PublishQueue bulk = new PublishQueue(PUBLISH_QUEUE_CAPACITY);
+        // is a drain already posted? guarded by the queue
+        boolean scheduled = false;
+
+        RouteQueue(PublishRoute route) {
+            this.route = route;
+        }
+    }
+
+    private final Connection mConnection;
+    // Compresses payloads per topic, shared with the inbound path
+    private final CodecPipeline mCodecs;
+
+    // Thread of the platform and its additional connections, set on attach
+    private volatile Scheduler mScheduler;
+    private volatile MqttEngine.Router mRouter;
+
+    // Publishes waiting to be sent
+    private final PublishLanes mLanes = new PublishLanes(new PublishLanes.Lane(MqttEngine.LANE_DEFAULT, 1,
+            -1, null, PUBLISH_QUEUE_CAPACITY, false));
+    // In-flight window and watermarks of the publish queue
+    private final FlowControl mFlow = new FlowControl(MAX_IN_FLIGHT, CONTROL_RESERVE,
+            PUBLISH_HIGH_WATERMARK, PUBLISH_LOW_WATERMARK);
+    // Recycled arrays for ByteBuffer publishes
+    private final PayloadPool mPayloadPool =
+            new PayloadPool(PAYLOAD_POOL_MAX_LENGTH, PAYLOAD_POOL_PER_LENGTH);
+    // Publishes made while disconnected, null if its store could not be opened
+    private OfflineQueue mOfflineQueue;
+    // Is the offline queue being drained?
+    private volatile boolean mOfflineDraining = false;
+    private final Random mRandom = new Random();
+    // Is a drain of the publish queue already posted?
+    private boolean mDrainScheduled = false;
+    // Batching and QoS of the profile of the current link
+    private volatile long mPublishWindow = MqttEngine.PUBLISH_WINDOW;
+    private volatile int mPublishBatch = MqttEngine.PUBLISH_BATCH_SIZE;
+    private volatile int mMaxQos = MqttEngine.MQTT_QOS_2;
+    // Publishes sent but not yet acknowledged
+    private final Set<PublishQueue.Entry> mInFlight = new HashSet<PublishQueue.Entry>();
+    // Publishes of a lost connection the store of the client resends on the
+    // next connect of the persistent session, by message id, guarded by
+    // mInFlight. They keep their slots of the window.
+    private final Map<Integer, PublishQueue.Entry> mResuming = new HashMap<Integer, PublishQueue.Entry>();
+    // Window and waiting publishes of every additional connection
+    private final Map<PublishRoute, RouteQueue> mRouteQueues = new HashMap<PublishRoute, RouteQueue>();
+
+    // Publish path metrics of the engine, latencies are in microseconds
+    private final MetricsRegistry mMetrics;
+    private final AtomicLong mPublishQueued;
+    private final AtomicLong mPublishDropped;
+    private final AtomicLong mPublishSent;
+    private final AtomicLong mPublishAcked;
+    private final AtomicLong mPublishFailed;
+    private final AtomicLong mPublishRejected;
+    private final AtomicLong mDelivered;
+    // Payload bytes published before and after the codec
+    private final AtomicLong mBytesOut;
+    private final AtomicLong mWireBytesOut;
+    private final AtomicLong mQosDowngrades;
+    private final AtomicLong mPublishesResumed;
+    // queued until acknowledged, or until written for QoS 0
+    private final LatencyHistogram mPublishLatency;
+    // sent until acknowledged, QoS 1 and 2 only
+    private final LatencyHistogram mAckRtt;
+
+    Publisher(Connection connection, CodecPipeline codecs, MetricsRegistry metrics) {
+        mConnection = connection;
+        mCodecs = codecs;
+        mMetrics = metrics;
+        mPublishQueued = metrics.counter("publish.queued");
+        mPublishDropped = metrics.counter("publish.dropped");
+        mPublishSent = metrics.counter("publish.sent");
+        mPublishAcked = metrics.counter("publish.acked");
+        mPublishFailed = metrics.counter("publish.failed");
+        mPublishRejected = metrics.counter("publish.rejected");
+        mDelivered = metrics.counter("delivery.complete");
+        mBytesOut = metrics.counter("publish.bytes");
+        mWireBytesOut = metrics.counter("publish.wire_bytes");
+        mQosDowngrades = metrics.counter("publish.qos_downgraded");
+        mPublishesResumed = metrics.counter("session.publishes_resumed");
+        mPublishLatency = metrics.histogram("publish.latency");
+        mAckRtt = metrics.histogram("publish.ack_rtt");
+        mLanes.addLane(new PublishLanes.Lane(MqttEngine.LANE_CONTROL, CONTROL_LANE_WEIGHT, -1, null,
+                CONTROL_QUEUE_CAPACITY, true));
+        registerGauges();
+    }
+
+    /**
+     * Takes the thread of the platform and its additional connections, and
+     * opens the offline queue in dataDir unless it is open already
+     *
+     * @param window in-flight window from the settings
+     */
+    void attach(Scheduler scheduler, MqttEngine.Router router, File dataDir,
+                OfflineQueue.DropPolicy policy, int window) {
+        mScheduler = scheduler;
+        mRouter = router;
+        if (mOfflineQueue == null) {
+            openOfflineQueue(dataDir, policy);
+        }
+        // the window is left as is, stop() released the slots of
+        // whatever the last connection had in flight
+        mFlow.setWindow(Math.max(CONTROL_RESERVE + 1, Math.min(MAX_IN_FLIGHT, window)));
+    }
+
+    PublishLanes getLanes() {
+        return mLanes;
+    }
+
+    FlowControl getFlowControl() {
+        return mFlow;
+    }
+
+    PayloadPool getPayloadPool() {
+        return mPayloadPool;
+    }
+
+    /**
+     * Batching and QoS of the link the engine is on now
+     */
+    void applyProfile(TransportPolicy.Profile profile) {
+        mPublishWindow = profile.publishWindow;
+        mPublishBatch = profile.publishBatch;
+        mMaxQos = profile.maxQos;
+    }
+
+    /**
+     * Queues a publish in its lane. Failures are reported to the callback
+     * of the entry.
+     *
+     * @return false if it was rejected or dropped
+     */
+    boolean offer(PublishQueue.Entry entry, FlowControl.Mode mode) {
+        PublishLanes.Lane lane = entry.lane != null ? entry.lane : mLanes.select(entry.topic);
+        if (!lane.priority && !admit(mode)) {
+            mPublishRejected.incrementAndGet();
+            if (entry.callback != null) {
+                entry.callback.onDelivered(entry.topic, MqttException.REASON_CODE_MAX_INFLIGHT,
+                        "Publish queue congested");
+            }
+            return false;
+        }
+        if (!mLanes.offer(entry, lane)) {
+            mPublishDropped.incrementAndGet();
+            LOG.warning("Lane " + lane.name + " full, dropping message to " + entry.topic);
+            if (entry.callback != null) {
+                entry.callback.onDelivered(entry.topic, MqttException.REASON_CODE_MAX_INFLIGHT,
+                        "Publish queue full");
+            }
+            return false;
+        }
+        if (!lane.priority) {
+            mFlow.onQueued();
+        }
+        mPublishQueued.incrementAndGet();
+        return true;
+    }
+
+    private boolean admit(FlowControl.Mode mode) {
+        try {
+            return mFlow.admit(mode, PUBLISH_BLOCK_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Posts a drain of the publish queue to the engine thread. A full batch
+     * is drained right away, a partial one after the publish window of the
+     * link so that bursts of small messages are sent together.
+     */
+    synchronized void scheduleDrain() {
+        if (mDrainScheduled) {
+            return;
+        }
+        mDrainScheduled = true;
+        if (mLanes.hasPriority() || mLanes.size() >= mPublishBatch) {
+            mScheduler.post(mDrainRunnable);
+        } else {
+            mScheduler.postDelayed(mDrainRunnable, mPublishWindow);
+        }
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (Publisher.this) {
+                mDrainScheduled = false;
+            }
+            // a full window is drained again as acknowledgements free it
+            if (drainPublishQueue() > 0 && mLanes.size() > 0 && mConnection.isConnected()) {
+                scheduleDrain();
+            }
+        }
+    };
+
+    /**
+     * Sends one batch from the lanes in fair order, as far as the in-flight
+     * window allows. Runs on the engine thread. The async client returns as
+     * soon as a message is queued, so the whole window of QoS 1 messages is
+     * in flight at once.
+     *
+     * @return messages sent
+     */
+    private int drainPublishQueue() {
+        boolean connected = mConnection.isConnected();
+        if (!connected || mOfflineDraining) {
+            // park the bulk messages until the connection is up and the
+            // offline queue is empty, which keeps them in order. Priority
+            // lanes wait in memory and go first once connected.
+            moveToOfflineQueue();
+            if (!connected) {
+                return 0;
+            }
+        }
+
+        int size = mPublishBatch;
+        List<PublishQueue.Entry> batch = new ArrayList<PublishQueue.Entry>(size);
+        int slots = mFlow.acquire(size, false);
+        // what is left of the window is reserved for control lanes
+        int reserved = mFlow.acquire(size - slots, true);
+        mFlow.onDequeued(mLanes.drainTo(batch, slots, reserved));
+        mFlow.release(slots + reserved - batch.size());
+        for (PublishQueue.Entry entry : batch) {
+            dispatch(entry);
+        }
+        return batch.size();
+    }
+
+    /**
+     * Opens the offline queue in dataDir with policy
+     */
+    private void openOfflineQueue(File dataDir, OfflineQueue.DropPolicy policy) {
+        OfflineQueue queue = new OfflineQueue(new SegmentLogPersistence(
+                new File(dataDir, OFFLINE_STORE_DIR), MqttEngine.MQTT_STORE_SEGMENT_SIZE,
+                MqttEngine.MQTT_STORE_FLUSH_INTERVAL), OFFLINE_QUEUE_CAPACITY, policy, mLanes);
+        try {
+            queue.open(OFFLINE_STORE_NAME);
+            mOfflineQueue = queue;
+        } catch (MqttPersistenceException e) {
+            // publishes wait in the in-memory queue instead
+            LOG.log(Level.SEVERE, "Offline queue unavailable", e);
+        }
+    }
+
+    /**
+     * Moves the lanes without priority to the offline queue, so its drop
+     * policy never evicts a control message. Messages routed to an
+     * additional connection go to that one instead. Runs on the engine
+     * thread.
+     */
+    private void moveToOfflineQueue() {
+        if (mOfflineQueue == null) {
+            return;
+        }
+        List<PublishQueue.Entry> entries = new ArrayList<PublishQueue.Entry>(mLanes.size());
+        mFlow.onDequeued(mLanes.drainBulk(entries));
+        for (PublishQueue.Entry entry : entries) {
+            PublishRoute route = route(entry);
+            if (route != null) {
+                // its connection may well be up
+                queueRouted(entry, route);
+                continue;
+            }
+            try {
+                PublishQueue.Entry dropped = mOfflineQueue.add(entry);
+                if (dropped != null && dropped.callback != null) {
+                    dropped.callback.onDelivered(dropped.topic, MqttException.REASON_CODE_MAX_INFLIGHT,
+                            "Offline queue full");
+                }
+            } catch (MqttPersistenceException e) {
+                LOG.log(Level.SEVERE, "MqttPersistenceException: " + e.getMessage(), e);
+                if (entry.callback != null) {
+                    entry.callback.onDelivered(entry.topic, e.getReasonCode(), e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * The primary connection is up on client. Sends what the last
+     * connection left unacknowledged, then the offline queue and whatever
+     * was queued while disconnected.
+     */
+    void onConnected(MqttAsyncClient client) {
+        resumePublishes(client);
+        startOfflineDrain();
+        scheduleDrain();
+    }
+
+    /**
+     * Starts sending the offline queue after a random delay, so a fleet
+     * reconnecting together does not publish its backlog at the same moment
+     */
+    private void startOfflineDrain() {
+        if (mOfflineQueue == null || mOfflineQueue.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (mOfflineDraining) {
+                return;
+            }
+            mOfflineDraining = true;
+        }
+        long delay = (long) (mRandom.nextDouble() * OFFLINE_DRAIN_MAX_DELAY);
+        LOG.info("Draining " + mOfflineQueue.size() + " offline messages in " + delay + "ms");
+        mScheduler.postDelayed(mOfflineDrainRunnable, delay);
+    }
+
+    /**
+     * Sends OFFLINE_DRAIN_BATCH messages every OFFLINE_DRAIN_INTERVAL ms
+     * until the offline queue is empty
+     */
+    private final Runnable mOfflineDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mConnection.isConnected()) {
+                // picked up again by the next successful connect
+                mOfflineDraining = false;
+                return;
+            }
+            List<PublishQueue.Entry> batch = new ArrayList<PublishQueue.Entry>(OFFLINE_DRAIN_BATCH);
+            int slots = mFlow.acquire(OFFLINE_DRAIN_BATCH, false);
+            try {
+                mOfflineQueue.drainTo(batch, slots);
+            } catch (MqttPersistenceException e) {
+                LOG.log(Level.SEVERE, "MqttPersistenceException: " + e.getMessage(), e);
+            }
+            mFlow.release(slots - batch.size());
+            for (PublishQueue.Entry entry : batch) {
+                dispatch(entry);
+            }
+            if (!mOfflineQueue.isEmpty()) {
+                mScheduler.postDelayed(this, OFFLINE_DRAIN_INTERVAL);
+            } else {
+                // publishes parked meanwhile are in the offline queue too,
+                // new ones go out directly again
+                mOfflineDraining = false;
+                scheduleDrain();
+            }
+        }
+    };
+
+    /**
+     * Sends entry on the primary connection
+     */
+    private void publish(PublishQueue.Entry entry) {
+        MqttMessage message = newMessage(entry);
+        try {
+            // the client numbers QoS 1 and 2 messages as it takes them
+            entry.messageId = mConnection.publish(entry.topic, message, entry, mPublishListener)
+                    .getMessageId();
+            mPublishSent.incrementAndGet();
+        } catch (MqttException e) {
+            LOG.log(Level.SEVERE,
+                    "MqttException: " + (e.getMessage() != null ? e.getMessage() : "NULL"), e);
+            publishComplete(entry, e.getReasonCode(), e.getMessage());
+        }
+    }
+
+    /**
+     * Sends entry, which holds a slot of the primary window, on the
+     * primary connection or queues it for the one its topic is routed to
+     */
+    private void dispatch(PublishQueue.Entry entry) {
+        PublishRoute route = route(entry);
+        if (route == null) {
+            publish(entry);
+            return;
+        }
+        // the connection of the route has a window of its own
+        mFlow.release(1);
+        queueRouted(entry, route);
+    }
+
+    /**
+     * @return additional connection the topic of entry is routed to, null
+     * for the primary one
+     */
+    private PublishRoute route(PublishQueue.Entry entry) {
+        MqttEngine.Router router = mRouter;
+        return router != null ? router.route(entry.topic) : null;
+    }
+
+    private RouteQueue routeQueue(PublishRoute route) {
+        synchronized (mRouteQueues) {
+            RouteQueue queue = mRouteQueues.get(route);
+            if (queue == null) {
+                queue = new RouteQueue(route);
+                mRouteQueues.put(route, queue);
+            }
+            return queue;
+        }
+    }
+
+    /**
+     * Queues entry for route, failing it if the queue is full
+     */
+    private void queueRouted(PublishQueue.Entry entry, PublishRoute route) {
+        entry.connection = route;
+        RouteQueue queue = routeQueue(route);
+        boolean priority = entry.lane != null && entry.lane.priority;
+        if (!(priority ? queue.priority : queue.bulk).offer(entry)) {
+            mPublishDropped.incrementAndGet();
+            LOG.warning("Route queue full, dropping message to " + entry.topic);
+            if (entry.callback != null) {
+                entry.callback.onDelivered(entry.topic, MqttException.REASON_CODE_MAX_INFLIGHT,
+                        "Route queue full");
+            }
+            return;
+        }
+        scheduleRouteDrain(queue);
+    }
+
+    private void scheduleRouteDrain(final RouteQueue queue) {
+        synchronized (queue) {
+            if (queue.scheduled) {
+                return;
+            }
+            queue.scheduled = true;
+        }
+        mScheduler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (queue) {
+                    queue.scheduled = false;
+                }
+                drainRoute(queue);
+            }
+        });
+    }
+
+    /**
+     * Sends what the window of the connection of queue takes, priority
+     * messages first. Runs on the engine thread. A connection that is down
+     * fails its messages.
+     */
+    private void drainRoute(RouteQueue queue) {
+        List<PublishQueue.Entry> batch = new ArrayList<PublishQueue.Entry>();
+        int slots = queue.flow.acquire(queue.priority.size(), true);
+        queue.priority.drainTo(batch, slots);
+        int bulk = queue.flow.acquire(queue.bulk.size(), false);
+        queue.bulk.drainTo(batch, bulk);
+        queue.flow.release(slots + bulk - batch.size());
+        for (PublishQueue.Entry entry : batch) {
+            MqttMessage message = newMessage(entry);
+            try {
+                queue.route.publish(entry.topic, message, entry, mPublishListener);
+                mPublishSent.incrementAndGet();
+            } catch (MqttException e) {
+                publishComplete(entry, e.getReasonCode(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Message for entry, which is tracked as in flight from now on
+     */
+    private MqttMessage newMessage(PublishQueue.Entry entry) {
+        byte[] wire = mCodecs.encode(entry.topic, entry.payload);
+        mBytesOut.addAndGet(entry.payload.length);
+        mWireBytesOut.addAndGet(wire.length);
+        MqttMessage message = new MqttMessage(wire);
+        if (entry.qos > mMaxQos && (entry.lane == null || !entry.lane.priority)) {
+            // the link is metered, control messages keep their QoS
+            mQosDowngrades.incrementAndGet();
+            entry.qos = mMaxQos;
+        }
+        message.setQos(entry.qos);
+        message.setRetained(entry.retained);
+        entry.messageId = 0;
+        // every entry is tracked, the primary ones hold a slot of the window
+        synchronized (mInFlight) {
+            mInFlight.add(entry);
+        }
+        entry.sentAt = System.nanoTime();
+        return message;
+    }
+
+    /**
+     * Completes the publish passed as user context of the token
+     */
+    private final IMqttActionListener mPublishListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            PublishQueue.Entry entry = (PublishQueue.Entry) token.getUserContext();
+            if (entry.connection == null) {
+                mConnection.onAck();
+            }
+            // the entry was stamped with System.nanoTime()
+            long now = System.nanoTime();
+            mPublishAcked.incrementAndGet();
+            mPublishLatency.record((now - entry.queuedAt) / 1000);
+            if (entry.lane != null) {
+                mMetrics.histogram("publish.latency." + entry.lane.name)
+                        .record((now - entry.queuedAt) / 1000);
+            }
+            if (entry.qos > MqttEngine.MQTT_QOS_0) {
+                mAckRtt.record((now - entry.sentAt) / 1000);
+            }
+            publishComplete(entry, MqttEngine.STATUS_SUCCESS, null);
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable e) {
+            mPublishFailed.incrementAndGet();
+            publishComplete((PublishQueue.Entry) token.getUserContext(), MqttEngine.reasonCode(e),
+                    e.getMessage());
+        }
+    };
+
+    private void publishComplete(PublishQueue.Entry entry, int status, String message) {
+        synchronized (mInFlight) {
+            // report once, connectionLost may have failed it already
+            if (!mInFlight.remove(entry)) {
+                return;
+            }
+            if (status != MqttEngine.STATUS_SUCCESS && isResumable(entry)) {
+                // the store of the client sends it again on the next connect
+                mResuming.put(entry.messageId, entry);
+                return;
+            }
+        }
+        finishPublish(entry, status, message);
+    }
+
+    /**
+     * Frees the slot of entry and reports it to its callback
+     */
+    private void finishPublish(PublishQueue.Entry entry, int status, String message) {
+        if (entry.connection == null) {
+            mFlow.release(1);
+            if (mLanes.size() > 0) {
+                scheduleDrain();
+            }
+        } else {
+            RouteQueue queue = routeQueue(entry.connection);
+            queue.flow.release(1);
+            if (queue.priority.size() + queue.bulk.size() > 0) {
+                scheduleRouteDrain(queue);
+            }
+        }
+        if (entry.callback != null) {
+            entry.callback.onDelivered(entry.topic, status, message);
+        }
+        // a failed message may still be referenced for redelivery
+        if (entry.pooled && status == MqttEngine.STATUS_SUCCESS) {
+            mPayloadPool.release(entry.payload);
+        }
+    }
+
+    /**
+     * Is entry kept in the store of the client and sent again on the next
+     * connect, rather than failed with its connection?
+     */
+    private boolean isResumable(PublishQueue.Entry entry) {
+        return entry.connection == null && entry.qos > MqttEngine.MQTT_QOS_0 && entry.messageId != 0
+                && !mConnection.isCleanSession();
+    }
+
+    /**
+     * Takes up the publishes of the last connection. Those the client
+     * restored from its store complete through onDeliveryComplete(). The
+     * others, e.g. after a failover to a server with a store of its own,
+     * are sent again as new messages if they are QoS 1. A QoS 2 message may
+     * have reached the broker already, so it fails rather than risking a
+     * second delivery.
+     */
+    private void resumePublishes(MqttAsyncClient client) {
+        Set<Integer> restored = new HashSet<Integer>();
+        for (IMqttDeliveryToken token : client.getPendingDeliveryTokens()) {
+            if (token.getUserContext() == null) {
+                restored.add(messageId(token));
+            }
+        }
+        List<PublishQueue.Entry> resend = new ArrayList<PublishQueue.Entry>();
+        List<PublishQueue.Entry> failed = new ArrayList<PublishQueue.Entry>();
+        int resumed;
+        synchronized (mInFlight) {
+            Iterator<Map.Entry<Integer, PublishQueue.Entry>> it = mResuming.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, PublishQueue.Entry> e = it.next();
+                if (!restored.contains(e.getKey())) {
+                    (e.getValue().qos == MqttEngine.MQTT_QOS_2 ? failed : resend).add(e.getValue());
+                    it.remove();
+                }
+            }
+            resumed = mResuming.size();
+        }
+        if (resumed + resend.size() + failed.size() == 0) {
+            return;
+        }
+        LOG.info("Resuming " + resumed + " publishes from the store, sending " + resend.size()
+                + " again, failing " + failed.size() + " of QoS 2");
+        mPublishesResumed.addAndGet(resumed);
+        for (PublishQueue.Entry entry : resend) {
+            // still holds its slot of the window
+            publish(entry);
+        }
+        for (PublishQueue.Entry entry : failed) {
+            finishPublish(entry, MqttException.REASON_CODE_CONNECTION_LOST,
+                    "QoS 2 publish lost with the store of the last server, not sent twice");
+        }
+    }
+
+    /**
+     * Message id of token. The client leaves it at 0 on the tokens it
+     * restored from its store, they are keyed by the id instead.
+     */
+    static int messageId(IMqttDeliveryToken token) {
+        int id = token.getMessageId();
+        if (id == 0 && token instanceof MqttToken) {
+            try {
+                return Integer.parseInt(((MqttToken) token).internalTok.getKey());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * A publish of the primary connection completed. Completion is reported
+     * through mPublishListener, but for the publishes the client restored
+     * from its store.
+     */
+    void onDeliveryComplete(IMqttDeliveryToken token) {
+        mDelivered.incrementAndGet();
+        if (token.getUserContext() != null) {
+            return;
+        }
+        PublishQueue.Entry entry;
+        synchronized (mInFlight) {
+            entry = mResuming.remove(messageId(token));
+        }
+        if (entry != null) {
+            mPublishAcked.incrementAndGet();
+            finishPublish(entry, MqttEngine.STATUS_SUCCESS, null);
+        }
+    }
+
+    /**
+     * Fails the publishes of the primary connection still in flight or
+     * waiting for the next connect of the session, after a stop. Their
+     * slots of the window are released.
+     */
+    void abandon() {
+        failInFlight(null, MqttException.REASON_CODE_CLIENT_DISCONNECTING, "Stopped");
+        List<PublishQueue.Entry> parked;
+        synchronized (mInFlight) {
+            parked = new ArrayList<PublishQueue.Entry>(mResuming.values());
+            mResuming.clear();
+        }
+        for (PublishQueue.Entry entry : parked) {
+            finishPublish(entry, MqttException.REASON_CODE_CLIENT_DISCONNECTING,
+                    "Stopped before the session was resumed");
+        }
+    }
+
+    /**
+     * Reports every unacknowledged publish sent on route as failed, except
+     * those a persistent session resumes
+     *
+     * @param route null for the primary connection
+     */
+    void failInFlight(PublishRoute route, int reason, String message) {
+        List<PublishQueue.Entry> failed = new ArrayList<PublishQueue.Entry>();
+        synchronized (mInFlight) {
+            Iterator<PublishQueue.Entry> it = mInFlight.iterator();
+            while (it.hasNext()) {
+                PublishQueue.Entry entry = it.next();
+                if (entry.connection != route) {
+                    continue;
+                }
+                it.remove();
+                if (isResumable(entry)) {
+                    mResuming.put(entry.messageId, entry);
+                } else {
+                    failed.add(entry);
+                }
+            }
+        }
+        if (route == null) {
+            mFlow.release(failed.size());
+        } else {
+            RouteQueue queue = routeQueue(route);
+            queue.flow.release(failed.size());
+            // what waits is sent again or fails, as the connection is now
+            scheduleRouteDrain(queue);
+        }
+        for (PublishQueue.Entry entry : failed) {
+            if (entry.callback != null) {
+                entry.callback.onDelivered(entry.topic, reason, message);
+            }
+        }
+    }
+
+    private void registerGauges() {
+        mMetrics.gauge("publish.queue", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mLanes.size();
+            }
+        });
+        mMetrics.gauge("publish.inflight", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                synchronized (mInFlight) {
+                    return mInFlight.size();
+                }
+            }
+        });
+        mMetrics.gauge("publish.control_queue", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mLanes.getLane(MqttEngine.LANE_CONTROL).size();
+            }
+        });
+        mMetrics.gauge("publish.window", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                return mFlow.getInFlight();
+            }
+        });
+        mMetrics.gauge("offline.queue", new MetricsRegistry.Gauge() {
+            @Override
+            public long value() {
+                OfflineQueue queue = mOfflineQueue;
+                return queue != null ? queue.size() : 0;
+            }
+        });
+    }
+}
@@ -0,0 +1,57 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.Random;
+
+/**
+ * Reconnect delays with decorrelated jitter.
+ *
+ * Each delay is drawn between the base and three times the previous delay,
+ * capped at the maximum. Clients that lost the same broker at the same
+ * moment spread out after a couple of attempts instead of retrying in
+ * lockstep. The state lives in memory only.
+ */
+public class ReconnectBackoff {
+
+    private final long mBase;
+    private final long mCap;
+    private final Random mRandom;
+    private long mSleep;
+    private int mAttempts = 0;
+
+    /**
+     * @param base   shortest delay in ms
+     * @param cap    longest delay in ms
+     * @param random
+     */
+    public ReconnectBackoff(long base, long cap, Random random) {
+        mBase = base;
+        mCap = cap;
+        mRandom = random;
+        mSleep = base;
+    }
+
+    /**
+     * @return ms to wait before the next attempt
+     */
+    public synchronized long next() {
+        long upper = Math.min(mCap, mSleep * 3);
+        mSleep = mBase + (long) (mRandom.nextDouble() * (upper - mBase));
+        mAttempts++;
+        return mSleep;
+    }
+
+    /**
+     * Back to the base delay, after a successful connect
+     */
+    public synchronized void reset() {
+        mSleep = mBase;
+        mAttempts = 0;
+    }
+
+    /**
+     * Attempts since the last reset
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+}
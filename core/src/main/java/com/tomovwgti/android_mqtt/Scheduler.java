@@ -0,0 +1,32 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * The single thread the engine runs its work on.
+ *
+ * Tasks run one at a time in the order they are due. A wakeup is a task
+ * that must run even if the device sleeps until it is due, e.g. a
+ * reconnect after a long back off. Platforms that do not sleep run it
+ * like any delayed task.
+ */
+public interface Scheduler {
+
+    void post(Runnable task);
+
+    /**
+     * @param delay ms
+     */
+    void postDelayed(Runnable task, long delay);
+
+    /**
+     * Cancels every pending run of task, wakeups excepted
+     */
+    void remove(Runnable task);
+
+    /**
+     * Runs task after delay ms, waking the device if needed. Only one
+     * wakeup of a task is pending at a time, posting it again replaces it.
+     */
+    void postWakeup(Runnable task, long delay);
+
+    void removeWakeup(Runnable task);
+}
@@ -0,0 +1,527 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+
+/**
+ * MqttClientPersistence on an append-only log of memory-mapped segments.
+ *
+ * Every put and remove appends one record to the active segment, an
+ * in-memory index points at the latest record of each key. Writes land in
+ * the page cache right away, so they survive a crash of the process. A
+ * background thread forces dirty segments to flash every flushInterval ms,
+ * which bounds what a power loss can take and commits many writes with
+ * one sync.
+ *
+ * Segments are only deleted oldest first: a remove record always follows
+ * the put it cancels, so dropping the oldest segment never brings a
+ * removed key back on recovery. When the oldest segment holds few live
+ * records they are copied to the active segment before it is deleted.
+ *
+ * Record layout: int length, int crc32, byte type, short key length, key,
+ * then for a put int header length, header, int payload length, payload.
+ */
+public class SegmentLogPersistence implements MqttClientPersistence {
+
+    private static final Charset KEY_CHARSET = Charset.forName("UTF-8");
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    // length and crc
+    private static final int RECORD_PREFIX = 8;
+
+    // Copy the oldest segment forward once less than this part of it is live
+    private static final float COMPACT_LIVE_RATIO = 0.5f;
+    // Bytes copied out of a segment per CRC update
+    private static final int CRC_CHUNK = 8 * 1024;
+
+    private static class Segment {
+        final long id;
+        final File file;
+        final RandomAccessFile raf;
+        final MappedByteBuffer buf;
+        int writePos = 0;
+        // bytes of records still referenced by the index
+        int live = 0;
+
+        Segment(long id, File file, int size) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+
+        int capacity() {
+            return buf.capacity();
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // nothing left to release
+            }
+        }
+    }
+
+    /**
+     * Where the latest record of a key lives
+     */
+    private static class Location {
+        final Segment segment;
+        final int recordPos;
+        final int recordLength;
+        final int headerPos;
+        final int headerLength;
+        final int payloadPos;
+        final int payloadLength;
+
+        Location(Segment segment, int recordPos, int recordLength, int headerPos, int headerLength,
+                 int payloadPos, int payloadLength) {
+            this.segment = segment;
+            this.recordPos = recordPos;
+            this.recordLength = recordLength;
+            this.headerPos = headerPos;
+            this.headerLength = headerLength;
+            this.payloadPos = payloadPos;
+            this.payloadLength = payloadLength;
+        }
+    }
+
+    private final File mBaseDir;
+    private final int mSegmentSize;
+    private final long mFlushInterval;
+
+    private File mDir;
+    // oldest first, the last one is written to
+    private final LinkedList<Segment> mSegments = new LinkedList<Segment>();
+    private final Map<String, Location> mIndex = new HashMap<String, Location>();
+    private final Set<Segment> mDirty = new HashSet<Segment>();
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mCrcChunk = new byte[CRC_CHUNK];
+    private ScheduledExecutorService mFlusher;
+
+    /**
+     * @param baseDir       directory holding one sub directory per client
+     * @param segmentSize   bytes mapped per segment
+     * @param flushInterval ms between forcing dirty segments to storage
+     */
+    public SegmentLogPersistence(File baseDir, int segmentSize, long flushInterval) {
+        mBaseDir = baseDir;
+        mSegmentSize = segmentSize;
+        mFlushInterval = flushInterval;
+    }
+
+    /**
+     * Maps the segments of this client and rebuilds the index from them
+     */
+    @Override
+    public synchronized void open(String clientId, String serverURI) throws MqttPersistenceException {
+        File dir = new File(mBaseDir, sanitize(clientId + "-" + serverURI));
+        if (dir.equals(mDir)) {
+            // a new client for the same connection keeps the mapped segments
+            return;
+        }
+        if (mDir != null) {
+            close();
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_PERSISTENCE_IN_USE);
+        }
+        mDir = dir;
+        try {
+            recover();
+        } catch (IOException e) {
+            closeSegments();
+            mDir = null;
+            throw new MqttPersistenceException(e);
+        }
+
+        mFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SegmentLogPersistence-flush");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, mFlushInterval, mFlushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() throws MqttPersistenceException {
+        ScheduledExecutorService flusher;
+        synchronized (this) {
+            if (mDir == null) {
+                return;
+            }
+            flusher = mFlusher;
+            mFlusher = null;
+        }
+        flusher.shutdown();
+        flush();
+        synchronized (this) {
+            closeSegments();
+            mIndex.clear();
+            mDir = null;
+        }
+    }
+
+    @Override
+    public synchronized void put(String key, MqttPersistable persistable) throws MqttPersistenceException {
+        checkOpen();
+        byte[] keyBytes = key.getBytes(KEY_CHARSET);
+        int headerLength = persistable.getHeaderLength();
+        int payloadLength = persistable.getPayloadBytes() == null ? 0 : persistable.getPayloadLength();
+        // crc, type, key, header, payload
+        int bodyLength = 4 + 1 + 2 + keyBytes.length + 4 + headerLength + 4 + payloadLength;
+
+        try {
+            Segment segment = reserve(4 + bodyLength);
+            ByteBuffer buf = segment.buf;
+            int recordPos = segment.writePos;
+            buf.position(recordPos + RECORD_PREFIX);
+            buf.put(TYPE_PUT);
+            buf.putShort((short) keyBytes.length);
+            buf.put(keyBytes);
+            buf.putInt(headerLength);
+            int headerPos = buf.position();
+            buf.put(persistable.getHeaderBytes(), persistable.getHeaderOffset(), headerLength);
+            buf.putInt(payloadLength);
+            int payloadPos = buf.position();
+            if (payloadLength > 0) {
+                buf.put(persistable.getPayloadBytes(), persistable.getPayloadOffset(), payloadLength);
+            }
+            commit(segment, recordPos, bodyLength);
+
+            Location location = new Location(segment, recordPos, 4 + bodyLength,
+                    headerPos, headerLength, payloadPos, payloadLength);
+            segment.live += location.recordLength;
+            release(mIndex.put(key, location));
+        } catch (IOException e) {
+            throw new MqttPersistenceException(e);
+        }
+    }
+
+    @Override
+    public synchronized MqttPersistable get(String key) throws MqttPersistenceException {
+        checkOpen();
+        Location location = mIndex.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer buf = location.segment.buf.duplicate();
+        byte[] header = new byte[location.headerLength];
+        buf.position(location.headerPos);
+        buf.get(header);
+        byte[] payload = new byte[location.payloadLength];
+        buf.position(location.payloadPos);
+        buf.get(payload);
+        return new MqttPersistentData(key, header, 0, header.length, payload, 0, payload.length);
+    }
+
+    @Override
+    public synchronized void remove(String key) throws MqttPersistenceException {
+        checkOpen();
+        Location location = mIndex.remove(key);
+        if (location == null) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(KEY_CHARSET);
+        int bodyLength = 4 + 1 + 2 + keyBytes.length;
+        try {
+            Segment segment = reserve(4 + bodyLength);
+            int recordPos = segment.writePos;
+            ByteBuffer buf = segment.buf;
+            buf.position(recordPos + RECORD_PREFIX);
+            buf.put(TYPE_REMOVE);
+            buf.putShort((short) keyBytes.length);
+            buf.put(keyBytes);
+            commit(segment, recordPos, bodyLength);
+        } catch (IOException e) {
+            // the index no longer has the key, the put comes back on recovery
+            throw new MqttPersistenceException(e);
+        } finally {
+            release(location);
+        }
+    }
+
+    @Override
+    public synchronized Enumeration keys() throws MqttPersistenceException {
+        checkOpen();
+        return Collections.enumeration(new ArrayList<String>(mIndex.keySet()));
+    }
+
+    @Override
+    public synchronized void clear() throws MqttPersistenceException {
+        checkOpen();
+        for (Segment segment : mSegments) {
+            segment.close();
+            segment.file.delete();
+        }
+        mSegments.clear();
+        mDirty.clear();
+        mIndex.clear();
+    }
+
+    @Override
+    public synchronized boolean containsKey(String key) throws MqttPersistenceException {
+        checkOpen();
+        return mIndex.containsKey(key);
+    }
+
+    /**
+     * Forces every segment written since the last flush to storage
+     */
+    public void flush() {
+        List<Segment> dirty;
+        synchronized (this) {
+            if (mDirty.isEmpty()) {
+                return;
+            }
+            dirty = new ArrayList<Segment>(mDirty);
+            mDirty.clear();
+        }
+        // outside the lock, puts keep going while the sync runs
+        for (Segment segment : dirty) {
+            segment.buf.force();
+        }
+    }
+
+    /**
+     * Number of keys in the store
+     */
+    public synchronized int size() {
+        return mIndex.size();
+    }
+
+    private void checkOpen() throws MqttPersistenceException {
+        if (mDir == null) {
+            throw new MqttPersistenceException(MqttPersistenceException.REASON_CODE_CLIENT_CLOSED);
+        }
+    }
+
+    /**
+     * Returns a segment with room for length more bytes, rolling over to a
+     * new one if the active segment is full
+     */
+    private Segment reserve(int length) throws IOException {
+        Segment active = mSegments.isEmpty() ? null : mSegments.getLast();
+        if (fits(active, length)) {
+            return active;
+        }
+        roll(length);
+        // copying live records forward may use up the new segment
+        compact();
+        active = mSegments.getLast();
+        if (fits(active, length)) {
+            return active;
+        }
+        return roll(length);
+    }
+
+    private static boolean fits(Segment segment, int length) {
+        // keep room for the zero length that ends the segment
+        return segment != null && segment.writePos + length + 4 <= segment.capacity();
+    }
+
+    private Segment roll(int length) throws IOException {
+        long id = mSegments.isEmpty() ? 0 : mSegments.getLast().id + 1;
+        Segment segment = new Segment(id, segmentFile(id), Math.max(mSegmentSize, length + 4));
+        mSegments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Fills in length and crc of the record at recordPos and moves the
+     * write position past it
+     */
+    private void commit(Segment segment, int recordPos, int bodyLength) {
+        ByteBuffer buf = segment.buf;
+        buf.putInt(recordPos + 4, crc(buf, recordPos + RECORD_PREFIX, bodyLength - 4));
+        // the length goes last, a torn record reads as the end of the log
+        buf.putInt(recordPos, bodyLength);
+        segment.writePos = recordPos + 4 + bodyLength;
+        mDirty.add(segment);
+    }
+
+    /**
+     * CRC32 of length bytes of buf from pos, leaves the position of buf
+     * alone. Mapped buffers have no array, so the bytes go through a chunk.
+     */
+    private int crc(ByteBuffer buf, int pos, int length) {
+        ByteBuffer slice = buf.duplicate();
+        slice.position(pos);
+        mCrc.reset();
+        while (length > 0) {
+            int n = Math.min(length, mCrcChunk.length);
+            slice.get(mCrcChunk, 0, n);
+            mCrc.update(mCrcChunk, 0, n);
+            length -= n;
+        }
+        return (int) mCrc.getValue();
+    }
+
+    private void release(Location location) {
+        if (location != null) {
+            location.segment.live -= location.recordLength;
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while they hold few live records, copying
+     * those forward first
+     */
+    private void compact() throws IOException {
+        while (mSegments.size() > 1) {
+            Segment oldest = mSegments.getFirst();
+            if (oldest.live > oldest.writePos * COMPACT_LIVE_RATIO) {
+                return;
+            }
+            if (oldest.live > 0) {
+                List<String> keys = new ArrayList<String>();
+                for (Map.Entry<String, Location> entry : mIndex.entrySet()) {
+                    if (entry.getValue().segment == oldest) {
+                        keys.add(entry.getKey());
+                    }
+                }
+                if (!fits(mSegments.getLast(), oldest.live)) {
+                    // no room to copy forward, leave it for the next roll over
+                    return;
+                }
+                try {
+                    for (String key : keys) {
+                        put(key, get(key));
+                    }
+                } catch (MqttPersistenceException e) {
+                    throw new IOException(e);
+                }
+            }
+            mSegments.removeFirst();
+            mDirty.remove(oldest);
+            oldest.close();
+            oldest.file.delete();
+        }
+    }
+
+    /**
+     * Maps every segment on disk and replays its records into the index
+     */
+    private void recover() throws IOException {
+        File[] files = mDir.listFiles();
+        List<Long> ids = new ArrayList<Long>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    String id = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+                    try {
+                        ids.add(Long.parseLong(id, 16));
+                    } catch (NumberFormatException e) {
+                        // not ours
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        for (Long id : ids) {
+            Segment segment = new Segment(id, segmentFile(id), 0);
+            mSegments.addLast(segment);
+            replay(segment);
+        }
+    }
+
+    private void replay(Segment segment) {
+        ByteBuffer buf = segment.buf;
+        int pos = 0;
+        while (pos + RECORD_PREFIX <= segment.capacity()) {
+            int bodyLength = buf.getInt(pos);
+            if (bodyLength < 4 + 1 + 2 || pos + 4 + bodyLength > segment.capacity()) {
+                break;
+            }
+            if (crc(buf, pos + RECORD_PREFIX, bodyLength - 4) != buf.getInt(pos + 4)) {
+                // torn write at the tail
+                break;
+            }
+
+            buf.position(pos + RECORD_PREFIX);
+            byte type = buf.get();
+            byte[] keyBytes = new byte[buf.getShort()];
+            buf.get(keyBytes);
+            String key = new String(keyBytes, KEY_CHARSET);
+            if (type == TYPE_PUT) {
+                int headerLength = buf.getInt();
+                int headerPos = buf.position();
+                buf.position(headerPos + headerLength);
+                int payloadLength = buf.getInt();
+                Location location = new Location(segment, pos, 4 + bodyLength, headerPos, headerLength,
+                        buf.position(), payloadLength);
+                segment.live += location.recordLength;
+                release(mIndex.put(key, location));
+            } else if (type == TYPE_REMOVE) {
+                release(mIndex.remove(key));
+            }
+            pos += 4 + bodyLength;
+        }
+        segment.writePos = pos;
+        // zero anything past a torn record so it is not mistaken for data later
+        for (int i = pos; i < Math.min(pos + RECORD_PREFIX, segment.capacity()); i++) {
+            buf.put(i, (byte) 0);
+        }
+    }
+
+    private void closeSegments() {
+        for (Segment segment : mSegments) {
+            segment.close();
+        }
+        mSegments.clear();
+        mDirty.clear();
+    }
+
+    private File segmentFile(long id) {
+        return new File(mDir, String.format("%016x", id) + SEGMENT_SUFFIX);
+    }
+
+    private static String sanitize(String name) {
+        char[] chars = name.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (!Character.isLetterOrDigit(chars[i]) && chars[i] != '-') {
+                chars[i] = '_';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,226 @@
+package com.tomovwgti.android_mqtt;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Picks the broker to connect to from a list of servers.
+ *
+ * Tracks per server the round trip measured by probes, the connect time,
+ * the time to the first acknowledgement after connecting and the recent
+ * failures. A failed server sits out a cooldown that doubles with every
+ * consecutive failure. Each measurement is turned into an estimate of one
+ * round trip: a probe is one, a connect takes a round trip per handshake
+ * step of its scheme, a first acknowledgement is one plus the time the
+ * broker took. Their mean is the score of the server, so a broker that is
+ * close but slow to answer loses to one a bit further away. Of the servers
+ * not cooling down the one with the lowest score wins, servers not
+ * measured yet come after in list order. If every server is cooling down
+ * the one that is free soonest is used anyway.
+ */
+public class ServerSelector {
+
+    // weight of a new sample in the moving averages
+    private static final double EWMA_WEIGHT = 0.3;
+    // a server must be this much faster to fail back to it
+    private static final double FAILBACK_MARGIN = 0.3;
+    // and at least this many ms faster
+    private static final long FAILBACK_MIN_GAIN = 20;
+
+    public static class Server {
+        final String uri;
+        final String host;
+        final int port;
+        // round trips of a connect: TCP, TLS, WebSocket upgrade and CONNECT
+        final int connectRoundTrips;
+        // moving averages in ms, -1 until measured
+        long rtt = -1;
+        long connectTime = -1;
+        long firstAck = -1;
+        // failures since the last success
+        int failures = 0;
+        long totalFailures = 0;
+        long connects = 0;
+        // System.currentTimeMillis() the cooldown ends
+        long retryAt = 0;
+
+        Server(String uri) {
+            this.uri = uri;
+            URI parsed = URI.create(uri);
+            this.host = parsed.getHost();
+            this.port = parsed.getPort() > 0 ? parsed.getPort()
+                    : SocketTransport.defaultPort(parsed.getScheme());
+            this.connectRoundTrips = connectRoundTrips(parsed.getScheme());
+        }
+
+        /**
+         * Estimated ms of one round trip, -1 until anything was measured
+         */
+        long score() {
+            long sum = 0;
+            int n = 0;
+            if (rtt >= 0) {
+                sum += rtt;
+                n++;
+            }
+            if (connectTime >= 0) {
+                sum += connectTime / connectRoundTrips;
+                n++;
+            }
+            if (firstAck >= 0) {
+                sum += firstAck;
+                n++;
+            }
+            return n > 0 ? sum / n : -1;
+        }
+
+        public String getUri() {
+            return uri;
+        }
+
+        @Override
+        public String toString() {
+            return uri + " score=" + score() + " rtt=" + rtt + " connect=" + connectTime
+                    + " firstAck=" + firstAck
+                    + " failures=" + failures + "/" + totalFailures;
+        }
+    }
+
+    private final List<Server> mServers = new ArrayList<Server>();
+    private final long mCooldown;
+    private final long mMaxCooldown;
+
+    /**
+     * @param uris        servers in order of preference, e.g. tcp://host:1883 or ssl://host:8883
+     * @param cooldown    ms a server sits out after its first failure
+     * @param maxCooldown longest cooldown in ms
+     */
+    public ServerSelector(List<String> uris, long cooldown, long maxCooldown) {
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("no servers");
+        }
+        for (String uri : uris) {
+            mServers.add(new Server(uri));
+        }
+        mCooldown = cooldown;
+        mMaxCooldown = maxCooldown;
+    }
+
+    public synchronized int size() {
+        return mServers.size();
+    }
+
+    /**
+     * The server for the next connect
+     */
+    public synchronized Server select(long now) {
+        Server best = null;
+        for (Server server : mServers) {
+            if (server.retryAt > now) {
+                continue;
+            }
+            if (best == null || faster(server, best)) {
+                best = server;
+            }
+        }
+        if (best == null) {
+            for (Server server : mServers) {
+                if (best == null || server.retryAt < best.retryAt) {
+                    best = server;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * A server clearly faster than current and not cooling down, to fail
+     * back to
+     *
+     * @return null if current is good enough
+     */
+    public synchronized Server better(Server current, long now) {
+        Server best = select(now);
+        long bestScore = best.score();
+        if (best == current || bestScore < 0 || best.retryAt > now) {
+            return null;
+        }
+        long currentScore = current.score();
+        if (currentScore < 0) {
+            return best;
+        }
+        long gain = currentScore - bestScore;
+        if (gain >= FAILBACK_MIN_GAIN && gain >= currentScore * FAILBACK_MARGIN) {
+            return best;
+        }
+        return null;
+    }
+
+    public synchronized void onConnected(Server server, long connectTime) {
+        server.connectTime = average(server.connectTime, connectTime);
+        server.failures = 0;
+        server.retryAt = 0;
+        server.connects++;
+    }
+
+    /**
+     * First acknowledgement from the broker after connecting
+     */
+    public synchronized void onFirstAck(Server server, long millis) {
+        server.firstAck = average(server.firstAck, millis);
+    }
+
+    public synchronized void onFailure(Server server, long now) {
+        server.failures++;
+        server.totalFailures++;
+        long cooldown = mCooldown << Math.min(server.failures - 1, 20);
+        server.retryAt = now + Math.min(cooldown, mMaxCooldown);
+    }
+
+    /**
+     * Result of a probe, a TCP connect to the server
+     *
+     * @param rtt ms the connect took, -1 if it failed
+     */
+    public synchronized void onProbe(Server server, long rtt, long now) {
+        if (rtt < 0) {
+            onFailure(server, now);
+        } else {
+            server.rtt = average(server.rtt, rtt);
+        }
+    }
+
+    public synchronized List<Server> getServers() {
+        return Collections.unmodifiableList(new ArrayList<Server>(mServers));
+    }
+
+    private static boolean faster(Server a, Server b) {
+        long score = a.score();
+        if (score < 0) {
+            // not measured, keep the list order
+            return false;
+        }
+        long other = b.score();
+        return other < 0 || score < other;
+    }
+
+    private static int connectRoundTrips(String scheme) {
+        int n = 2;
+        if (SocketTransport.SCHEME_TLS.equals(scheme) || SocketTransport.SCHEME_WSS.equals(scheme)) {
+            n += 2;
+        }
+        if (SocketTransport.SCHEME_WS.equals(scheme) || SocketTransport.SCHEME_WSS.equals(scheme)) {
+            n++;
+        }
+        return n;
+    }
+
+    private static long average(long average, long sample) {
+        if (average < 0) {
+            return sample;
+        }
+        return (long) (average + EWMA_WEIGHT * (sample - average));
+    }
+}
@@ -0,0 +1,166 @@
+package com.tomovwgti.android_mqtt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Topic filters the broker holds in the persistent session of the client,
+ * with the QoS they were subscribed with.
+ *
+ * A filter is added once its SUBACK arrived and removed once its UNSUBACK
+ * did, so a reconnect that finds the session present only sends what
+ * changed meanwhile. A missing or stale file costs no more than a full
+ * resubscribe, which the broker takes as a no-op for filters it holds.
+ *
+ * A session belongs to a server and a client ID. The filters only count
+ * for a reconnect to the same server with the same ID.
+ */
+public class SessionState {
+
+    // Format version of the file
+    private static final int VERSION = 2;
+
+    private final File mFile;
+    // server URI and client ID of the session, null until set
+    private String mServer;
+    private String mClientId;
+    private final Map<String, Integer> mFilters = new HashMap<String, Integer>();
+    // changed since the last save?
+    private boolean mDirty = false;
+
+    public SessionState(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Filters were granted, failed ones must not be passed
+     */
+    public synchronized void add(String[] filters, int[] qos) {
+        for (int i = 0; i < filters.length; i++) {
+            Integer old = mFilters.put(filters[i], qos[i]);
+            mDirty |= old == null || old != qos[i];
+        }
+    }
+
+    public synchronized void remove(String[] filters) {
+        for (String filter : filters) {
+            mDirty |= mFilters.remove(filter) != null;
+        }
+    }
+
+    /**
+     * Is this the state of the session of clientId on server?
+     */
+    public synchronized boolean isOf(String server, String clientId) {
+        return server.equals(mServer) && clientId.equals(mClientId);
+    }
+
+    /**
+     * A new session of clientId started on server, which holds nothing
+     */
+    public synchronized void reset(String server, String clientId) {
+        mDirty |= !server.equals(mServer) || !clientId.equals(mClientId);
+        mServer = server;
+        mClientId = clientId;
+        clear();
+    }
+
+    /**
+     * The broker started a new session, which holds nothing
+     */
+    public synchronized void clear() {
+        mDirty |= !mFilters.isEmpty();
+        mFilters.clear();
+    }
+
+    public synchronized int size() {
+        return mFilters.size();
+    }
+
+    /**
+     * Packets that take the session from the filters it holds to wanted
+     */
+    public synchronized SubscriptionRegistry.Change diff(Map<String, Integer> wanted) {
+        SubscriptionRegistry.Change change = new SubscriptionRegistry.Change();
+        for (Map.Entry<String, Integer> e : wanted.entrySet()) {
+            if (!e.getValue().equals(mFilters.get(e.getKey()))) {
+                change.subscribe.put(e.getKey(), e.getValue());
+            }
+        }
+        for (String filter : mFilters.keySet()) {
+            if (!wanted.containsKey(filter)) {
+                change.unsubscribe.add(filter);
+            }
+        }
+        return change;
+    }
+
+    /**
+     * Writes the filters if they changed, replacing the file at once
+     */
+    public synchronized void save() throws IOException {
+        if (!mDirty) {
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(mServer != null ? mServer : "");
+            out.writeUTF(mClientId != null ? mClientId : "");
+            out.writeInt(mFilters.size());
+            for (Map.Entry<String, Integer> e : mFilters.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeByte(e.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("Cannot rename " + tmp + " to " + mFile);
+        }
+        mDirty = false;
+    }
+
+    /**
+     * Replaces the filters with those of the file
+     *
+     * @return false if there is no file
+     */
+    public synchronized boolean load() throws IOException {
+        if (!mFile.exists()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unknown version of " + mFile);
+            }
+            String server = in.readUTF();
+            String clientId = in.readUTF();
+            Map<String, Integer> filters = new HashMap<String, Integer>();
+            for (int n = in.readInt(); n > 0; n--) {
+                filters.put(in.readUTF(), (int) in.readByte());
+            }
+            mServer = server.length() > 0 ? server : null;
+            mClientId = clientId.length() > 0 ? clientId : null;
+            mFilters.clear();
+            mFilters.putAll(filters);
+            mDirty = false;
+            return true;
+        } catch (EOFException e) {
+            throw new IOException("Truncated " + mFile);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.Map;
+
+/**
+ * Small persistent key value store for settings and learned state, the
+ * shared preferences on Android. Writes may be persisted asynchronously.
+ */
+public interface SettingsStore {
+
+    Map<String, ?> getAll();
+
+    int getInt(String key, int defValue);
+
+    String getString(String key, String defValue);
+
+    boolean getBoolean(String key, boolean defValue);
+
+    void putInt(String key, int value);
+
+    void putString(String key, String value);
+
+    void putBoolean(String key, boolean value);
+
+    void remove(String key);
+}
@@ -0,0 +1,527 @@
+package com.tomovwgti.android_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.internal.NetworkModule;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Opens the connections of the primary client in place of the network
+ * modules of Paho, and times every phase of them.
+ *
+ * The host is looked up through a HostResolver, which caches the answers.
+ * Its addresses are tried alternating between IPv6 and IPv4, the next one
+ * as soon as the previous failed or did not answer within the attempt
+ * delay, and the first one that connects wins. A broken address or family
+ * costs the delay and not the connect timeout.
+ *
+ * TLS is layered over the connected socket with the host name, which SNI
+ * and the session cache are keyed by. One SSLContext serves every connect,
+ * so its session cache outlives the connection and a reconnect resumes the
+ * TLS session with an abbreviated handshake.
+ *
+ * prewarm() opens a standby connection ahead of the connect, e.g. while a
+ * link that came back is still debounced. The next connect to the same
+ * server takes it and only has to send CONNECT. WebSocket transports are
+ * not offered, the client does not have them before Paho 1.2.
+ */
+public class SocketTransport {
+    private static final Logger LOG = Logger.getLogger(SocketTransport.class.getSimpleName());
+
+    // Schemes of the server URIs
+    public static final String SCHEME_TCP = "tcp";
+    public static final String SCHEME_TLS = "ssl";
+    public static final String SCHEME_WS = "ws";
+    public static final String SCHEME_WSS = "wss";
+    // Ports of servers given without one
+    public static final int PORT_TCP = 1883;
+    public static final int PORT_TLS = 8883;
+    // ms an address may take before the next one is tried alongside
+    public static final long ATTEMPT_DELAY = 250;
+    // ms a standby connection is kept, brokers drop connections that do not
+    // send CONNECT for long
+    public static final long STANDBY_MAX_AGE = 1000 * 10;
+
+    /**
+     * A connection and what opening it took, recorded once it is used
+     */
+    private static class Opened {
+        final Socket socket;
+        // us, tls -1 for tcp://
+        final long dns;
+        final long tcp;
+        final long tls;
+        final boolean resumed;
+        final boolean fallback;
+        // Clock.nanoTime() it was ready at
+        final long readyAt;
+
+        Opened(Socket socket, long dns, long tcp, long tls, boolean resumed, boolean fallback,
+               long readyAt) {
+            this.socket = socket;
+            this.dns = dns;
+            this.tcp = tcp;
+            this.tls = tls;
+            this.resumed = resumed;
+            this.fallback = fallback;
+            this.readyAt = readyAt;
+        }
+    }
+
+    /**
+     * Connection opened ahead of its connect
+     */
+    private static class Standby {
+        final String uri;
+        final Opened opened;
+
+        Standby(String uri, Opened opened) {
+            this.uri = uri;
+            this.opened = opened;
+        }
+    }
+
+    private final Clock mClock;
+    private final HostResolver mResolver;
+    // Connect attempts and standby connections
+    private final ExecutorService mExecutor;
+    private final LatencyHistogram mDnsTime;
+    private final LatencyHistogram mTcpTime;
+    private final LatencyHistogram mTlsTime;
+    private final AtomicLong mHandshakes;
+    private final AtomicLong mResumed;
+    private final AtomicLong mFallbacks;
+    private final AtomicLong mStandbyUsed;
+    private final AtomicLong mStandbyExpired;
+
+    // null until the first TLS connect, which takes the platform default
+    private SSLContext mContext;
+    private SSLSocketFactory mTlsFactory;
+    private volatile long mAttemptDelay = ATTEMPT_DELAY;
+    // Ready standby connection, and the uri one is being opened for
+    private Standby mStandby;
+    private String mWarming;
+    // Clock.nanoTime() the last connection was ready for the CONNECT packet
+    private volatile long mReadyAt = 0;
+
+    public SocketTransport(Clock clock, MetricsRegistry metrics, HostResolver resolver) {
+        mClock = clock;
+        mResolver = resolver;
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, SocketTransport.class.getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mDnsTime = metrics.histogram("connect.dns");
+        mTcpTime = metrics.histogram("connect.tcp");
+        mTlsTime = metrics.histogram("connect.tls");
+        mHandshakes = metrics.counter("tls.handshakes");
+        mResumed = metrics.counter("tls.resumed");
+        mFallbacks = metrics.counter("connect.fallbacks");
+        mStandbyUsed = metrics.counter("connect.standby_used");
+        mStandbyExpired = metrics.counter("connect.standby_expired");
+    }
+
+    /**
+     * Context of the TLS connects from now on, e.g. one trusting a private
+     * CA. Its session cache is what reconnects resume from.
+     */
+    public synchronized void setContext(SSLContext context) {
+        mContext = context;
+        mTlsFactory = null;
+    }
+
+    /**
+     * ms an address may take before the next one is tried alongside, at
+     * least the connect timeout to try them one after the other
+     */
+    public void setAttemptDelay(long delay) {
+        mAttemptDelay = delay;
+    }
+
+    public HostResolver getResolver() {
+        return mResolver;
+    }
+
+    /**
+     * Is there a transport for the scheme of uri?
+     */
+    public static boolean supports(String uri) {
+        String scheme = URI.create(uri).getScheme();
+        return SCHEME_TCP.equals(scheme) || SCHEME_TLS.equals(scheme);
+    }
+
+    public static int defaultPort(String scheme) {
+        return SCHEME_TLS.equals(scheme) || SCHEME_WSS.equals(scheme) ? PORT_TLS : PORT_TCP;
+    }
+
+    /**
+     * Clock.nanoTime() the last connection was ready for CONNECT, i.e.
+     * connected and for TLS handshaken, or taken from standby
+     */
+    public long getReadyAt() {
+        return mReadyAt;
+    }
+
+    /**
+     * Network module of a client of uri
+     *
+     * @param timeout ms of the TCP connect and of the TLS handshake each, 0 for none
+     */
+    public NetworkModule newModule(final String uri, final int timeout) {
+        return new NetworkModule() {
+            private Socket mSocket;
+
+            @Override
+            public void start() throws IOException, MqttException {
+                Opened opened = takeStandby(uri);
+                if (opened == null) {
+                    try {
+                        opened = open(uri, timeout);
+                    } catch (ConnectException e) {
+                        throw new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR, e);
+                    }
+                    mReadyAt = opened.readyAt;
+                }
+                record(opened);
+                mSocket = opened.socket;
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return mSocket.getInputStream();
+            }
+
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return mSocket.getOutputStream();
+            }
+
+            @Override
+            public void stop() throws IOException {
+                if (mSocket != null) {
+                    mSocket.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Opens a standby connection to uri off the calling thread, unless there
+     * is a fresh one or one is being opened
+     */
+    public void prewarm(final String uri, final int timeout) {
+        synchronized (this) {
+            if (uri.equals(mWarming) || (mStandby != null && mStandby.uri.equals(uri)
+                    && mClock.nanoTime() - mStandby.opened.readyAt < STANDBY_MAX_AGE * 1000000)) {
+                return;
+            }
+            mWarming = uri;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Opened opened = null;
+                try {
+                    opened = open(uri, timeout);
+                } catch (IOException e) {
+                    LOG.info("Standby connection to " + uri + " failed: " + e.getMessage());
+                }
+                Standby old;
+                synchronized (SocketTransport.this) {
+                    if (!uri.equals(mWarming)) {
+                        // closed meanwhile
+                        if (opened != null) {
+                            closeQuietly(opened.socket);
+                        }
+                        return;
+                    }
+                    mWarming = null;
+                    old = mStandby;
+                    mStandby = opened != null ? new Standby(uri, opened) : null;
+                }
+                if (old != null) {
+                    closeQuietly(old.opened.socket);
+                }
+            }
+        });
+    }
+
+    /**
+     * Closes the standby connection, e.g. as the network it was opened on
+     * is gone
+     */
+    public void closeStandby() {
+        Standby standby;
+        synchronized (this) {
+            standby = mStandby;
+            mStandby = null;
+            mWarming = null;
+        }
+        if (standby != null) {
+            closeQuietly(standby.opened.socket);
+        }
+    }
+
+    /**
+     * @return the standby connection to uri, null if there is none or it is
+     * too old
+     */
+    private Opened takeStandby(String uri) {
+        Standby standby;
+        synchronized (this) {
+            standby = mStandby;
+            if (standby == null || !standby.uri.equals(uri)) {
+                return null;
+            }
+            mStandby = null;
+        }
+        long now = mClock.nanoTime();
+        Socket socket = standby.opened.socket;
+        if (now - standby.opened.readyAt >= STANDBY_MAX_AGE * 1000000 || socket.isClosed()) {
+            mStandbyExpired.incrementAndGet();
+            closeQuietly(socket);
+            return null;
+        }
+        mStandbyUsed.incrementAndGet();
+        mReadyAt = now;
+        return standby.opened;
+    }
+
+    /**
+     * Adds what opening a connection took to the metrics, once the
+     * connection is used
+     */
+    private void record(Opened opened) {
+        mDnsTime.record(opened.dns);
+        mTcpTime.record(opened.tcp);
+        if (opened.fallback) {
+            mFallbacks.incrementAndGet();
+        }
+        if (opened.tls >= 0) {
+            mTlsTime.record(opened.tls);
+            mHandshakes.incrementAndGet();
+            if (opened.resumed) {
+                mResumed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Looks the host of uri up, connects to one of its addresses and for
+     * ssl:// does the TLS handshake
+     */
+    private Opened open(String uri, int timeout) throws IOException {
+        URI parsed = URI.create(uri);
+        String host = parsed.getHost();
+        int port = parsed.getPort() > 0 ? parsed.getPort() : defaultPort(parsed.getScheme());
+
+        long start = mClock.nanoTime();
+        InetAddress[] addresses = mResolver.resolve(host);
+        long resolved = mClock.nanoTime();
+
+        Socket socket;
+        try {
+            socket = race(addresses, port, timeout);
+        } catch (IOException e) {
+            // the host may have moved, look it up again next time but keep
+            // the answer in case that lookup fails
+            mResolver.expire(host);
+            throw e;
+        }
+        long connected = mClock.nanoTime();
+        boolean fallback = !socket.getInetAddress().equals(addresses[0]);
+        if (fallback) {
+            mResolver.prefer(host, socket.getInetAddress());
+        }
+        long dns = (resolved - start) / 1000;
+        long tcp = (connected - resolved) / 1000;
+        if (!SCHEME_TLS.equals(parsed.getScheme())) {
+            return new Opened(socket, dns, tcp, -1, false, fallback, connected);
+        }
+        // sessions are stamped with the wall clock, a resumed one is older
+        // than its handshake
+        long startedAt = System.currentTimeMillis();
+        SSLSocket ssl;
+        try {
+            ssl = handshake(socket, host, port, timeout);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        long ready = mClock.nanoTime();
+        boolean resumed = ssl.getSession().getCreationTime() < startedAt;
+        return new Opened(ssl, dns, tcp, (ready - connected) / 1000, resumed, fallback, ready);
+    }
+
+    private SSLSocket handshake(Socket socket, String host, int port, int timeout) throws IOException {
+        SSLSocketFactory factory;
+        synchronized (this) {
+            if (mTlsFactory == null) {
+                if (mContext == null) {
+                    try {
+                        mContext = SSLContext.getDefault();
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IOException("No TLS context: " + e.getMessage());
+                    }
+                }
+                mTlsFactory = mContext.getSocketFactory();
+            }
+            factory = mTlsFactory;
+        }
+        // the CONNECT right after the Finished of the handshake would wait
+        // for the delayed ACK of the server
+        socket.setTcpNoDelay(true);
+        SSLSocket ssl = (SSLSocket) factory.createSocket(socket, host, port, true);
+        ssl.setSoTimeout(timeout);
+        ssl.startHandshake();
+        ssl.setSoTimeout(0);
+        return ssl;
+    }
+
+    /**
+     * Connects to the first of addresses that answers, starting the next
+     * attempt once the previous one failed or the attempt delay passed
+     *
+     * @throws IOException of the last attempt if none connected
+     */
+    private Socket race(InetAddress[] addresses, int port, int timeout) throws IOException {
+        List<InetAddress> order = interleave(addresses);
+        BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+        List<Socket> attempts = new ArrayList<Socket>();
+        long deadline = timeout > 0 ? mClock.nanoTime() / 1000000 + timeout : Long.MAX_VALUE;
+        IOException failure = null;
+        Socket winner = null;
+        int failed = 0;
+        try {
+            attempts.add(attempt(order.get(0), port, timeout, results));
+            while (winner == null && failed < order.size()) {
+                long now = mClock.nanoTime() / 1000000;
+                if (now >= deadline) {
+                    break;
+                }
+                long wait = deadline - now;
+                if (attempts.size() < order.size()) {
+                    wait = Math.min(wait, mAttemptDelay);
+                }
+                Object result;
+                try {
+                    result = results.poll(wait, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while connecting");
+                }
+                if (result instanceof Socket) {
+                    winner = (Socket) result;
+                    continue;
+                }
+                if (result != null) {
+                    failure = (IOException) result;
+                    failed++;
+                }
+                // the delay passed, or every attempt so far failed
+                if ((result == null || failed == attempts.size()) && attempts.size() < order.size()) {
+                    attempts.add(attempt(order.get(attempts.size()), port, timeout, results));
+                }
+            }
+        } finally {
+            for (Socket socket : attempts) {
+                if (socket != winner) {
+                    closeQuietly(socket);
+                }
+            }
+        }
+        if (winner != null) {
+            return winner;
+        }
+        if (failed < order.size()) {
+            throw new SocketTimeoutException("Connect timed out after " + timeout + "ms");
+        }
+        throw failure;
+    }
+
+    /**
+     * Connects a new socket to address off the calling thread, and adds it
+     * or the failure to results
+     */
+    private Socket attempt(final InetAddress address, final int port, final int timeout,
+                           final BlockingQueue<Object> results) {
+        final Socket socket = new Socket();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socket.connect(new InetSocketAddress(address, port), timeout);
+                    results.add(socket);
+                } catch (IOException e) {
+                    results.add(e);
+                }
+            }
+        });
+        return socket;
+    }
+
+    /**
+     * addresses alternating between the family of the first one and the other
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        boolean v6First = addresses[0] instanceof Inet6Address;
+        List<InetAddress> first = new ArrayList<InetAddress>();
+        List<InetAddress> second = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            if ((address instanceof Inet6Address) == v6First) {
+                first.add(address);
+            } else {
+                second.add(address);
+            }
+        }
+        List<InetAddress> order = new ArrayList<InetAddress>(addresses.length);
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                order.add(first.get(i));
+            }
+            if (i < second.size()) {
+                order.add(second.get(i));
+            }
+        }
+        return order;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
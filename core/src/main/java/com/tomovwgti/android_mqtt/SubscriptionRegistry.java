@@ -0,0 +1,224 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every topic filter the client wants, with its QoS, saved in a settings
+ * store so it survives reconnects with a clean session and restarts.
+ *
+ * A filter covered by a wildcard filter of at least the same QoS is kept
+ * but not subscribed at the broker. The filters that are subscribed are the
+ * effective ones. add() and remove() return the SUBSCRIBE and UNSUBSCRIBE
+ * needed to bring the broker in line.
+ */
+public class SubscriptionRegistry {
+
+    /**
+     * Filters to subscribe and unsubscribe after a change
+     */
+    public static class Change {
+        final Map<String, Integer> subscribe = new LinkedHashMap<String, Integer>();
+        final List<String> unsubscribe = new ArrayList<String>();
+        // QoS at the broker before the change of every filter touched, null
+        // if it was not subscribed
+        private final Map<String, Integer> mBefore = new HashMap<String, Integer>();
+
+        public boolean isEmpty() {
+            return subscribe.isEmpty() && unsubscribe.isEmpty();
+        }
+    }
+
+    private final SettingsStore mPrefs;
+    // every filter and its QoS
+    private final Map<String, Integer> mFilters = new HashMap<String, Integer>();
+    // split levels of every filter
+    private final Map<String, String[]> mLevels = new HashMap<String, String[]>();
+    // filters subscribed at the broker
+    private final Map<String, Integer> mEffective = new HashMap<String, Integer>();
+    // effective filters with a wildcard, the only ones that cover others
+    private final Map<String, Integer> mEffectiveWildcards = new HashMap<String, Integer>();
+
+    /**
+     * @param prefs store of the filters only, every int in it is taken as one
+     */
+    public SubscriptionRegistry(SettingsStore prefs) {
+        mPrefs = prefs;
+        List<String> filters = new ArrayList<String>();
+        for (Map.Entry<String, ?> e : prefs.getAll().entrySet()) {
+            if (e.getValue() instanceof Integer) {
+                mFilters.put(e.getKey(), (Integer) e.getValue());
+                mLevels.put(e.getKey(), TopicMatcher.split(e.getKey()));
+                filters.add(e.getKey());
+            }
+        }
+        // wildcards first, so covered filters are never made effective
+        for (String filter : filters) {
+            if (TopicMatcher.isWildcard(filter)) {
+                makeEffective(filter, null);
+            }
+        }
+        for (String filter : filters) {
+            if (!TopicMatcher.isWildcard(filter)) {
+                makeEffective(filter, null);
+            }
+        }
+    }
+
+    /**
+     * Adds filter or changes its QoS
+     */
+    public synchronized Change add(String filter, int qos) {
+        Change change = new Change();
+        Integer previous = mFilters.get(filter);
+        if (previous != null && previous == qos) {
+            return change;
+        }
+        if (previous != null) {
+            removeFilter(filter, change);
+        }
+        mFilters.put(filter, qos);
+        mLevels.put(filter, TopicMatcher.split(filter));
+        mPrefs.putInt(filter, qos);
+        makeEffective(filter, change);
+        return finish(change);
+    }
+
+    public synchronized Change remove(String filter) {
+        Change change = new Change();
+        if (mFilters.containsKey(filter)) {
+            removeFilter(filter, change);
+            mPrefs.remove(filter);
+        }
+        return finish(change);
+    }
+
+    public synchronized boolean contains(String filter) {
+        return mFilters.containsKey(filter);
+    }
+
+    public synchronized int size() {
+        return mFilters.size();
+    }
+
+    /**
+     * Filters to subscribe after a reconnect, every one in a single round
+     */
+    public synchronized Map<String, Integer> getEffective() {
+        return new HashMap<String, Integer>(mEffective);
+    }
+
+    /**
+     * Does every topic matching b also match a?
+     */
+    static boolean covers(String[] a, String[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i].equals("#")) {
+                // a wildcard as first level does not match $ topics
+                return i > 0 || !b[0].startsWith("$");
+            }
+            if (i >= b.length) {
+                return false;
+            }
+            if (a[i].equals("+")) {
+                if (b[i].equals("#") || (i == 0 && b[0].startsWith("$"))) {
+                    return false;
+                }
+            } else if (!a[i].equals(b[i])) {
+                return false;
+            }
+        }
+        return a.length == b.length;
+    }
+
+    /**
+     * Makes filter effective unless a wildcard covers it, unsubscribing the
+     * effective filters it covers in turn
+     */
+    private void makeEffective(String filter, Change change) {
+        int qos = mFilters.get(filter);
+        String[] levels = mLevels.get(filter);
+        for (Map.Entry<String, Integer> e : mEffectiveWildcards.entrySet()) {
+            if (e.getValue() >= qos && !e.getKey().equals(filter)
+                    && covers(mLevels.get(e.getKey()), levels)) {
+                return;
+            }
+        }
+        if (TopicMatcher.isWildcard(filter)) {
+            List<String> covered = new ArrayList<String>();
+            for (Map.Entry<String, Integer> e : mEffective.entrySet()) {
+                if (e.getValue() <= qos && covers(levels, mLevels.get(e.getKey()))) {
+                    covered.add(e.getKey());
+                }
+            }
+            for (String c : covered) {
+                touch(c, change);
+                mEffective.remove(c);
+                mEffectiveWildcards.remove(c);
+            }
+            mEffectiveWildcards.put(filter, qos);
+        }
+        touch(filter, change);
+        mEffective.put(filter, qos);
+    }
+
+    /**
+     * Remembers the broker state of filter before the first change to it
+     */
+    private void touch(String filter, Change change) {
+        if (change != null && !change.mBefore.containsKey(filter)) {
+            change.mBefore.put(filter, mEffective.get(filter));
+        }
+    }
+
+    /**
+     * Fills in the packets that take the broker from the state before the
+     * change to the current one
+     */
+    private Change finish(Change change) {
+        for (Map.Entry<String, Integer> e : change.mBefore.entrySet()) {
+            Integer after = mEffective.get(e.getKey());
+            if (after == null) {
+                if (e.getValue() != null) {
+                    change.unsubscribe.add(e.getKey());
+                }
+            } else if (!after.equals(e.getValue())) {
+                change.subscribe.put(e.getKey(), after);
+            }
+        }
+        return change;
+    }
+
+    private void removeFilter(String filter, Change change) {
+        mFilters.remove(filter);
+        String[] levels = mLevels.remove(filter);
+        if (!mEffective.containsKey(filter)) {
+            return;
+        }
+        touch(filter, change);
+        mEffective.remove(filter);
+        if (mEffectiveWildcards.remove(filter) == null) {
+            return;
+        }
+        // filters only this one covered need their own subscription again,
+        // wildcards first so they can cover the rest
+        List<String> uncovered = new ArrayList<String>();
+        for (String f : mFilters.keySet()) {
+            if (!mEffective.containsKey(f) && covers(levels, mLevels.get(f))) {
+                if (TopicMatcher.isWildcard(f)) {
+                    uncovered.add(0, f);
+                } else {
+                    uncovered.add(f);
+                }
+            }
+        }
+        for (String f : uncovered) {
+            if (!mEffective.containsKey(f)) {
+                makeEffective(f, change);
+            }
+        }
+    }
+}
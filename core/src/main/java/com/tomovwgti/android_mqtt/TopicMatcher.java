@@ -0,0 +1,241 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trie of MQTT topic filters.
+ *
+ * Each level of a filter is one node, with '+' and '#' kept apart from the
+ * literal children. Matching a topic walks one level at a time, so the
+ * cost grows with the depth of the topic rather than the number of filters.
+ * Not thread safe.
+ */
+public class TopicMatcher<T> {
+
+    private static class Node<T> {
+        Map<String, Node<T>> children;
+        // '+' child
+        Node<T> single;
+        // values of filters ending with '#' at this level
+        List<T> multi;
+        // values of filters ending at this node
+        List<T> values;
+
+        boolean isEmpty() {
+            return (children == null || children.isEmpty()) && single == null
+                    && multi == null && values == null;
+        }
+    }
+
+    private final Node<T> mRoot = new Node<T>();
+    private int mSize = 0;
+
+    /**
+     * Adds value under filter
+     *
+     * @param filter topic filter, may contain '+' and a trailing '#'
+     * @param value
+     */
+    public void add(String filter, T value) {
+        String[] levels = split(filter);
+        Node<T> node = mRoot;
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals("#")) {
+                if (i != levels.length - 1) {
+                    throw new IllegalArgumentException("'#' must be the last level: " + filter);
+                }
+                node.multi = append(node.multi, value);
+                mSize++;
+                return;
+            }
+            if (level.equals("+")) {
+                if (node.single == null) {
+                    node.single = new Node<T>();
+                }
+                node = node.single;
+            } else {
+                if (node.children == null) {
+                    node.children = new HashMap<String, Node<T>>();
+                }
+                Node<T> child = node.children.get(level);
+                if (child == null) {
+                    child = new Node<T>();
+                    node.children.put(level, child);
+                }
+                node = child;
+            }
+        }
+        node.values = append(node.values, value);
+        mSize++;
+    }
+
+    /**
+     * Removes value from filter
+     *
+     * @return true if it was registered
+     */
+    public boolean remove(String filter, T value) {
+        return remove(mRoot, split(filter), 0, value);
+    }
+
+    private boolean remove(Node<T> node, String[] levels, int index, T value) {
+        if (index == levels.length) {
+            if (node.values == null || !node.values.remove(value)) {
+                return false;
+            }
+            if (node.values.isEmpty()) {
+                node.values = null;
+            }
+            mSize--;
+            return true;
+        }
+
+        String level = levels[index];
+        if (level.equals("#")) {
+            if (node.multi == null || !node.multi.remove(value)) {
+                return false;
+            }
+            if (node.multi.isEmpty()) {
+                node.multi = null;
+            }
+            mSize--;
+            return true;
+        }
+
+        Node<T> child = level.equals("+") ? node.single
+                : (node.children != null ? node.children.get(level) : null);
+        if (child == null || !remove(child, levels, index + 1, value)) {
+            return false;
+        }
+        // prune branches that hold no filter anymore
+        if (child.isEmpty()) {
+            if (level.equals("+")) {
+                node.single = null;
+            } else {
+                node.children.remove(level);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Collects the values of every filter matching topic into out
+     *
+     * @param topic topic name without wildcards
+     * @param out
+     */
+    public void match(String topic, List<T> out) {
+        String[] levels = split(topic);
+        // wildcards at the first level do not match topics starting with '$'
+        boolean system = levels[0].startsWith("$");
+        match(mRoot, levels, 0, system, out);
+    }
+
+    private void match(Node<T> node, String[] levels, int index, boolean system, List<T> out) {
+        // "a/#" also matches "a"
+        if (node.multi != null && !(system && index == 0)) {
+            out.addAll(node.multi);
+        }
+        if (index == levels.length) {
+            if (node.values != null) {
+                out.addAll(node.values);
+            }
+            return;
+        }
+        if (node.children != null) {
+            Node<T> child = node.children.get(levels[index]);
+            if (child != null) {
+                match(child, levels, index + 1, system, out);
+            }
+        }
+        if (node.single != null && !(system && index == 0)) {
+            match(node.single, levels, index + 1, system, out);
+        }
+    }
+
+    /**
+     * Is any filter registered?
+     */
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mRoot.children = null;
+        mRoot.single = null;
+        mRoot.multi = null;
+        mRoot.values = null;
+        mSize = 0;
+    }
+
+    private static <T> List<T> append(List<T> list, T value) {
+        if (list == null) {
+            list = new ArrayList<T>(1);
+        }
+        list.add(value);
+        return list;
+    }
+
+    /**
+     * Is filter a more specific match than other, when both match the same
+     * topic? More levels win, then fewer wildcard levels, then '+' over '#'.
+     */
+    static boolean moreSpecific(String filter, String other) {
+        int levels = count(filter, '/');
+        int otherLevels = count(other, '/');
+        if (levels != otherLevels) {
+            return levels > otherLevels;
+        }
+        int wildcards = count(filter, '+') + count(filter, '#');
+        int otherWildcards = count(other, '+') + count(other, '#');
+        if (wildcards != otherWildcards) {
+            return wildcards < otherWildcards;
+        }
+        return count(filter, '#') < count(other, '#');
+    }
+
+    static boolean isWildcard(String filter) {
+        return filter.indexOf('+') >= 0 || filter.indexOf('#') >= 0;
+    }
+
+    private static int count(String s, char c) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == c) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Splits a topic at '/' keeping empty levels, unlike String.split
+     */
+    static String[] split(String topic) {
+        int count = 1;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                count++;
+            }
+        }
+        String[] levels = new String[count];
+        int start = 0;
+        int n = 0;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                levels[n++] = topic.substring(start, i);
+                start = i + 1;
+            }
+        }
+        levels[n] = topic.substring(start);
+        return levels;
+    }
+}
@@ -0,0 +1,88 @@
+package com.tomovwgti.android_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttClientPersistence;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttPingSender;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.TimerPingSender;
+import org.eclipse.paho.client.mqttv3.internal.ClientState;
+import org.eclipse.paho.client.mqttv3.internal.NetworkModule;
+
+/**
+ * Client that connects through a SocketTransport instead of its own
+ * network modules, which look the host up and connect on every connect.
+ *
+ * Also pings at an interval of its own. The broker drops a client after
+ * 1.5 times the keep alive sent in CONNECT without traffic, so the engine
+ * sends the longest one it may learn and pings at the one it learned.
+ */
+class TransportClient extends MqttAsyncClient {
+    private final SocketTransport mTransport;
+    private final MqttPingSender mPingSender;
+
+    /**
+     * @param pingSender null for the timer of the client
+     */
+    TransportClient(String serverURI, String clientId, MqttClientPersistence persistence,
+                    MqttPingSender pingSender, SocketTransport transport) throws MqttException {
+        this(serverURI, clientId, persistence, transport,
+                pingSender != null ? pingSender : new TimerPingSender());
+    }
+
+    private TransportClient(String serverURI, String clientId, MqttClientPersistence persistence,
+                            SocketTransport transport, MqttPingSender pingSender) throws MqttException {
+        super(serverURI, clientId, persistence, pingSender);
+        mTransport = transport;
+        mPingSender = pingSender;
+    }
+
+    @Override
+    protected NetworkModule[] createNetworkModules(String address, MqttConnectOptions options)
+            throws MqttException {
+        return new NetworkModule[]{mTransport.newModule(address, options.getConnectionTimeout() * 1000)};
+    }
+
+    /**
+     * Pings after interval ms without traffic from now on, instead of after
+     * the keep alive sent in CONNECT. Ignored unless connected, the next
+     * connect sets the keep alive of CONNECT again.
+     */
+    synchronized void setPingInterval(long interval) {
+        if (isConnected()) {
+            comms.getClientState().setKeepAliveInterval(interval);
+            mPingSender.schedule(interval);
+        }
+    }
+
+    /**
+     * Sends a PINGREQ if there was no traffic for the ping interval
+     *
+     * @return token of the PINGREQ, null if none was due or one is still
+     * unanswered
+     */
+    synchronized MqttToken checkForActivity() {
+        return comms.checkForActivity();
+    }
+
+    /**
+     * Sends a PINGREQ now, whatever the traffic since the last one, unless
+     * one is still unanswered. checkForActivity() is given an interval of
+     * 1 ms for it.
+     *
+     * @return token of the PINGREQ, null if one is still unanswered
+     */
+    synchronized MqttToken ping() {
+        ClientState state = comms.getClientState();
+        long interval = comms.getKeepAlive();
+        state.setKeepAliveInterval(1);
+        try {
+            return comms.checkForActivity();
+        } finally {
+            state.setKeepAliveInterval(interval);
+            // checkForActivity() scheduled the next one after 1 ms
+            mPingSender.schedule(interval);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * Debounces link changes and picks how to publish on each link.
+ *
+ * The platform reports every link change with onLinkChanged(). A change
+ * is only acted on once the link stayed the same for a debounce time, so
+ * a link that drops and comes back as the same network never costs a
+ * reconnect. Losing the link waits longest, as Wi-Fi to cellular handovers
+ * report a gap first. Getting a link after having none waits shortest, as
+ * the engine is offline meanwhile. A change between two links is settled
+ * as a handover, which keeps the connection as long as the client still
+ * has it.
+ *
+ * Time is passed in by the caller in ms of a monotonic clock, so a
+ * recorded trace replays in no time.
+ */
+public class TransportPolicy {
+
+    // ms a link change must last before it is acted on, by default
+    public static final long LOSS_DEBOUNCE = 1000 * 3;
+    public static final long RECOVERY_DEBOUNCE = 500;
+    public static final long HANDOVER_DEBOUNCE = 1000 * 2;
+    // Publishing per kind of link. Wi-Fi sends at once and compresses only
+    // large payloads. Cellular collects longer so the radio wakes less often.
+    // Metered links also compress small payloads and send QoS 2 as QoS 1.
+    public static final Profile UNMETERED = new Profile("unmetered", MqttEngine.PUBLISH_WINDOW,
+            MqttEngine.PUBLISH_BATCH_SIZE, MqttEngine.CODEC_MIN_LENGTH_UNMETERED, MqttEngine.MQTT_QOS_2);
+    public static final Profile CELLULAR = new Profile("cellular", 100,
+            MqttEngine.PUBLISH_BATCH_SIZE, MqttEngine.CODEC_MIN_LENGTH, MqttEngine.MQTT_QOS_2);
+    public static final Profile METERED = new Profile("metered", 200,
+            MqttEngine.PUBLISH_BATCH_SIZE, MqttEngine.CODEC_MIN_LENGTH, MqttEngine.MQTT_QOS_1);
+
+    /**
+     * How to publish on a kind of link
+     */
+    public static class Profile {
+        public final String name;
+        // ms a partial batch waits for more messages
+        public final long publishWindow;
+        // messages sent per drain at most
+        public final int publishBatch;
+        // payloads shorter than this are sent plain, on topics with a codec
+        public final int compressMinLength;
+        // highest QoS of bulk publishes, higher ones are downgraded
+        public final int maxQos;
+
+        public Profile(String name, long publishWindow, int publishBatch, int compressMinLength,
+                       int maxQos) {
+            this.name = name;
+            this.publishWindow = publishWindow;
+            this.publishBatch = publishBatch;
+            this.compressMinLength = compressMinLength;
+            this.maxQos = maxQos;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A settled change of link
+     */
+    public static class Transition {
+        public final NetworkLink from;
+        public final NetworkLink to;
+
+        Transition(NetworkLink from, NetworkLink to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * The network is gone, the connection is dead
+         */
+        public boolean isLoss() {
+            return from.isUp() && !to.isUp();
+        }
+
+        /**
+         * The network is back after there was none, or the first link
+         */
+        public boolean isRecovery() {
+            return !from.isUp() && to.isUp();
+        }
+
+        /**
+         * Moved from one network to another, the connection may survive
+         */
+        public boolean isHandover() {
+            return from.isUp() && to.isUp();
+        }
+
+        @Override
+        public String toString() {
+            return from + " -> " + to;
+        }
+    }
+
+    private final long mLossDebounce;
+    private final long mRecoveryDebounce;
+    private final long mHandoverDebounce;
+    private final Profile mUnmetered;
+    private final Profile mCellular;
+    private final Profile mMetered;
+
+    // link acted on last, null before the first one
+    private NetworkLink mSettled;
+    // link reported last if it is not the settled one, and when it is due
+    private NetworkLink mPending;
+    private long mDue;
+
+    private long mChanges = 0;
+    private long mFlaps = 0;
+    private long mLosses = 0;
+    private long mRecoveries = 0;
+    private long mHandovers = 0;
+
+    /**
+     * Policy with the default debounce times and profiles, those of the
+     * engine
+     */
+    public TransportPolicy() {
+        this(LOSS_DEBOUNCE, RECOVERY_DEBOUNCE, HANDOVER_DEBOUNCE, UNMETERED, CELLULAR, METERED);
+    }
+
+    /**
+     * @param lossDebounce     ms without a link before it counts as lost
+     * @param recoveryDebounce ms a link must stay after there was none
+     * @param handoverDebounce ms a new link must stay before it replaces the old one
+     * @param unmetered        profile of Wi-Fi and other unmetered links
+     * @param cellular         profile of unmetered cellular links
+     * @param metered          profile of every metered link
+     */
+    public TransportPolicy(long lossDebounce, long recoveryDebounce, long handoverDebounce,
+                           Profile unmetered, Profile cellular, Profile metered) {
+        mLossDebounce = lossDebounce;
+        mRecoveryDebounce = recoveryDebounce;
+        mHandoverDebounce = handoverDebounce;
+        mUnmetered = unmetered;
+        mCellular = cellular;
+        mMetered = metered;
+    }
+
+    /**
+     * A link was reported
+     *
+     * @param now ms
+     * @return ms until onTimer() settles it, -1 if nothing is pending
+     */
+    public synchronized long onLinkChanged(NetworkLink link, long now) {
+        mChanges++;
+        if (link.equals(mSettled)) {
+            if (mPending != null) {
+                // back to where it was before the debounce ran out
+                mFlaps++;
+                mPending = null;
+            }
+            return -1;
+        }
+        if (link.equals(mPending)) {
+            // the same change again, the debounce keeps running
+            return Math.max(0, mDue - now);
+        }
+        long debounce;
+        if (mSettled == null) {
+            debounce = 0;
+        } else if (!link.isUp()) {
+            debounce = mLossDebounce;
+        } else if (!mSettled.isUp()) {
+            debounce = mRecoveryDebounce;
+        } else {
+            debounce = mHandoverDebounce;
+        }
+        mPending = link;
+        mDue = now + debounce;
+        return debounce;
+    }
+
+    /**
+     * Settles the pending link if its debounce ran out
+     *
+     * @param now ms
+     * @return the change to act on, null if there is none yet
+     */
+    public synchronized Transition onTimer(long now) {
+        if (mPending == null || now < mDue) {
+            return null;
+        }
+        Transition transition = new Transition(mSettled != null ? mSettled : NetworkLink.NONE, mPending);
+        mSettled = mPending;
+        mPending = null;
+        if (transition.isLoss()) {
+            mLosses++;
+        } else if (transition.isRecovery()) {
+            mRecoveries++;
+        } else if (transition.isHandover()) {
+            mHandovers++;
+        }
+        return transition;
+    }
+
+    /**
+     * ms until the pending link settles, -1 if none is pending
+     */
+    public synchronized long getDelay(long now) {
+        return mPending != null ? Math.max(0, mDue - now) : -1;
+    }
+
+    /**
+     * Time the pending link settles at, Long.MAX_VALUE if none is pending
+     */
+    public synchronized long getDue() {
+        return mPending != null ? mDue : Long.MAX_VALUE;
+    }
+
+    /**
+     * Link acted on last, NONE before the first one
+     */
+    public synchronized NetworkLink getLink() {
+        return mSettled != null ? mSettled : NetworkLink.NONE;
+    }
+
+    /**
+     * Profile of the settled link, the unmetered one while there is none
+     */
+    public synchronized Profile getProfile() {
+        return profileOf(getLink());
+    }
+
+    public Profile profileOf(NetworkLink link) {
+        if (link.metered) {
+            return mMetered;
+        }
+        return link.type == NetworkLink.Type.CELLULAR ? mCellular : mUnmetered;
+    }
+
+    /**
+     * Link reports received
+     */
+    public synchronized long getChanges() {
+        return mChanges;
+    }
+
+    /**
+     * Changes that were undone before their debounce ran out
+     */
+    public synchronized long getFlaps() {
+        return mFlaps;
+    }
+
+    public synchronized long getLosses() {
+        return mLosses;
+    }
+
+    public synchronized long getRecoveries() {
+        return mRecoveries;
+    }
+
+    public synchronized long getHandovers() {
+        return mHandovers;
+    }
+}
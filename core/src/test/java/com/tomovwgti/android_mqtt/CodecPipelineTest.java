@@ -0,0 +1,112 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CodecPipelineTest {
+
+    private static CodecPipeline pipeline() {
+        CodecPipeline pipeline = new CodecPipeline(64);
+        pipeline.register(new DeflateCodec(MqttEngine.CODEC_DEFLATE, 6, null));
+        return pipeline;
+    }
+
+    private static byte[] text(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) ("{\"temp\":21.5}".charAt(i % 13));
+        }
+        return payload;
+    }
+
+    @Test
+    public void compressesMatchingTopics() throws IOException {
+        CodecPipeline pipeline = pipeline();
+        pipeline.setCodec("sensors/#", MqttEngine.CODEC_DEFLATE);
+        byte[] payload = text(1000);
+        byte[] wire = pipeline.encode("sensors/a", payload);
+        assertEquals(CodecPipeline.MARKER, wire[0] & 0xff);
+        assertEquals(MqttEngine.CODEC_DEFLATE, wire[1] & 0xff);
+        assertTrue(wire.length < payload.length / 4);
+        assertArrayEquals(payload, pipeline.decode(wire));
+
+        // other topics and short payloads go plain
+        assertSame(payload, pipeline.encode("other", payload));
+        byte[] small = text(10);
+        assertSame(small, pipeline.encode("sensors/a", small));
+    }
+
+    @Test
+    public void mostSpecificFilterWins() {
+        CodecPipeline pipeline = pipeline();
+        pipeline.setCodec("sensors/#", MqttEngine.CODEC_DEFLATE);
+        pipeline.setCodec("sensors/raw", CodecPipeline.IDENTITY);
+        byte[] payload = text(1000);
+        assertSame(payload, pipeline.encode("sensors/raw", payload));
+        pipeline.clearCodec("sensors/raw");
+        assertTrue(pipeline.encode("sensors/raw", payload).length < payload.length);
+    }
+
+    @Test
+    public void plainPayloadStartingWithTheMarkerIsFramed() throws IOException {
+        CodecPipeline pipeline = pipeline();
+        byte[] payload = {(byte) 0xff, 1, 2};
+        byte[] wire = pipeline.encode("t", payload);
+        assertEquals(CodecPipeline.IDENTITY, wire[1]);
+        assertArrayEquals(payload, pipeline.decode(wire));
+    }
+
+    @Test
+    public void incompressiblePayloadGoesPlain() {
+        CodecPipeline pipeline = pipeline();
+        pipeline.setCodec("#", MqttEngine.CODEC_DEFLATE);
+        byte[] payload = new byte[1000];
+        new java.util.Random(5).nextBytes(payload);
+        payload[0] = 1;
+        assertSame(payload, pipeline.encode("t", payload));
+    }
+
+    @Test
+    public void longLengthsUseSeveralVarintBytes() throws IOException {
+        CodecPipeline pipeline = pipeline();
+        pipeline.setCodec("#", MqttEngine.CODEC_DEFLATE);
+        byte[] payload = text(300000);
+        assertArrayEquals(payload, pipeline.decode(pipeline.encode("t", payload)));
+    }
+
+    @Test
+    public void damagedFramesAreRejected() {
+        CodecPipeline pipeline = pipeline();
+        pipeline.setCodec("#", MqttEngine.CODEC_DEFLATE);
+        byte[] wire = pipeline.encode("t", text(1000));
+        assertRejected(pipeline, Arrays.copyOf(wire, 2));
+        assertRejected(pipeline, new byte[]{(byte) 0xff, 0, (byte) 0x80});
+        // identity frame claiming more bytes than it has
+        assertRejected(pipeline, new byte[]{(byte) 0xff, 0, 5, 1});
+        assertRejected(pipeline, new byte[]{(byte) 0xff, 42, 1, 1});
+        assertRejected(pipeline, new byte[]{(byte) 0xff, 0, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, 0x7f});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownCodecIsRejected() {
+        pipeline().setCodec("#", 42);
+    }
+
+    private static void assertRejected(CodecPipeline pipeline, byte[] data) {
+        try {
+            pipeline.decode(data);
+            fail("decoded " + Arrays.toString(data));
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FlowControlTest {
+
+    private static void queue(FlowControl flow, int count) {
+        for (int i = 0; i < count; i++) {
+            flow.onQueued();
+        }
+    }
+
+    @Test
+    public void watermarksToggleCongestion() {
+        FlowControl flow = new FlowControl(10, 2, 5, 2);
+        final List<Boolean> events = new ArrayList<Boolean>();
+        flow.addCallback(new FlowControl.backpressureCallback() {
+            @Override
+            public void onBackpressure(boolean congested) {
+                events.add(congested);
+            }
+        });
+        queue(flow, 4);
+        assertFalse(flow.isCongested());
+        queue(flow, 1);
+        assertTrue(flow.isCongested());
+        queue(flow, 3);
+        flow.onDequeued(5);
+        assertTrue(flow.isCongested());
+        flow.onDequeued(1);
+        assertFalse(flow.isCongested());
+        // one event per crossing
+        assertEquals(2, events.size());
+        assertTrue(events.get(0));
+        assertFalse(events.get(1));
+    }
+
+    @Test
+    public void modesWhileCongested() throws InterruptedException {
+        FlowControl flow = new FlowControl(10, 2, 5, 2);
+        assertTrue(flow.admit(FlowControl.Mode.FAIL, 0));
+        queue(flow, 5);
+        assertFalse(flow.admit(FlowControl.Mode.FAIL, 0));
+        assertTrue(flow.admit(FlowControl.Mode.CALLBACK, 0));
+        long start = System.currentTimeMillis();
+        assertFalse(flow.admit(FlowControl.Mode.BLOCK, 50));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+    }
+
+    @Test(timeout = 5000)
+    public void blockWaitsForTheLowWatermark() throws InterruptedException {
+        final FlowControl flow = new FlowControl(10, 2, 5, 2);
+        queue(flow, 5);
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                flow.onDequeued(5);
+            }
+        };
+        consumer.start();
+        assertTrue(flow.admit(FlowControl.Mode.BLOCK, 4000));
+        consumer.join();
+    }
+
+    @Test
+    public void controlReserveIsKeptFromBulk() {
+        FlowControl flow = new FlowControl(10, 2, 5, 2);
+        assertEquals(8, flow.acquire(20, false));
+        assertEquals(0, flow.acquire(1, false));
+        assertEquals(2, flow.acquire(5, true));
+        assertEquals(10, flow.getInFlight());
+        flow.release(3);
+        assertEquals(1, flow.acquire(5, false));
+        flow.release(10);
+        assertEquals(0, flow.getInFlight());
+    }
+
+    @Test
+    public void shrinkingTheWindowGrantsNothingUntilReleased() {
+        FlowControl flow = new FlowControl(10, 2, 5, 2);
+        flow.acquire(8, false);
+        flow.setWindow(6);
+        assertEquals(0, flow.acquire(1, true));
+        flow.release(3);
+        assertEquals(1, flow.acquire(5, true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lowWatermarkMustBeBelowHigh() {
+        new FlowControl(10, 2, 5, 5);
+    }
+}
@@ -0,0 +1,130 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class HostResolverTest {
+
+    private final ManualClock mClock = new ManualClock();
+    private InetAddress[] mAnswer;
+    private int mLookups = 0;
+    private boolean mFailing = false;
+
+    private final HostResolver.Lookup mLookup = new HostResolver.Lookup() {
+        @Override
+        public InetAddress[] lookup(String host) throws UnknownHostException {
+            mLookups++;
+            if (mFailing) {
+                throw new UnknownHostException(host);
+            }
+            return mAnswer.clone();
+        }
+    };
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        mAnswer = new InetAddress[]{address(1), address(2)};
+    }
+
+    private static InetAddress address(int last) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) last});
+    }
+
+    @Test
+    public void cachesForTheTtl() throws UnknownHostException {
+        HostResolver resolver = new HostResolver(mClock, mLookup, 1000, 5000);
+        assertArrayEquals(mAnswer, resolver.resolve("h"));
+        mClock.advance(999);
+        resolver.resolve("h");
+        assertEquals(1, mLookups);
+        mClock.advance(1);
+        resolver.resolve("h");
+        assertEquals(2, mLookups);
+        assertEquals(1, resolver.getHits());
+        assertEquals(2, resolver.getMisses());
+    }
+
+    @Test
+    public void servesStaleAnswersWhenTheLookupFails() throws UnknownHostException {
+        HostResolver resolver = new HostResolver(mClock, mLookup, 1000, 5000);
+        resolver.resolve("h");
+        mFailing = true;
+        mClock.advance(5999);
+        assertArrayEquals(mAnswer, resolver.resolve("h"));
+        assertEquals(1, resolver.getStaleHits());
+        mClock.advance(1);
+        try {
+            resolver.resolve("h");
+            fail("served an answer past the stale limit");
+        } catch (UnknownHostException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void zeroTtlDisablesTheCache() throws UnknownHostException {
+        HostResolver resolver = new HostResolver(mClock, mLookup, 0, 5000);
+        resolver.resolve("h");
+        resolver.resolve("h");
+        assertEquals(2, mLookups);
+    }
+
+    @Test
+    public void preferMovesAnAddressToTheFront() throws UnknownHostException {
+        HostResolver resolver = new HostResolver(mClock, mLookup, 1000, 5000);
+        resolver.resolve("h");
+        resolver.prefer("h", address(2));
+        assertArrayEquals(new InetAddress[]{address(2), address(1)}, resolver.resolve("h"));
+        // not part of the answer
+        resolver.prefer("h", address(3));
+        assertArrayEquals(new InetAddress[]{address(2), address(1)}, resolver.resolve("h"));
+        assertEquals(1, mLookups);
+    }
+
+    @Test
+    public void expiredAnswerIsLookedUpAgainButKeptForFailures() throws UnknownHostException {
+        HostResolver resolver = new HostResolver(mClock, mLookup, 1000, 5000);
+        resolver.resolve("h");
+        resolver.expire("h");
+        resolver.resolve("h");
+        assertEquals(2, mLookups);
+
+        resolver.expire("h");
+        mFailing = true;
+        assertArrayEquals(mAnswer, resolver.resolve("h"));
+        assertEquals(1, resolver.getStaleHits());
+    }
+
+    @Test
+    public void expiringAgainDoesNotExtendTheStaleLimit() throws UnknownHostException {
+        HostResolver resolver = new HostResolver(mClock, mLookup, 1000, 5000);
+        resolver.resolve("h");
+        mFailing = true;
+        mClock.advance(3000);
+        resolver.expire("h");
+        mClock.advance(3000);
+        resolver.expire("h");
+        try {
+            resolver.resolve("h");
+            fail("served an answer past the stale limit");
+        } catch (UnknownHostException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void clearForgetsEveryAnswer() throws UnknownHostException {
+        HostResolver resolver = new HostResolver(mClock, mLookup, 1000, 5000);
+        resolver.resolve("h");
+        resolver.clear();
+        resolver.resolve("h");
+        assertEquals(2, mLookups);
+    }
+}
@@ -0,0 +1,185 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InboundFilterTest {
+
+    private static final int QOS_1 = MqttEngine.MQTT_QOS_1;
+
+    private final List<String> mDelivered = new ArrayList<String>();
+    private InboundFilter mFilter;
+
+    @Before
+    public void setUp() {
+        mFilter = new InboundFilter(100, 60000, new InboundFilter.Sink() {
+            @Override
+            public void deliver(String topic, byte[] payload, int qos, boolean retained) {
+                mDelivered.add(new String(payload));
+            }
+        });
+    }
+
+    private void useSequences() {
+        mFilter.setSequenceKey(new InboundFilter.SequenceKey() {
+            @Override
+            public long sequence(String topic, byte[] payload) {
+                return Long.parseLong(new String(payload));
+            }
+        });
+    }
+
+    private boolean receive(String payload, boolean duplicate, long now) {
+        return mFilter.onMessage("t", payload.getBytes(), QOS_1, false, duplicate, now);
+    }
+
+    @Test
+    public void dropsRedeliveredDuplicates() {
+        assertTrue(receive("a", false, 0));
+        assertFalse(receive("a", true, 10));
+        assertEquals(1, mDelivered.size());
+    }
+
+    @Test
+    public void keepsRepeatedPayloadsWithoutTheDupFlag() {
+        // the same reading twice is not a redelivery
+        assertTrue(receive("a", false, 0));
+        assertTrue(receive("a", false, 10));
+        assertEquals(2, mDelivered.size());
+    }
+
+    @Test
+    public void sequenceNumbersIdentifyDuplicates() {
+        useSequences();
+        assertTrue(receive("1", false, 0));
+        assertFalse(receive("1", false, 10));
+        assertEquals(1, mDelivered.size());
+    }
+
+    @Test
+    public void restartedSequenceIsNotADuplicate() {
+        useSequences();
+        mFilter.setReorderWindow(10, 1000);
+        for (int i = 0; i < 5; i++) {
+            receive(String.valueOf(i), false, i);
+        }
+        // the publisher started over
+        assertTrue(receive("0", false, 10));
+        assertTrue(receive("1", false, 11));
+        assertFalse(receive("1", true, 12));
+        assertEquals(list("0", "1", "2", "3", "4", "0", "1"), mDelivered);
+    }
+
+    @Test
+    public void largeBackwardJumpStartsANewEpoch() {
+        useSequences();
+        assertTrue(receive("5000", false, 0));
+        assertTrue(receive("7", false, 1));
+        assertTrue(receive("8", false, 2));
+        assertFalse(receive("8", false, 3));
+    }
+
+    @Test
+    public void redeliveryOfZeroIsADuplicate() {
+        useSequences();
+        receive("0", false, 0);
+        receive("1", false, 1);
+        assertFalse(receive("0", true, 2));
+    }
+
+    @Test(timeout = 5000)
+    public void sinkRunsOutsideTheLock() {
+        final boolean[] answered = new boolean[1];
+        mFilter = new InboundFilter(100, 60000, new InboundFilter.Sink() {
+            @Override
+            public void deliver(String topic, byte[] payload, int qos, boolean retained) {
+                Thread other = new Thread() {
+                    @Override
+                    public void run() {
+                        mFilter.isReordering();
+                        answered[0] = true;
+                    }
+                };
+                other.start();
+                try {
+                    other.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        receive("a", false, 0);
+        assertTrue(answered[0]);
+    }
+
+    @Test
+    public void onlyQos1IsFiltered() {
+        assertTrue(mFilter.onMessage("t", "a".getBytes(), MqttEngine.MQTT_QOS_0, false, true, 0));
+        assertTrue(mFilter.onMessage("t", "a".getBytes(), MqttEngine.MQTT_QOS_0, false, true, 0));
+        assertEquals(2, mDelivered.size());
+    }
+
+    @Test
+    public void reordersWithinTheWindow() {
+        useSequences();
+        mFilter.setReorderWindow(10, 1000);
+        receive("1", false, 0);
+        receive("3", false, 1);
+        receive("4", false, 2);
+        assertEquals(1, mDelivered.size());
+        receive("2", false, 3);
+        assertEquals(list("1", "2", "3", "4"), mDelivered);
+    }
+
+    @Test
+    public void skipsTheGapWhenTheWindowIsFull() {
+        useSequences();
+        mFilter.setReorderWindow(2, 1000);
+        receive("1", false, 0);
+        receive("3", false, 1);
+        receive("4", false, 2);
+        receive("5", false, 3);
+        assertEquals(list("1", "3", "4", "5"), mDelivered);
+        // late after its gap was skipped
+        receive("2", false, 4);
+        assertEquals(list("1", "3", "4", "5", "2"), mDelivered);
+    }
+
+    @Test
+    public void flushSkipsTheGapAfterTheReorderTime() {
+        useSequences();
+        mFilter.setReorderWindow(10, 1000);
+        receive("1", false, 0);
+        receive("3", false, 100);
+        mFilter.flush(1099);
+        assertEquals(list("1"), mDelivered);
+        mFilter.flush(1100);
+        assertEquals(list("1", "3"), mDelivered);
+    }
+
+    @Test
+    public void disablingReorderReleasesHeldMessages() {
+        useSequences();
+        mFilter.setReorderWindow(10, 1000);
+        receive("1", false, 0);
+        receive("3", false, 1);
+        mFilter.setReorderWindow(0, 0);
+        assertEquals(list("1", "3"), mDelivered);
+        assertFalse(mFilter.isReordering());
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<String>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
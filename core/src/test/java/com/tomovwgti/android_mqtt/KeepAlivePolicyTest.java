@@ -0,0 +1,112 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeepAlivePolicyTest {
+
+    private static void succeed(KeepAlivePolicy policy, int pings) {
+        for (int i = 0; i < pings; i++) {
+            policy.onWakeup(true);
+            policy.onPingSuccess();
+        }
+    }
+
+    @Test
+    public void growsAfterSuccesses() {
+        KeepAlivePolicy policy = new KeepAlivePolicy(60, 1680, 240);
+        assertEquals(1680, policy.getConnectInterval());
+        succeed(policy, 2);
+        assertEquals(240, policy.getInterval());
+        policy.onWakeup(true);
+        // grows on the ping, without a reconnect
+        assertTrue(policy.onPingSuccess());
+        assertEquals(360, policy.getInterval());
+        assertEquals(240, policy.getLastGood());
+        assertEquals(0, policy.getSuccesses());
+    }
+
+    @Test
+    public void failureFallsBackAndClosesInOnTheCeiling() {
+        KeepAlivePolicy policy = new KeepAlivePolicy(60, 1680, 240);
+        succeed(policy, 3);
+        assertEquals(360, policy.getInterval());
+        policy.onConnectionLost();
+        assertEquals(360, policy.getCeiling());
+        assertEquals(240, policy.getInterval());
+
+        // halfway to the ceiling instead of growing past it
+        succeed(policy, 3);
+        assertEquals(300, policy.getInterval());
+        succeed(policy, 3);
+        assertEquals(330, policy.getInterval());
+        // a gap below the minimum step is not worth trying
+        succeed(policy, 2);
+        assertFalse(policy.onPingSuccess());
+        assertEquals(330, policy.getInterval());
+    }
+
+    @Test
+    public void failureAtLastGoodHalvesTheInterval() {
+        KeepAlivePolicy policy = new KeepAlivePolicy(60, 1680, 240);
+        succeed(policy, 1);
+        policy.onConnectionLost();
+        assertEquals(120, policy.getInterval());
+        assertEquals(240, policy.getCeiling());
+        policy.onConnectionLost();
+        assertEquals(60, policy.getInterval());
+        policy.onConnectionLost();
+        assertEquals(60, policy.getInterval());
+        assertEquals(3, policy.getFailures());
+    }
+
+    @Test
+    public void ceilingResetsAfterLongStability() {
+        KeepAlivePolicy policy = new KeepAlivePolicy(60, 1680, 240);
+        policy.restore(300, 300, 300, 0);
+        succeed(policy, 49);
+        assertEquals(300, policy.getInterval());
+        assertEquals(300, policy.getCeiling());
+        succeed(policy, 1);
+        assertEquals(300, policy.getInterval());
+        assertEquals(1680, policy.getCeiling());
+        // the next answered pings grow it again
+        succeed(policy, 3);
+        assertEquals(450, policy.getInterval());
+    }
+
+    @Test
+    public void restoreClamps() {
+        KeepAlivePolicy policy = new KeepAlivePolicy(60, 1680, 240);
+        policy.restore(10, 5000, 9999, -1);
+        assertEquals(60, policy.getInterval());
+        assertEquals(1680, policy.getCeiling());
+        assertEquals(1680, policy.getLastGood());
+        assertEquals(0, policy.getSuccesses());
+    }
+
+    @Test
+    public void restoreKeepsTheSuccessesCounted() {
+        KeepAlivePolicy policy = new KeepAlivePolicy(60, 1680, 240);
+        succeed(policy, 2);
+        KeepAlivePolicy restored = new KeepAlivePolicy(60, 1680, 240);
+        restored.restore(policy.getInterval(), policy.getCeiling(), policy.getLastGood(),
+                policy.getSuccesses());
+        succeed(restored, 1);
+        assertEquals(360, restored.getInterval());
+    }
+
+    @Test
+    public void countsWakeups() {
+        KeepAlivePolicy policy = new KeepAlivePolicy(60, 1680, 240);
+        policy.onWakeup(true);
+        policy.onWakeup(false);
+        policy.onWakeup(false);
+        assertEquals(3, policy.getWakeups());
+        assertEquals(1, policy.getPings());
+        assertEquals(2, policy.getSkipped());
+    }
+}
@@ -0,0 +1,98 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LastValueCacheTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("values", ".snapshot");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        new File(mFile.getPath() + ".tmp").delete();
+        mFile.delete();
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        LastValueCache cache = new LastValueCache(10, 1000);
+        cache.put("a", new byte[]{1}, 1, true, 100);
+        cache.put("b", new byte[]{2, 3}, 0, false, 200);
+        cache.saveSnapshot(mFile);
+
+        LastValueCache loaded = new LastValueCache(10, 1000);
+        assertTrue(loaded.loadSnapshot(mFile));
+        assertEquals(2, loaded.size());
+        assertEquals(2, loaded.get("b").getPayload().remaining());
+        assertEquals(200, loaded.get("b").getTime());
+    }
+
+    @Test
+    public void loadingDoesNotMakeTheCacheDirty() throws IOException {
+        LastValueCache cache = new LastValueCache(10, 1000);
+        cache.put("a", new byte[]{1}, 1, true, 100);
+        cache.saveSnapshot(mFile);
+
+        LastValueCache loaded = new LastValueCache(10, 1000);
+        loaded.loadSnapshot(mFile);
+        assertTrue(mFile.delete());
+        loaded.saveSnapshot(mFile);
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void failedSaveKeepsTheCacheDirty() throws IOException {
+        LastValueCache cache = new LastValueCache(10, 1000);
+        cache.put("a", new byte[]{1}, 1, true, 100);
+        // a directory that is not empty cannot be replaced by a rename
+        assertTrue(mFile.mkdir());
+        File child = new File(mFile, "child");
+        assertTrue(child.createNewFile());
+        try {
+            cache.saveSnapshot(mFile);
+            fail("replaced a directory");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(child.delete());
+        assertTrue(mFile.delete());
+
+        cache.saveSnapshot(mFile);
+        assertTrue(mFile.exists());
+    }
+
+    @Test
+    public void emptyRetainedMessageClearsTheTopic() {
+        LastValueCache cache = new LastValueCache(10, 1000);
+        cache.put("a", new byte[]{1}, 1, true, 100);
+        cache.put("a", new byte[0], 1, true, 200);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsed() {
+        LastValueCache cache = new LastValueCache(2, 1000);
+        cache.put("a", new byte[]{1}, 1, false, 100);
+        cache.put("b", new byte[]{1}, 1, false, 100);
+        cache.get("a");
+        cache.put("c", new byte[]{1}, 1, false, 100);
+        assertNull(cache.get("b"));
+        assertEquals(2, cache.query("#").size());
+    }
+}
@@ -0,0 +1,70 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsBoundTheRelativeError() {
+        for (long value = 0; value < 1000000; value = value * 5 / 4 + 1) {
+            int index = LatencyHistogram.index(value);
+            long lower = LatencyHistogram.lowerBound(index);
+            assertTrue(lower <= value);
+            // 8 sub-buckets per power of two
+            assertTrue(value - lower <= value / 8);
+            assertTrue(LatencyHistogram.index(lower) == index);
+        }
+        assertEquals(LatencyHistogram.index(Long.MAX_VALUE),
+                LatencyHistogram.index(LatencyHistogram.lowerBound(LatencyHistogram.index(Long.MAX_VALUE))));
+    }
+
+    @Test
+    public void quantilesOfUniformValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500.5, histogram.getMean(), 0.001);
+        assertWithin(500, histogram.getValueAt(0.5));
+        assertWithin(990, histogram.getValueAt(0.99));
+        assertEquals(1000, histogram.getValueAt(1.0), 1000 / 8);
+        assertEquals(1, histogram.getValueAt(0));
+    }
+
+    @Test
+    public void quantileNeverExceedsMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1001);
+        assertTrue(histogram.getValueAt(0.99) <= 1001);
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getValueAt(0.5));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void resetEmpties() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAt(0.5));
+        assertEquals(0.0, histogram.getMean(), 0);
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + ", got " + actual,
+                actual <= expected && actual >= expected - expected / 8);
+    }
+}
@@ -0,0 +1,75 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LongWindowSetTest {
+
+    @Test
+    public void rejectsKeysSeenWithinTheWindow() {
+        LongWindowSet set = new LongWindowSet(16, 1000);
+        assertTrue(set.add(42, 0));
+        assertFalse(set.add(42, 500));
+        assertTrue(set.contains(42));
+        // the first sighting counts, not the rejected one
+        assertTrue(set.add(42, 1001));
+    }
+
+    @Test
+    public void storesZero() {
+        LongWindowSet set = new LongWindowSet(4, 1000);
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0, 0));
+        assertFalse(set.add(0, 1));
+        set.expire(2000);
+        assertFalse(set.contains(0));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    public void evictsTheOldestWhenFull() {
+        LongWindowSet set = new LongWindowSet(3, 1000);
+        set.add(1, 0);
+        set.add(2, 0);
+        set.add(3, 0);
+        set.add(4, 0);
+        assertEquals(3, set.size());
+        assertFalse(set.contains(1));
+        assertTrue(set.contains(2));
+        assertTrue(set.contains(4));
+    }
+
+    @Test
+    public void matchesASetUnderChurn() {
+        // colliding keys exercise the backward shift on delete
+        int capacity = 64;
+        LongWindowSet set = new LongWindowSet(capacity, Long.MAX_VALUE);
+        ArrayDeque<Long> order = new ArrayDeque<Long>();
+        Set<Long> model = new HashSet<Long>();
+        Random random = new Random(4);
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextInt(200) * 128L;
+            boolean added = set.add(key, i);
+            assertEquals(!model.contains(key), added);
+            if (added) {
+                if (order.size() == capacity) {
+                    model.remove(order.removeFirst());
+                }
+                order.addLast(key);
+                model.add(key);
+            }
+            assertEquals(model.size(), set.size());
+        }
+        for (long key = 0; key < 200 * 128L; key += 128) {
+            assertEquals(model.contains(key), set.contains(key));
+        }
+    }
+}
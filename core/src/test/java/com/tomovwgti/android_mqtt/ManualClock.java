@@ -0,0 +1,23 @@
+package com.tomovwgti.android_mqtt;
+
+/**
+ * Clock of the tests, which only moves when told to
+ */
+class ManualClock implements Clock {
+
+    private long mMillis = 1000000;
+
+    void advance(long millis) {
+        mMillis += millis;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return mMillis;
+    }
+
+    @Override
+    public long nanoTime() {
+        return mMillis * 1000000;
+    }
+}
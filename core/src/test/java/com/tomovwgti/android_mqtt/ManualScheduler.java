@@ -0,0 +1,115 @@
+package com.tomovwgti.android_mqtt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Scheduler of the tests, which runs its tasks on the test thread as its
+ * clock is advanced. Wakeups run like any delayed task.
+ */
+class ManualScheduler implements Scheduler {
+
+    private static class Task {
+        final Runnable runnable;
+        final long due;
+        final boolean wakeup;
+
+        Task(Runnable runnable, long due, boolean wakeup) {
+            this.runnable = runnable;
+            this.due = due;
+            this.wakeup = wakeup;
+        }
+    }
+
+    private final ManualClock mClock;
+    // in the order they were posted
+    private final List<Task> mTasks = new ArrayList<Task>();
+
+    ManualScheduler(ManualClock clock) {
+        mClock = clock;
+    }
+
+    @Override
+    public synchronized void post(Runnable task) {
+        postDelayed(task, 0);
+    }
+
+    @Override
+    public synchronized void postDelayed(Runnable task, long delay) {
+        mTasks.add(new Task(task, mClock.currentTimeMillis() + delay, false));
+    }
+
+    @Override
+    public synchronized void remove(Runnable task) {
+        remove(task, false);
+    }
+
+    @Override
+    public synchronized void postWakeup(Runnable task, long delay) {
+        remove(task, true);
+        mTasks.add(new Task(task, mClock.currentTimeMillis() + delay, true));
+    }
+
+    @Override
+    public synchronized void removeWakeup(Runnable task) {
+        remove(task, true);
+    }
+
+    private void remove(Runnable task, boolean wakeup) {
+        Iterator<Task> it = mTasks.iterator();
+        while (it.hasNext()) {
+            Task t = it.next();
+            if (t.runnable == task && t.wakeup == wakeup) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Runs every task that is due, also those they post
+     */
+    void runDue() {
+        advance(0);
+    }
+
+    /**
+     * Moves the clock ms ahead, running each task as its time comes
+     */
+    void advance(long ms) {
+        long end = mClock.currentTimeMillis() + ms;
+        Task next;
+        while ((next = takeNext(end)) != null) {
+            if (next.due > mClock.currentTimeMillis()) {
+                mClock.advance(next.due - mClock.currentTimeMillis());
+            }
+            next.runnable.run();
+        }
+        mClock.advance(end - mClock.currentTimeMillis());
+    }
+
+    /**
+     * @return whether a wakeup is pending
+     */
+    synchronized boolean hasWakeup() {
+        for (Task t : mTasks) {
+            if (t.wakeup) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Task takeNext(long end) {
+        Task next = null;
+        for (Task t : mTasks) {
+            if (t.due <= end && (next == null || t.due < next.due)) {
+                next = t;
+            }
+        }
+        if (next != null) {
+            mTasks.remove(next);
+        }
+        return next;
+    }
+}
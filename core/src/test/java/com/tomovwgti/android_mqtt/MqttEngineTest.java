@@ -0,0 +1,394 @@
+package com.tomovwgti.android_mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.MqttToken;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The engine on a manual clock and scheduler, connecting stub clients that
+ * complete their tokens when the test says so
+ */
+public class MqttEngineTest {
+
+    private static final String CLIENT_ID = "engine-test";
+
+    /**
+     * Client that never opens a socket. It records what the engine sends and
+     * completes connects and publishes when told to.
+     */
+    static class StubClient extends TransportClient {
+        final String uri;
+        boolean connected = false;
+        boolean forced = false;
+        MqttCallback callback;
+        IMqttActionListener connectListener;
+        final List<String> subscribed = new ArrayList<String>();
+        final List<MqttDeliveryToken> published = new ArrayList<MqttDeliveryToken>();
+        final List<IMqttActionListener> publishListeners = new ArrayList<IMqttActionListener>();
+        // what its store restored of the last connection
+        IMqttDeliveryToken[] pending = new IMqttDeliveryToken[0];
+        private int mNextId = 1;
+
+        StubClient(String uri) throws MqttException {
+            super(uri, CLIENT_ID, new MemoryPersistence(), null, null);
+            this.uri = uri;
+        }
+
+        @Override
+        public IMqttToken connect(MqttConnectOptions options, Object userContext,
+                                  IMqttActionListener listener) {
+            connectListener = listener;
+            return new MqttToken(CLIENT_ID);
+        }
+
+        void connectSucceeds(final boolean sessionPresent) {
+            connected = true;
+            connectListener.onSuccess(new MqttToken(CLIENT_ID) {
+                @Override
+                public boolean getSessionPresent() {
+                    return sessionPresent;
+                }
+            });
+        }
+
+        void connectFails() {
+            connectListener.onFailure(new MqttToken(CLIENT_ID),
+                    new MqttException(MqttException.REASON_CODE_SERVER_CONNECT_ERROR));
+        }
+
+        /**
+         * The connection broke under the engine
+         */
+        void lose() {
+            connected = false;
+            callback.connectionLost(new IOException("reset"));
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public void setCallback(MqttCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        void setPingInterval(long interval) {
+        }
+
+        @Override
+        public IMqttDeliveryToken publish(String topic, MqttMessage message, Object userContext,
+                                          IMqttActionListener listener) {
+            MqttDeliveryToken token = new MqttDeliveryToken(CLIENT_ID);
+            token.internalTok.setMessageID(message.getQos() > 0 ? mNextId++ : 0);
+            token.setUserContext(userContext);
+            published.add(token);
+            publishListeners.add(listener);
+            return token;
+        }
+
+        void ack(int index) {
+            publishListeners.get(index).onSuccess(published.get(index));
+        }
+
+        List<String> publishedTopics() {
+            List<String> topics = new ArrayList<String>();
+            for (MqttDeliveryToken token : published) {
+                topics.add(((PublishQueue.Entry) token.getUserContext()).topic);
+            }
+            return topics;
+        }
+
+        @Override
+        public IMqttToken subscribe(String[] topics, int[] qos, Object userContext,
+                                    IMqttActionListener listener) {
+            subscribed.addAll(Arrays.asList(topics));
+            MqttToken token = new MqttToken(CLIENT_ID);
+            listener.onSuccess(token);
+            return token;
+        }
+
+        @Override
+        public IMqttToken unsubscribe(String[] topics, Object userContext, IMqttActionListener listener) {
+            return new MqttToken(CLIENT_ID);
+        }
+
+        @Override
+        public IMqttToken disconnect(Object userContext, IMqttActionListener listener) {
+            connected = false;
+            MqttToken token = new MqttToken(CLIENT_ID);
+            listener.onSuccess(token);
+            return token;
+        }
+
+        @Override
+        public IMqttToken disconnect() {
+            connected = false;
+            return new MqttToken(CLIENT_ID);
+        }
+
+        @Override
+        public void disconnectForcibly(long quiesceTimeout, long disconnectTimeout) {
+            connected = false;
+            forced = true;
+        }
+
+        @Override
+        public IMqttDeliveryToken[] getPendingDeliveryTokens() {
+            return pending;
+        }
+    }
+
+    private final ManualClock mClock = new ManualClock();
+    private final ManualScheduler mScheduler = new ManualScheduler(mClock);
+    private final SettingsStore mSettings = new MemorySettingsStore();
+    private final List<StubClient> mClients = new ArrayList<StubClient>();
+    // delivery results by topic
+    private final Map<String, Integer> mDelivered = new LinkedHashMap<String, Integer>();
+    private boolean mNetwork = true;
+    private File mDir;
+    private MqttEngine mEngine;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("engine", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+        mSettings.putString(MqttEngine.PREF_SERVER_LIST, "tcp://a:1883");
+        mSettings.putString(MqttEngine.PREF_CLIENT_ID, CLIENT_ID);
+        mSettings.putBoolean(MqttEngine.PREF_CACHE_SNAPSHOT, false);
+        mEngine = new MqttEngine(mClock) {
+            @Override
+            TransportClient newClient(String url, String clientid, boolean fileStore)
+                    throws MqttException {
+                StubClient client = new StubClient(url);
+                mClients.add(client);
+                return client;
+            }
+        };
+        Connectivity connectivity = new Connectivity() {
+            @Override
+            public boolean isNetworkAvailable() {
+                return mNetwork;
+            }
+        };
+        mEngine.attach(new MqttEngine.Environment(mScheduler, connectivity, mSettings,
+                new MemorySettingsStore(), mDir, null, null), null);
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDir);
+    }
+
+    private StubClient client(int index) {
+        assertTrue("client " + index + " of " + mClients.size(), index < mClients.size());
+        return mClients.get(index);
+    }
+
+    /**
+     * Starts and lets the first client connect
+     */
+    private StubClient connect(boolean sessionPresent) {
+        mEngine.start();
+        mScheduler.runDue();
+        StubClient client = client(mClients.size() - 1);
+        client.connectSucceeds(sessionPresent);
+        mScheduler.runDue();
+        return client;
+    }
+
+    private void publish(String topic, int qos) {
+        mEngine.enqueue(new PublishQueue.Entry(topic, new byte[]{1}, qos, false,
+                new PublishQueue.deliveryCallback() {
+                    @Override
+                    public void onDelivered(String topic, int status, String message) {
+                        mDelivered.put(topic, status);
+                    }
+                }), FlowControl.Mode.FAIL);
+    }
+
+    @Test
+    public void connectsAndFailsOverToTheNextServer() throws Exception {
+        mSettings.putString(MqttEngine.PREF_SERVER_LIST, "tcp://a:1883,tcp://b:1883");
+        mEngine.start();
+        mScheduler.runDue();
+        assertEquals(ConnectionState.CONNECTING, mEngine.getState());
+        client(0).connectFails();
+        // the next server is tried without backing off
+        mScheduler.runDue();
+        assertEquals(2, mClients.size());
+        assertNotEquals(client(0).uri, client(1).uri);
+        assertFalse(mScheduler.hasWakeup());
+
+        client(1).connectSucceeds(false);
+        assertEquals(ConnectionState.CONNECTED, mEngine.getState());
+        assertEquals(client(1).uri, mEngine.getStatus().uri);
+    }
+
+    @Test
+    public void backsOffOnceEveryServerFailed() throws Exception {
+        mSettings.putString(MqttEngine.PREF_SERVER_LIST, "tcp://a:1883,tcp://b:1883");
+        mEngine.start();
+        mScheduler.runDue();
+        client(0).connectFails();
+        mScheduler.runDue();
+        client(1).connectFails();
+        mScheduler.runDue();
+        assertEquals(ConnectionState.BACKING_OFF, mEngine.getState());
+        assertEquals(2, mClients.size());
+        assertTrue(mScheduler.hasWakeup());
+
+        mScheduler.advance(MqttEngine.MAXIMUM_RETRY_INTERVAL);
+        assertEquals(3, mClients.size());
+        assertEquals(ConnectionState.CONNECTING, mEngine.getState());
+    }
+
+    @Test
+    public void resumedSessionOnlySubscribesWhatChanged() throws Exception {
+        mEngine.subscribe("a/#", MqttEngine.MQTT_QOS_1);
+        StubClient first = connect(false);
+        assertEquals(Arrays.asList("a/#"), first.subscribed);
+
+        first.lose();
+        assertEquals(ConnectionState.CONNECTING, mEngine.getState());
+        mEngine.subscribe("b/+", MqttEngine.MQTT_QOS_1);
+        mScheduler.advance(100);
+        StubClient second = client(1);
+        second.connectSucceeds(true);
+        // the session still holds a/#
+        assertEquals(Arrays.asList("b/+"), second.subscribed);
+    }
+
+    @Test
+    public void newSessionSubscribesEverything() throws Exception {
+        mEngine.subscribe("a/#", MqttEngine.MQTT_QOS_1);
+        connect(false).lose();
+        mScheduler.runDue();
+        // the broker dropped the session meanwhile
+        client(1).connectSucceeds(false);
+        assertEquals(Arrays.asList("a/#"), client(1).subscribed);
+    }
+
+    @Test
+    public void resumesQos1AndFailsQos2LostWithTheStore() throws Exception {
+        StubClient first = connect(false);
+        publish("q1", MqttEngine.MQTT_QOS_1);
+        publish("q2", MqttEngine.MQTT_QOS_2);
+        mScheduler.advance(MqttEngine.PUBLISH_WINDOW);
+        assertEquals(Arrays.asList("q1", "q2"), first.publishedTopics());
+
+        first.lose();
+        // parked for the session, not failed
+        assertTrue(mDelivered.isEmpty());
+        mScheduler.runDue();
+        // the store of the new client restored neither
+        StubClient second = client(1);
+        second.connectSucceeds(true);
+        assertEquals(Arrays.asList("q1"), second.publishedTopics());
+        assertEquals(Integer.valueOf(MqttException.REASON_CODE_CONNECTION_LOST), mDelivered.get("q2"));
+        assertNull(mDelivered.get("q1"));
+
+        second.ack(0);
+        assertEquals(Integer.valueOf(MqttEngine.STATUS_SUCCESS), mDelivered.get("q1"));
+    }
+
+    @Test
+    public void restoredPublishesCompleteThroughDeliveryComplete() throws Exception {
+        StubClient first = connect(false);
+        publish("q2", MqttEngine.MQTT_QOS_2);
+        mScheduler.advance(MqttEngine.PUBLISH_WINDOW);
+        int id = first.published.get(0).getMessageId();
+        first.lose();
+        mScheduler.runDue();
+
+        StubClient second = client(1);
+        MqttDeliveryToken restored = new MqttDeliveryToken(CLIENT_ID);
+        restored.internalTok.setMessageID(id);
+        second.pending = new IMqttDeliveryToken[]{restored};
+        second.connectSucceeds(true);
+        // its store sends it, not the engine
+        assertTrue(second.published.isEmpty());
+        assertTrue(mDelivered.isEmpty());
+
+        mEngine.deliveryComplete(restored);
+        assertEquals(Integer.valueOf(MqttEngine.STATUS_SUCCESS), mDelivered.get("q2"));
+    }
+
+    @Test
+    public void drainsTheOfflineQueueInOrderAfterConnecting() throws Exception {
+        mEngine.start();
+        mScheduler.runDue();
+        publish("t0", MqttEngine.MQTT_QOS_1);
+        publish("t1", MqttEngine.MQTT_QOS_1);
+        mScheduler.advance(MqttEngine.PUBLISH_WINDOW);
+        StubClient client = client(0);
+        assertTrue(client.published.isEmpty());
+
+        client.connectSucceeds(false);
+        // parked behind the offline queue until it is drained
+        publish("t2", MqttEngine.MQTT_QOS_1);
+        mScheduler.advance(1000 * 3);
+        assertEquals(Arrays.asList("t0", "t1", "t2"), client.publishedTopics());
+    }
+
+    @Test
+    public void networkLostWhileConnectingDropsTheClient() throws Exception {
+        mEngine.start();
+        mScheduler.runDue();
+        StubClient first = client(0);
+
+        mNetwork = false;
+        mEngine.onNetworkLost();
+        assertTrue(first.forced);
+        assertEquals(ConnectionState.DISCONNECTED, mEngine.getState());
+
+        // the CONNACK of the dropped client arrives late
+        first.connectSucceeds(false);
+        assertFalse(first.connected);
+        assertEquals(ConnectionState.DISCONNECTED, mEngine.getState());
+
+        mNetwork = true;
+        mEngine.onNetworkAvailable();
+        mScheduler.runDue();
+        client(1).connectSucceeds(false);
+        assertEquals(ConnectionState.CONNECTED, mEngine.getState());
+        assertTrue(mEngine.isConnected());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,157 @@
+package com.tomovwgti.android_mqtt;
+
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineQueueTest {
+
+    private static PublishQueue.Entry entry(String topic, int value) {
+        return new PublishQueue.Entry(topic, new byte[]{(byte) value}, 1, false, null);
+    }
+
+    private static List<String> drain(OfflineQueue queue) throws Exception {
+        List<PublishQueue.Entry> out = new ArrayList<PublishQueue.Entry>();
+        queue.drainTo(out, Integer.MAX_VALUE);
+        List<String> topics = new ArrayList<String>();
+        for (PublishQueue.Entry e : out) {
+            topics.add(e.topic + "=" + e.payload[0]);
+        }
+        return topics;
+    }
+
+    private static OfflineQueue open(MemoryPersistence store, OfflineQueue.DropPolicy policy)
+            throws Exception {
+        OfflineQueue queue = new OfflineQueue(store, 3, policy);
+        queue.open("test");
+        return queue;
+    }
+
+    @Test
+    public void dropOldestEvictsTheHead() throws Exception {
+        OfflineQueue queue = open(new MemoryPersistence(), OfflineQueue.DropPolicy.DROP_OLDEST);
+        for (int i = 0; i < 3; i++) {
+            assertNull(queue.add(entry("t", i)));
+        }
+        PublishQueue.Entry dropped = queue.add(entry("t", 3));
+        assertEquals(0, dropped.payload[0]);
+        assertEquals(3, queue.size());
+        assertEquals(list("t=1", "t=2", "t=3"), drain(queue));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropNewestRejectsTheEntry() throws Exception {
+        OfflineQueue queue = open(new MemoryPersistence(), OfflineQueue.DropPolicy.DROP_NEWEST);
+        for (int i = 0; i < 3; i++) {
+            queue.add(entry("t", i));
+        }
+        PublishQueue.Entry last = entry("t", 3);
+        assertSame(last, queue.add(last));
+        assertEquals(list("t=0", "t=1", "t=2"), drain(queue));
+    }
+
+    @Test
+    public void latestPerTopicReplacesOlderMessages() throws Exception {
+        OfflineQueue queue = open(new MemoryPersistence(), OfflineQueue.DropPolicy.LATEST_PER_TOPIC);
+        queue.add(entry("a", 0));
+        queue.add(entry("b", 0));
+        PublishQueue.Entry dropped = queue.add(entry("a", 1));
+        assertEquals("a", dropped.topic);
+        assertEquals(0, dropped.payload[0]);
+        queue.add(entry("c", 0));
+        // full of distinct topics, the oldest goes
+        dropped = queue.add(entry("d", 0));
+        assertEquals("b", dropped.topic);
+        assertEquals(list("a=1", "c=0", "d=0"), drain(queue));
+    }
+
+    @Test
+    public void lanesSurviveReopen() throws Exception {
+        PublishLanes lanes = new PublishLanes(new PublishLanes.Lane("default", 1, -1, null, 10, false));
+        lanes.addLane(new PublishLanes.Lane("bulk", 1, -1, null, 10, false));
+        File dir = File.createTempFile("offline", "");
+        assertTrue(dir.delete());
+        OfflineQueue queue = new OfflineQueue(new SegmentLogPersistence(dir, 4096, 1000), 3,
+                OfflineQueue.DropPolicy.DROP_OLDEST, lanes);
+        queue.open("test");
+        PublishQueue.Entry bulk = entry("a", 1);
+        lanes.offer(bulk, lanes.getLane("bulk"));
+        queue.add(bulk);
+        queue.add(entry("b", 2));
+        queue.close();
+
+        // lanes may be added after the queue is opened
+        PublishLanes later = new PublishLanes(new PublishLanes.Lane("default", 1, -1, null, 10, false));
+        OfflineQueue reopened = new OfflineQueue(new SegmentLogPersistence(dir, 4096, 1000), 3,
+                OfflineQueue.DropPolicy.DROP_OLDEST, later);
+        reopened.open("test");
+        later.addLane(new PublishLanes.Lane("bulk", 1, -1, null, 10, false));
+        List<PublishQueue.Entry> out = new ArrayList<PublishQueue.Entry>();
+        reopened.drainTo(out, 2);
+        assertEquals("a", out.get(0).topic);
+        assertSame(later.getLane("bulk"), out.get(0).lane);
+        assertEquals(1, out.get(0).payload[0]);
+        assertNull(out.get(1).lane);
+        assertEquals(2, out.get(1).payload[0]);
+        reopened.close();
+        for (File file : dir.listFiles()) {
+            for (File segment : file.listFiles()) {
+                segment.delete();
+            }
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void survivesReopen() throws Exception {
+        File dir = File.createTempFile("offline", "");
+        assertTrue(dir.delete());
+        OfflineQueue queue = new OfflineQueue(new SegmentLogPersistence(dir, 4096, 1000), 3,
+                OfflineQueue.DropPolicy.DROP_OLDEST);
+        queue.open("test");
+        queue.add(new PublishQueue.Entry("a/b", new byte[]{1, 2, 3}, 2, true, null));
+        queue.add(entry("c", 4));
+        queue.close();
+
+        OfflineQueue reopened = new OfflineQueue(new SegmentLogPersistence(dir, 4096, 1000), 3,
+                OfflineQueue.DropPolicy.DROP_OLDEST);
+        reopened.open("test");
+        assertEquals(2, reopened.size());
+
+        List<PublishQueue.Entry> out = new ArrayList<PublishQueue.Entry>();
+        assertEquals(1, reopened.drainTo(out, 1));
+        PublishQueue.Entry first = out.get(0);
+        assertEquals("a/b", first.topic);
+        assertArrayEquals(new byte[]{1, 2, 3}, first.payload);
+        assertEquals(2, first.qos);
+        assertTrue(first.retained);
+        assertEquals(list("c=4"), drain(reopened));
+        reopened.close();
+        for (File file : dir.listFiles()) {
+            for (File segment : file.listFiles()) {
+                segment.delete();
+            }
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static List<String> list(String... values) {
+        List<String> list = new ArrayList<String>();
+        for (String value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,202 @@
+package com.tomovwgti.android_mqtt;
+
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PublishLanesTest {
+
+    private static PublishQueue.Entry entry(String topic, int length) {
+        return new PublishQueue.Entry(topic, new byte[length], 1, false, null);
+    }
+
+    private static PublishLanes lanes() {
+        PublishLanes lanes = new PublishLanes(new PublishLanes.Lane("default", 1, -1, null, 100, false));
+        lanes.addLane(new PublishLanes.Lane("bulk", 1, 0, null, 100, false));
+        lanes.addLane(new PublishLanes.Lane("fast", 3, -1, null, 100, false));
+        lanes.addLane(new PublishLanes.Lane("control", 1, 2, false, 100, true));
+        return lanes;
+    }
+
+    private static int count(List<PublishQueue.Entry> entries, String lane) {
+        int n = 0;
+        for (PublishQueue.Entry e : entries) {
+            if (e.lane.getName().equals(lane)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void mostSpecificRouteWins() {
+        PublishLanes lanes = lanes();
+        lanes.route("a/#", "bulk");
+        lanes.route("a/+/c", "fast");
+        lanes.route("a/b/c", "control");
+        assertEquals("control", lanes.select("a/b/c").getName());
+        assertEquals("fast", lanes.select("a/x/c").getName());
+        assertEquals("bulk", lanes.select("a/x").getName());
+        assertEquals("default", lanes.select("b").getName());
+        lanes.unroute("a/b/c");
+        assertEquals("fast", lanes.select("a/b/c").getName());
+    }
+
+    @Test
+    public void laneOverridesQosAndRetain() {
+        PublishLanes lanes = lanes();
+        lanes.route("c", "control");
+        PublishQueue.Entry entry = new PublishQueue.Entry("c", new byte[1], 0, true, null);
+        assertTrue(lanes.offer(entry, null));
+        assertEquals(2, entry.qos);
+        assertFalse(entry.retained);
+        assertSame(lanes.getLane("control"), entry.lane);
+    }
+
+    @Test
+    public void weightsShareTheSlots() {
+        PublishLanes lanes = lanes();
+        for (int i = 0; i < 50; i++) {
+            lanes.offer(entry("b", 100), lanes.getLane("bulk"));
+            lanes.offer(entry("f", 100), lanes.getLane("fast"));
+        }
+        List<PublishQueue.Entry> out = new ArrayList<PublishQueue.Entry>();
+        assertEquals(40, lanes.drainTo(out, 40, 0));
+        assertEquals(10, count(out, "bulk"));
+        assertEquals(30, count(out, "fast"));
+    }
+
+    @Test
+    public void sharesAreMeasuredInBytes() {
+        PublishLanes lanes = lanes();
+        for (int i = 0; i < 50; i++) {
+            // same weight, a tenth of the size
+            lanes.offer(entry("d", 96), lanes.getLane("default"));
+            lanes.offer(entry("b", 996), lanes.getLane("bulk"));
+        }
+        List<PublishQueue.Entry> out = new ArrayList<PublishQueue.Entry>();
+        lanes.drainTo(out, 22, 0);
+        assertEquals(20, count(out, "default"));
+        assertEquals(2, count(out, "bulk"));
+    }
+
+    @Test
+    public void idleLaneDoesNotBankItsShare() {
+        PublishLanes lanes = lanes();
+        for (int i = 0; i < 20; i++) {
+            lanes.offer(entry("b", 100), lanes.getLane("bulk"));
+        }
+        List<PublishQueue.Entry> out = new ArrayList<PublishQueue.Entry>();
+        lanes.drainTo(out, 10, 0);
+        for (int i = 0; i < 20; i++) {
+            lanes.offer(entry("d", 100), lanes.getLane("default"));
+        }
+        out.clear();
+        lanes.drainTo(out, 10, 0);
+        // starting from zero, default would take all ten
+        assertTrue(count(out, "default") <= 6);
+        assertTrue(count(out, "bulk") >= 4);
+    }
+
+    @Test
+    public void reservedSlotsServePriorityLanesOnly() {
+        PublishLanes lanes = lanes();
+        for (int i = 0; i < 5; i++) {
+            lanes.offer(entry("b", 10), lanes.getLane("bulk"));
+            lanes.offer(entry("c", 10), lanes.getLane("control"));
+        }
+        assertTrue(lanes.hasPriority());
+        List<PublishQueue.Entry> out = new ArrayList<PublishQueue.Entry>();
+        assertEquals(0, lanes.drainTo(out, 0, 3));
+        assertEquals(3, count(out, "control"));
+        assertEquals(7, lanes.size());
+
+        out.clear();
+        assertEquals(2, lanes.drainTo(out, 2, 0));
+        assertEquals(0, lanes.drainTo(out, 0, 5));
+        assertEquals(4, out.size());
+        assertFalse(lanes.hasPriority());
+        assertEquals(3, lanes.size());
+    }
+
+    @Test
+    public void drainBulkLeavesPriorityLanes() {
+        PublishLanes lanes = lanes();
+        for (int i = 0; i < 3; i++) {
+            lanes.offer(entry("b", 10), lanes.getLane("bulk"));
+            lanes.offer(entry("d", 10), lanes.getLane("default"));
+            lanes.offer(entry("c", 10), lanes.getLane("control"));
+        }
+        List<PublishQueue.Entry> out = new ArrayList<PublishQueue.Entry>();
+        assertEquals(6, lanes.drainBulk(out));
+        assertEquals(6, out.size());
+        assertEquals(0, count(out, "control"));
+        assertEquals(3, lanes.size());
+        assertTrue(lanes.hasPriority());
+    }
+
+    @Test
+    public void controlLatencyStaysBoundedWhileBacklogDrains() throws Exception {
+        // the engine while it drains the offline queue: every 100 ms the
+        // bulk lanes are parked behind the backlog, the priority lanes
+        // sent, then a batch of 20 taken from the backlog
+        PublishLanes lanes = lanes();
+        OfflineQueue backlog = new OfflineQueue(new MemoryPersistence(), 500,
+                OfflineQueue.DropPolicy.DROP_OLDEST, lanes);
+        backlog.open("test");
+        List<PublishQueue.Entry> out = new ArrayList<PublishQueue.Entry>();
+        for (int i = 0; i < 500; i++) {
+            lanes.offer(entry("d", 10), null);
+        }
+        lanes.drainBulk(out);
+        for (PublishQueue.Entry e : out) {
+            backlog.add(e);
+        }
+        int controlQueued = 0;
+        int controlSent = 0;
+        for (int tick = 0; tick < 50; tick++) {
+            for (int i = 0; i < 30; i++) {
+                lanes.offer(entry("d", 10), null);
+            }
+            lanes.offer(entry("c", 10), lanes.getLane("control"));
+            controlQueued++;
+
+            out.clear();
+            lanes.drainBulk(out);
+            for (PublishQueue.Entry e : out) {
+                PublishQueue.Entry dropped = backlog.add(e);
+                assertTrue(dropped == null || dropped.topic.equals("d"));
+            }
+            out.clear();
+            lanes.drainTo(out, 8, 2);
+            controlSent += count(out, "control");
+            // every control message leaves in the step it was queued in
+            assertEquals(controlQueued, controlSent);
+            out.clear();
+            backlog.drainTo(out, 20);
+            assertEquals(0, count(out, "control"));
+        }
+        // the backlog never emptied meanwhile
+        assertFalse(backlog.isEmpty());
+    }
+
+    @Test
+    public void fullLaneRejects() {
+        PublishLanes lanes = new PublishLanes(new PublishLanes.Lane("default", 1, -1, null, 2, false));
+        assertTrue(lanes.offer(entry("t", 1), null));
+        assertTrue(lanes.offer(entry("t", 1), null));
+        assertFalse(lanes.offer(entry("t", 1), null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void routeToUnknownLaneFails() {
+        lanes().route("a", "none");
+    }
+}
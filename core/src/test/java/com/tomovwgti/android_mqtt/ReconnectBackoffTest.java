@@ -0,0 +1,56 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void delaysStayBetweenBaseAndCap() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new Random(1));
+        long previous = 1000;
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.next();
+            assertTrue(delay >= 1000);
+            assertTrue(delay <= 60000);
+            // decorrelated jitter grows by three times at most
+            assertTrue(delay <= previous * 3);
+            previous = delay;
+        }
+        assertEquals(1000, backoff.getAttempts());
+    }
+
+    @Test
+    public void delaysGrowOnAverage() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new Random(2));
+        long first = 0;
+        for (int i = 0; i < 100; i++) {
+            backoff.reset();
+            first += backoff.next();
+        }
+        long tenth = 0;
+        for (int i = 0; i < 100; i++) {
+            backoff.reset();
+            for (int j = 0; j < 9; j++) {
+                backoff.next();
+            }
+            tenth += backoff.next();
+        }
+        assertTrue(tenth > first * 3);
+    }
+
+    @Test
+    public void resetStartsOver() {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 60000, new Random(3));
+        for (int i = 0; i < 20; i++) {
+            backoff.next();
+        }
+        backoff.reset();
+        assertEquals(0, backoff.getAttempts());
+        assertTrue(backoff.next() <= 3000);
+    }
+}
@@ -0,0 +1,153 @@
+package com.tomovwgti.android_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttPersistable;
+import org.eclipse.paho.client.mqttv3.internal.MqttPersistentData;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentLogPersistenceTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final String CLIENT_ID = "client";
+    private static final String SERVER = "tcp://localhost:1883";
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("segments", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        delete(mDir);
+    }
+
+    private SegmentLogPersistence open() throws Exception {
+        SegmentLogPersistence store = new SegmentLogPersistence(mDir, SEGMENT_SIZE, 1000);
+        store.open(CLIENT_ID, SERVER);
+        return store;
+    }
+
+    private static MqttPersistable data(String key, byte[] header, byte[] payload) {
+        return new MqttPersistentData(key, header, 0, header.length, payload, 0, payload.length);
+    }
+
+    private static byte[] filled(int length, int value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) value);
+        return bytes;
+    }
+
+    private static byte[] body(MqttPersistable data) throws Exception {
+        byte[] body = new byte[data.getHeaderLength() + data.getPayloadLength()];
+        System.arraycopy(data.getHeaderBytes(), data.getHeaderOffset(), body, 0, data.getHeaderLength());
+        if (data.getPayloadLength() > 0) {
+            System.arraycopy(data.getPayloadBytes(), data.getPayloadOffset(), body, data.getHeaderLength(),
+                    data.getPayloadLength());
+        }
+        return body;
+    }
+
+    @Test
+    public void recoversRecordsAfterReopen() throws Exception {
+        SegmentLogPersistence store = open();
+        store.put("a", data("a", filled(4, 1), filled(10, 2)));
+        store.put("b", data("b", filled(4, 3), filled(10, 4)));
+        store.put("a", data("a", filled(4, 5), filled(20, 6)));
+        store.remove("b");
+        store.close();
+
+        store = open();
+        assertTrue(store.containsKey("a"));
+        assertFalse(store.containsKey("b"));
+        byte[] expected = new byte[24];
+        Arrays.fill(expected, 0, 4, (byte) 5);
+        Arrays.fill(expected, 4, 24, (byte) 6);
+        assertArrayEquals(expected, body(store.get("a")));
+        store.close();
+    }
+
+    @Test
+    public void recoversAcrossSegments() throws Exception {
+        SegmentLogPersistence store = open();
+        for (int i = 0; i < 100; i++) {
+            store.put("k" + i, data("k" + i, filled(4, i), filled(200, i)));
+        }
+        store.close();
+
+        store = open();
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(filled(4, i), Arrays.copyOf(body(store.get("k" + i)), 4));
+        }
+        store.close();
+    }
+
+    @Test
+    public void stopsAtRecordWithBadCrc() throws Exception {
+        SegmentLogPersistence store = open();
+        store.put("good", data("good", filled(4, 1), filled(100, 1)));
+        store.put("torn", data("torn", filled(4, 2), filled(100, 0x55)));
+        store.close();
+
+        // flip the last byte of the last payload, as a write torn by a crash would
+        File segment = onlySegment(mDir);
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            long last = -1;
+            for (long pos = 0; pos < raf.length(); pos++) {
+                raf.seek(pos);
+                if (raf.read() == 0x55) {
+                    last = pos;
+                }
+            }
+            assertTrue(last > 0);
+            raf.seek(last);
+            raf.write(0x54);
+        } finally {
+            raf.close();
+        }
+
+        store = open();
+        assertTrue(store.containsKey("good"));
+        assertFalse(store.containsKey("torn"));
+        // the log goes on after the damaged record is cut off
+        store.put("next", data("next", filled(4, 3), filled(10, 3)));
+        store.close();
+        store = open();
+        assertTrue(store.containsKey("good"));
+        assertTrue(store.containsKey("next"));
+        store.close();
+    }
+
+    private static File onlySegment(File dir) {
+        File[] dirs = dir.listFiles();
+        assertEquals(1, dirs.length);
+        File[] segments = dirs[0].listFiles();
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,109 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ServerSelectorTest {
+
+    private ServerSelector mSelector;
+    private ServerSelector.Server mA;
+    private ServerSelector.Server mB;
+    private ServerSelector.Server mC;
+
+    @Before
+    public void setUp() {
+        mSelector = new ServerSelector(Arrays.asList("tcp://a:1883", "ssl://b", "tcp://c:1884"),
+                1000, 8000);
+        List<ServerSelector.Server> servers = mSelector.getServers();
+        mA = servers.get(0);
+        mB = servers.get(1);
+        mC = servers.get(2);
+    }
+
+    @Test
+    public void parsesPorts() {
+        assertEquals(1883, mA.port);
+        assertEquals(8883, mB.port);
+        assertEquals("c", mC.host);
+    }
+
+    @Test
+    public void keepsListOrderUntilProbed() {
+        assertSame(mA, mSelector.select(0));
+        mSelector.onProbe(mC, 50, 0);
+        assertSame(mC, mSelector.select(0));
+        mSelector.onProbe(mB, 20, 0);
+        assertSame(mB, mSelector.select(0));
+    }
+
+    @Test
+    public void failuresCoolDownExponentially() {
+        mSelector.onFailure(mA, 0);
+        assertEquals(1000, mA.retryAt);
+        assertSame(mB, mSelector.select(0));
+        mSelector.onFailure(mA, 0);
+        assertEquals(2000, mA.retryAt);
+        for (int i = 0; i < 10; i++) {
+            mSelector.onFailure(mA, 0);
+        }
+        assertEquals(8000, mA.retryAt);
+        assertSame(mA, mSelector.select(8000));
+
+        mSelector.onConnected(mA, 30);
+        assertEquals(0, mA.failures);
+        assertEquals(0, mA.retryAt);
+    }
+
+    @Test
+    public void allCoolingPicksTheFirstToRecover() {
+        mSelector.onFailure(mA, 0);
+        mSelector.onFailure(mA, 0);
+        mSelector.onFailure(mB, 0);
+        mSelector.onFailure(mC, 500);
+        assertSame(mB, mSelector.select(600));
+    }
+
+    @Test
+    public void failsBackOnlyToAClearlyFasterServer() {
+        mSelector.onProbe(mA, 100, 0);
+        mSelector.onProbe(mB, 80, 0);
+        // 20 ms but only 20 percent faster
+        assertNull(mSelector.better(mA, 0));
+        mSelector.onProbe(mB, 10, 0);
+        // 80 + 0.3 * (10 - 80) = 59
+        assertEquals(59, mB.rtt);
+        assertSame(mB, mSelector.better(mA, 0));
+        mSelector.onFailure(mB, 0);
+        assertNull(mSelector.better(mA, 0));
+    }
+
+    @Test
+    public void slowBrokerLosesToAFartherFastOne() {
+        mSelector.onProbe(mA, 10, 0);
+        mSelector.onProbe(mB, 30, 0);
+        assertSame(mA, mSelector.select(0));
+        // close, but slow to accept and to answer
+        mSelector.onConnected(mA, 400);
+        mSelector.onFirstAck(mA, 300);
+        // (10 + 400 / 2 + 300) / 3
+        assertEquals(170, mA.score());
+        // TLS takes two round trips more, (30 + 120 / 4 + 40) / 3
+        mSelector.onConnected(mB, 120);
+        mSelector.onFirstAck(mB, 40);
+        assertEquals(33, mB.score());
+        assertSame(mB, mSelector.select(0));
+        assertSame(mB, mSelector.better(mA, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void needsAServer() {
+        new ServerSelector(Arrays.<String>asList(), 1000, 8000);
+    }
+}
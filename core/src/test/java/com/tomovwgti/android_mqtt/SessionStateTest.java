@@ -0,0 +1,91 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionStateTest {
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("session", ".state");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void diffSubscribesMissingAndUnsubscribesStale() {
+        SessionState state = new SessionState(mFile);
+        state.add(new String[]{"a", "b", "c"}, new int[]{1, 1, 1});
+
+        Map<String, Integer> wanted = new HashMap<String, Integer>();
+        wanted.put("a", 1);
+        wanted.put("b", 2);
+        wanted.put("d", 0);
+        SubscriptionRegistry.Change change = state.diff(wanted);
+        assertEquals(2, change.subscribe.size());
+        assertEquals(Integer.valueOf(2), change.subscribe.get("b"));
+        assertEquals(Integer.valueOf(0), change.subscribe.get("d"));
+        assertEquals(Collections.singletonList("c"), change.unsubscribe);
+    }
+
+    @Test
+    public void diffOfTheSameFiltersIsEmpty() {
+        SessionState state = new SessionState(mFile);
+        state.add(new String[]{"a"}, new int[]{1});
+        assertTrue(state.diff(Collections.singletonMap("a", 1)).isEmpty());
+        state.clear();
+        Map<String, Integer> wanted = Collections.singletonMap("a", 1);
+        assertEquals(wanted, state.diff(wanted).subscribe);
+    }
+
+    @Test
+    public void belongsToItsServerAndClientId() throws IOException {
+        SessionState state = new SessionState(mFile);
+        assertFalse(state.isOf("tcp://a:1883", "c1"));
+        state.reset("tcp://a:1883", "c1");
+        state.add(new String[]{"a"}, new int[]{1});
+        assertTrue(state.isOf("tcp://a:1883", "c1"));
+        assertFalse(state.isOf("tcp://b:1883", "c1"));
+        assertFalse(state.isOf("tcp://a:1883", "c2"));
+        state.save();
+
+        SessionState loaded = new SessionState(mFile);
+        assertTrue(loaded.load());
+        assertTrue(loaded.isOf("tcp://a:1883", "c1"));
+        assertEquals(1, loaded.size());
+        loaded.reset("tcp://b:1883", "c1");
+        assertEquals(0, loaded.size());
+        assertFalse(loaded.isOf("tcp://a:1883", "c1"));
+    }
+
+    @Test
+    public void savesAndLoads() throws IOException {
+        SessionState state = new SessionState(mFile);
+        assertFalse(state.load());
+        state.add(new String[]{"a/#", "b"}, new int[]{2, 0});
+        state.remove(new String[]{"b"});
+        state.save();
+
+        SessionState loaded = new SessionState(mFile);
+        assertTrue(loaded.load());
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.diff(Collections.singletonMap("a/#", 2)).isEmpty());
+    }
+}
@@ -0,0 +1,47 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SocketTransportTest {
+
+    private static InetAddress v4(int last) throws UnknownHostException {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) last});
+    }
+
+    private static InetAddress v6(int last) throws UnknownHostException {
+        byte[] address = new byte[16];
+        address[0] = 0x20;
+        address[1] = 0x01;
+        address[15] = (byte) last;
+        return InetAddress.getByAddress(address);
+    }
+
+    @Test
+    public void interleavesFamiliesStartingWithTheFirst() throws UnknownHostException {
+        InetAddress[] addresses = {v6(1), v6(2), v6(3), v4(1), v4(2)};
+        List<InetAddress> order = SocketTransport.interleave(addresses);
+        assertEquals(Arrays.asList(v6(1), v4(1), v6(2), v4(2), v6(3)), order);
+
+        addresses = new InetAddress[]{v4(1), v6(1), v4(2)};
+        assertEquals(Arrays.asList(v4(1), v6(1), v4(2)), SocketTransport.interleave(addresses));
+    }
+
+    @Test
+    public void singleFamilyKeepsItsOrder() throws UnknownHostException {
+        InetAddress[] addresses = {v4(3), v4(1), v4(2)};
+        assertEquals(Arrays.asList(addresses), SocketTransport.interleave(addresses));
+    }
+
+    @Test
+    public void defaultPorts() {
+        assertEquals(1883, SocketTransport.defaultPort("tcp"));
+        assertEquals(8883, SocketTransport.defaultPort("ssl"));
+    }
+}
@@ -0,0 +1,86 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubscriptionRegistryTest {
+
+    private static boolean covers(String a, String b) {
+        return SubscriptionRegistry.covers(TopicMatcher.split(a), TopicMatcher.split(b));
+    }
+
+    @Test
+    public void coversWildcards() {
+        assertTrue(covers("a/#", "a/b/c"));
+        assertTrue(covers("a/#", "a"));
+        assertTrue(covers("a/#", "a/+/c"));
+        assertTrue(covers("a/+", "a/b"));
+        assertTrue(covers("a/+/#", "a/b/#"));
+        assertTrue(covers("#", "a/b"));
+        assertTrue(covers("a/b", "a/b"));
+
+        assertFalse(covers("a/+", "a/b/c"));
+        assertFalse(covers("a/+", "a/#"));
+        assertFalse(covers("a/b", "a/+"));
+        assertFalse(covers("a/b/c", "a/b"));
+        assertFalse(covers("b/#", "a/b"));
+    }
+
+    @Test
+    public void dollarTopicsAreNotCoveredByFirstLevelWildcards() {
+        assertFalse(covers("#", "$SYS/x"));
+        assertFalse(covers("+/x", "$SYS/x"));
+        assertTrue(covers("$SYS/#", "$SYS/x"));
+    }
+
+    @Test
+    public void wildcardReplacesCoveredFilters() {
+        SubscriptionRegistry registry = new SubscriptionRegistry(new MemorySettingsStore());
+        SubscriptionRegistry.Change change = registry.add("a/b", 1);
+        assertEquals(Collections.singletonMap("a/b", 1), change.subscribe);
+
+        change = registry.add("a/#", 1);
+        assertEquals(Collections.singletonMap("a/#", 1), change.subscribe);
+        assertEquals(Collections.singletonList("a/b"), change.unsubscribe);
+        assertEquals(Collections.singletonMap("a/#", 1), registry.getEffective());
+
+        change = registry.remove("a/#");
+        assertEquals(Collections.singletonMap("a/b", 1), change.subscribe);
+        assertEquals(Collections.singletonList("a/#"), change.unsubscribe);
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void lowerQosWildcardDoesNotCover() {
+        SubscriptionRegistry registry = new SubscriptionRegistry(new MemorySettingsStore());
+        registry.add("a/b", 2);
+        SubscriptionRegistry.Change change = registry.add("a/#", 1);
+        assertEquals(Collections.singletonMap("a/#", 1), change.subscribe);
+        assertTrue(change.unsubscribe.isEmpty());
+        assertEquals(2, registry.getEffective().size());
+    }
+
+    @Test
+    public void sameQosAgainChangesNothing() {
+        SubscriptionRegistry registry = new SubscriptionRegistry(new MemorySettingsStore());
+        registry.add("a/b", 1);
+        assertTrue(registry.add("a/b", 1).isEmpty());
+    }
+
+    @Test
+    public void reloadsFiltersFromTheStore() {
+        MemorySettingsStore store = new MemorySettingsStore();
+        SubscriptionRegistry registry = new SubscriptionRegistry(store);
+        registry.add("a/b", 1);
+        registry.add("a/+", 1);
+
+        SubscriptionRegistry reloaded = new SubscriptionRegistry(store);
+        assertTrue(reloaded.contains("a/b"));
+        assertEquals(Collections.singletonMap("a/+", 1), reloaded.getEffective());
+    }
+}
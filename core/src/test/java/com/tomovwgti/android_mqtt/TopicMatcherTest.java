@@ -0,0 +1,105 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TopicMatcherTest {
+
+    private static List<String> match(TopicMatcher<String> matcher, String topic) {
+        List<String> out = new ArrayList<String>();
+        matcher.match(topic, out);
+        Collections.sort(out);
+        return out;
+    }
+
+    @Test
+    public void matchesWildcards() {
+        TopicMatcher<String> matcher = new TopicMatcher<String>();
+        matcher.add("a/b/c", "exact");
+        matcher.add("a/+/c", "plus");
+        matcher.add("a/#", "hash");
+        matcher.add("#", "all");
+        matcher.add("b/+", "other");
+
+        assertEquals(listOf("all", "exact", "hash", "plus"), match(matcher, "a/b/c"));
+        assertEquals(listOf("all", "hash", "plus"), match(matcher, "a/x/c"));
+        assertEquals(listOf("all", "hash"), match(matcher, "a/b"));
+        assertEquals(listOf("all", "other"), match(matcher, "b/c"));
+        assertEquals(listOf("all"), match(matcher, "b/c/d"));
+    }
+
+    @Test
+    public void hashMatchesParentLevel() {
+        TopicMatcher<String> matcher = new TopicMatcher<String>();
+        matcher.add("a/#", "hash");
+        assertEquals(listOf("hash"), match(matcher, "a"));
+    }
+
+    @Test
+    public void plusMatchesEmptyLevel() {
+        TopicMatcher<String> matcher = new TopicMatcher<String>();
+        matcher.add("a/+/c", "plus");
+        assertEquals(listOf("plus"), match(matcher, "a//c"));
+    }
+
+    @Test
+    public void dollarTopicsSkipFirstLevelWildcards() {
+        TopicMatcher<String> matcher = new TopicMatcher<String>();
+        matcher.add("#", "all");
+        matcher.add("+/status", "plus");
+        matcher.add("$SYS/#", "sys");
+        assertEquals(listOf("sys"), match(matcher, "$SYS/status"));
+        assertEquals(listOf("all", "plus"), match(matcher, "x/status"));
+    }
+
+    @Test
+    public void removeForgetsOnlyThatValue() {
+        TopicMatcher<String> matcher = new TopicMatcher<String>();
+        matcher.add("a/+", "one");
+        matcher.add("a/+", "two");
+        assertEquals(2, matcher.size());
+
+        assertTrue(matcher.remove("a/+", "one"));
+        assertFalse(matcher.remove("a/+", "one"));
+        assertEquals(listOf("two"), match(matcher, "a/b"));
+
+        assertTrue(matcher.remove("a/+", "two"));
+        assertTrue(matcher.isEmpty());
+        assertEquals(listOf(), match(matcher, "a/b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHashBeforeLastLevel() {
+        new TopicMatcher<String>().add("a/#/b", "bad");
+    }
+
+    @Test
+    public void moreSpecificFilterWins() {
+        assertTrue(TopicMatcher.moreSpecific("a/b/c", "a/+/c"));
+        assertTrue(TopicMatcher.moreSpecific("a/+/c", "a/#"));
+        assertTrue(TopicMatcher.moreSpecific("a/+", "a/#"));
+        assertTrue(TopicMatcher.moreSpecific("a/b", "a/+"));
+        assertTrue(TopicMatcher.moreSpecific("a/#", "#"));
+        assertFalse(TopicMatcher.moreSpecific("a/+", "+/b"));
+        assertFalse(TopicMatcher.moreSpecific("#", "a/#"));
+    }
+
+    @Test
+    public void splitKeepsEmptyLevels() {
+        assertEquals(3, TopicMatcher.split("/a/").length);
+        assertEquals(1, TopicMatcher.split("a").length);
+    }
+
+    private static List<String> listOf(String... values) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, values);
+        return list;
+    }
+}
@@ -0,0 +1,87 @@
+package com.tomovwgti.android_mqtt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TransportPolicyTest {
+
+    private static final NetworkLink WIFI = new NetworkLink(NetworkLink.Type.WIFI, false, "home");
+    private static final NetworkLink OFFICE = new NetworkLink(NetworkLink.Type.WIFI, false, "office");
+    private static final NetworkLink CELLULAR = new NetworkLink(NetworkLink.Type.CELLULAR, false, null);
+    private static final NetworkLink METERED = new NetworkLink(NetworkLink.Type.WIFI, true, "hotspot");
+
+    private static final TransportPolicy.Profile UNMETERED_PROFILE =
+            new TransportPolicy.Profile("unmetered", 0, 100, 256, 2);
+    private static final TransportPolicy.Profile CELLULAR_PROFILE =
+            new TransportPolicy.Profile("cellular", 100, 100, 64, 2);
+    private static final TransportPolicy.Profile METERED_PROFILE =
+            new TransportPolicy.Profile("metered", 200, 100, 64, 1);
+
+    private TransportPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mPolicy = new TransportPolicy(3000, 500, 2000, UNMETERED_PROFILE, CELLULAR_PROFILE,
+                METERED_PROFILE);
+        // the first report settles at once
+        assertEquals(0, mPolicy.onLinkChanged(WIFI, 0));
+        TransportPolicy.Transition first = mPolicy.onTimer(0);
+        assertTrue(first.isRecovery());
+    }
+
+    @Test
+    public void lossIsDebounced() {
+        assertEquals(3000, mPolicy.onLinkChanged(NetworkLink.NONE, 1000));
+        assertNull(mPolicy.onTimer(3999));
+        assertEquals(1, mPolicy.getDelay(3999));
+        TransportPolicy.Transition loss = mPolicy.onTimer(4000);
+        assertTrue(loss.isLoss());
+        assertSame(NetworkLink.NONE, mPolicy.getLink());
+        assertEquals(1, mPolicy.getLosses());
+
+        assertEquals(500, mPolicy.onLinkChanged(WIFI, 5000));
+        assertTrue(mPolicy.onTimer(5500).isRecovery());
+    }
+
+    @Test
+    public void flapIsIgnored() {
+        mPolicy.onLinkChanged(NetworkLink.NONE, 1000);
+        assertEquals(-1, mPolicy.onLinkChanged(WIFI, 2000));
+        assertNull(mPolicy.onTimer(10000));
+        assertEquals(1, mPolicy.getFlaps());
+        assertEquals(Long.MAX_VALUE, mPolicy.getDue());
+        assertEquals(0, mPolicy.getLosses());
+    }
+
+    @Test
+    public void repeatedReportKeepsTheDebounceRunning() {
+        mPolicy.onLinkChanged(OFFICE, 1000);
+        assertEquals(1000, mPolicy.onLinkChanged(OFFICE, 2000));
+        assertEquals(3000, mPolicy.getDue());
+    }
+
+    @Test
+    public void handoverBetweenLinks() {
+        assertEquals(2000, mPolicy.onLinkChanged(CELLULAR, 1000));
+        TransportPolicy.Transition handover = mPolicy.onTimer(3000);
+        assertTrue(handover.isHandover());
+        assertSame(WIFI, handover.from);
+        assertSame(CELLULAR_PROFILE, mPolicy.getProfile());
+        assertEquals(1, mPolicy.getHandovers());
+    }
+
+    @Test
+    public void profileFollowsTheLink() {
+        assertSame(UNMETERED_PROFILE, mPolicy.profileOf(WIFI));
+        assertSame(CELLULAR_PROFILE, mPolicy.profileOf(CELLULAR));
+        assertSame(METERED_PROFILE, mPolicy.profileOf(METERED));
+        assertSame(METERED_PROFILE,
+                mPolicy.profileOf(new NetworkLink(NetworkLink.Type.CELLULAR, true, null)));
+        assertSame(UNMETERED_PROFILE, mPolicy.profileOf(NetworkLink.NONE));
+    }
+}